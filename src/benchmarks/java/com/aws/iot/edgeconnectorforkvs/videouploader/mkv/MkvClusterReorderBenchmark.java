@@ -0,0 +1,132 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of moving late simple blocks between 2 clusters.  Each cluster holds about 300 B-frame reordered simple
+ * blocks, and the reorder depth is how many of them spill over the next cluster's timecode.  The baseline is the
+ * previous approach that moves one block at a time and sorts both lists after every move.
+ *
+ * <p>Moving blocks updates their timecodes, so every invocation consumes its own pair of clusters.  The pairs are
+ * built before each iteration, and the score is the time of a batch of {@value #BATCH_SIZE} invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = MkvClusterReorderBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = MkvClusterReorderBenchmark.BATCH_SIZE)
+@Fork(1)
+public class MkvClusterReorderBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+
+    private static final int BLOCKS_PER_CLUSTER = 300;
+    private static final int FRAME_DURATION_MS = 33;
+    private static final long CLUSTER_DURATION_MS = (long) BLOCKS_PER_CLUSTER * FRAME_DURATION_MS;
+
+    @Param({"1", "4", "16", "64"})
+    private int reorderDepth;
+
+    private final ByteBuffer header = ByteBuffer.wrap(new byte[] {(byte) 0xA3, (byte) 0x85});
+    private final ByteBuffer data = ByteBuffer.wrap(new byte[] {(byte) 0x81, 0, 0, (byte) 0x80, 0});
+
+    private final List<List<MkvSimpleBlock>> previousBlocksBatch = new ArrayList<>(BATCH_SIZE);
+    private final List<List<MkvSimpleBlock>> currentBlocksBatch = new ArrayList<>(BATCH_SIZE);
+    private int nextIndex;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        previousBlocksBatch.clear();
+        currentBlocksBatch.clear();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            previousBlocksBatch.add(createBlocks(0));
+            currentBlocksBatch.add(createBlocks(CLUSTER_DURATION_MS));
+        }
+        nextIndex = 0;
+    }
+
+    /**
+     * Create simple blocks in decoding order, where every B-frame group swaps its presentation timecodes.  The last
+     * blocks are pushed over the next cluster's timecode by the reorder depth.
+     */
+    private List<MkvSimpleBlock> createBlocks(long clusterTimecode) {
+        final List<MkvSimpleBlock> blocks = new ArrayList<>(BLOCKS_PER_CLUSTER);
+        for (int i = 0; i < BLOCKS_PER_CLUSTER; i++) {
+            int timecode = (i % 2 == 0 ? i + 1 : i - 1) * FRAME_DURATION_MS;
+            if (i >= BLOCKS_PER_CLUSTER - reorderDepth) {
+                timecode += reorderDepth * FRAME_DURATION_MS;
+            }
+            blocks.add(new MkvSimpleBlock(timecode, 1, header, data));
+        }
+        return blocks;
+    }
+
+    private MkvCluster createCluster(long absoluteTimecode, List<MkvSimpleBlock> blocks) {
+        final MkvCluster cluster = new MkvCluster(ByteBuffer.allocate(0));
+        cluster.setAbsoluteTimecode(absoluteTimecode);
+        for (MkvSimpleBlock block : blocks) {
+            cluster.addSimpleBlock(block);
+        }
+        return cluster;
+    }
+
+    @Benchmark
+    public MkvCluster incrementalInsertAndRangeMigration() {
+        final int index = nextIndex++;
+        final MkvCluster previousCluster = createCluster(0, previousBlocksBatch.get(index));
+        final MkvCluster currentCluster = createCluster(CLUSTER_DURATION_MS, currentBlocksBatch.get(index));
+        previousCluster.migrateSimpleBlocksTo(currentCluster);
+        return currentCluster;
+    }
+
+    @Benchmark
+    public List<MkvSimpleBlock> appendSortAndPerBlockMigration() {
+        final int index = nextIndex++;
+        final List<MkvSimpleBlock> previous = new ArrayList<>(previousBlocksBatch.get(index));
+        final List<MkvSimpleBlock> current = new ArrayList<>(currentBlocksBatch.get(index));
+        Collections.sort(previous);
+        Collections.sort(current);
+        final short timecodeDiff = (short) -CLUSTER_DURATION_MS;
+        while (!previous.isEmpty()
+                && previous.get(previous.size() - 1).getRelativeTimecode() >= CLUSTER_DURATION_MS) {
+            final MkvSimpleBlock block = previous.remove(previous.size() - 1);
+            block.updateTimecode(timecodeDiff);
+            current.add(block);
+            Collections.sort(previous);
+            Collections.sort(current);
+        }
+        return current;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of EBML VINT encoding and decoding, and of serializing a Tracks tree of raw elements.  The baselines are
+ * the previous approaches: a branch per length when decoding IDs, a table scan and a byte array per size field when
+ * encoding sizes, and copying every child's serialized bytes into its parent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MkvRawElementBenchmark {
+
+    private static final int VALUE_COUNT = 1024;
+    private static final int TRACK_COUNT = 2;
+
+    private static final long[] SIZE_LIMITS = {
+            0x80L - 1, 0x4000 - 1, 0x200000L - 1, 0x10000000L - 1,
+            0x08000000_00L - 1, 0x04000000_0000L - 1, 0x02000000_000000L - 1, 0x01000000_00000000L - 1
+    };
+
+    private final byte[] idFirstBytes = new byte[VALUE_COUNT];
+    private final long[] sizes = new long[VALUE_COUNT];
+    private final ByteBuffer sizeBuffer = ByteBuffer.allocate(VALUE_COUNT * EbmlVint.MAX_SIZE_LENGTH);
+
+    private MkvParentRawElement tracks;
+    private List<List<MkvRawElement>> trackEntryChildren;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        final byte[] idPrefixes = {(byte) 0xA3, (byte) 0x42, (byte) 0x2A, (byte) 0x1F};
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            idFirstBytes[i] = idPrefixes[random.nextInt(idPrefixes.length)];
+            sizes[i] = random.nextInt((1 << (7 * (1 + random.nextInt(4)))) - 1);
+        }
+
+        tracks = new MkvParentRawElement(ByteBuffer.wrap(new byte[] {0x16, 0x54, (byte) 0xAE, 0x6B}));
+        trackEntryChildren = new ArrayList<>();
+        for (int i = 1; i <= TRACK_COUNT; i++) {
+            final MkvParentRawElement trackEntry = new MkvParentRawElement(ByteBuffer.wrap(new byte[] {(byte) 0xAE}));
+            final List<MkvRawElement> children = Arrays.asList(
+                    createDataElement(new byte[] {(byte) 0xD7}, new byte[] {(byte) i}),
+                    createDataElement(new byte[] {0x73, (byte) 0xC5}, new byte[8]),
+                    createDataElement(new byte[] {(byte) 0x86}, "V_MPEG4/ISO/AVC".getBytes(StandardCharsets.US_ASCII)),
+                    createDataElement(new byte[] {0x63, (byte) 0xA2}, new byte[48]));
+            for (MkvRawElement child : children) {
+                trackEntry.addRawElement(child);
+            }
+            tracks.addRawElement(trackEntry);
+            trackEntryChildren.add(children);
+        }
+    }
+
+    private static MkvDataRawElement createDataElement(byte[] id, byte[] data) {
+        return new MkvDataRawElement(ByteBuffer.wrap(id), ByteBuffer.wrap(data));
+    }
+
+    @Benchmark
+    public int leadingZerosIdDecoding() {
+        int total = 0;
+        for (byte firstByte : idFirstBytes) {
+            total += EbmlVint.idLength(firstByte);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int branchIdDecoding() {
+        int total = 0;
+        for (byte firstByte : idFirstBytes) {
+            if ((firstByte & 0x80) != 0) {
+                total += 1;
+            } else if ((firstByte & 0x40) != 0) {
+                total += 2;
+            } else if ((firstByte & 0x20) != 0) {
+                total += 3;
+            } else if ((firstByte & 0x10) != 0) {
+                total += 4;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public ByteBuffer leadingZerosSizeEncoding() {
+        sizeBuffer.clear();
+        for (long size : sizes) {
+            EbmlVint.putSize(sizeBuffer, size, EbmlVint.sizeLength(size));
+        }
+        return sizeBuffer;
+    }
+
+    @Benchmark
+    public ByteBuffer tableScanSizeEncoding() {
+        sizeBuffer.clear();
+        for (long size : sizes) {
+            int sizeLen = 0;
+            for (int i = 0; i < SIZE_LIMITS.length; i++) {
+                if (size < SIZE_LIMITS[i]) {
+                    sizeLen = i + 1;
+                    break;
+                }
+            }
+            final byte[] rawData = new byte[sizeLen];
+            long len = size;
+            for (int remainingLen = sizeLen; remainingLen > 1; remainingLen--) {
+                rawData[remainingLen - 1] = (byte) len;
+                len = len >> 8;
+            }
+            final byte leadingByte = (byte) (1 << (8 - sizeLen));
+            rawData[0] = (byte) (((byte) len & (byte) (leadingByte - 1)) | leadingByte);
+            sizeBuffer.put(rawData);
+        }
+        return sizeBuffer;
+    }
+
+    @Benchmark
+    public byte[] precomputedLengthSerialization() {
+        return tracks.toMkvRawData();
+    }
+
+    @Benchmark
+    public byte[] nestedCopySerialization() {
+        final List<byte[]> childrenRaws = new ArrayList<>();
+        int dataLen = 0;
+        for (List<MkvRawElement> children : trackEntryChildren) {
+            final List<byte[]> entryRaws = new ArrayList<>();
+            int entryLen = 0;
+            for (MkvRawElement element : children) {
+                final byte[] raw = element.toMkvRawData();
+                entryRaws.add(raw);
+                entryLen += raw.length;
+            }
+            final byte[] entryRaw = concat(new byte[] {(byte) 0xAE}, MkvRawElement.getMkvSize(entryLen), entryRaws);
+            childrenRaws.add(entryRaw);
+            dataLen += entryRaw.length;
+        }
+        return concat(new byte[] {0x16, 0x54, (byte) 0xAE, 0x6B}, MkvRawElement.getMkvSize(dataLen), childrenRaws);
+    }
+
+    private static byte[] concat(byte[] id, byte[] size, List<byte[]> childrenRaws) {
+        int length = id.length + size.length;
+        for (byte[] childRaw : childrenRaws) {
+            length += childRaw.length;
+        }
+        final byte[] raw = Arrays.copyOf(id, length);
+        int offset = id.length;
+        System.arraycopy(size, 0, raw, offset, size.length);
+        offset += size.length;
+        for (byte[] childRaw : childrenRaws) {
+            System.arraycopy(childRaw, 0, raw, offset, childRaw.length);
+            offset += childRaw.length;
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.playback;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClip;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvFilesInputStream;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+/**
+ * An embedded HTTP server for operators to review recordings on site, e.g. while the uplink is down.  Times are in
+ * milliseconds since epoch.
+ *
+ * <ul>
+ * <li>{@code GET /recordings?start=&end=} lists recordings that start in the time range, or all of them.</li>
+ * <li>{@code GET /recordings/<name>} serves a recording, with support of a single byte range for players to seek.
+ * </li>
+ * <li>{@code GET /recordings/<name>?start=&end=} serves a {@link MkvClip} of a recording for the time range.</li>
+ * <li>{@code GET /stream?start=&end=} streams recordings in the time range merged into fragments, in the same way as
+ * a historical upload.</li>
+ * </ul>
+ *
+ * <p>Recordings and clips are transferred from files to sockets by {@link FileChannel#transferTo}, so footage is not
+ * copied through the heap and each viewer only costs a thread.  Viewers beyond the max count are rejected with 503
+ * instead of being queued.  A merged stream has to be rewritten, so it's copied through a buffer.  There is no
+ * authentication, so the server listens on the loopback address unless a host is given.</p>
+ */
+@Slf4j
+public class PlaybackServer implements Closeable {
+
+    /** Path to list recordings, and the prefix of paths to serve recordings. */
+    public static final String RECORDINGS_PATH = "/recordings";
+
+    /** Path to stream merged recordings. */
+    public static final String STREAM_PATH = "/stream";
+
+    private static final String DEFAULT_HOST = "127.0.0.1";
+
+    private static final int DEFAULT_PORT = 8080;
+
+    private static final int DEFAULT_MAX_VIEWERS = 16;
+
+    private static final int REQUEST_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private static final int MAX_REQUEST_HEADER_LENGTH = 8 * 1024;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final String MKV_CONTENT_TYPE = "video/x-matroska";
+
+    private Path recordPath;
+
+    private RecordingLayout recordingLayout;
+
+    private InetSocketAddress address;
+
+    private int maxViewers;
+
+    private ServerSocketChannel serverChannel = null;
+
+    private ThreadPoolExecutor viewerExecutor = null;
+
+    /**
+     * The factory creator of PlaybackServer.
+     *
+     * @param recordFilePath  The record path of videos
+     * @param recordingLayout The layout that videos are recorded in, or null for flat
+     * @param host            Host address to listen on, or null for the loopback address
+     * @param port            Port to listen on, 0 for any free port, or null for 8080
+     * @param maxViewers      Max count of requests served at the same time, or null for 16
+     * @return The server, which is not listening until it's started
+     * @throws IllegalArgumentException if port is out of range or max viewers is not positive
+     */
+    @Builder
+    public static PlaybackServer create(@NonNull String recordFilePath,
+                                        RecordingLayout recordingLayout,
+                                        String host,
+                                        Integer port,
+                                        Integer maxViewers) {
+        final PlaybackServer server = new PlaybackServer();
+        server.recordPath = Paths.get(recordFilePath);
+        server.recordingLayout = recordingLayout == null ? RecordingLayout.FLAT : recordingLayout;
+        server.address = new InetSocketAddress(host == null ? DEFAULT_HOST : host, port == null ? DEFAULT_PORT : port);
+        server.maxViewers = maxViewers == null ? DEFAULT_MAX_VIEWERS : maxViewers;
+        if (server.maxViewers <= 0) {
+            throw new IllegalArgumentException("Invalid max viewers");
+        }
+        return server;
+    }
+
+    /**
+     * Start listening for viewers.
+     *
+     * @throws IOException           if the address can't be bound
+     * @throws IllegalStateException if the server is already started
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Playback server is already started");
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        viewerExecutor = new ThreadPoolExecutor(maxViewers, maxViewers, 1, TimeUnit.MINUTES, new SynchronousQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "playback-viewer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        viewerExecutor.allowCoreThreadTimeOut(true);
+
+        final Thread acceptThread = new Thread(this::accept, "playback-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        log.info("Playback server of {} listens on {}", recordPath, serverChannel.getLocalAddress());
+    }
+
+    /**
+     * Get the port that the server listens on.
+     *
+     * @return The port, or -1 if the server is not started
+     */
+    public synchronized int getPort() {
+        if (serverChannel == null) {
+            return -1;
+        }
+        try {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (IOException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Stop listening, and disconnect viewers.
+     *
+     * @throws IOException if the server socket can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+            // Interrupting a thread that is blocked on a channel closes the channel
+            viewerExecutor.shutdownNow();
+        }
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException exception) {
+                break;
+            } catch (IOException exception) {
+                log.warn("Unable to accept a viewer: {}", exception.getMessage());
+                continue;
+            }
+            try {
+                viewerExecutor.execute(() -> serve(channel));
+            } catch (RejectedExecutionException exception) {
+                try (SocketChannel rejectedChannel = channel) {
+                    sendError(rejectedChannel, 503, "Service Unavailable");
+                } catch (IOException ioException) {
+                    log.debug("Unable to reject a viewer: {}", ioException.getMessage());
+                }
+            }
+        }
+        log.info("Playback server of {} stopped", recordPath);
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel viewerChannel = channel) {
+            viewerChannel.socket().setSoTimeout(REQUEST_TIMEOUT_MS);
+            final Request request = Request.read(new BufferedInputStream(viewerChannel.socket().getInputStream()));
+            if (request == null) {
+                sendError(viewerChannel, 400, "Bad Request");
+            } else if (!"GET".equals(request.method)) {
+                sendError(viewerChannel, 405, "Method Not Allowed");
+            } else if (RECORDINGS_PATH.equals(request.path)) {
+                listRecordings(viewerChannel, request);
+            } else if (request.path.startsWith(RECORDINGS_PATH + "/")) {
+                serveRecording(viewerChannel, request, request.path.substring(RECORDINGS_PATH.length() + 1));
+            } else if (STREAM_PATH.equals(request.path)) {
+                serveStream(viewerChannel, request);
+            } else {
+                sendError(viewerChannel, 404, "Not Found");
+            }
+        } catch (IOException exception) {
+            log.debug("Viewer disconnected: {}", exception.getMessage());
+        } catch (RuntimeException exception) {
+            log.warn("Failed to serve a viewer: {}", exception.getMessage());
+        }
+    }
+
+    private void listRecordings(SocketChannel channel, Request request) throws IOException {
+        final long startTime = request.getTime("start", 0);
+        final long endTime = request.getTime("end", Long.MAX_VALUE);
+        if (startTime < 0 || endTime < 0) {
+            sendError(channel, 400, "Bad Request");
+            return;
+        }
+        final StringBuilder body = new StringBuilder("[");
+        for (Map.Entry<Long, File> recording : listRecordingFiles(startTime, endTime)) {
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            body.append("{\"name\":\"").append(recording.getValue().getName())
+                    .append("\",\"startTime\":").append(recording.getKey())
+                    .append(",\"size\":").append(recording.getValue().length()).append('}');
+        }
+        final byte[] bytes = body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        sendHeader(channel, 200, "OK", "application/json", bytes.length, null);
+        writeFully(channel, ByteBuffer.wrap(bytes));
+    }
+
+    private void serveRecording(SocketChannel channel, Request request, String name) throws IOException {
+        final Path file = findRecording(name);
+        if (file == null) {
+            sendError(channel, 404, "Not Found");
+            return;
+        }
+        if (request.parameters.containsKey("start") || request.parameters.containsKey("end")) {
+            serveClip(channel, request, file);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long fileSize = fileChannel.size();
+            long start = 0;
+            long end = fileSize;
+            String contentRange = null;
+            final String range = request.headers.get("range");
+            if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+                final long[] byteRange = parseByteRange(range.substring("bytes=".length()), fileSize);
+                if (byteRange == null) {
+                    sendHeader(channel, 416, "Range Not Satisfiable", null, 0, "bytes */" + fileSize);
+                    return;
+                }
+                start = byteRange[0];
+                end = byteRange[1];
+                contentRange = "bytes " + start + "-" + (end - 1) + "/" + fileSize;
+            }
+            sendHeader(channel, contentRange == null ? 200 : 206, contentRange == null ? "OK" : "Partial Content",
+                    MKV_CONTENT_TYPE, end - start, contentRange);
+            long position = start;
+            while (position < end) {
+                final long count = fileChannel.transferTo(position, end - position, channel);
+                if (count <= 0) {
+                    throw new IOException("Unexpected end of " + name);
+                }
+                position += count;
+            }
+        }
+    }
+
+    private void serveClip(SocketChannel channel, Request request, Path file) throws IOException {
+        final long fileStartTime = getStartTime(String.valueOf(file.getFileName()));
+        final long startTime = request.getTime("start", fileStartTime);
+        final long endTime = request.getTime("end", Long.MAX_VALUE);
+        if (startTime < 0 || endTime < startTime) {
+            sendError(channel, 400, "Bad Request");
+            return;
+        }
+        final MkvClip clip;
+        try {
+            clip = MkvClip.create(file.toFile(), startTime - fileStartTime,
+                    endTime == Long.MAX_VALUE ? Long.MAX_VALUE : endTime - fileStartTime);
+        } catch (MkvElementVisitException exception) {
+            log.warn("Unable to clip {}: {}", file, exception.getMessage());
+            sendError(channel, 500, "Internal Server Error");
+            return;
+        }
+        if (clip == null) {
+            sendError(channel, 404, "Not Found");
+            return;
+        }
+        sendHeader(channel, 200, "OK", MKV_CONTENT_TYPE, clip.getLength(), null);
+        clip.transferTo(channel);
+    }
+
+    private void serveStream(SocketChannel channel, Request request) throws IOException {
+        final long startTime = request.getTime("start", -1);
+        final long endTime = request.getTime("end", -1);
+        if (startTime < 0 || endTime <= startTime) {
+            sendError(channel, 400, "Bad Request");
+            return;
+        }
+        final VideoRecordVisitor visitor = createVisitor();
+        final List<VideoFile> videoFiles = visitor.listFilesToUpload(new Date(startTime), new Date(endTime));
+        final VideoFile precedingVideoFile = visitor.getPrecedingVideoFile();
+        if (precedingVideoFile != null) {
+            videoFiles.add(0, precedingVideoFile);
+        }
+        if (videoFiles.isEmpty()) {
+            sendError(channel, 404, "Not Found");
+            return;
+        }
+
+        // The length is unknown, so the stream ends when the connection is closed
+        sendHeader(channel, 200, "OK", MKV_CONTENT_TYPE, -1, null);
+        final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        final ListIterator<VideoFile> iterator = videoFiles.listIterator();
+        while (iterator.hasNext()) {
+            // A stream ends where tracks change, and the next stream starts with new headers
+            final int firstIndex = iterator.nextIndex();
+            try (InputStream inputStream = new MkvFilesInputStream(iterator, new Date(startTime),
+                    new Date(endTime))) {
+                int length;
+                while ((length = inputStream.read(buffer, 0, buffer.length)) > 0) {
+                    writeFully(channel, ByteBuffer.wrap(buffer, 0, length));
+                }
+            }
+            if (iterator.nextIndex() == firstIndex) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Find a recording by its filename, either in its partition folder or in the record path.  A recording may be
+     * renamed once it's uploaded, so it's found by either of its filenames.
+     */
+    private Path findRecording(String name) {
+        final long startTime = getStartTime(name);
+        if (startTime <= 0) {
+            return null;
+        }
+        final String prefix = Constants.VIDEO_FILENAME_PREFIX + startTime;
+        final List<String> names = new ArrayList<>();
+        names.add(name);
+        for (String postfix : new String[]{Constants.VIDEO_FILENAME_POSTFIX,
+                Constants.VIDEO_FILENAME_UPLOADED_POSTFIX}) {
+            if (!names.contains(prefix + postfix)) {
+                names.add(prefix + postfix);
+            }
+        }
+        final Path partitionFolder = recordingLayout.getPartitionFolder(recordPath, startTime);
+        for (Path folder : new Path[]{partitionFolder, recordPath}) {
+            for (String filename : names) {
+                final Path file = folder.resolve(filename);
+                if (Files.isRegularFile(file)) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * List recordings, uploaded or not, that start in the time range, by their start times in ascending order.
+     */
+    private List<Map.Entry<Long, File>> listRecordingFiles(long startTime, long endTime) {
+        final TreeMap<Long, File> recordings = new TreeMap<>();
+        if (startTime < endTime) {
+            VideoRecordVisitor.walkRecordings(recordPath, (file, fileStartTime, isUploaded, attrs) -> {
+                if (fileStartTime >= startTime && fileStartTime < endTime) {
+                    recordings.put(fileStartTime, file);
+                }
+            });
+        }
+        return new ArrayList<>(recordings.entrySet());
+    }
+
+    /**
+     * Get the start time of a recording, uploaded or not, from its filename.
+     *
+     * @return The start time, or 0 if it's not a filename of a recording
+     */
+    private static long getStartTime(String name) {
+        final Matcher matcher = VideoRecordVisitor.RECORDING_FILENAME_PATTERN.matcher(name);
+        if (!matcher.matches()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    private VideoRecordVisitor createVisitor() {
+        final VideoRecordVisitor visitor = VideoRecordVisitor.create(recordPath.toString());
+        visitor.setRecordingLayout(recordingLayout);
+        return visitor;
+    }
+
+    /**
+     * Parse a byte range in the form of "first-last", "first-" or "-suffixLength".
+     *
+     * @return Start and end offsets of the range, or null if it's not satisfiable
+     */
+    private static long[] parseByteRange(String range, long fileSize) {
+        final int separator = range.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            final String first = range.substring(0, separator).trim();
+            final String last = range.substring(separator + 1).trim();
+            if (first.isEmpty()) {
+                final long suffixLength = Long.parseLong(last);
+                return suffixLength <= 0 || fileSize == 0 ? null
+                        : new long[]{Math.max(0, fileSize - suffixLength), fileSize};
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? fileSize : Math.min(fileSize, Long.parseLong(last) + 1);
+            return start < 0 || start >= end ? null : new long[]{start, end};
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    private static void sendError(SocketChannel channel, int status, String reason) throws IOException {
+        final byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        sendHeader(channel, status, reason, "text/plain", bytes.length, null);
+        writeFully(channel, ByteBuffer.wrap(bytes));
+    }
+
+    private static void sendHeader(SocketChannel channel, int status, String reason, String contentType,
+                                   long contentLength, String contentRange) throws IOException {
+        final StringBuilder header = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n")
+                .append("Connection: close\r\n")
+                .append("Accept-Ranges: bytes\r\n");
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            header.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (contentRange != null) {
+            header.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        writeFully(channel, ByteBuffer.wrap(header.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * A parsed HTTP request.  Header names are in lower case.
+     */
+    private static final class Request {
+        private String method;
+        private String path;
+        private final Map<String, String> parameters = new HashMap<>();
+        private final Map<String, String> headers = new HashMap<>();
+
+        /**
+         * Read the request line and headers.
+         *
+         * @return The request, or null if it's malformed or too long
+         */
+        private static Request read(InputStream inputStream) throws IOException {
+            final List<String> lines = new ArrayList<>();
+            final StringBuilder line = new StringBuilder();
+            int length = 0;
+            int value;
+            while ((value = inputStream.read()) >= 0 && ++length <= MAX_REQUEST_HEADER_LENGTH) {
+                if (value == '\n') {
+                    if (line.length() == 0) {
+                        break;
+                    }
+                    lines.add(line.toString());
+                    line.setLength(0);
+                } else if (value != '\r') {
+                    line.append((char) value);
+                }
+            }
+            if (value != '\n' || lines.isEmpty()) {
+                return null;
+            }
+
+            final String[] requestLine = lines.get(0).split(" ");
+            if (requestLine.length != 3) {
+                return null;
+            }
+            final Request request = new Request();
+            request.method = requestLine[0];
+            final String target = requestLine[1];
+            final int queryStart = target.indexOf('?');
+            try {
+                request.path = URLDecoder.decode(queryStart < 0 ? target : target.substring(0, queryStart),
+                        StandardCharsets.UTF_8.name());
+                if (queryStart >= 0) {
+                    for (String parameter : target.substring(queryStart + 1).split("&")) {
+                        final int separator = parameter.indexOf('=');
+                        if (separator > 0) {
+                            request.parameters.put(
+                                    URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8.name()),
+                                    URLDecoder.decode(parameter.substring(separator + 1),
+                                            StandardCharsets.UTF_8.name()));
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException | UnsupportedEncodingException exception) {
+                return null;
+            }
+            for (String header : lines.subList(1, lines.size())) {
+                final int separator = header.indexOf(':');
+                if (separator > 0) {
+                    request.headers.put(header.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                            header.substring(separator + 1).trim());
+                }
+            }
+            return request;
+        }
+
+        /**
+         * Get a time parameter.
+         *
+         * @return The time, the default value if it's absent, or -1 if it's invalid
+         */
+        private long getTime(String name, long defaultValue) {
+            final String value = parameters.get(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Math.max(-1, Long.parseLong(value));
+            } catch (NumberFormatException exception) {
+                return -1;
+            }
+        }
+    }
+}
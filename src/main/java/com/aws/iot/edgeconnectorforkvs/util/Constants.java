@@ -30,6 +30,8 @@ public final class Constants {
     public static final String VIDEO_FILENAME_POSTFIX = ".mkv";
     public static final String VIDEO_FILENAME_UPLOADED_POSTFIX = "_uploaded.mkv";
 
+    public static final int MKV_READ_BUFFER_SIZE = 64 * 1024; // 64 KB per read from MKV sources
+
     private static final Object SYNCLOCK = new Object[0];
     private static boolean fatalStatus;
 
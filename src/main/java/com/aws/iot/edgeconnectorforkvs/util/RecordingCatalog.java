@@ -0,0 +1,275 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A thread-safe catalog of recordings in the record path, kept in a navigable map from start time to recording.  The
+ * record path is walked once by {@link #start()}, and the catalog is kept current by {@link WatchService} events and
+ * by {@link #onFileRotated(File)} from the recorder, so range queries take O(log n) instead of walking the record path
+ * like {@link VideoRecordVisitor} does.
+ *
+ * <p>Events are applied asynchronously, so a query may see a recording that was just renamed or deleted.  Such
+ * recordings are dropped from query results by checking them, which only costs a file status per result.</p>
+ */
+@Slf4j
+public class RecordingCatalog implements Closeable {
+
+    private Path recordPath;
+
+    // Recordings by start time in milliseconds
+    private final ConcurrentSkipListMap<Long, File> recordings = new ConcurrentSkipListMap<>();
+
+    private WatchService watchService = null;
+
+    private Thread watchThread = null;
+
+    /**
+     * The factory creator of RecordingCatalog.
+     *
+     * @param recordFilePath The record path of videos
+     * @return The catalog, which is empty until it's started
+     */
+    @Builder
+    public static RecordingCatalog create(@NonNull String recordFilePath) {
+        final RecordingCatalog catalog = new RecordingCatalog();
+        catalog.recordPath = Paths.get(recordFilePath);
+        return catalog;
+    }
+
+    /**
+     * Walk the record path to build the catalog, and start watching it for changes.
+     *
+     * @throws IOException           if the record path can't be watched
+     * @throws IllegalStateException if the catalog is already started
+     */
+    public synchronized void start() throws IOException {
+        if (watchService != null) {
+            throw new IllegalStateException("Recording catalog is already started");
+        }
+        watchService = recordPath.getFileSystem().newWatchService();
+        scan(recordPath);
+        log.info("Recording catalog of {} started with {} recordings", recordPath, recordings.size());
+
+        watchThread = new Thread(this::watch, "recording-catalog");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Stop watching the record path.
+     *
+     * @throws IOException if the watch service can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchThread.interrupt();
+        }
+    }
+
+    /**
+     * Add a recording completed by the recorder when it rotates to a new file.  It doesn't need to wait for the watch
+     * service to report it.
+     *
+     * @param file The completed recording
+     */
+    public void onFileRotated(@NonNull File file) {
+        addFile(file.toPath());
+    }
+
+    /**
+     * Get the count of recordings in the catalog.
+     *
+     * @return The count of recordings
+     */
+    public int size() {
+        return recordings.size();
+    }
+
+    /**
+     * List recordings that start between start time and end time, exclusively, in time ascending order.
+     *
+     * @param videoUploadingStartTime Video upload start time
+     * @param videoUploadingEndTime   Video upload end time
+     * @return The list of recordings
+     */
+    public List<VideoFile> listFilesToUpload(@NonNull Date videoUploadingStartTime,
+                                             @NonNull Date videoUploadingEndTime) {
+        final List<VideoFile> videoFiles = new ArrayList<>();
+        if (videoUploadingStartTime.getTime() >= videoUploadingEndTime.getTime()) {
+            return videoFiles;
+        }
+        final ConcurrentNavigableMap<Long, File> range = recordings.subMap(videoUploadingStartTime.getTime(), false,
+                videoUploadingEndTime.getTime(), false);
+        for (Map.Entry<Long, File> entry : range.entrySet()) {
+            if (isAvailable(entry)) {
+                videoFiles.add(new VideoFile(entry.getValue()));
+            }
+        }
+        return videoFiles;
+    }
+
+    /**
+     * Get the recording that was being recorded at start time.  It's the latest recording that starts at or before
+     * start time, and is returned only if it was still written after start time.
+     *
+     * @param videoUploadingStartTime Video upload start time
+     * @return The recording, or null if there is none
+     */
+    public VideoFile getPrecedingVideoFile(@NonNull Date videoUploadingStartTime) {
+        Map.Entry<Long, File> entry = recordings.floorEntry(videoUploadingStartTime.getTime());
+        while (entry != null && !isAvailable(entry)) {
+            entry = recordings.lowerEntry(entry.getKey());
+        }
+        if (entry != null && entry.getValue().lastModified() > videoUploadingStartTime.getTime()) {
+            return new VideoFile(entry.getValue());
+        }
+        return null;
+    }
+
+    private boolean isAvailable(Map.Entry<Long, File> entry) {
+        if (entry.getValue().isFile()) {
+            return true;
+        }
+        recordings.remove(entry.getKey(), entry.getValue());
+        return false;
+    }
+
+    private void addFile(Path file) {
+        final Path filename = file.getFileName();
+        if (filename == null) {
+            return;
+        }
+        final long startTime = VideoRecordVisitor.getDateFromFilename(filename.toString()).getTime();
+        if (startTime > 0) {
+            recordings.put(startTime, file.toFile());
+        }
+    }
+
+    private void removeFile(Path file) {
+        final Path filename = file.getFileName();
+        if (filename == null) {
+            return;
+        }
+        final long startTime = VideoRecordVisitor.getDateFromFilename(filename.toString()).getTime();
+        if (startTime > 0) {
+            recordings.remove(startTime, file.toFile());
+        }
+    }
+
+    /**
+     * Register a folder and its sub-folders to the watch service, and add recordings in them.  Folders are registered
+     * before their files are listed, so files created in the meantime are reported by events.
+     */
+    private void scan(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                addFile(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                log.warn("Unable to visit {}: {}", file, exception.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                final Path folder = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handleEvent(folder, event);
+                }
+                if (!key.reset()) {
+                    // The folder is deleted or no longer accessible
+                    recordings.values().removeIf(file -> file.toPath().startsWith(folder));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException exception) {
+            log.info("Recording catalog of {} stopped", recordPath);
+        }
+    }
+
+    private void handleEvent(Path folder, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            log.warn("Events of {} overflowed, rescan the record path", folder);
+            rescan();
+            return;
+        }
+        final Path path = folder.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            if (Files.isDirectory(path)) {
+                try {
+                    scan(path);
+                } catch (IOException exception) {
+                    log.warn("Unable to scan {}: {}", path, exception.getMessage());
+                }
+            } else {
+                addFile(path);
+            }
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            removeFile(path);
+        }
+    }
+
+    private void rescan() {
+        try {
+            scan(recordPath);
+        } catch (IOException exception) {
+            log.warn("Unable to scan {}: {}", recordPath, exception.getMessage());
+        }
+        recordings.values().removeIf(file -> !file.isFile());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory layout of recordings in the record path of a camera.  A partitioned layout puts recordings into one folder
+ * per UTC hour or day, named by its start time, so listing a time range only opens the folders of that range and a
+ * whole folder can be dropped at once.
+ */
+@Slf4j
+public enum RecordingLayout {
+    /** All recordings are in the record path. */
+    FLAT(0, null),
+
+    /** Recordings are in folders per hour, e.g. 2020-09-13-12. */
+    HOURLY(TimeUnit.HOURS.toMillis(1), "uuuu-MM-dd-HH"),
+
+    /** Recordings are in folders per day, e.g. 2020-09-13. */
+    DAILY(TimeUnit.DAYS.toMillis(1), "uuuu-MM-dd");
+
+    // Duration of a partition in milliseconds, or 0 if it's not partitioned
+    @Getter
+    private final long partitionDurationMs;
+
+    private final DateTimeFormatter formatter;
+
+    RecordingLayout(long partitionDurationMs, String pattern) {
+        this.partitionDurationMs = partitionDurationMs;
+        this.formatter = pattern == null ? null : new DateTimeFormatterBuilder()
+                .appendPattern(pattern)
+                .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+                .toFormatter()
+                .withZone(ZoneOffset.UTC);
+    }
+
+    /**
+     * Check if recordings are partitioned into folders.
+     *
+     * @return True if it's partitioned
+     */
+    public boolean isPartitioned() {
+        return partitionDurationMs > 0;
+    }
+
+    /**
+     * Get the folder that a recording starting at a time belongs to.
+     *
+     * @param recordFolder The record path of a camera
+     * @param timeMs       Start time of the recording
+     * @return The partition folder, or the record path if it's not partitioned
+     */
+    public Path getPartitionFolder(@NonNull Path recordFolder, long timeMs) {
+        if (!isPartitioned()) {
+            return recordFolder;
+        }
+        return recordFolder.resolve(formatter.format(Instant.ofEpochMilli(timeMs)));
+    }
+
+    /**
+     * Get the start time of a partition folder from its name.
+     *
+     * @param name Name of the folder
+     * @return Start time of the partition, or -1 if it's not a partition folder of this layout
+     */
+    public long getPartitionStartTime(@NonNull String name) {
+        if (!isPartitioned()) {
+            return -1;
+        }
+        try {
+            final long startTime = LocalDateTime.parse(name, formatter).toInstant(ZoneOffset.UTC).toEpochMilli();
+            return formatter.format(Instant.ofEpochMilli(startTime)).equals(name) ? startTime : -1;
+        } catch (DateTimeParseException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * List folders that may contain recordings starting between start time and end time.  The partition before the
+     * start time is included, so the recording that was being recorded at the start time is found as well.
+     *
+     * @param recordFolder The record path of a camera
+     * @param startTimeMs  Start time
+     * @param endTimeMs    End time
+     * @return Folders in time ascending order, or only the record path if it's not partitioned
+     */
+    public List<Path> listPartitionFolders(@NonNull Path recordFolder, long startTimeMs, long endTimeMs) {
+        if (!isPartitioned()) {
+            return Collections.singletonList(recordFolder);
+        }
+        final long firstStartTime = startTimeMs - startTimeMs % partitionDurationMs - partitionDurationMs;
+        final List<Path> folders = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(recordFolder, Files::isDirectory)) {
+            for (Path folder : stream) {
+                final long partitionStartTime = getPartitionStartTime(String.valueOf(folder.getFileName()));
+                if (partitionStartTime >= firstStartTime && partitionStartTime < endTimeMs) {
+                    folders.add(folder);
+                }
+            }
+        } catch (IOException exception) {
+            log.warn("Unable to list partitions of {}: {}", recordFolder, exception.getMessage());
+        }
+        folders.sort(null);
+        return folders;
+    }
+}
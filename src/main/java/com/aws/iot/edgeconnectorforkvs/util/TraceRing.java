@@ -0,0 +1,202 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size ring of binary trace records for the merge and upload hot paths.  A record is an event, an ID and a
+ * value kept in primitive arrays, so recording an event allocates nothing and builds no string.  Frequent events are
+ * sampled, and records are only formatted when the ring is dumped on demand or on error.
+ *
+ * <p>Writers claim slots by an atomic sequence and never block each other.  A dump taken while writers are active may
+ * show a record that is being overwritten.</p>
+ */
+public final class TraceRing {
+
+    /** Default count of records kept in the ring. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Events of trace records.
+     */
+    public enum Event {
+        /** Start of a master element.  The ID is the element ID and the value is the merge state. */
+        ELEMENT_START(true),
+
+        /** End of a master element.  The ID is the element ID and the value is the merge state. */
+        ELEMENT_END(true),
+
+        /** A data element.  The ID is the element ID and the value is the data length. */
+        DATA_ELEMENT(true),
+
+        /** A simple block added to a cluster.  The ID is the track number and the value is the relative timecode. */
+        SIMPLE_BLOCK(true),
+
+        /** A cluster written to the output.  The ID is the simple block count and the value is the timecode. */
+        CLUSTER_EMIT(false),
+
+        /** A cluster dropped for missing frames of a track.  The ID and the value are the same as CLUSTER_EMIT. */
+        CLUSTER_SKIP(false),
+
+        /** An acknowledgement of an upload.  The ID is the ack event type and the value is the fragment timecode. */
+        ACK(false),
+
+        /** An error of an upload.  The ID is the error ID and the value is the fragment timecode. */
+        UPLOAD_ERROR(false);
+
+        // True if the event is frequent enough to be sampled
+        private final boolean isSampled;
+
+        Event(boolean isSampled) {
+            this.isSampled = isSampled;
+        }
+    }
+
+    private static final TraceRing DEFAULT = new TraceRing(DEFAULT_CAPACITY);
+
+    private static final Event[] EVENTS = Event.values();
+
+    @Getter
+    private final int capacity;
+
+    private final long[] timesNanos;
+
+    // Event ordinal in the high 32 bits and ID in the low 32 bits
+    private final long[] eventsAndIds;
+
+    private final long[] values;
+
+    // Sequence of the next record
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Record every n-th sampled event, or none of them if it's 0
+    @Getter
+    private volatile int sampleInterval = 1;
+
+    // Counter of sampled events.  It's not atomic, as an occasional lost count only moves the sampling phase.
+    private int sampleCounter = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Count of records kept in the ring, which is rounded up to a power of two
+     * @throws IllegalArgumentException if capacity is not positive or larger than 2^30
+     */
+    public TraceRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid trace ring capacity");
+        }
+        final int roundedCapacity = Integer.highestOneBit(capacity);
+        this.capacity = roundedCapacity < capacity ? roundedCapacity << 1 : roundedCapacity;
+        this.timesNanos = new long[this.capacity];
+        this.eventsAndIds = new long[this.capacity];
+        this.values = new long[this.capacity];
+    }
+
+    /**
+     * Get the ring shared by the merge and upload paths.
+     *
+     * @return The shared ring
+     */
+    public static TraceRing getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set the sampling of frequent events.
+     *
+     * @param sampleInterval Record every n-th frequent event, or 0 to record none of them
+     * @throws IllegalArgumentException if interval is negative
+     */
+    public void setSampleInterval(int sampleInterval) {
+        if (sampleInterval < 0) {
+            throw new IllegalArgumentException("Invalid trace sample interval");
+        }
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Record an event, subject to sampling if it's a frequent one.
+     *
+     * @param event The event
+     * @param id    ID of the event
+     * @param value Value of the event
+     */
+    public void record(@NonNull Event event, int id, long value) {
+        if (event.isSampled) {
+            final int interval = sampleInterval;
+            if (interval == 0 || ++sampleCounter % interval != 0) {
+                return;
+            }
+        }
+        final int slot = (int) sequence.getAndIncrement() & (capacity - 1);
+        timesNanos[slot] = System.nanoTime();
+        eventsAndIds[slot] = ((long) event.ordinal() << 32) | (id & 0xFFFFFFFFL);
+        values[slot] = value;
+    }
+
+    /**
+     * Get the count of records kept in the ring.
+     *
+     * @return The count of records
+     */
+    public int size() {
+        return (int) Math.min(sequence.get(), capacity);
+    }
+
+    /**
+     * Format records from the oldest one to the latest one.  Times are in microseconds before the latest record.
+     *
+     * @return Formatted records
+     */
+    public List<String> dump() {
+        final long end = sequence.get();
+        final long begin = Math.max(0, end - capacity);
+        final List<String> records = new ArrayList<>((int) (end - begin));
+        if (end == begin) {
+            return records;
+        }
+        final long latestNanos = timesNanos[(int) (end - 1) & (capacity - 1)];
+        for (long index = begin; index < end; index++) {
+            final int slot = (int) index & (capacity - 1);
+            final long eventAndId = eventsAndIds[slot];
+            records.add(String.format("%dus %s id=0x%x value=%d", (timesNanos[slot] - latestNanos) / 1000,
+                    EVENTS[(int) (eventAndId >>> 32)], (int) eventAndId, values[slot]));
+        }
+        return records;
+    }
+
+    /**
+     * Log records from the oldest one to the latest one.
+     *
+     * @param logger The logger
+     * @param reason Reason of the dump
+     */
+    public void dump(@NonNull Logger logger, String reason) {
+        final List<String> records = dump();
+        logger.info("Trace ring of {} records, dumped for {}", records.size(), reason);
+        for (String record : records) {
+            logger.info(record);
+        }
+    }
+}
@@ -15,9 +15,11 @@
 
 package com.aws.iot.edgeconnectorforkvs.util;
 
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import lombok.Builder;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
@@ -25,6 +27,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -32,8 +35,11 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,21 +48,30 @@ import java.util.regex.Pattern;
  */
 @Slf4j
 public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
-    /* A pre-defined filename that specifies data in the precision of milliseconds. */
-    private static final String VIDEO_FILENAME_FORMAT = Constants.VIDEO_FILENAME_PREFIX + "\\d+\\"
-            + Constants.VIDEO_FILENAME_POSTFIX;
+    /* A pre-defined filename that specifies data in the precision of milliseconds, with the date as its group. */
+    private static final Pattern VIDEO_FILENAME_PATTERN = Pattern.compile(Constants.VIDEO_FILENAME_PREFIX + "(\\d+)\\"
+            + Constants.VIDEO_FILENAME_POSTFIX);
 
-    /* A pattern for paring date in the filename */
-    private static final String VIDEO_FILENAME_DATE_PATTERN = "(\\d+)";
+    /** Filename of a recording that is uploaded or not, with its date and its postfix as groups. */
+    public static final Pattern RECORDING_FILENAME_PATTERN = Pattern.compile(Constants.VIDEO_FILENAME_PREFIX
+            + "(\\d+)(" + Pattern.quote(Constants.VIDEO_FILENAME_UPLOADED_POSTFIX) + "|"
+            + Pattern.quote(Constants.VIDEO_FILENAME_POSTFIX) + ")");
 
     private String recordFilePath;
 
+    /* Directory layout of videos, so only partitions of the time range are walked. */
+    @Setter
+    @NonNull
+    private RecordingLayout recordingLayout = RecordingLayout.FLAT;
+
     private Date videoUploadingStartTime;
 
     private Date videoUploadingEndTime;
 
     private final List<VideoFile> videoFiles = new ArrayList<>();
 
+    private VideoFile precedingVideoFile = null;
+
     /**
      * The factory create of VideoRecordVisitor.
      *
@@ -78,6 +93,9 @@ public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
                 final Date videoTime = getDateFromFilename(filename.toString());
                 if (videoUploadingStartTime.before(videoTime) && videoTime.before(videoUploadingEndTime)) {
                     videoFiles.add(new VideoFile(file.toFile()));
+                } else if (videoTime.getTime() > 0 && !videoTime.after(videoUploadingStartTime)
+                        && (precedingVideoFile == null || videoTime.after(precedingVideoFile.getVideoDate()))) {
+                    precedingVideoFile = new VideoFile(file.toFile());
                 }
             }
         }
@@ -95,24 +113,87 @@ public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
     public List<VideoFile> listFilesToUpload(@NonNull Date videoUploadingStartTime,
                                              @NonNull Date videoUploadingEndTime) {
         this.videoFiles.clear();
+        this.precedingVideoFile = null;
         this.videoUploadingStartTime = new Date(videoUploadingStartTime.getTime());
         this.videoUploadingEndTime = new Date(videoUploadingEndTime.getTime());
 
         try {
-            Files.walkFileTree(Paths.get(recordFilePath), this);
+            final Path recordFolder = Paths.get(recordFilePath);
+            if (recordingLayout.isPartitioned()) {
+                // Videos recorded before the layout is partitioned are still in the record path
+                Files.walkFileTree(recordFolder, EnumSet.noneOf(FileVisitOption.class), 1, this);
+            }
+            for (Path folder : recordingLayout.listPartitionFolders(recordFolder, videoUploadingStartTime.getTime(),
+                    videoUploadingEndTime.getTime())) {
+                Files.walkFileTree(folder, this);
+            }
         } catch (IOException ex) {
             log.error("Failed to retrieve file list");
         }
 
-        videoFiles.sort((file1, file2) -> {
-            final Date date1 = getDateFromFilename(file1.getName());
-            final Date date2 = getDateFromFilename(file2.getName());
-            return date1.compareTo(date2);
-        });
+        videoFiles.sort(Comparator.comparing(VideoFile::getVideoDate));
 
         return new ArrayList<VideoFile>(videoFiles);
     }
 
+    /**
+     * Return the video file that was being recorded at videoUploadingStartTime of the last
+     * {@link #listFilesToUpload(Date, Date)}.  It's the latest file that starts at or before videoUploadingStartTime,
+     * and is kept only if it was still written after videoUploadingStartTime.
+     *
+     * @return The video file, or null if there is none
+     */
+    public VideoFile getPrecedingVideoFile() {
+        if (precedingVideoFile != null && precedingVideoFile.lastModified() > videoUploadingStartTime.getTime()) {
+            return precedingVideoFile;
+        }
+        return null;
+    }
+
+    /**
+     * Walk a folder and its sub folders for recordings, uploaded or not, that match
+     * {@link #RECORDING_FILENAME_PATTERN}.  Files that can't be visited are logged and passed over.
+     *
+     * @param folder   The folder
+     * @param consumer The consumer of each recording
+     */
+    public static void walkRecordings(@NonNull Path folder, @NonNull RecordingConsumer consumer) {
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    final Matcher matcher = RECORDING_FILENAME_PATTERN.matcher(Objects.toString(file.getFileName(),
+                            ""));
+                    if (attrs.isRegularFile() && matcher.matches()) {
+                        consumer.accept(file.toFile(), Long.parseLong(matcher.group(1)),
+                                Constants.VIDEO_FILENAME_UPLOADED_POSTFIX.equals(matcher.group(2)), attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                    log.warn("Unable to visit {}: {}", file, exception.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException exception) {
+            log.warn("Unable to list recordings of {}: {}", folder, exception.getMessage());
+        }
+    }
+
+    /**
+     * List recordings, uploaded or not, in a folder and its sub folders.
+     *
+     * @param folder The folder
+     * @return Recording files in no particular order
+     */
+    public static List<File> listRecordingFiles(@NonNull Path folder) {
+        final List<File> recordings = new ArrayList<>();
+        walkRecordings(folder, (file, startTime, isUploaded, attrs) -> recordings.add(file));
+        return recordings;
+    }
+
     /**
      * Return {@link Date} from pre-defined filename format.
      *
@@ -120,12 +201,10 @@ public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
      * @return {@link Date} parsed from filename, or zero otherwise.
      */
     public static Date getDateFromFilename(@NonNull String filename) {
-        if (filename.matches(VIDEO_FILENAME_FORMAT)) {
-            final Pattern pattern = Pattern.compile(VIDEO_FILENAME_DATE_PATTERN);
-            final Matcher matcher = pattern.matcher(filename);
+        final Matcher matcher = VIDEO_FILENAME_PATTERN.matcher(filename);
+        if (matcher.matches()) {
             try {
-                matcher.find();
-                long timestamp = Long.parseLong(matcher.group());
+                long timestamp = Long.parseLong(matcher.group(1));
                 return new Date(timestamp);
             } catch (NumberFormatException e) {
                 return new Date(0L);
@@ -169,7 +248,7 @@ public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
     }
 
     /**
-     * Mark a video as an uploaded one by renaming it.
+     * Mark a video as an uploaded one by renaming it.  Its cluster index sidecar, if any, is renamed along with it.
      *
      * @param videoFile The video file to be marked.
      */
@@ -181,9 +260,30 @@ public class VideoRecordVisitor extends SimpleFileVisitor<Path> {
             if (basePath != null) {
                 Path uploadedPath = Paths.get(basePath.toString(), uploadedFilename);
                 Files.move(videoFile.toPath(), uploadedPath);
+
+                File sidecarFile = MkvClusterIndex.getSidecarFile(videoFile);
+                if (sidecarFile.isFile()) {
+                    Files.move(sidecarFile.toPath(), MkvClusterIndex.getSidecarFile(uploadedPath.toFile()).toPath());
+                }
             }
         } catch (IOException exception) {
             log.warn(exception.getMessage());
         }
     }
+
+    /**
+     * Consumer of recordings found by {@link #walkRecordings(Path, RecordingConsumer)}.
+     */
+    @FunctionalInterface
+    public interface RecordingConsumer {
+        /**
+         * Accept a recording.
+         *
+         * @param file       The recording file
+         * @param startTime  Start time in the filename
+         * @param isUploaded True if the filename marks it as uploaded
+         * @param attrs      Attributes of the file
+         */
+        void accept(File file, long startTime, boolean isUploaded, BasicFileAttributes attrs);
+    }
 }
@@ -16,11 +16,21 @@
 
 package com.aws.iot.edgeconnectorforkvs.videorecorder;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.base.RecorderBranchBase;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.model.ContainerType;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.util.GstDao;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
 import com.sun.jna.Pointer;
 import org.freedesktop.gstreamer.Element;
 import org.freedesktop.gstreamer.Pad;
@@ -35,19 +45,40 @@ class RecorderBranchFile extends RecorderBranchBase {
     private Element splitMuxSink;
     private GstDao gstCore;
     private Pipeline pipeline;
+    private final boolean isIndexed;
+    private String previousLocation;
+    private Consumer<File> rotationListener;
+
+    // Cluster indexes are built off the GStreamer thread, one file at a time, until the branch stops writing files
+    private ExecutorService indexExecutor;
 
     interface LocCallback extends GstCallback {
         Pointer callback(Element splitmux, long fragmentId, GPointer uData);
     }
 
     RecorderBranchFile(ContainerType type, GstDao dao, Pipeline pipeline, String filePath) {
+        this(type, dao, pipeline, filePath, RecordingLayout.FLAT);
+    }
+
+    RecorderBranchFile(ContainerType type, GstDao dao, Pipeline pipeline, String filePath, RecordingLayout layout) {
+        this(type, dao, pipeline, filePath, layout, false);
+    }
+
+    /**
+     * An upload-ready file branch writes files in the shape that KVS ingests, i.e. an unknown-length segment without
+     * cues and one cluster per video keyframe.  Their clusters are flagged as passthrough by the cluster index, so a
+     * historical upload copies them instead of merging them.
+     */
+    RecorderBranchFile(ContainerType type, GstDao dao, Pipeline pipeline, String filePath, RecordingLayout layout,
+            boolean isUploadReady) {
         super(Config.FILE_PATH_CAPABILITY, dao, pipeline);
         this.gstCore = this.getGstCore();
         this.pipeline = this.getPipeline();
 
         // Split mux elements
         String fileExtension = this.getFileExtensionFromType(type);
-        this.muxer = this.getMuxerFromType(type, true);
+        this.isIndexed = type == ContainerType.MATROSKA;
+        this.muxer = this.getMuxerFromType(type, true, isUploadReady);
         this.splitMuxSink = this.gstCore.newElement("splitmuxsink");
         this.gstCore.setElement(this.splitMuxSink, "muxer", muxer);
         this.gstCore.setAsStringElement(this.splitMuxSink, "location",
@@ -62,13 +93,103 @@ class RecorderBranchFile extends RecorderBranchBase {
         // Signals
         this.gstCore.connectElement(this.splitMuxSink, "format-location",
                 (LocCallback) (elm, fId, uData) -> {
-                    String path = String.format("%s_%d.%s", filePath, Instant.now().toEpochMilli(),
-                            fileExtension);
+                    String path = getLocation(filePath, layout, Instant.now().toEpochMilli(), fileExtension);
                     log.debug("LocCallback: " + path);
+                    this.indexPreviousLocation(path);
                     return this.gstCore.invokeGLibStrdup(path);
                 });
     }
 
+    /**
+     * Get the location of a new file.  In a partitioned layout, the file is put into the partition folder of its start
+     * time, which is created if it doesn't exist.
+     */
+    private static String getLocation(String filePath, RecordingLayout layout, long timeMs, String fileExtension) {
+        final String location = String.format("%s_%d.%s", filePath, timeMs, fileExtension);
+        final Path path = Paths.get(location);
+        final Path folder = path.getParent();
+        if (!layout.isPartitioned() || folder == null) {
+            return location;
+        }
+        final Path partitionFolder = layout.getPartitionFolder(folder, timeMs);
+        try {
+            Files.createDirectories(partitionFolder);
+        } catch (IOException e) {
+            log.warn("Failed to create " + partitionFolder + ": " + e.getMessage());
+            return location;
+        }
+        return partitionFolder.resolve(String.valueOf(path.getFileName())).toString();
+    }
+
+    /**
+     * Set a listener of completed files.  It's called off the GStreamer thread, after the file is indexed.
+     *
+     * @param listener The listener, or null to remove it
+     */
+    synchronized void setRotationListener(Consumer<File> listener) {
+        this.rotationListener = listener;
+    }
+
+    /**
+     * A new location is requested when splitmuxsink starts a new file, so the previous file is complete and can be
+     * indexed.
+     */
+    private synchronized void indexPreviousLocation(String newLocation) {
+        final String completedLocation = this.previousLocation;
+        this.previousLocation = newLocation;
+        this.indexCompletedLocation(completedLocation);
+    }
+
+    /**
+     * The last file is complete when the branch is detached or the pipeline stops, and no new location is requested
+     * after it.  It's indexed, and the executor is shut down once the queued files are indexed.
+     */
+    synchronized void flushLocation() {
+        this.indexCompletedLocation(this.previousLocation);
+        this.previousLocation = null;
+        if (this.indexExecutor != null) {
+            this.indexExecutor.shutdown();
+            this.indexExecutor = null;
+        }
+    }
+
+    @Override
+    protected void detach() {
+        super.detach();
+        this.flushLocation();
+    }
+
+    @Override
+    protected void onPipelineStopped() {
+        this.flushLocation();
+    }
+
+    private void indexCompletedLocation(String completedLocation) {
+        final Consumer<File> listener = this.rotationListener;
+        if (completedLocation != null && (this.isIndexed || listener != null)) {
+            if (this.indexExecutor == null) {
+                this.indexExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "mkv-cluster-indexer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.indexExecutor.execute(() -> {
+                final File completedFile = new File(completedLocation);
+                if (this.isIndexed) {
+                    try {
+                        MkvClusterIndex.loadOrBuild(completedFile);
+                    } catch (Exception e) {
+                        log.warn("Failed to index " + completedLocation + ": " + e.getMessage());
+                    }
+                }
+                if (listener != null) {
+                    listener.accept(completedFile);
+                }
+            });
+        }
+    }
+
     public boolean setProperty(String property, Object data) {
         boolean result = false;
 
@@ -16,6 +16,7 @@
 
 package com.aws.iot.edgeconnectorforkvs.videorecorder;
 
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.base.VideoRecorderBase;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.callback.AppDataCallback;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.callback.StatusCallback;
@@ -23,9 +24,11 @@ import com.aws.iot.edgeconnectorforkvs.videorecorder.model.CameraType;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.model.ContainerType;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.util.GstDao;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 import lombok.NonNull;
 import lombok.Synchronized;
@@ -40,11 +43,13 @@ import org.freedesktop.gstreamer.Sample;
 public class VideoRecorder extends VideoRecorderBase {
     private final Object appCallbackBranchLock = new Object[0];
     private final Object appOStreamBranchLock = new Object[0];
+    private final Object fileBranchLock = new Object[0];
     private RecorderBranchFile fileBranch;
     private RecorderBranchApp callbackBranch;
     private RecorderBranchApp streamBranch;
     private AppDataCallback appCallback;
     private OutputStream appOutputStream;
+    private Consumer<File> fileRotationListener;
 
     /**
      * Enable or disable receiving notifications of new streaming data.
@@ -91,6 +96,20 @@ public class VideoRecorder extends VideoRecorderBase {
         return result;
     }
 
+    /**
+     * Set a listener of files completed by the file branch when it rotates to a new file, e.g.
+     * {@link com.aws.iot.edgeconnectorforkvs.util.RecordingCatalog#onFileRotated(File)}.
+     *
+     * @param listener The listener
+     */
+    @Synchronized("fileBranchLock")
+    public void setFileRotationListener(@NonNull Consumer<File> listener) {
+        this.fileRotationListener = listener;
+        if (this.fileBranch != null) {
+            this.fileBranch.setRotationListener(listener);
+        }
+    }
+
     /**
      * Enable or disable writing OutputStream of new streaming data.
      *
@@ -163,8 +182,20 @@ public class VideoRecorder extends VideoRecorderBase {
 
     boolean registerFileSink(ContainerType containerType, String recorderFilePath)
             throws IllegalArgumentException {
+        return this.registerFileSink(containerType, recorderFilePath, RecordingLayout.FLAT);
+    }
+
+    boolean registerFileSink(ContainerType containerType, String recorderFilePath, RecordingLayout layout)
+            throws IllegalArgumentException {
+        return this.registerFileSink(containerType, recorderFilePath, layout, false);
+    }
+
+    @Synchronized("fileBranchLock")
+    boolean registerFileSink(ContainerType containerType, String recorderFilePath, RecordingLayout layout,
+            boolean isUploadReady) throws IllegalArgumentException {
         this.fileBranch = new RecorderBranchFile(containerType, this.getGstCore(),
-                this.getPipeline(), recorderFilePath);
+                this.getPipeline(), recorderFilePath, layout, isUploadReady);
+        this.fileBranch.setRotationListener(this.fileRotationListener);
 
         return this.registerBranch(this.fileBranch, Config.FILE_PATH);
     }
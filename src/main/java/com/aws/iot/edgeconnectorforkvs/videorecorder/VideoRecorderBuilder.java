@@ -18,6 +18,7 @@ package com.aws.iot.edgeconnectorforkvs.videorecorder;
 
 import java.io.OutputStream;
 import java.util.concurrent.RejectedExecutionException;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.base.RecorderBranchBase;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.base.RecorderCameraBase;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.callback.AppDataCallback;
@@ -139,10 +140,41 @@ public class VideoRecorderBuilder {
      */
     public boolean registerFileSink(ContainerType containerType, String recorderFilePath)
             throws IllegalArgumentException {
+        return this.registerFileSink(containerType, recorderFilePath, RecordingLayout.FLAT);
+    }
+
+    /**
+     * Setup File path, container type and directory layout for storing.
+     *
+     * @param containerType Container type that will be used to store media data
+     * @param recorderFilePath File path where RTSP media data will be stored. It does not contain
+     *        file name extension because recorder will append extension automatically.
+     * @param layout Directory layout of files, e.g. partitioned into folders per hour
+     * @return True if splitmuxsink is added
+     */
+    public boolean registerFileSink(ContainerType containerType, String recorderFilePath,
+            RecordingLayout layout) throws IllegalArgumentException {
+        return this.registerFileSink(containerType, recorderFilePath, layout, false);
+    }
+
+    /**
+     * Setup File path, container type and directory layout for storing, optionally in an upload-ready format.
+     * Upload-ready files are streamable and clustered at video keyframes, so historical uploads copy their clusters
+     * instead of merging them.  Only MATROSKA supports it.
+     *
+     * @param containerType Container type that will be used to store media data
+     * @param recorderFilePath File path where RTSP media data will be stored. It does not contain
+     *        file name extension because recorder will append extension automatically.
+     * @param layout Directory layout of files, e.g. partitioned into folders per hour
+     * @param isUploadReady True to write files in the shape that KVS ingests
+     * @return True if splitmuxsink is added
+     */
+    public boolean registerFileSink(ContainerType containerType, String recorderFilePath,
+            RecordingLayout layout, boolean isUploadReady) throws IllegalArgumentException {
         boolean canRegister = false;
 
         if (!this.hasFileBranch) {
-            canRegister = this.recorder.registerFileSink(containerType, recorderFilePath);
+            canRegister = this.recorder.registerFileSink(containerType, recorderFilePath, layout, isUploadReady);
             this.hasFileBranch |= canRegister;
         }
 
@@ -252,6 +252,13 @@ public abstract class RecorderBranchBase {
         }
     }
 
+    /**
+     * Called after the pipeline is stopped, e.g. by EOS, so the branch can complete its output.  Nothing is done by
+     * default.
+     */
+    protected void onPipelineStopped() {
+    }
+
     protected void attach() {
         this.bindLock.lock();
         try {
@@ -290,6 +297,20 @@ public abstract class RecorderBranchBase {
      */
     protected Element getMuxerFromType(ContainerType type, boolean isFilePath)
             throws IllegalArgumentException {
+        return this.getMuxerFromType(type, isFilePath, false);
+    }
+
+    /**
+     * Helper function to create a new muxer by the given type, optionally writing files that are ready for upload.
+     *
+     * @param type container type
+     * @param isFilePath selection muxer properties for file path or app path
+     * @param isUploadReady true to apply upload-ready properties on top of file path properties
+     * @return a muxer element
+     * @throws IllegalArgumentException if type is not supported, or it can't write upload-ready files
+     */
+    protected Element getMuxerFromType(ContainerType type, boolean isFilePath, boolean isUploadReady)
+            throws IllegalArgumentException {
 
         Element muxer = null;
 
@@ -297,11 +318,18 @@ public abstract class RecorderBranchBase {
             MuxerProperty conf = ConfigMuxer.CONTAINER_INFO.get(type);
             ArrayList<HashMap<String, Object>> propList = new ArrayList<>();
 
+            if (isFilePath && isUploadReady && conf.getUploadReadyProp().isEmpty()) {
+                throw new IllegalArgumentException("Unsupported upload-ready container type: " + type);
+            }
+
             muxer = this.gstCore.newElement(conf.getGstElmName());
 
             propList.add(conf.getGeneralProp());
             if (isFilePath) {
                 propList.add(conf.getFilePathProp());
+                if (isUploadReady) {
+                    propList.add(conf.getUploadReadyProp());
+                }
             } else {
                 propList.add(conf.getAppPathProp());
             }
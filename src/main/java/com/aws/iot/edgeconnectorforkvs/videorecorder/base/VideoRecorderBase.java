@@ -145,6 +145,9 @@ public class VideoRecorderBase {
 
             log.info("Leave recording loop");
             this.gstCore.stopElement(this.pipeline);
+            for (RecorderBranchBase branch : this.branches.values()) {
+                branch.onPipelineStopped();
+            }
             log.info("notify stop");
 
             if (this.getStatus() == RecorderStatus.STOPPING_ABNORMAL) {
@@ -18,6 +18,8 @@ package com.aws.iot.edgeconnectorforkvs.videorecorder.util;
 
 import com.aws.iot.edgeconnectorforkvs.videorecorder.model.RecorderCapability;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Recorder configurations.
  */
@@ -44,6 +46,12 @@ public final class Config {
      */
     public static final long DEFAULT_FILE_ROTATION_IN_NS = 60_000_000_000L;
 
+    /**
+     * Default min age in MS of recordings that background jobs work on.  Files rotated in the latest 2 periods may
+     * still be written.
+     */
+    public static final long DEFAULT_MIN_FILE_AGE_MS = 2 * TimeUnit.NANOSECONDS.toMillis(DEFAULT_FILE_ROTATION_IN_NS);
+
     /**
      * Recorder pipeline file branch names.
      */
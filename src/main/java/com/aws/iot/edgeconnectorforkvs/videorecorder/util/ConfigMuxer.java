@@ -33,6 +33,11 @@ public final class ConfigMuxer {
         // MATROSKA
         CONTAINER_INFO.put(ContainerType.MATROSKA, new MuxerProperty("matroskamux", "mkv"));
         CONTAINER_INFO.get(ContainerType.MATROSKA).getAppPathProp().put("streamable", true);
+        // Upload-ready files have an unknown-length segment without cues, one cluster per video keyframe and a
+        // timecode scale of 1 ms, which is the shape that KVS ingests
+        CONTAINER_INFO.get(ContainerType.MATROSKA).getUploadReadyProp().put("streamable", true);
+        CONTAINER_INFO.get(ContainerType.MATROSKA).getUploadReadyProp().put("min-cluster-duration", 0L);
+        CONTAINER_INFO.get(ContainerType.MATROSKA).getUploadReadyProp().put("timecodescale", 1000000L);
 
         // MP4
         CONTAINER_INFO.put(ContainerType.MP4, new MuxerProperty("mp4mux", "mp4"));
@@ -29,6 +29,7 @@ public class MuxerProperty {
     private HashMap<String, Object> generalProp;
     private HashMap<String, Object> filePathProp;
     private HashMap<String, Object> appPathProp;
+    private HashMap<String, Object> uploadReadyProp;
 
     /**
      * Constructor.
@@ -41,5 +42,6 @@ public class MuxerProperty {
         this.generalProp = new HashMap<>();
         this.filePathProp = new HashMap<>();
         this.appPathProp = new HashMap<>();
+        this.uploadReadyProp = new HashMap<>();
     }
 }
@@ -0,0 +1,572 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.OffPeakWindow;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A periodic job that uploads the backlog of recordings in the order that prevents the most data loss, instead of
+ * oldest first.  Each pending recording gets an eviction deadline, which is when {@link RetentionManager} would evict
+ * it at the current recording rate.  Recordings that are not uploaded are evicted oldest first once a quota is
+ * exceeded, so a recording is safe as long as the recordings at or after it, plus what is recorded next, fit in the
+ * quota.  The backlog is ordered by deadlines, and a camera with a higher business priority is planned as if its
+ * deadlines were earlier by the priority lead time per priority level.
+ *
+ * <p>Recordings that can't be uploaded before their deadlines at the measured upload throughput are planned last, so
+ * they don't take bandwidth from recordings that can still be saved.  Outside the off-peak windows, only recordings
+ * that would be evicted before the next off-peak window starts are uploaded.  Uploads are paced to the bandwidth
+ * budget of the peak or off-peak time.</p>
+ *
+ * <p>The planned queue is written to a queue file after each change, so uploads resume in the planned order after a
+ * restart without walking the record paths.  The queue is planned again when it's empty or older than the re-plan
+ * interval.</p>
+ */
+@Slf4j
+public class BacklogPlanner implements Runnable {
+
+    private static final long DEFAULT_PRIORITY_LEAD_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long DEFAULT_REPLAN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int DEFAULT_MAX_UPLOADS_PER_RUN = 20;
+
+    // The recording rate of a camera is measured from its recordings that started in this window
+    private static final long RATE_WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Weight of the latest upload in the measured upload throughput
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    private static final int QUEUE_MAGIC = 0x424B4C51;
+
+    private static final byte QUEUE_VERSION = 1;
+
+    // Uploaders by record paths
+    private Map<String, VideoUploader> cameraUploaders;
+
+    // Quotas by record paths, which must match quotas of the retention manager
+    private Map<String, Long> cameraQuotaBytes;
+
+    private long globalQuotaBytes;
+
+    private Map<String, Integer> cameraPriorities;
+
+    private long priorityLeadMs;
+
+    private List<OffPeakWindow> offPeakWindows;
+
+    private ZoneId zoneId;
+
+    private long peakBytesPerSecond;
+
+    private long offPeakBytesPerSecond;
+
+    private long minFileAgeMs;
+
+    private long replanIntervalMs;
+
+    private int maxUploadsPerRun;
+
+    private UploadJournal uploadJournal;
+
+    private File queueFile;
+
+    private final List<PlannedUpload> queue = new ArrayList<>();
+
+    private long plannedAt = 0;
+
+    // Measured upload throughput in bytes per second, or 0 if no upload is measured yet
+    @Getter
+    private double uploadBytesPerSecond = 0;
+
+    @Getter
+    private long uploadedBytes = 0;
+
+    // Count of planned recordings that are expected to be evicted before they are uploaded
+    @Getter
+    private int atRiskCount = 0;
+
+    /**
+     * A recording in the planned queue.
+     */
+    private static final class PlannedUpload {
+        private final String recordFilePath;
+        private final File file;
+        private final long endTime;
+        private final long bytes;
+        private long deadline;
+
+        private PlannedUpload(String recordFilePath, File file, long endTime, long bytes, long deadline) {
+            this.recordFilePath = recordFilePath;
+            this.file = file;
+            this.endTime = endTime;
+            this.bytes = bytes;
+            this.deadline = deadline;
+        }
+
+        private long getStartTime() {
+            return new VideoFile(file).getVideoDate().getTime();
+        }
+    }
+
+    /**
+     * A recording in a record path.
+     */
+    private static final class Recording {
+        private final File file;
+        private final long startTime;
+        private final long bytes;
+        private final long lastModified;
+        private final boolean isUploaded;
+
+        private Recording(File file, long startTime, long bytes, long lastModified, boolean isUploaded) {
+            this.file = file;
+            this.startTime = startTime;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+            this.isUploaded = isUploaded;
+        }
+    }
+
+    /**
+     * The factory creator of BacklogPlanner.
+     *
+     * @param cameraUploaders       Uploaders by record paths of cameras
+     * @param cameraQuotaBytes      Retention quotas in bytes by record paths, or null for no camera quota
+     * @param globalQuotaBytes      Retention quota in bytes of all record paths, or null for no global quota
+     * @param cameraPriorities      Business priorities by record paths, where a higher one is uploaded earlier, or
+     *                              null for the same priority of 0
+     * @param priorityLeadMs        Time that deadlines are planned earlier per priority level, or null for 1 hour
+     * @param offPeakWindows        Daily windows when the uplink is idle, or null to treat all times as off-peak
+     * @param zoneId                Time zone of off-peak windows, or null for the system default
+     * @param peakBytesPerSecond    Bandwidth budget outside off-peak windows, 0 to upload nothing, or null for the
+     *                              off-peak budget
+     * @param offPeakBytesPerSecond Bandwidth budget within off-peak windows, or null for no limit
+     * @param minFileAgeMs          Min time since a recording was last modified before it's planned, or null for 2
+     *                              rotation periods
+     * @param replanIntervalMs      Max age of the planned queue before it's planned again, or null for 10 minutes
+     * @param maxUploadsPerRun      Max count of recordings uploaded by a run, or null for 20
+     * @param uploadJournal         Journal of upload state to find uploaded recordings that are not renamed, or null
+     * @param queueFilePath         File to keep the planned queue across restarts, or null to keep it in memory
+     * @return The planner, with the queue loaded from the queue file if it exists
+     * @throws IllegalArgumentException if there is no uploader, or a quota, priority, budget or limit is invalid
+     */
+    @Builder
+    public static BacklogPlanner create(@NonNull Map<String, VideoUploader> cameraUploaders,
+                                        Map<String, Long> cameraQuotaBytes,
+                                        Long globalQuotaBytes,
+                                        Map<String, Integer> cameraPriorities,
+                                        Long priorityLeadMs,
+                                        List<OffPeakWindow> offPeakWindows,
+                                        ZoneId zoneId,
+                                        Long peakBytesPerSecond,
+                                        Long offPeakBytesPerSecond,
+                                        Long minFileAgeMs,
+                                        Long replanIntervalMs,
+                                        Integer maxUploadsPerRun,
+                                        UploadJournal uploadJournal,
+                                        String queueFilePath) {
+        final BacklogPlanner planner = new BacklogPlanner();
+        planner.cameraUploaders = new LinkedHashMap<>(cameraUploaders);
+        planner.cameraQuotaBytes = cameraQuotaBytes == null ? new HashMap<>() : new HashMap<>(cameraQuotaBytes);
+        planner.globalQuotaBytes = globalQuotaBytes == null ? Long.MAX_VALUE : globalQuotaBytes;
+        planner.cameraPriorities = cameraPriorities == null ? new HashMap<>() : new HashMap<>(cameraPriorities);
+        planner.priorityLeadMs = priorityLeadMs == null ? DEFAULT_PRIORITY_LEAD_MS : priorityLeadMs;
+        planner.offPeakWindows = offPeakWindows == null ? Collections.emptyList() : new ArrayList<>(offPeakWindows);
+        planner.zoneId = zoneId == null ? ZoneId.systemDefault() : zoneId;
+        planner.offPeakBytesPerSecond = offPeakBytesPerSecond == null ? Long.MAX_VALUE : offPeakBytesPerSecond;
+        planner.peakBytesPerSecond = peakBytesPerSecond == null ? planner.offPeakBytesPerSecond : peakBytesPerSecond;
+        planner.minFileAgeMs = minFileAgeMs == null ? Config.DEFAULT_MIN_FILE_AGE_MS : minFileAgeMs;
+        planner.replanIntervalMs = replanIntervalMs == null ? DEFAULT_REPLAN_INTERVAL_MS : replanIntervalMs;
+        planner.maxUploadsPerRun = maxUploadsPerRun == null ? DEFAULT_MAX_UPLOADS_PER_RUN : maxUploadsPerRun;
+        planner.uploadJournal = uploadJournal;
+        planner.queueFile = queueFilePath == null ? null : new File(queueFilePath);
+        if (planner.cameraUploaders.isEmpty() || planner.globalQuotaBytes <= 0 || planner.priorityLeadMs < 0
+                || planner.offPeakBytesPerSecond <= 0 || planner.peakBytesPerSecond < 0 || planner.minFileAgeMs < 0
+                || planner.replanIntervalMs < 0 || planner.maxUploadsPerRun <= 0
+                || planner.cameraUploaders.values().stream().anyMatch(Objects::isNull)
+                || planner.cameraQuotaBytes.values().stream().anyMatch(quota -> quota == null || quota <= 0)
+                || planner.cameraPriorities.values().stream().anyMatch(priority -> priority == null || priority < 0)) {
+            throw new IllegalArgumentException("Invalid backlog plan");
+        }
+        planner.loadQueue();
+        return planner;
+    }
+
+    /**
+     * Upload the backlog in the planned order.
+     */
+    @Override
+    public void run() {
+        try {
+            final int count = upload();
+            log.info("Uploaded {} recordings of the backlog, {} recordings are queued with {} at risk", count,
+                    queue.size(), atRiskCount);
+        } catch (InterruptedException exception) {
+            log.info("Backlog upload is interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Plan the queue again if it's empty or stale, and upload recordings that are due from the head of the queue,
+     * until the max count of uploads of a run is reached or an upload fails.
+     *
+     * @return Count of uploaded recordings
+     * @throws InterruptedException if it's interrupted while pacing uploads
+     */
+    public int upload() throws InterruptedException {
+        if (queue.isEmpty() || System.currentTimeMillis() - plannedAt >= replanIntervalMs) {
+            plan();
+        }
+
+        int count = 0;
+        for (PlannedUpload plannedUpload : new ArrayList<>(queue)) {
+            if (count >= maxUploadsPerRun) {
+                break;
+            }
+            final long now = System.currentTimeMillis();
+            final boolean isOffPeak = isOffPeak(now);
+            final long budget = isOffPeak ? offPeakBytesPerSecond : peakBytesPerSecond;
+            if (budget == 0 || !isOffPeak && plannedUpload.deadline >= getNextOffPeakStart(now)) {
+                // It can wait for the next off-peak window
+                continue;
+            }
+            final VideoUploader uploader = cameraUploaders.get(plannedUpload.recordFilePath);
+            if (uploader == null || !plannedUpload.file.isFile() || isUploaded(plannedUpload.file)) {
+                removeFromQueue(plannedUpload);
+                continue;
+            }
+
+            if (!uploadRecording(uploader, plannedUpload)) {
+                break;
+            }
+            count++;
+            removeFromQueue(plannedUpload);
+            final long elapsedMs = System.currentTimeMillis() - now;
+            if (budget != Long.MAX_VALUE) {
+                final long pacingMs = plannedUpload.bytes * TimeUnit.SECONDS.toMillis(1) / budget - elapsedMs;
+                if (pacingMs > 0) {
+                    Thread.sleep(pacingMs);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Plan the queue of recordings that are not uploaded yet.
+     *
+     * @return Count of planned recordings
+     */
+    public int plan() {
+        final long now = System.currentTimeMillis();
+        final List<PlannedUpload> planned = new ArrayList<>();
+        final List<PlannedUpload> pendingOfAllCameras = new ArrayList<>();
+        double totalBytesPerSecond = 0;
+        for (String recordFilePath : cameraUploaders.keySet()) {
+            final List<Recording> recordings = listRecordings(recordFilePath);
+            recordings.sort(Comparator.comparingLong(recording -> recording.startTime));
+            final double bytesPerSecond = getRecordingBytesPerSecond(recordings, now);
+            totalBytesPerSecond += bytesPerSecond;
+
+            final List<PlannedUpload> pending = new ArrayList<>();
+            for (int i = 0; i < recordings.size(); i++) {
+                final Recording recording = recordings.get(i);
+                if (!recording.isUploaded) {
+                    final long endTime = i + 1 < recordings.size() ? recordings.get(i + 1).startTime
+                            : recording.lastModified + 1;
+                    pending.add(new PlannedUpload(recordFilePath, recording.file, endTime, recording.bytes,
+                            Long.MAX_VALUE));
+                }
+            }
+            setDeadlines(pending, cameraQuotaBytes.getOrDefault(recordFilePath, Long.MAX_VALUE), bytesPerSecond, now);
+            pendingOfAllCameras.addAll(pending);
+            for (PlannedUpload plannedUpload : pending) {
+                if (now - plannedUpload.file.lastModified() >= minFileAgeMs) {
+                    planned.add(plannedUpload);
+                }
+            }
+        }
+        pendingOfAllCameras.sort(Comparator.comparingLong(PlannedUpload::getStartTime));
+        setDeadlines(pendingOfAllCameras, globalQuotaBytes, totalBytesPerSecond, now);
+
+        planned.sort(Comparator.comparingLong(this::getPlanningKey).thenComparingLong(PlannedUpload::getStartTime));
+        queue.clear();
+        queue.addAll(moveAtRiskLast(planned, now));
+        plannedAt = now;
+        saveQueue();
+        return queue.size();
+    }
+
+    /**
+     * Get recordings in the queue in the planned order.
+     *
+     * @return The queued recordings
+     */
+    public List<VideoFile> getQueue() {
+        final List<VideoFile> videoFiles = new ArrayList<>();
+        for (PlannedUpload plannedUpload : queue) {
+            videoFiles.add(new VideoFile(plannedUpload.file));
+        }
+        return videoFiles;
+    }
+
+    /**
+     * Set deadlines of pending recordings in start time order.  A recording is evicted when the pending recordings at
+     * or after it plus what is recorded next exceed the quota, and only an earlier deadline is kept, so the earliest
+     * deadline of the camera quota and the global quota is used.
+     */
+    private static void setDeadlines(List<PlannedUpload> pending, long quota, double bytesPerSecond, long now) {
+        if (quota == Long.MAX_VALUE) {
+            return;
+        }
+        long laterBytes = 0;
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            final PlannedUpload plannedUpload = pending.get(i);
+            laterBytes += plannedUpload.bytes;
+            final long slackBytes = quota - laterBytes;
+            final long deadline;
+            if (slackBytes <= 0) {
+                deadline = now;
+            } else if (bytesPerSecond <= 0) {
+                deadline = Long.MAX_VALUE;
+            } else {
+                deadline = now + (long) Math.min(Long.MAX_VALUE - now,
+                        slackBytes * (double) TimeUnit.SECONDS.toMillis(1) / bytesPerSecond);
+            }
+            plannedUpload.deadline = Math.min(plannedUpload.deadline, deadline);
+        }
+    }
+
+    /**
+     * Get the recording rate of a camera from its recordings that started in the rate window.
+     */
+    private static double getRecordingBytesPerSecond(List<Recording> recordings, long now) {
+        long bytes = 0;
+        long earliestStartTime = now;
+        for (Recording recording : recordings) {
+            if (recording.startTime >= now - RATE_WINDOW_MS && recording.startTime < now) {
+                bytes += recording.bytes;
+                earliestStartTime = Math.min(earliestStartTime, recording.startTime);
+            }
+        }
+        return earliestStartTime < now ? bytes * (double) TimeUnit.SECONDS.toMillis(1) / (now - earliestStartTime)
+                : 0;
+    }
+
+    private long getPlanningKey(PlannedUpload plannedUpload) {
+        final long lead = priorityLeadMs * cameraPriorities.getOrDefault(plannedUpload.recordFilePath, 0);
+        return plannedUpload.deadline - lead;
+    }
+
+    /**
+     * Move recordings that can't be uploaded before their deadlines at the expected throughput to the end of the plan.
+     * The throughput is the measured upload throughput capped by the off-peak budget, and all recordings are kept in
+     * order if it's not measured yet.
+     */
+    private List<PlannedUpload> moveAtRiskLast(List<PlannedUpload> planned, long now) {
+        final double bytesPerSecond = Math.min(uploadBytesPerSecond, offPeakBytesPerSecond);
+        atRiskCount = 0;
+        if (bytesPerSecond <= 0) {
+            return planned;
+        }
+        final List<PlannedUpload> feasible = new ArrayList<>();
+        final List<PlannedUpload> atRisk = new ArrayList<>();
+        double finishTime = now;
+        for (PlannedUpload plannedUpload : planned) {
+            final double uploadMs = plannedUpload.bytes * (double) TimeUnit.SECONDS.toMillis(1) / bytesPerSecond;
+            if (finishTime + uploadMs > plannedUpload.deadline) {
+                atRisk.add(plannedUpload);
+            } else {
+                feasible.add(plannedUpload);
+                finishTime += uploadMs;
+            }
+        }
+        if (!atRisk.isEmpty()) {
+            log.warn("{} recordings of the backlog are expected to be evicted before they are uploaded", atRisk.size());
+        }
+        atRiskCount = atRisk.size();
+        feasible.addAll(atRisk);
+        return feasible;
+    }
+
+    private boolean isOffPeak(long timeMs) {
+        if (offPeakWindows.isEmpty()) {
+            return true;
+        }
+        final LocalTime time = Instant.ofEpochMilli(timeMs).atZone(zoneId).toLocalTime();
+        return offPeakWindows.stream().anyMatch(window -> window.contains(time));
+    }
+
+    private long getNextOffPeakStart(long timeMs) {
+        final ZonedDateTime now = Instant.ofEpochMilli(timeMs).atZone(zoneId);
+        return offPeakWindows.stream()
+                .mapToLong(window -> window.getNextStart(now).toInstant().toEpochMilli())
+                .min()
+                .orElse(timeMs);
+    }
+
+    /**
+     * Upload a recording, and measure the upload throughput.
+     *
+     * @return False if the upload fails, so the uplink may be down
+     */
+    private boolean uploadRecording(VideoUploader uploader, PlannedUpload plannedUpload) {
+        // A recording that starts exactly at the start time is uploaded as a whole, without the end of the previous one
+        final Date startTime = new Date(plannedUpload.getStartTime());
+        final UploadCallBack uploadCallBack = new UploadCallBack(startTime, null) {
+            @Override
+            public void run() {
+                log.debug("Uploaded {} of the backlog", plannedUpload.file.getName());
+            }
+        };
+        final long uploadStartTime = System.currentTimeMillis();
+        try {
+            uploader.uploadHistoricalVideo(startTime, new Date(plannedUpload.endTime), null, uploadCallBack);
+        } catch (Exception exception) {
+            log.warn("Failed to upload " + plannedUpload.file.getName() + " of the backlog: " + exception.getMessage());
+            return false;
+        }
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - uploadStartTime);
+        final double bytesPerSecond = plannedUpload.bytes * (double) TimeUnit.SECONDS.toMillis(1) / elapsedMs;
+        uploadBytesPerSecond = uploadBytesPerSecond <= 0 ? bytesPerSecond
+                : THROUGHPUT_SMOOTHING * bytesPerSecond + (1 - THROUGHPUT_SMOOTHING) * uploadBytesPerSecond;
+        uploadedBytes += plannedUpload.bytes;
+        return true;
+    }
+
+    private boolean isUploaded(File file) {
+        return file.getName().endsWith(Constants.VIDEO_FILENAME_UPLOADED_POSTFIX)
+                || uploadJournal != null && uploadJournal.isFileUploaded(new VideoFile(file));
+    }
+
+    private void removeFromQueue(PlannedUpload plannedUpload) {
+        queue.remove(plannedUpload);
+        saveQueue();
+    }
+
+    private List<Recording> listRecordings(String recordFilePath) {
+        final List<Recording> recordings = new ArrayList<>();
+        VideoRecordVisitor.walkRecordings(Paths.get(recordFilePath), (file, startTime, isUploadedName, attrs) -> {
+            final File sidecarFile = MkvClusterIndex.getSidecarFile(file);
+            recordings.add(new Recording(file, startTime, attrs.size() + sidecarFile.length(),
+                    attrs.lastModifiedTime().toMillis(), isUploadedName || isUploaded(file)));
+        });
+        return recordings;
+    }
+
+    /**
+     * Load the queue from the queue file.  A queue file that can't be read is ignored, so the queue is planned again.
+     */
+    private void loadQueue() {
+        if (queueFile == null || !queueFile.isFile()) {
+            return;
+        }
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(queueFile)))) {
+            if (inputStream.readInt() != QUEUE_MAGIC || inputStream.readByte() != QUEUE_VERSION) {
+                throw new IOException("Invalid backlog queue " + queueFile.getName());
+            }
+            final long queuePlannedAt = inputStream.readLong();
+            final int count = inputStream.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid backlog queue count " + count);
+            }
+            final List<PlannedUpload> loaded = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                final String recordFilePath = inputStream.readUTF();
+                final File file = new File(inputStream.readUTF());
+                final long endTime = inputStream.readLong();
+                final long bytes = inputStream.readLong();
+                final long deadline = inputStream.readLong();
+                loaded.add(new PlannedUpload(recordFilePath, file, endTime, bytes, deadline));
+            }
+            queue.addAll(loaded);
+            plannedAt = queuePlannedAt;
+            log.info("Loaded {} recordings of the backlog from {}", queue.size(), queueFile);
+        } catch (IOException exception) {
+            log.warn("Unable to load the backlog queue, plan it again: {}", exception.getMessage());
+        }
+    }
+
+    /**
+     * Save the queue to the queue file.  It's written to a temporary file first and then moved, so a power loss never
+     * leaves a partial queue.
+     */
+    private void saveQueue() {
+        if (queueFile == null) {
+            return;
+        }
+        final File tempFile = new File(queueFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                outputStream.writeInt(QUEUE_MAGIC);
+                outputStream.writeByte(QUEUE_VERSION);
+                outputStream.writeLong(plannedAt);
+                outputStream.writeInt(queue.size());
+                for (PlannedUpload plannedUpload : queue) {
+                    outputStream.writeUTF(plannedUpload.recordFilePath);
+                    outputStream.writeUTF(plannedUpload.file.getPath());
+                    outputStream.writeLong(plannedUpload.endTime);
+                    outputStream.writeLong(plannedUpload.bytes);
+                    outputStream.writeLong(plannedUpload.deadline);
+                }
+            }
+            Files.move(tempFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            log.warn("Unable to save the backlog queue: {}", exception.getMessage());
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvFilesInputStream;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An idle-time job that compacts runs of small recordings into larger pre-merged segments, so uploading a backlog
+ * doesn't have to open, parse and merge thousands of rotated files.  Consecutive recordings in the same folder with
+ * equivalent tracks are merged into the first recording of the run, and its cluster index is rebuilt for uploading.
+ * Recordings that are uploaded or partially uploaded by the upload journal are never compacted, because the journal
+ * knows them by their start times.
+ *
+ * <p>Compaction is crash-safe.  A run is merged into a temporary file, and a manifest listing the run is written only
+ * after the temporary file is synced.  The temporary file then replaces the first recording and the rest of the run
+ * is deleted.  {@link #recover()} rolls forward a run that has a manifest, and drops temporary files without one.
+ *
+ * <p>The job is throttled, so it sleeps when merged bytes exceed the I/O budget or its CPU time exceeds the CPU budget.
+ */
+@Slf4j
+public class RecordingCompactor implements Runnable {
+
+    /** Extension of the temporary file that a run is merged into. */
+    public static final String TEMP_EXTENSION = ".compacting";
+
+    /** Extension of the manifest that lists recordings of a run. */
+    public static final String MANIFEST_EXTENSION = ".compaction";
+
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private static final long DEFAULT_MAX_BYTES_PER_SECOND = 8L * 1024 * 1024;
+
+    private static final double DEFAULT_MAX_CPU_RATIO = 0.25;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private String recordFilePath;
+
+    private VideoRecordVisitor videoRecordVisitor;
+
+    private long maxSegmentBytes;
+
+    private long minFileAgeMs;
+
+    private long maxBytesPerSecond;
+
+    private double maxCpuRatio;
+
+    private BooleanSupplier idleCondition;
+
+    private UploadJournal uploadJournal;
+
+    // Throttling state of the current compact() call
+    private long budgetStartNanos;
+    private long budgetStartCpuNanos;
+    private long budgetBytes;
+
+    /**
+     * The factory creator of RecordingCompactor.
+     *
+     * @param recordFilePath    Record path that contains videos
+     * @param maxSegmentBytes   Max size of a compacted segment, or null for 64 MB
+     * @param minFileAgeMs      Min time since a recording was last modified, or null for 2 rotation periods
+     * @param maxBytesPerSecond I/O budget in merged bytes per second, or null for 8 MB per second
+     * @param maxCpuRatio       CPU budget as a ratio of one core between 0 and 1, or null for 0.25
+     * @param idleCondition     Compaction only starts while it returns true, e.g. no upload is on going, or null to
+     *                          always start
+     * @param uploadJournal     Journal of upload state to keep uploaded recordings out of runs, or null
+     * @return The compactor
+     * @throws IllegalArgumentException if a budget or limit is not positive
+     */
+    @Builder
+    public static RecordingCompactor create(@NonNull String recordFilePath,
+                                            Long maxSegmentBytes,
+                                            Long minFileAgeMs,
+                                            Long maxBytesPerSecond,
+                                            Double maxCpuRatio,
+                                            BooleanSupplier idleCondition,
+                                            UploadJournal uploadJournal) {
+        RecordingCompactor compactor = new RecordingCompactor();
+        compactor.recordFilePath = recordFilePath;
+        compactor.videoRecordVisitor = VideoRecordVisitor.builder()
+                .recordFilePath(recordFilePath)
+                .build();
+        compactor.maxSegmentBytes = maxSegmentBytes == null ? DEFAULT_MAX_SEGMENT_BYTES : maxSegmentBytes;
+        compactor.minFileAgeMs = minFileAgeMs == null ? Config.DEFAULT_MIN_FILE_AGE_MS : minFileAgeMs;
+        compactor.maxBytesPerSecond = maxBytesPerSecond == null ? DEFAULT_MAX_BYTES_PER_SECOND : maxBytesPerSecond;
+        compactor.maxCpuRatio = maxCpuRatio == null ? DEFAULT_MAX_CPU_RATIO : maxCpuRatio;
+        compactor.idleCondition = idleCondition == null ? () -> true : idleCondition;
+        compactor.uploadJournal = uploadJournal;
+        if (compactor.maxSegmentBytes <= 0 || compactor.minFileAgeMs < 0 || compactor.maxBytesPerSecond <= 0
+                || compactor.maxCpuRatio <= 0 || compactor.maxCpuRatio > 1) {
+            throw new IllegalArgumentException("Invalid compaction budget");
+        }
+        return compactor;
+    }
+
+    /**
+     * Recover interrupted compactions and then compact recordings if it's idle.
+     */
+    @Override
+    public void run() {
+        try {
+            recover();
+        } catch (IOException exception) {
+            log.error("Failed to recover compaction: " + exception.getMessage());
+            return;
+        }
+        if (!idleCondition.getAsBoolean()) {
+            log.debug("Skip compaction because it's not idle");
+            return;
+        }
+        final int count = compact();
+        log.info("Compacted {} runs of recordings", count);
+    }
+
+    /**
+     * Compact runs of recordings.  Each run is checked against the idle condition before it starts.
+     *
+     * @return Number of compacted runs
+     */
+    public int compact() {
+        budgetStartNanos = System.nanoTime();
+        budgetStartCpuNanos = getCpuTimeNanos();
+        budgetBytes = 0;
+
+        int count = 0;
+        for (List<VideoFile> run : listRuns()) {
+            if (!idleCondition.getAsBoolean()) {
+                log.info("Stop compaction because it's not idle");
+                break;
+            }
+            try {
+                compactRun(run);
+                count++;
+            } catch (IOException exception) {
+                log.error("Failed to compact recordings from " + run.get(0).getName() + ": "
+                        + exception.getMessage());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Roll forward compactions that have a manifest, and delete temporary files of compactions that don't.
+     *
+     * @throws IOException if a compaction can't be rolled forward
+     */
+    public void recover() throws IOException {
+        final List<Path> manifests = new ArrayList<>();
+        final List<Path> tempFiles = new ArrayList<>();
+        Files.walkFileTree(Paths.get(recordFilePath), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, @SuppressWarnings("unused") BasicFileAttributes attrs) {
+                final String filename = Objects.toString(file.getFileName(), "");
+                if (filename.endsWith(MANIFEST_EXTENSION)) {
+                    manifests.add(file);
+                } else if (filename.endsWith(TEMP_EXTENSION)) {
+                    tempFiles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        for (Path manifest : manifests) {
+            final Path folder = manifest.getParent();
+            final List<String> filenames = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            if (folder == null || filenames.isEmpty()) {
+                Files.delete(manifest);
+                continue;
+            }
+            log.info("Roll forward compaction of " + filenames.get(0));
+            final List<File> run = new ArrayList<>();
+            for (String filename : filenames) {
+                run.add(folder.resolve(filename).toFile());
+            }
+            commit(run, manifest.toFile());
+        }
+
+        for (Path tempFile : tempFiles) {
+            if (Files.deleteIfExists(tempFile)) {
+                log.info("Dropped incomplete compaction " + tempFile.getFileName());
+            }
+        }
+    }
+
+    /**
+     * List runs of recordings to compact.  A run has at least 2 consecutive recordings in the same folder, their
+     * tracks are equivalent, and their total size is within the max segment size.  A recording with upload state in
+     * the journal ends a run.
+     */
+    private List<List<VideoFile>> listRuns() {
+        final long now = System.currentTimeMillis();
+        final List<VideoFile> videoFiles = videoRecordVisitor.listFilesToUpload(new Date(0L), new Date(now));
+
+        final List<List<VideoFile>> runs = new ArrayList<>();
+        List<VideoFile> run = new ArrayList<>();
+        long runBytes = 0;
+        long runFingerprint = 0;
+        for (VideoFile videoFile : videoFiles) {
+            if (now - videoFile.lastModified() < minFileAgeMs) {
+                // Later recordings are newer, so they may still be written as well
+                break;
+            }
+            if (uploadJournal != null && (uploadJournal.isFileUploaded(videoFile)
+                    || uploadJournal.getPersistedFragmentTimecode(videoFile) >= 0)) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                continue;
+            }
+            final long fileBytes = videoFile.length();
+            final long fingerprint;
+            try {
+                fingerprint = MkvClusterIndex.loadOrBuild(videoFile).getTracksFingerprint();
+            } catch (IOException | MkvElementVisitException exception) {
+                log.warn("Skip compaction of " + videoFile.getName() + ": " + exception.getMessage());
+                addRun(runs, run);
+                run = new ArrayList<>();
+                continue;
+            }
+
+            if (run.isEmpty() || fingerprint != runFingerprint || runBytes + fileBytes > maxSegmentBytes
+                    || !Objects.equals(videoFile.getParentFile(), run.get(0).getParentFile())) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                runBytes = 0;
+                runFingerprint = fingerprint;
+            }
+            run.add(videoFile);
+            runBytes += fileBytes;
+        }
+        addRun(runs, run);
+        return runs;
+    }
+
+    private static void addRun(List<List<VideoFile>> runs, List<VideoFile> run) {
+        if (run.size() > 1) {
+            runs.add(run);
+        }
+    }
+
+    private void compactRun(List<VideoFile> run) throws IOException {
+        final VideoFile firstFile = run.get(0);
+        final File tempFile = getTempFile(firstFile);
+        log.debug("Compact {} recordings from {}", run.size(), firstFile.getName());
+
+        // The run is committed once its manifest exists
+        final File manifestFile = new File(firstFile.getPath() + MANIFEST_EXTENSION);
+        final File manifestTempFile = new File(manifestFile.getPath() + ".tmp");
+        try {
+            mergeRun(run, tempFile);
+            try (FileOutputStream outputStream = new FileOutputStream(manifestTempFile)) {
+                for (VideoFile videoFile : run) {
+                    outputStream.write((videoFile.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                outputStream.getFD().sync();
+            }
+            Files.move(manifestTempFile.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            // Nothing is committed yet, so the run is left as it is
+            deleteIfExists(manifestTempFile);
+            deleteIfExists(tempFile);
+            throw exception;
+        }
+
+        commit(new ArrayList<>(run), manifestFile);
+    }
+
+    private void mergeRun(List<VideoFile> run, File tempFile) throws IOException {
+        final MkvFilesInputStream mkvFilesInputStream = new MkvFilesInputStream(new ArrayList<>(run).listIterator());
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int length;
+            while ((length = mkvFilesInputStream.read(buffer, 0, buffer.length)) > 0) {
+                outputStream.write(buffer, 0, length);
+                throttle(length);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            mkvFilesInputStream.close();
+        }
+        for (VideoFile videoFile : run) {
+            if (!videoFile.isParsed()) {
+                throw new IOException("Unable to merge " + videoFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Replace the first recording of a run with the temporary file if it's not yet replaced, delete the rest of the
+     * run, rebuild the cluster index, and then delete the manifest.  Each step is idempotent.
+     */
+    private static void commit(List<File> run, File manifestFile) throws IOException {
+        final File firstFile = run.get(0);
+        final File tempFile = getTempFile(firstFile);
+        if (tempFile.isFile()) {
+            deleteIfExists(MkvClusterIndex.getSidecarFile(firstFile));
+            Files.move(tempFile.toPath(), firstFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        for (File file : run.subList(1, run.size())) {
+            deleteIfExists(file);
+            deleteIfExists(MkvClusterIndex.getSidecarFile(file));
+        }
+        try {
+            MkvClusterIndex.loadOrBuild(firstFile);
+        } catch (MkvElementVisitException exception) {
+            log.warn("Unable to index compacted recording " + firstFile.getName());
+        }
+        Files.delete(manifestFile.toPath());
+    }
+
+    private static File getTempFile(File firstFile) {
+        return new File(firstFile.getPath() + TEMP_EXTENSION);
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Sleep until merged bytes and CPU time since compaction starts are within budgets.
+     */
+    private void throttle(long bytes) {
+        budgetBytes += bytes;
+        final long elapsedNanos = System.nanoTime() - budgetStartNanos;
+        final long ioNanos = TimeUnit.SECONDS.toNanos(budgetBytes) / maxBytesPerSecond;
+        final long cpuNanos = (long) ((getCpuTimeNanos() - budgetStartCpuNanos) / maxCpuRatio);
+        final long sleepNanos = Math.max(ioNanos, cpuNanos) - elapsedNanos;
+        if (sleepNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long getCpuTimeNanos() {
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvTailScanner;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A startup job that repairs recordings truncated by a power loss, so their recoverable footage can be uploaded
+ * instead of failing to parse.  The recorder writes the cluster index sidecar when it rotates to a new file, so only
+ * recordings without a fresh sidecar may have been cut off, and only their tails are scanned by
+ * {@link MkvTailScanner}.  A truncated recording is cut after its last complete cluster child, synced, and indexed.
+ */
+@Slf4j
+public class RecordingRepairer implements Runnable {
+
+    private Path recordPath;
+
+    private long minFileAgeMs;
+
+    @Getter
+    private long repairedFileCount = 0;
+
+    @Getter
+    private long truncatedBytes = 0;
+
+    /**
+     * The factory creator of RecordingRepairer.
+     *
+     * @param recordFilePath Record path that contains videos
+     * @param minFileAgeMs   Min time since a recording was last modified, or null for 2 rotation periods.  It can be 0
+     *                       if the recorder is not started yet.
+     * @return The repairer
+     * @throws IllegalArgumentException if min age is negative
+     */
+    @Builder
+    public static RecordingRepairer create(@NonNull String recordFilePath,
+                                           Long minFileAgeMs) {
+        final RecordingRepairer repairer = new RecordingRepairer();
+        repairer.recordPath = Paths.get(recordFilePath);
+        repairer.minFileAgeMs = minFileAgeMs == null ? Config.DEFAULT_MIN_FILE_AGE_MS : minFileAgeMs;
+        if (repairer.minFileAgeMs < 0) {
+            throw new IllegalArgumentException("Invalid min file age");
+        }
+        return repairer;
+    }
+
+    /**
+     * Repair truncated recordings.
+     */
+    @Override
+    public void run() {
+        final int count = repair();
+        log.info("Repaired {} truncated recordings in {}", count, recordPath);
+    }
+
+    /**
+     * Scan tails of recordings without a fresh cluster index, and truncate them after their last complete element.
+     *
+     * @return Number of repaired recordings
+     */
+    public int repair() {
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        for (File file : VideoRecordVisitor.listRecordingFiles(recordPath)) {
+            if (file.length() == 0 || now - file.lastModified() < minFileAgeMs
+                    || MkvClusterIndex.loadIfFresh(file) != null) {
+                continue;
+            }
+            try {
+                if (repair(file)) {
+                    count++;
+                }
+            } catch (IOException exception) {
+                log.error("Failed to repair " + file.getName() + ": " + exception.getMessage());
+            }
+        }
+        repairedFileCount += count;
+        return count;
+    }
+
+    private boolean repair(File file) throws IOException {
+        final long fileSize = file.length();
+        final long recoverableLength = MkvTailScanner.findRecoverableLength(file);
+        if (recoverableLength < 0) {
+            log.warn("No complete cluster in {}, it's left as it is", file.getName());
+            return false;
+        }
+        if (recoverableLength >= fileSize) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(recoverableLength);
+            channel.force(true);
+        }
+        truncatedBytes += fileSize - recoverableLength;
+        log.info("Truncated {} from {} to {} bytes", file.getName(), fileSize, recoverableLength);
+
+        try {
+            MkvClusterIndex.loadOrBuild(file);
+        } catch (MkvElementVisitException exception) {
+            log.warn("Unable to index repaired " + file.getName() + ": " + exception.getMessage());
+        }
+        return true;
+    }
+}
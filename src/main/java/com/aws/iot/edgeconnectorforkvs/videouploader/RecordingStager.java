@@ -0,0 +1,319 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UpdateFragmentStatus;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A periodic job for a RAM-first staging tier of recordings.  The recorder writes to a staging path on a size-capped
+ * tmpfs, and most recordings are uploaded live and then dropped from RAM without ever being written to flash storage.
+ * A recording is promoted to the persistent record path only if it's not confirmed uploaded within the promotion
+ * window, or when the staging path exceeds its max size.
+ *
+ * <p>A recording is confirmed uploaded if it's marked uploaded by its filename or the upload journal, or if its whole
+ * time span is covered by contiguous persisted fragments of a live upload, which are reported to the listener from
+ * {@link #createUploadListener()}.  Promotion copies a recording to a temporary file in the record path, syncs it and
+ * renames it, so a promoted recording is never torn by a power loss.</p>
+ */
+@Slf4j
+public class RecordingStager implements Runnable {
+
+    /** Extension of the temporary file that a recording is promoted into. */
+    public static final String TEMP_EXTENSION = ".promoting";
+
+    private static final long DEFAULT_PROMOTION_WINDOW_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private Path stagingPath;
+
+    private Path recordPath;
+
+    private long maxStagingBytes;
+
+    private long minFileAgeMs;
+
+    private long promotionWindowMs;
+
+    private UploadJournal uploadJournal;
+
+    // Time ranges covered by contiguous persisted fragments of live uploads, from start to end in milliseconds
+    private final TreeMap<Long, Long> uploadedRanges = new TreeMap<>();
+
+    @Getter
+    private long promotedBytes = 0;
+
+    @Getter
+    private long droppedBytes = 0;
+
+    /**
+     * The factory creator of RecordingStager.
+     *
+     * @param stagingFilePath   Staging path that the recorder writes to, e.g. on a tmpfs
+     * @param recordFilePath    Persistent record path that recordings are promoted to
+     * @param maxStagingBytes   Max size of recordings in the staging path before the oldest ones are promoted
+     * @param minFileAgeMs      Min time since a recording was last modified before it's dropped or promoted, or null
+     *                          for 2 rotation periods
+     * @param promotionWindowMs Time since a recording was last modified before it's promoted if it's not confirmed
+     *                          uploaded, or null for 5 minutes
+     * @param uploadJournal     Journal of upload state to confirm uploaded recordings, or null
+     * @return The stager
+     * @throws IllegalArgumentException if max size is not positive, or min age or promotion window is negative
+     */
+    @Builder
+    public static RecordingStager create(@NonNull String stagingFilePath,
+                                         @NonNull String recordFilePath,
+                                         long maxStagingBytes,
+                                         Long minFileAgeMs,
+                                         Long promotionWindowMs,
+                                         UploadJournal uploadJournal) {
+        final RecordingStager stager = new RecordingStager();
+        stager.stagingPath = Paths.get(stagingFilePath);
+        stager.recordPath = Paths.get(recordFilePath);
+        stager.maxStagingBytes = maxStagingBytes;
+        stager.minFileAgeMs = minFileAgeMs == null ? Config.DEFAULT_MIN_FILE_AGE_MS : minFileAgeMs;
+        stager.promotionWindowMs = promotionWindowMs == null ? DEFAULT_PROMOTION_WINDOW_MS : promotionWindowMs;
+        stager.uploadJournal = uploadJournal;
+        if (stager.maxStagingBytes <= 0 || stager.minFileAgeMs < 0 || stager.promotionWindowMs < 0) {
+            throw new IllegalArgumentException("Invalid staging limit");
+        }
+        return stager;
+    }
+
+    /**
+     * Create a listener of fragment status for a live upload, to be passed to its
+     * {@link com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack}.  Fragments are acknowledged in
+     * order, so a persisted fragment that follows another persisted fragment of the same upload confirms the time range
+     * between them.  An error acknowledgement clears all confirmed ranges, because the failed fragment is not known.
+     *
+     * @return The listener of a single live upload
+     */
+    public UpdateFragmentStatus createUploadListener() {
+        return new UpdateFragmentStatus() {
+            // Absolute timecode of the latest persisted fragment since the last error, or -1 if there is none
+            private long lastPersistedMs = -1;
+
+            @Override
+            public void update(long lastUpdatedFragment, VideoFile lastUpdatedVideoFile) {
+                if (lastUpdatedFragment > lastPersistedMs) {
+                    if (lastPersistedMs >= 0) {
+                        confirmUploaded(lastPersistedMs, lastUpdatedFragment);
+                    }
+                    lastPersistedMs = lastUpdatedFragment;
+                }
+            }
+
+            @Override
+            public void error(long errorFragment) {
+                lastPersistedMs = -1;
+                clearConfirmedUploads();
+            }
+        };
+    }
+
+    /**
+     * Confirm a time range of a live upload that is persisted without gaps.  Recordings that start and were last
+     * written within confirmed ranges are uploaded.
+     *
+     * @param fromMs  Absolute start time of the range
+     * @param untilMs Absolute end time of the range
+     */
+    public synchronized void confirmUploaded(long fromMs, long untilMs) {
+        if (untilMs < fromMs) {
+            return;
+        }
+        long start = fromMs;
+        long end = untilMs;
+        final Map.Entry<Long, Long> floorRange = uploadedRanges.floorEntry(start);
+        if (floorRange != null && floorRange.getValue() >= start) {
+            start = floorRange.getKey();
+            end = Math.max(end, floorRange.getValue());
+        }
+        final Iterator<Long> mergedRanges = uploadedRanges.subMap(start, true, end, true).values().iterator();
+        while (mergedRanges.hasNext()) {
+            end = Math.max(end, mergedRanges.next());
+            mergedRanges.remove();
+        }
+        uploadedRanges.put(start, end);
+    }
+
+    /**
+     * Forget all confirmed ranges, e.g. when a fragment of a live upload fails.
+     */
+    public synchronized void clearConfirmedUploads() {
+        uploadedRanges.clear();
+    }
+
+    /**
+     * Drop confirmed recordings and promote the others that are due.
+     */
+    @Override
+    public void run() {
+        final long bytes = stage();
+        log.info("Staging path {} keeps {} bytes of recordings", stagingPath, bytes);
+    }
+
+    /**
+     * Drop recordings that are confirmed uploaded from the staging path, and promote recordings that are past the
+     * promotion window.  The oldest recordings are then promoted until the staging path is within its max size.
+     *
+     * @return Bytes of recordings kept in the staging path
+     */
+    public long stage() {
+        final long now = System.currentTimeMillis();
+        final List<File> recordings = VideoRecordVisitor.listRecordingFiles(stagingPath);
+        recordings.sort(Comparator.comparing((File file) -> VideoRecordVisitor.getDateFromFilename(file.getName())));
+        forgetConfirmedUploadsBefore(recordings.isEmpty() ? now
+                : VideoRecordVisitor.getDateFromFilename(recordings.get(0).getName()).getTime());
+
+        long stagedBytes = 0;
+        final List<File> kept = new ArrayList<>();
+        for (File file : recordings) {
+            final long bytes = file.length() + MkvClusterIndex.getSidecarFile(file).length();
+            final long lastModified = file.lastModified();
+            if (now - lastModified < minFileAgeMs) {
+                stagedBytes += bytes;
+            } else if (isUploaded(file, lastModified)) {
+                if (drop(file)) {
+                    droppedBytes += bytes;
+                } else {
+                    stagedBytes += bytes;
+                }
+            } else if (now - lastModified >= promotionWindowMs) {
+                if (!promote(file, bytes)) {
+                    stagedBytes += bytes;
+                }
+            } else {
+                stagedBytes += bytes;
+                kept.add(file);
+            }
+        }
+
+        for (File file : kept) {
+            if (stagedBytes <= maxStagingBytes) {
+                break;
+            }
+            final long bytes = file.length() + MkvClusterIndex.getSidecarFile(file).length();
+            log.info("Promote {} ahead of its window because the staging path is full", file.getName());
+            if (promote(file, bytes)) {
+                stagedBytes -= bytes;
+            }
+        }
+        if (stagedBytes > maxStagingBytes) {
+            log.warn("Staging path {} exceeds its max size with {} bytes of recordings in progress", stagingPath,
+                    stagedBytes);
+        }
+        return stagedBytes;
+    }
+
+    private boolean isUploaded(File file, long lastModified) {
+        if (file.getName().endsWith(Constants.VIDEO_FILENAME_UPLOADED_POSTFIX)) {
+            return true;
+        }
+        final VideoFile videoFile = new VideoFile(file);
+        synchronized (this) {
+            final Map.Entry<Long, Long> range = uploadedRanges.floorEntry(videoFile.getVideoDate().getTime());
+            if (range != null && lastModified <= range.getValue()) {
+                return true;
+            }
+        }
+        return uploadJournal != null && uploadJournal.isFileUploaded(videoFile);
+    }
+
+    /**
+     * Forget confirmed ranges that end before the oldest staged recording, because they can't cover any recording.
+     */
+    private synchronized void forgetConfirmedUploadsBefore(long timeMs) {
+        uploadedRanges.headMap(timeMs).values().removeIf(end -> end < timeMs);
+    }
+
+    private boolean drop(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(MkvClusterIndex.getSidecarFile(file).toPath());
+            if (uploadJournal != null) {
+                uploadJournal.forgetFile(new VideoFile(file));
+            }
+            log.debug("Dropped uploaded {}", file.getName());
+            return true;
+        } catch (IOException exception) {
+            log.warn("Unable to drop " + file.getName() + ": " + exception.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Promote a recording and its sidecar to the same relative path in the record path.
+     */
+    private boolean promote(File file, long bytes) {
+        final Path target = recordPath.resolve(stagingPath.relativize(file.toPath()));
+        try {
+            final Path folder = target.getParent();
+            if (folder != null) {
+                Files.createDirectories(folder);
+            }
+            final File sidecarFile = MkvClusterIndex.getSidecarFile(file);
+            if (sidecarFile.isFile()) {
+                copyDurably(sidecarFile.toPath(), MkvClusterIndex.getSidecarFile(target.toFile()).toPath());
+            }
+            copyDurably(file.toPath(), target);
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(sidecarFile.toPath());
+        } catch (IOException exception) {
+            log.error("Failed to promote " + file.getName() + ": " + exception.getMessage());
+            return false;
+        }
+        promotedBytes += bytes;
+        log.debug("Promoted {} to {}", file.getName(), target);
+        return true;
+    }
+
+    private static void copyDurably(Path source, Path target) throws IOException {
+        final Path tempFile = Paths.get(target + TEMP_EXTENSION);
+        try {
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
+import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.RetentionMetricsCallBack;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A periodic job that bounds disk usage of recordings by per-camera and global byte quotas.  Each camera records to its
+ * own record path.  When a quota is exceeded, recordings older than the min age are evicted in priority order: uploaded
+ * recordings first, and then the oldest ones.  Cluster index sidecars are evicted along with their recordings.
+ *
+ * <p>In a partitioned {@link RecordingLayout}, a partition folder whose recordings are all older than the min age is
+ * evicted as a whole, as if it's one recording that starts at its earliest recording.</p>
+ *
+ * <p>Eviction is incremental and rate-limited, so a run deletes at most a fixed count of recordings and paces the
+ * deletions, and recording I/O is never stalled by a burst of metadata writes.  Quotas that are still exceeded are
+ * handled by the next run.</p>
+ */
+@Slf4j
+public class RetentionManager implements Runnable {
+
+    private static final int DEFAULT_MAX_EVICTIONS_PER_RUN = 100;
+
+    private static final double DEFAULT_MAX_EVICTIONS_PER_SECOND = 20;
+
+    // Uploaded recordings first, and then the oldest ones
+    private static final Comparator<Recording> EVICTION_ORDER = Comparator
+            .comparing((Recording recording) -> !recording.isUploaded)
+            .thenComparingLong(recording -> recording.startTime);
+
+    // Quotas by record paths
+    private Map<String, Long> cameraQuotaBytes;
+
+    private long globalQuotaBytes;
+
+    private long minFileAgeMs;
+
+    private int maxEvictionsPerRun;
+
+    private long evictionIntervalMs;
+
+    private RecordingLayout recordingLayout;
+
+    private UploadJournal uploadJournal;
+
+    private RetentionMetricsCallBack metricsCallBack;
+
+    @Getter
+    private long evictedBytes = 0;
+
+    @Getter
+    private long evictedFileCount = 0;
+
+    /**
+     * A recording and its sidecar, or a partition folder of recordings.
+     */
+    private static final class Recording {
+        private final String recordFilePath;
+        private final File file;
+        private final long startTime;
+        private final long bytes;
+        private final long lastModified;
+        private final boolean isUploaded;
+
+        private Recording(String recordFilePath, File file, long startTime, long bytes, long lastModified,
+                          boolean isUploaded) {
+            this.recordFilePath = recordFilePath;
+            this.file = file;
+            this.startTime = startTime;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+            this.isUploaded = isUploaded;
+        }
+    }
+
+    /**
+     * The factory creator of RetentionManager.
+     *
+     * @param cameraQuotaBytes       Quotas in bytes by record paths of cameras
+     * @param globalQuotaBytes       Quota in bytes of all record paths, or null for no global quota
+     * @param minFileAgeMs           Min time since a recording was last modified before it can be evicted, or null for
+     *                               2 rotation periods
+     * @param maxEvictionsPerRun     Max count of recordings evicted by a run, or null for 100
+     * @param maxEvictionsPerSecond  Max rate of evictions, or null for 20 per second
+     * @param recordingLayout        Directory layout of recordings, or null for a flat layout
+     * @param uploadJournal          Journal of upload state to find uploaded recordings that are not renamed, or null
+     * @param metricsCallBack        Callback of metrics after each run, or null
+     * @return The retention manager
+     * @throws IllegalArgumentException if a quota, limit or rate is not positive
+     */
+    @Builder
+    public static RetentionManager create(@NonNull Map<String, Long> cameraQuotaBytes,
+                                          Long globalQuotaBytes,
+                                          Long minFileAgeMs,
+                                          Integer maxEvictionsPerRun,
+                                          Double maxEvictionsPerSecond,
+                                          RecordingLayout recordingLayout,
+                                          UploadJournal uploadJournal,
+                                          RetentionMetricsCallBack metricsCallBack) {
+        final RetentionManager manager = new RetentionManager();
+        manager.cameraQuotaBytes = new LinkedHashMap<>(cameraQuotaBytes);
+        manager.globalQuotaBytes = globalQuotaBytes == null ? Long.MAX_VALUE : globalQuotaBytes;
+        manager.minFileAgeMs = minFileAgeMs == null ? Config.DEFAULT_MIN_FILE_AGE_MS : minFileAgeMs;
+        manager.maxEvictionsPerRun = maxEvictionsPerRun == null ? DEFAULT_MAX_EVICTIONS_PER_RUN : maxEvictionsPerRun;
+        final double evictionRate = maxEvictionsPerSecond == null ? DEFAULT_MAX_EVICTIONS_PER_SECOND
+                : maxEvictionsPerSecond;
+        manager.recordingLayout = recordingLayout == null ? RecordingLayout.FLAT : recordingLayout;
+        manager.uploadJournal = uploadJournal;
+        manager.metricsCallBack = metricsCallBack;
+        if (manager.cameraQuotaBytes.isEmpty() || manager.globalQuotaBytes <= 0 || manager.minFileAgeMs < 0
+                || manager.maxEvictionsPerRun <= 0 || evictionRate <= 0
+                || manager.cameraQuotaBytes.values().stream().anyMatch(quota -> quota == null || quota <= 0)) {
+            throw new IllegalArgumentException("Invalid retention quota");
+        }
+        manager.evictionIntervalMs = (long) (TimeUnit.SECONDS.toMillis(1) / evictionRate);
+        return manager;
+    }
+
+    /**
+     * Evict recordings that exceed quotas.
+     */
+    @Override
+    public void run() {
+        try {
+            final long bytes = evict();
+            log.info("Evicted {} bytes of recordings", bytes);
+        } catch (InterruptedException exception) {
+            log.info("Eviction is interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Evict recordings until every quota is met, or the max count of evictions of a run is reached.
+     *
+     * @return Bytes of evicted recordings
+     * @throws InterruptedException if it's interrupted while pacing evictions
+     */
+    public long evict() throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final Map<String, List<Recording>> recordings = new LinkedHashMap<>();
+        final Map<String, Long> usedBytes = new LinkedHashMap<>();
+        final Map<String, Long> runEvictedBytes = new LinkedHashMap<>();
+        final List<Recording> evictable = new ArrayList<>();
+        long totalBytes = 0;
+        for (String recordFilePath : cameraQuotaBytes.keySet()) {
+            List<Recording> cameraRecordings = listRecordings(recordFilePath);
+            if (recordingLayout.isPartitioned()) {
+                cameraRecordings = groupPartitions(cameraRecordings, now);
+            }
+            cameraRecordings.sort(EVICTION_ORDER);
+            recordings.put(recordFilePath, cameraRecordings);
+            final long bytes = cameraRecordings.stream().mapToLong(recording -> recording.bytes).sum();
+            usedBytes.put(recordFilePath, bytes);
+            runEvictedBytes.put(recordFilePath, 0L);
+            totalBytes += bytes;
+        }
+
+        int budget = maxEvictionsPerRun;
+        for (Map.Entry<String, List<Recording>> entry : recordings.entrySet()) {
+            final String recordFilePath = entry.getKey();
+            final long quota = cameraQuotaBytes.get(recordFilePath);
+            for (Recording recording : entry.getValue()) {
+                if (budget <= 0 || usedBytes.get(recordFilePath) <= quota) {
+                    if (now - recording.lastModified >= minFileAgeMs) {
+                        evictable.add(recording);
+                    }
+                    continue;
+                }
+                if (now - recording.lastModified >= minFileAgeMs && evictRecording(recording, budget)) {
+                    budget--;
+                    usedBytes.merge(recordFilePath, -recording.bytes, Long::sum);
+                    runEvictedBytes.merge(recordFilePath, recording.bytes, Long::sum);
+                    totalBytes -= recording.bytes;
+                }
+            }
+        }
+
+        evictable.sort(EVICTION_ORDER);
+        for (Recording recording : evictable) {
+            if (budget <= 0 || totalBytes <= globalQuotaBytes) {
+                break;
+            }
+            if (evictRecording(recording, budget)) {
+                budget--;
+                usedBytes.merge(recording.recordFilePath, -recording.bytes, Long::sum);
+                runEvictedBytes.merge(recording.recordFilePath, recording.bytes, Long::sum);
+                totalBytes -= recording.bytes;
+            }
+        }
+
+        long bytes = 0;
+        for (String recordFilePath : cameraQuotaBytes.keySet()) {
+            final long used = usedBytes.get(recordFilePath);
+            final long headroom = Math.min(Math.min(cameraQuotaBytes.get(recordFilePath) - used,
+                    globalQuotaBytes - totalBytes), getUsableBytes(recordFilePath));
+            log.info("Recordings of {} use {} bytes with {} bytes of headroom", recordFilePath, used, headroom);
+            if (metricsCallBack != null) {
+                metricsCallBack.onMetrics(recordFilePath, used, headroom, runEvictedBytes.get(recordFilePath));
+            }
+            bytes += runEvictedBytes.get(recordFilePath);
+        }
+        return bytes;
+    }
+
+    /**
+     * Delete a recording and its sidecar, and forget its upload state, after pacing the eviction if it's not the first one of the run.
+     */
+    private boolean evictRecording(Recording recording, int budget) throws InterruptedException {
+        if (budget < maxEvictionsPerRun && evictionIntervalMs > 0) {
+            Thread.sleep(evictionIntervalMs);
+        }
+        final boolean isFolder = recording.file.isDirectory();
+        try {
+            if (isFolder) {
+                deleteFolder(recording.file.toPath());
+            } else {
+                Files.deleteIfExists(recording.file.toPath());
+                Files.deleteIfExists(MkvClusterIndex.getSidecarFile(recording.file).toPath());
+            }
+        } catch (IOException exception) {
+            log.warn("Unable to evict " + recording.file.getName() + ": " + exception.getMessage());
+            return false;
+        }
+        if (uploadJournal != null) {
+            if (isFolder) {
+                // Every recording of a partition folder starts before it's last modified
+                uploadJournal.forgetFilesBefore(recording.file, new Date(recording.lastModified + 1));
+            } else {
+                uploadJournal.forgetFile(new VideoFile(recording.file));
+            }
+        }
+        evictedBytes += recording.bytes;
+        evictedFileCount++;
+        log.debug("Evicted {} of {} bytes", recording.file.getName(), recording.bytes);
+        return true;
+    }
+
+    /**
+     * Replace recordings of each partition folder by the folder, if they are all older than the min age.
+     */
+    private List<Recording> groupPartitions(List<Recording> recordings, long now) {
+        final Map<File, List<Recording>> partitions = new LinkedHashMap<>();
+        final List<Recording> units = new ArrayList<>();
+        for (Recording recording : recordings) {
+            final File folder = recording.file.getParentFile();
+            if (folder != null && recordingLayout.getPartitionStartTime(folder.getName()) >= 0) {
+                partitions.computeIfAbsent(folder, key -> new ArrayList<>()).add(recording);
+            } else {
+                units.add(recording);
+            }
+        }
+        for (Map.Entry<File, List<Recording>> partition : partitions.entrySet()) {
+            final List<Recording> partitionRecordings = partition.getValue();
+            if (partitionRecordings.stream().allMatch(recording -> now - recording.lastModified >= minFileAgeMs)) {
+                units.add(new Recording(partitionRecordings.get(0).recordFilePath, partition.getKey(),
+                        partitionRecordings.stream().mapToLong(recording -> recording.startTime).min().orElse(0),
+                        partitionRecordings.stream().mapToLong(recording -> recording.bytes).sum(),
+                        partitionRecordings.stream().mapToLong(recording -> recording.lastModified).max().orElse(0),
+                        partitionRecordings.stream().allMatch(recording -> recording.isUploaded)));
+            } else {
+                units.addAll(partitionRecordings);
+            }
+        }
+        return units;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exception) throws IOException {
+                if (exception != null) {
+                    throw exception;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private List<Recording> listRecordings(String recordFilePath) {
+        final List<Recording> recordings = new ArrayList<>();
+        VideoRecordVisitor.walkRecordings(Paths.get(recordFilePath), (file, startTime, isUploadedName, attrs) -> {
+            final File sidecarFile = MkvClusterIndex.getSidecarFile(file);
+            final boolean isUploaded = isUploadedName
+                    || uploadJournal != null && uploadJournal.isFileUploaded(new VideoFile(file));
+            recordings.add(new Recording(recordFilePath, file, startTime, attrs.size() + sidecarFile.length(),
+                    attrs.lastModifiedTime().toMillis(), isUploaded));
+        });
+        return recordings;
+    }
+
+    private static long getUsableBytes(String recordFilePath) {
+        try {
+            return Files.getFileStore(Paths.get(recordFilePath)).getUsableSpace();
+        } catch (IOException exception) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of upload state, so uploaded recordings don't have to be renamed one by one.  Each record
+ * marks a recording as uploaded, or a fragment of a recording as persisted, and is checksummed so a record torn by a
+ * power loss is detected and dropped.  The journal is replayed into memory when it's created, and then answers which
+ * recordings are not uploaded yet without touching the record path.
+ *
+ * <p>A recording is identified by its folder and the start time in its filename, so one journal can be shared by
+ * cameras that record to different paths.  The folder is stored as a 64-bit hash of its normalized absolute path.</p>
+ *
+ * <p>Records of recordings that are uploaded or forgotten are superseded, and the journal is compacted by rewriting
+ * its live state into a new file once superseded records outnumber live ones.</p>
+ */
+@Slf4j
+public class UploadJournal implements Closeable {
+
+    /** Extension of the temporary file that a journal is compacted into. */
+    public static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int MAGIC = 0x55504A32;
+
+    private static final byte FILE_UPLOADED = 1;
+
+    private static final byte FRAGMENT_PERSISTED = 2;
+
+    // Type, folder hash and start time of the recording, value and CRC32 of them
+    private static final int RECORD_SIZE = 1 + Long.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private static final int DEFAULT_MIN_COMPACTION_RECORDS = 1024;
+
+    private Path journalPath;
+
+    private int minCompactionRecords;
+
+    @Getter
+    private boolean isRenamingUploadedFiles;
+
+    private FileChannel channel;
+
+    // Length of the journal up to the last complete record
+    private long journalLength;
+
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    private final CRC32 crc32 = new CRC32();
+
+    // Uploaded recordings
+    private final NavigableSet<RecordingKey> uploadedFiles = new TreeSet<>();
+
+    // Latest persisted fragment timecodes of recordings that are not fully uploaded
+    private final NavigableMap<RecordingKey, Long> persistedFragments = new TreeMap<>();
+
+    @Getter
+    private int recordCount = 0;
+
+    /**
+     * Folder hash and start time of a recording, ordered by folder and then by start time.
+     */
+    private static final class RecordingKey implements Comparable<RecordingKey> {
+        private final long folderHash;
+        private final long startTime;
+
+        private RecordingKey(long folderHash, long startTime) {
+            this.folderHash = folderHash;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public int compareTo(RecordingKey other) {
+            final int result = Long.compare(folderHash, other.folderHash);
+            return result != 0 ? result : Long.compare(startTime, other.startTime);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RecordingKey && compareTo((RecordingKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(folderHash) * 31 + Long.hashCode(startTime);
+        }
+    }
+
+    /**
+     * The factory creator of UploadJournal.  An existing journal is replayed, and records after the first corrupted
+     * one are truncated.
+     *
+     * @param journalFilePath         Path of the journal file, which is created if it doesn't exist
+     * @param minCompactionRecords    Min count of records before the journal is compacted, or null for 1024
+     * @param isRenamingUploadedFiles True to still rename uploaded recordings, for tools that rely on the uploaded
+     *                                postfix, or null for false
+     * @return The journal
+     * @throws IOException              if the journal can't be read or created
+     * @throws IllegalArgumentException if min compaction records is not positive
+     */
+    @Builder
+    public static UploadJournal create(@NonNull String journalFilePath,
+                                       Integer minCompactionRecords,
+                                       Boolean isRenamingUploadedFiles) throws IOException {
+        final UploadJournal journal = new UploadJournal();
+        journal.journalPath = Paths.get(journalFilePath);
+        journal.minCompactionRecords = minCompactionRecords == null ? DEFAULT_MIN_COMPACTION_RECORDS
+                : minCompactionRecords;
+        journal.isRenamingUploadedFiles = isRenamingUploadedFiles != null && isRenamingUploadedFiles;
+        if (journal.minCompactionRecords <= 0) {
+            throw new IllegalArgumentException("Invalid min compaction records");
+        }
+        journal.open();
+        return journal;
+    }
+
+    private void open() throws IOException {
+        final Path parent = journalPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.deleteIfExists(getTempPath());
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        final long validLength = replay();
+        if (validLength < channel.size()) {
+            log.warn("Upload journal {} is corrupted after {} records, truncate it", journalPath, recordCount);
+            channel.truncate(validLength);
+        }
+        if (validLength == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+        journalLength = channel.size();
+        channel.position(journalLength);
+        log.info("Upload journal {} loaded with {} uploaded recordings", journalPath, uploadedFiles.size());
+    }
+
+    /**
+     * Replay records into memory.
+     *
+     * @return Length of the journal up to the last valid record
+     */
+    private long replay() throws IOException {
+        final long size = channel.size();
+        if (size < Integer.BYTES) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 64 * RECORD_SIZE + Integer.BYTES));
+        channel.read(buffer, 0);
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            log.warn("Upload journal {} has an unknown format, discard it", journalPath);
+            return 0;
+        }
+
+        long position = Integer.BYTES;
+        while (true) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                buffer.compact();
+                channel.read(buffer, position + buffer.position());
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    return position;
+                }
+            }
+            final byte type = buffer.get();
+            final RecordingKey key = new RecordingKey(buffer.getLong(), buffer.getLong());
+            final long value = buffer.getLong();
+            final int checksum = buffer.getInt();
+            if (checksum != checksum(type, key, value) || !apply(type, key, value)) {
+                return position;
+            }
+            recordCount++;
+            position += RECORD_SIZE;
+        }
+    }
+
+    private boolean apply(byte type, RecordingKey key, long value) {
+        if (type == FILE_UPLOADED) {
+            uploadedFiles.add(key);
+            persistedFragments.remove(key);
+        } else if (type == FRAGMENT_PERSISTED) {
+            if (!uploadedFiles.contains(key)) {
+                persistedFragments.merge(key, value, Math::max);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mark a recording as uploaded.
+     *
+     * @param videoFile The recording
+     */
+    public synchronized void markFileUploaded(@NonNull VideoFile videoFile) {
+        final RecordingKey key = getKey(videoFile);
+        if (!uploadedFiles.contains(key)) {
+            append(FILE_UPLOADED, key, 0);
+        }
+    }
+
+    /**
+     * Mark a fragment of a recording as persisted.
+     *
+     * @param videoFile  The recording
+     * @param timecodeMs Absolute timecode of the fragment
+     */
+    public synchronized void markFragmentPersisted(@NonNull VideoFile videoFile, long timecodeMs) {
+        final RecordingKey key = getKey(videoFile);
+        final Long persistedTimecode = persistedFragments.get(key);
+        if (!uploadedFiles.contains(key) && (persistedTimecode == null || persistedTimecode < timecodeMs)) {
+            append(FRAGMENT_PERSISTED, key, timecodeMs);
+        }
+    }
+
+    /**
+     * Check if a recording is uploaded.
+     *
+     * @param videoFile The recording
+     * @return True if it's uploaded
+     */
+    public synchronized boolean isFileUploaded(@NonNull VideoFile videoFile) {
+        return uploadedFiles.contains(getKey(videoFile));
+    }
+
+    /**
+     * Get the latest persisted fragment of a recording that is not fully uploaded.
+     *
+     * @param videoFile The recording
+     * @return Absolute timecode of the fragment, or -1 if there is none
+     */
+    public synchronized long getPersistedFragmentTimecode(@NonNull VideoFile videoFile) {
+        final Long timecode = persistedFragments.get(getKey(videoFile));
+        return timecode == null ? -1 : timecode;
+    }
+
+    /**
+     * Filter recordings that are not uploaded yet.
+     *
+     * @param videoFiles Recordings
+     * @return Recordings that are not uploaded, in the same order
+     */
+    public synchronized List<VideoFile> filterNotUploaded(@NonNull List<VideoFile> videoFiles) {
+        final List<VideoFile> notUploaded = new ArrayList<>(videoFiles.size());
+        for (VideoFile videoFile : videoFiles) {
+            if (!uploadedFiles.contains(getKey(videoFile))) {
+                notUploaded.add(videoFile);
+            }
+        }
+        return notUploaded;
+    }
+
+    /**
+     * Forget the state of a recording, e.g. after it's deleted.  It's dropped from the journal file by the next
+     * compaction.
+     *
+     * @param videoFile The recording
+     */
+    public synchronized void forgetFile(@NonNull VideoFile videoFile) {
+        final RecordingKey key = getKey(videoFile);
+        uploadedFiles.remove(key);
+        persistedFragments.remove(key);
+        compactIfNeeded();
+    }
+
+    /**
+     * Forget the state of recordings in a folder that start before a time, e.g. after they are deleted.  They are
+     * dropped from the journal file by the next compaction.
+     *
+     * @param folder The folder of recordings
+     * @param date   The time
+     */
+    public synchronized void forgetFilesBefore(@NonNull File folder, @NonNull Date date) {
+        final long folderHash = getFolderHash(folder);
+        final RecordingKey fromKey = new RecordingKey(folderHash, Long.MIN_VALUE);
+        final RecordingKey toKey = new RecordingKey(folderHash, date.getTime());
+        uploadedFiles.subSet(fromKey, true, toKey, false).clear();
+        persistedFragments.subMap(fromKey, true, toKey, false).clear();
+        compactIfNeeded();
+    }
+
+    /**
+     * Rewrite live state into a new journal file, which replaces the current one atomically.
+     *
+     * @throws IOException if the journal can't be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        final Path tempPath = getTempPath();
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + getLiveCount() * RECORD_SIZE);
+            buffer.putInt(MAGIC);
+            for (RecordingKey key : uploadedFiles) {
+                putRecord(buffer, FILE_UPLOADED, key, 0);
+            }
+            for (Map.Entry<RecordingKey, Long> entry : persistedFragments.entrySet()) {
+                putRecord(buffer, FRAGMENT_PERSISTED, entry.getKey(), entry.getValue());
+            }
+            buffer.flip();
+            writeFully(tempChannel, buffer, 0);
+            tempChannel.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordCount = getLiveCount();
+        } finally {
+            // The current journal is reopened if it can't be replaced
+            channel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            journalLength = channel.size();
+            channel.position(journalLength);
+        }
+    }
+
+    /**
+     * Close the journal file.
+     *
+     * @throws IOException if the journal file can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private int getLiveCount() {
+        return uploadedFiles.size() + persistedFragments.size();
+    }
+
+    private void append(byte type, RecordingKey key, long value) {
+        apply(type, key, value);
+        recordBuffer.clear();
+        putRecord(recordBuffer, type, key, value);
+        recordBuffer.flip();
+        try {
+            writeFully(channel, recordBuffer, journalLength);
+            journalLength += RECORD_SIZE;
+            recordCount++;
+        } catch (IOException exception) {
+            log.warn("Unable to append upload journal {}: {}", journalPath, exception.getMessage());
+            discardPartialRecord();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Truncate a partially written record, so later records stay aligned.  The journal is rewritten from memory if it
+     * can't be truncated, which also keeps the state of the failed record.
+     */
+    private void discardPartialRecord() {
+        try {
+            channel.truncate(journalLength);
+        } catch (IOException exception) {
+            log.warn("Unable to truncate upload journal {}: {}", journalPath, exception.getMessage());
+            try {
+                compact();
+            } catch (IOException compactException) {
+                log.warn("Unable to compact upload journal {}: {}", journalPath, compactException.getMessage());
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (recordCount >= minCompactionRecords && recordCount > 2 * getLiveCount()) {
+            try {
+                compact();
+            } catch (IOException exception) {
+                log.warn("Unable to compact upload journal {}: {}", journalPath, exception.getMessage());
+            }
+        }
+    }
+
+    private void putRecord(ByteBuffer buffer, byte type, RecordingKey key, long value) {
+        buffer.put(type).putLong(key.folderHash).putLong(key.startTime).putLong(value)
+                .putInt(checksum(type, key, value));
+    }
+
+    private int checksum(byte type, RecordingKey key, long value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE - Integer.BYTES);
+        buffer.put(type).putLong(key.folderHash).putLong(key.startTime).putLong(value);
+        crc32.reset();
+        crc32.update(buffer.array());
+        return (int) crc32.getValue();
+    }
+
+    private static RecordingKey getKey(VideoFile videoFile) {
+        final File folder = videoFile.getAbsoluteFile().getParentFile();
+        return new RecordingKey(folder == null ? 0 : getFolderHash(folder), videoFile.getVideoDate().getTime());
+    }
+
+    /**
+     * FNV-1a hash of the normalized absolute path of a folder, which is stable across restarts.
+     */
+    private static long getFolderHash(File folder) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : folder.toPath().toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private Path getTempPath() {
+        return new File(journalPath.toString() + TEMP_EXTENSION).toPath();
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += fileChannel.write(buffer, offset);
+        }
+    }
+}
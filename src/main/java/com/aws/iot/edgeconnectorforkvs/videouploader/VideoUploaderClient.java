@@ -16,6 +16,7 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoAsyncClient;
@@ -30,21 +31,29 @@ import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.PutMediaRequest;
 
 import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingCatalog;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
+import com.aws.iot.edgeconnectorforkvs.util.TraceRing;
 import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
 import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MergedOutputCache;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvFilesInputStream;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvInputStream;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.KvsStreamingException;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.VideoUploaderException;
 
 import lombok.Builder;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
@@ -94,6 +103,24 @@ public class VideoUploaderClient implements VideoUploader {
 
     private KvsStreamingException lastKvsStreamingException = null;
 
+    /* Target range of uploaded fragment durations, or null to upload clusters as they are recorded. */
+    private FragmentDurationRange fragmentDurationRange = null;
+
+    /* Reorder window of streamed simple blocks in uploaded streams, or null to hold whole clusters. */
+    private Long reorderWindowMs = null;
+
+    /* Cache of merged output of historical videos for retries, or null to merge them on every upload. */
+    @Setter
+    private MergedOutputCache mergedOutputCache = null;
+
+    /* Catalog of recordings to query historical videos from, or null to walk the record path on every upload. */
+    @Setter
+    private RecordingCatalog recordingCatalog = null;
+
+    /* Journal of upload state to skip uploaded videos and fragments, or null to rely on renamed uploaded videos. */
+    @Setter
+    private UploadJournal uploadJournal = null;
+
     /**
      * The factory creator of VideoUploaderClient.
      *
@@ -124,7 +151,46 @@ public class VideoUploaderClient implements VideoUploader {
     }
 
     /**
-     * Upload all videos that its date is between start time and end time.
+     * Set the target range of uploaded fragment durations.  Clusters are coalesced and split at key frames to fit it.
+     *
+     * @param fragmentDurationRange The range, or null to upload clusters as they are recorded
+     * @throws IllegalArgumentException if a reorder window is set
+     */
+    public void setFragmentDurationRange(FragmentDurationRange fragmentDurationRange) {
+        if (fragmentDurationRange != null && reorderWindowMs != null) {
+            throw new IllegalArgumentException("Fragment duration range can't be used with a reorder window");
+        }
+        this.fragmentDurationRange = fragmentDurationRange;
+    }
+
+    /**
+     * Set the reorder window of uploaded streams.  Simple blocks of a stream are uploaded once they are older than the
+     * window, instead of holding whole clusters in memory.
+     *
+     * @param reorderWindowMs Max presentation delay of a simple block in milliseconds, or null to hold whole clusters
+     * @throws IllegalArgumentException if the window is negative, or a fragment duration range is set
+     */
+    public void setReorderWindowMs(Long reorderWindowMs) {
+        if (reorderWindowMs != null && (reorderWindowMs < 0 || fragmentDurationRange != null)) {
+            throw new IllegalArgumentException("Invalid reorder window");
+        }
+        this.reorderWindowMs = reorderWindowMs;
+    }
+
+    /**
+     * Set the directory layout of videos in the record path.
+     *
+     * @param recordingLayout The layout that videos are recorded in
+     */
+    public void setRecordingLayout(@NonNull RecordingLayout recordingLayout) {
+        videoRecordVisitor.setRecordingLayout(recordingLayout);
+    }
+
+    /**
+     * Upload all videos that its date is between start time and end time.  Uploading starts from the key frame cluster
+     * at or before start time, and stops after the cluster containing end time.  A video that starts exactly at start
+     * time is uploaded and marked uploaded the same way, so a whole video can be uploaded by its start time without
+     * the end of the previous video.
      *
      * @param videoUploadingStartTime Video upload start time
      * @param videoUploadingEndTime   Video upload end time
@@ -156,20 +222,53 @@ public class VideoUploaderClient implements VideoUploader {
             dataEndpoint = getDataEndpoint();
         }
 
-        List<VideoFile> videoFiles = videoRecordVisitor.listFilesToUpload(videoUploadingStartTime,
-                videoUploadingEndTime);
+        List<VideoFile> videoFiles;
+        VideoFile precedingVideoFile;
+        if (recordingCatalog != null) {
+            videoFiles = recordingCatalog.listFilesToUpload(videoUploadingStartTime, videoUploadingEndTime);
+            precedingVideoFile = recordingCatalog.getPrecedingVideoFile(videoUploadingStartTime);
+        } else {
+            videoFiles = videoRecordVisitor.listFilesToUpload(videoUploadingStartTime, videoUploadingEndTime);
+            precedingVideoFile = videoRecordVisitor.getPrecedingVideoFile();
+        }
+        if (precedingVideoFile != null && precedingVideoFile.getVideoDate().equals(videoUploadingStartTime)) {
+            // Nothing before start time is streamed from it, so it's uploaded as a whole
+            videoFiles.add(0, precedingVideoFile);
+            precedingVideoFile = null;
+        }
+        Date streamingStartTime = videoUploadingStartTime;
+        if (uploadJournal != null) {
+            videoFiles = uploadJournal.filterNotUploaded(videoFiles);
+            if (precedingVideoFile != null && uploadJournal.isFileUploaded(precedingVideoFile)) {
+                precedingVideoFile = null;
+            }
+        }
         if (uploadCallBack != null) {
             uploadCallBack.setVideoFiles(videoFiles);
+            uploadCallBack.setUploadJournal(uploadJournal);
         }
 
-        ListIterator<VideoFile> filesToUpload = videoFiles.listIterator();
+        // The file being recorded at the start time is streamed as well, but only clusters within the time range
+        // of every file are uploaded.
+        final List<VideoFile> filesToStream = new ArrayList<>(videoFiles);
+        if (precedingVideoFile != null) {
+            filesToStream.add(0, precedingVideoFile);
+        }
+        if (uploadJournal != null) {
+            streamingStartTime = skipPersistedFragments(videoUploadingStartTime, videoUploadingEndTime, filesToStream);
+        }
+        ListIterator<VideoFile> filesToUpload = filesToStream.listIterator();
 
         while (filesToUpload.hasNext() && !isTaskTerminating) {
             final Date videoStartTime = filesToUpload.next().getVideoDate();
-            if (dataEndpoint == null) {
+            // Fragment timecodes of acks are relative to the producer start time of this stream
+            if (uploadCallBack != null) {
                 uploadCallBack.setDateBegin(videoStartTime);
             }
-            MkvFilesInputStream mkvFilesInputStream = new MkvFilesInputStream(filesToUpload);
+            MkvFilesInputStream mkvFilesInputStream = new MkvFilesInputStream(filesToUpload,
+                    streamingStartTime, videoUploadingEndTime);
+            mkvFilesInputStream.setFragmentDurationRange(fragmentDurationRange);
+            mkvFilesInputStream.setMergedOutputCache(mergedOutputCache);
             filesToUpload.previous();
             doUploadStream(mkvFilesInputStream, videoStartTime, statusChangedCallBack, uploadCallBack);
         }
@@ -181,6 +280,43 @@ public class VideoUploaderClient implements VideoUploader {
         log.info("No more video files to upload");
     }
 
+    /**
+     * Move the start time to the first key frame cluster after fragments of the first video that were persisted by an
+     * earlier upload, so they are not uploaded again.  The first video is not streamed at all if there is no key frame
+     * cluster after them within the time range.
+     */
+    private Date skipPersistedFragments(Date videoUploadingStartTime, Date videoUploadingEndTime,
+                                        List<VideoFile> filesToStream) {
+        if (filesToStream.isEmpty()) {
+            return videoUploadingStartTime;
+        }
+        final VideoFile firstVideoFile = filesToStream.get(0);
+        final long persistedTimecode = uploadJournal.getPersistedFragmentTimecode(firstVideoFile);
+        if (persistedTimecode < videoUploadingStartTime.getTime()) {
+            return videoUploadingStartTime;
+        }
+        final long fileStartTime = firstVideoFile.getVideoDate().getTime();
+        final MkvClusterIndex clusterIndex;
+        try {
+            clusterIndex = MkvClusterIndex.loadOrBuild(firstVideoFile);
+        } catch (IOException | MkvElementVisitException exception) {
+            // The persisted fragment is uploaded again, because the next one is unknown
+            log.warn("Unable to index " + firstVideoFile.getName() + ": " + exception.getMessage());
+            return new Date(persistedTimecode + 1);
+        }
+        final int nextCluster = clusterIndex.findKeyFrameClusterAfter(persistedTimecode - fileStartTime);
+        final long nextTimecode = nextCluster < 0 ? Long.MAX_VALUE
+                : fileStartTime + clusterIndex.getClusters().get(nextCluster).getTimecodeMs();
+        if (nextTimecode > videoUploadingEndTime.getTime()) {
+            log.info("Skip " + firstVideoFile.getName() + " because its fragments are persisted until "
+                    + persistedTimecode);
+            filesToStream.remove(0);
+            return videoUploadingStartTime;
+        }
+        log.info("Skip fragments of " + firstVideoFile.getName() + " persisted until " + persistedTimecode);
+        return new Date(nextTimecode);
+    }
+
     /**
      * Upload a video from {@link InputStream}.
      *
@@ -194,7 +330,14 @@ public class VideoUploaderClient implements VideoUploader {
                              Runnable statusChangedCallBack, UploadCallBack uploadCallBack)
             throws KvsStreamingException {
         taskStart();
-        doUploadStream(new MkvInputStream(inputStream), videoUploadingStartTime, statusChangedCallBack, uploadCallBack);
+        final MkvInputStream mkvInputStream;
+        if (reorderWindowMs != null) {
+            mkvInputStream = new MkvInputStream(inputStream, reorderWindowMs);
+        } else {
+            mkvInputStream = new MkvInputStream(inputStream);
+            mkvInputStream.setFragmentDurationRange(fragmentDurationRange);
+        }
+        doUploadStream(mkvInputStream, videoUploadingStartTime, statusChangedCallBack, uploadCallBack);
         if (uploadCallBack != null) {
             uploadCallBack.run();
         }
@@ -327,14 +470,24 @@ public class VideoUploaderClient implements VideoUploader {
         return new PutMediaAckResponseHandler() {
             @Override
             public void onAckEvent(AckEvent event) {
-                log.trace("onAckEvent " + event);
-                if (AckEventType.Values.PERSISTED.equals(event.getAckEventType().getEnumValue())) {
+                final AckEventType.Values eventType = event.getAckEventType().getEnumValue();
+                final Long fragmentTimecode = event.getFragmentTimecode();
+                TraceRing.getDefault().record(TraceRing.Event.ACK, eventType == null ? -1 : eventType.ordinal(),
+                        fragmentTimecode == null ? -1 : fragmentTimecode);
+                if (AckEventType.Values.PERSISTED.equals(eventType)) {
                     log.info("Fragment pushed to KVS " + event.getFragmentNumber());
                     if (uploadCallBack != null) {
                         updateUploadCallbackStatus(uploadCallBack, event);
                     }
                 }
-                if (AckEventType.Values.ERROR.equals(event.getAckEventType().getEnumValue())) {
+                if (AckEventType.Values.ERROR.equals(eventType)) {
+                    final Integer errorId = event.getErrorId();
+                    TraceRing.getDefault().record(TraceRing.Event.UPLOAD_ERROR, errorId == null ? -1 : errorId,
+                            fragmentTimecode == null ? -1 : fragmentTimecode);
+                    TraceRing.getDefault().dump(log, "upload error");
+                    if (uploadCallBack != null) {
+                        uploadCallBack.addErrorFragmentTimecode(fragmentTimecode);
+                    }
                     lastKvsStreamingException = new KvsStreamingException(event.toString());
                 }
             }
@@ -342,6 +495,7 @@ public class VideoUploaderClient implements VideoUploader {
             @Override
             public void onFailure(Throwable t) {
                 log.info("onFailure");
+                TraceRing.getDefault().dump(log, "upload failure");
                 lastKvsStreamingException = new KvsStreamingException(t.getMessage());
                 latch.countDown();
             }
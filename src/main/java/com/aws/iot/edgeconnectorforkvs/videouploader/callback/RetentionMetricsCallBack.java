@@ -0,0 +1,34 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.callback;
+
+/**
+ * This is a functional interface for callback whenever a retention run completes for a record path.
+ */
+@FunctionalInterface
+public interface RetentionMetricsCallBack {
+
+    /**
+     * Report disk usage and eviction of a record path.
+     *
+     * @param recordFilePath Record path of a camera
+     * @param usedBytes      Bytes of recordings kept in the record path
+     * @param headroomBytes  Bytes left before the quota of the record path or the global quota is reached, whichever
+     *                       is less, and never more than usable bytes of the disk
+     * @param evictedBytes   Bytes of recordings evicted from the record path in this run
+     */
+    void onMetrics(String recordFilePath, long usedBytes, long headroomBytes, long evictedBytes);
+}
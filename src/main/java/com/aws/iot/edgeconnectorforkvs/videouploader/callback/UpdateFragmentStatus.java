@@ -30,4 +30,12 @@ public interface UpdateFragmentStatus {
      * @param lastUpdatedVideoFile File of the last file
      */
     void update(long lastUpdatedFragment, VideoFile lastUpdatedVideoFile);
+
+    /**
+     * Update status of a failed fragment.  Nothing is done by default.
+     *
+     * @param errorFragment Timecode of the failed fragment, or -1 if it's unknown
+     */
+    default void error(long errorFragment) {
+    }
 }
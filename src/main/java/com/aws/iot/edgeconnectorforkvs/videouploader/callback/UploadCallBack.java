@@ -16,6 +16,7 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.callback;
 
 import com.aws.iot.edgeconnectorforkvs.util.VideoRecordVisitor;
+import com.aws.iot.edgeconnectorforkvs.videouploader.UploadJournal;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import lombok.Getter;
 import lombok.Setter;
@@ -47,6 +48,10 @@ public abstract class UploadCallBack implements Runnable {
     @Getter
     private VideoFile uploadedFile = null;
 
+    /* Journal of upload state, or null to mark uploaded files by renaming them. */
+    @Setter
+    private UploadJournal uploadJournal = null;
+
     /**
      * Constructor.
      *
@@ -69,10 +74,24 @@ public abstract class UploadCallBack implements Runnable {
 
         if (videoFiles != null) {
             updateVideoFileStatus(absoluteTimecodeMs);
+            if (uploadJournal != null && uploadingFile != null) {
+                uploadJournal.markFragmentPersisted(uploadingFile, absoluteTimecodeMs);
+            }
         }
         update(absoluteTimecodeMs, uploadedFile);
     }
 
+    /**
+     * Add a failed fragment.
+     *
+     * @param timecodeMs Timecode of the failed fragment, or null if it's unknown
+     */
+    public void addErrorFragmentTimecode(Long timecodeMs) {
+        if (updateHandler != null) {
+            updateHandler.error(timecodeMs == null ? -1 : dateBegin.getTime() + timecodeMs);
+        }
+    }
+
     private void update(long absoluteTimecodeMs, VideoFile uploadedFile) {
         if (updateHandler != null) {
             updateHandler.update(absoluteTimecodeMs, uploadedFile);
@@ -89,8 +108,7 @@ public abstract class UploadCallBack implements Runnable {
                     /* When we upload different file, it means the previous one has been uploaded. */
                     isFileUploaded = true;
                     uploadedFile = uploadingFile;
-                    uploadedFile.setUploaded(true);
-                    VideoRecordVisitor.markVideoAsUploaded(uploadedFile);
+                    markVideoAsUploaded(uploadedFile);
                 }
                 uploadingFile = videoFile;
 
@@ -106,8 +124,7 @@ public abstract class UploadCallBack implements Runnable {
                     while (videoFileIter.hasPrevious()) {
                         VideoFile earlierVideoFile = videoFileIter.previous();
                         if (!earlierVideoFile.isUploaded()) {
-                            earlierVideoFile.setUploaded(true);
-                            VideoRecordVisitor.markVideoAsUploaded(earlierVideoFile);
+                            markVideoAsUploaded(earlierVideoFile);
                             update(timecodeMs, earlierVideoFile);
                         }
                     }
@@ -129,12 +146,21 @@ public abstract class UploadCallBack implements Runnable {
                 if (videoFile.isUploaded()) {
                     break;
                 }
-                videoFile.setUploaded(true);
-                VideoRecordVisitor.markVideoAsUploaded(videoFile);
+                markVideoAsUploaded(videoFile);
             }
         }
     }
 
+    private void markVideoAsUploaded(VideoFile videoFile) {
+        videoFile.setUploaded(true);
+        if (uploadJournal != null) {
+            uploadJournal.markFileUploaded(videoFile);
+        }
+        if (uploadJournal == null || uploadJournal.isRenamingUploadedFiles()) {
+            VideoRecordVisitor.markVideoAsUploaded(videoFile);
+        }
+    }
+
     /**
      * Update timeBegin while doing historical uploading.
      *
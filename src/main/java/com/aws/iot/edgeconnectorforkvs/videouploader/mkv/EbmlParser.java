@@ -0,0 +1,437 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An incremental EBML/Matroska parser.  Callers push byte chunks of any size as they arrive, and the parser emits
+ * {@link EbmlParserCallback} events with primitive ids, sizes and buffer offsets.  Master elements are reported as soon
+ * as their header is available, and data elements once their whole data is available.  Bytes of an element that is
+ * split across chunks are kept in an internal buffer, so the parser never blocks and never asks for more data.
+ *
+ * <p>Master elements with unknown size are ended by the first following element of the same or an upper level, the
+ * same way as StreamingMkvReader does.  All open master elements are ended by {@link #endOfStream()}.</p>
+ *
+ * <p>Elements chosen by an {@link EbmlSkipPolicy} are passed over by their declared size.  Their bytes in later chunks
+ * are dropped without being copied, and callers that can seek may take over the skip by {@link #takeSkipLength()}.</p>
+ */
+@Slf4j
+public class EbmlParser {
+
+    /** Default max size of a data element.  A larger one is considered as a corrupted stream. */
+    public static final int DEFAULT_MAX_DATA_SIZE = 32 * 1024 * 1024;
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private static final int INITIAL_PENDING_SIZE = 4096;
+
+    // Level of global elements (Void, CRC-32) that may appear at any level
+    private static final int LEVEL_GLOBAL = -1;
+
+    // Matroska ids sorted in ascending order, with their level and whether they are master elements
+    private static final int[] TYPE_IDS;
+    private static final int[] TYPE_LEVELS;
+    private static final boolean[] TYPE_IS_MASTER;
+
+    static {
+        final List<EBMLTypeInfo> typeInfos = new ArrayList<>();
+        for (Field field : MkvTypeInfos.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && EBMLTypeInfo.class.equals(field.getType())) {
+                try {
+                    typeInfos.add((EBMLTypeInfo) field.get(null));
+                } catch (IllegalAccessException exception) {
+                    log.error("Unable to load MKV type info " + field.getName());
+                }
+            }
+        }
+        typeInfos.sort(Comparator.comparingInt(EBMLTypeInfo::getId));
+
+        final int[] ids = new int[typeInfos.size()];
+        final int[] levels = new int[typeInfos.size()];
+        final boolean[] isMaster = new boolean[typeInfos.size()];
+        int count = 0;
+        for (EBMLTypeInfo typeInfo : typeInfos) {
+            if (count > 0 && ids[count - 1] == typeInfo.getId()) {
+                continue;
+            }
+            ids[count] = typeInfo.getId();
+            levels[count] = typeInfo.getLevel();
+            isMaster[count] = typeInfo.getType() == EBMLTypeInfo.TYPE.MASTER;
+            count++;
+        }
+        TYPE_IDS = Arrays.copyOf(ids, count);
+        TYPE_LEVELS = Arrays.copyOf(levels, count);
+        TYPE_IS_MASTER = Arrays.copyOf(isMaster, count);
+    }
+
+    private final EbmlParserCallback callback;
+
+    private final int maxDataSize;
+
+    // Stream offset of the first byte that hasn't been consumed
+    @Getter
+    private long position = 0;
+
+    // Stack of open master elements
+    private int depth = 0;
+    private int[] openIds = new int[INITIAL_DEPTH];
+    private int[] openLevels = new int[INITIAL_DEPTH];
+    private long[] openEnds = new long[INITIAL_DEPTH];
+
+    private EbmlSkipPolicy skipPolicy = null;
+
+    // Count of bytes of a skipped element that are still to be dropped
+    private long skipLength = 0;
+
+    // Bytes of an element that is split across chunks
+    private byte[] pending = new byte[INITIAL_PENDING_SIZE];
+    private ByteBuffer pendingBuffer = ByteBuffer.wrap(pending);
+    private int pendingLength = 0;
+
+    // Wrapper of the last fed byte array, so feeding the same array again doesn't allocate
+    private byte[] wrappedArray = null;
+    private ByteBuffer wrappedBuffer = null;
+
+    /**
+     * Create a parser with {@link #DEFAULT_MAX_DATA_SIZE}.
+     *
+     * @param callback The callback for parsed elements
+     */
+    public EbmlParser(@NonNull EbmlParserCallback callback) {
+        this(callback, DEFAULT_MAX_DATA_SIZE);
+    }
+
+    /**
+     * Create a parser.
+     *
+     * @param callback    The callback for parsed elements
+     * @param maxDataSize Max size of a data element
+     */
+    public EbmlParser(@NonNull EbmlParserCallback callback, int maxDataSize) {
+        this.callback = callback;
+        this.maxDataSize = maxDataSize;
+    }
+
+    /**
+     * Set the skip policy.
+     *
+     * @param skipPolicy The skip policy, or null to report all elements
+     */
+    public void setSkipPolicy(EbmlSkipPolicy skipPolicy) {
+        this.skipPolicy = skipPolicy;
+    }
+
+    /**
+     * Take over the rest of a skipped element that hasn't been fed.  The parser then expects the next chunk to start
+     * right after the skipped element, so a caller that can seek should move forward by the returned count instead of
+     * feeding those bytes.
+     *
+     * @return Count of bytes to move forward, or 0 if no element is being skipped
+     */
+    public long takeSkipLength() {
+        final long length = skipLength;
+        skipLength = 0;
+        return length;
+    }
+
+    /**
+     * Feed bytes to this parser.  The array can be reused by the caller after this call returns.
+     *
+     * @param bytes  The byte array
+     * @param offset Offset of the first byte to feed
+     * @param length Count of bytes to feed
+     * @throws MkvElementVisitException if the stream is invalid or the callback fails
+     */
+    public void feed(@NonNull byte[] bytes, int offset, int length) throws MkvElementVisitException {
+        if (bytes != wrappedArray) {
+            wrappedArray = bytes;
+            wrappedBuffer = ByteBuffer.wrap(bytes);
+        }
+        feed(wrappedBuffer, offset, offset + length);
+    }
+
+    /**
+     * Feed the remaining bytes of a buffer to this parser.  The buffer position is moved to its limit.
+     *
+     * @param buffer The buffer
+     * @throws MkvElementVisitException if the stream is invalid or the callback fails
+     */
+    public void feed(@NonNull ByteBuffer buffer) throws MkvElementVisitException {
+        final int limit = buffer.limit();
+        feed(buffer, buffer.position(), limit);
+        buffer.position(limit);
+    }
+
+    /**
+     * Notify the end of stream.  A truncated trailing element is dropped, and all open master elements are ended.
+     *
+     * @throws MkvElementVisitException if the callback fails
+     */
+    public void endOfStream() throws MkvElementVisitException {
+        if (skipLength > 0) {
+            log.warn("Drop truncated skipped element, " + skipLength + " bytes are missing");
+            position -= skipLength;
+            skipLength = 0;
+        }
+        if (pendingLength > 0) {
+            log.warn("Drop truncated element of " + pendingLength + " bytes at offset " + position);
+            position += pendingLength;
+            pendingLength = 0;
+        }
+        while (depth > 0) {
+            popMaster();
+        }
+    }
+
+    /**
+     * Copy bytes from a buffer given by {@link EbmlParserCallback}.
+     *
+     * @param source            The source buffer
+     * @param offset            Absolute index of the first byte in the source buffer
+     * @param destination       The destination array
+     * @param destinationOffset Offset in the destination array
+     * @param length            Count of bytes to copy
+     */
+    public static void copy(ByteBuffer source, int offset, byte[] destination, int destinationOffset, int length) {
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + offset, destination, destinationOffset, length);
+        } else {
+            final ByteBuffer duplicate = source.duplicate();
+            duplicate.limit(offset + length);
+            duplicate.position(offset);
+            duplicate.get(destination, destinationOffset, length);
+        }
+    }
+
+    private void feed(ByteBuffer buffer, int offset, int limit) throws MkvElementVisitException {
+        int cursor = offset;
+        if (pendingLength > 0) {
+            cursor = completePending(buffer, cursor, limit);
+        }
+        if (pendingLength == 0) {
+            if (skipLength > 0) {
+                final int dropLength = (int) Math.min(skipLength, limit - cursor);
+                cursor += dropLength;
+                skipLength -= dropLength;
+            }
+            cursor = parse(buffer, cursor, limit);
+            appendPending(buffer, cursor, limit - cursor);
+        }
+    }
+
+    /**
+     * Move bytes from the chunk to the pending buffer until the pending element is complete, then parse it.
+     *
+     * @return The index of the first byte in the chunk that hasn't been consumed
+     */
+    private int completePending(ByteBuffer buffer, int offset, int limit) throws MkvElementVisitException {
+        int cursor = offset;
+        int required = getRequiredLength(pendingBuffer, pendingLength);
+        while (pendingLength < required && cursor < limit) {
+            final int copyLength = Math.min(required - pendingLength, limit - cursor);
+            appendPending(buffer, cursor, copyLength);
+            cursor += copyLength;
+            required = getRequiredLength(pendingBuffer, pendingLength);
+        }
+        if (pendingLength == required) {
+            parse(pendingBuffer, 0, pendingLength);
+            pendingLength = 0;
+        }
+        return cursor;
+    }
+
+    /**
+     * Get the count of bytes to parse the next element in the pending buffer.  It's the header length for master
+     * elements and skipped elements, and the whole element length for other data elements.  If the header is
+     * incomplete, it's the count of bytes to know more about the header.
+     */
+    private int getRequiredLength(ByteBuffer buffer, int length) throws MkvElementVisitException {
+        final int idLength = getIdLength(buffer, 0);
+        if (length <= idLength) {
+            return idLength + 1;
+        }
+        final int headerLength = idLength + getSizeLength(buffer, idLength);
+        if (length < headerLength) {
+            return headerLength;
+        }
+        final int id = EbmlVint.readId(buffer, 0, idLength);
+        final int typeIndex = Arrays.binarySearch(TYPE_IDS, id);
+        if (typeIndex >= 0 && TYPE_IS_MASTER[typeIndex]) {
+            return headerLength;
+        }
+        final long dataSize = EbmlVint.readSize(buffer, idLength, headerLength - idLength);
+        if (skipPolicy != null && dataSize != EbmlVint.UNKNOWN_SIZE) {
+            // Masters ended by this element are reported first, as the policy may depend on them
+            closeUnknownSizeMasters(typeIndex >= 0 ? TYPE_LEVELS[typeIndex] : LEVEL_GLOBAL);
+            if (skipPolicy.isSkipped(id)) {
+                return headerLength;
+            }
+        }
+        return headerLength + getDataSize(buffer, idLength, headerLength - idLength);
+    }
+
+    /**
+     * Parse as many elements as possible.
+     *
+     * @return The index of the first byte that hasn't been consumed
+     */
+    private int parse(ByteBuffer buffer, int offset, int limit) throws MkvElementVisitException {
+        int cursor = offset;
+        while (cursor < limit) {
+            final int available = limit - cursor;
+            final int idLength = getIdLength(buffer, cursor);
+            if (available <= idLength) {
+                break;
+            }
+            final int sizeLength = getSizeLength(buffer, cursor + idLength);
+            final int headerLength = idLength + sizeLength;
+            if (available < headerLength) {
+                break;
+            }
+
+            final int id = EbmlVint.readId(buffer, cursor, idLength);
+            final int typeIndex = Arrays.binarySearch(TYPE_IDS, id);
+            final int level = typeIndex >= 0 ? TYPE_LEVELS[typeIndex] : LEVEL_GLOBAL;
+            if (skipPolicy != null) {
+                final long dataSize = EbmlVint.readSize(buffer, cursor + idLength, sizeLength);
+                if (dataSize != EbmlVint.UNKNOWN_SIZE) {
+                    closeUnknownSizeMasters(level);
+                    if (skipPolicy.isSkipped(id)) {
+                        final long elementLength = headerLength + dataSize;
+                        position += elementLength;
+                        if (elementLength > available) {
+                            skipLength = elementLength - available;
+                            cursor = limit;
+                        } else {
+                            cursor += (int) elementLength;
+                        }
+                        closeFinishedMasters();
+                        continue;
+                    }
+                }
+            }
+            if (typeIndex >= 0 && TYPE_IS_MASTER[typeIndex]) {
+                final long dataSize = EbmlVint.readSize(buffer, cursor + idLength, sizeLength);
+                closeUnknownSizeMasters(level);
+                callback.onMasterStart(id, position, dataSize, buffer, cursor, headerLength);
+                pushMaster(id, level, dataSize == EbmlVint.UNKNOWN_SIZE
+                        ? EbmlVint.UNKNOWN_SIZE : position + headerLength + dataSize);
+                cursor += headerLength;
+                position += headerLength;
+            } else {
+                final int dataSize = getDataSize(buffer, cursor + idLength, sizeLength);
+                if (available - headerLength < dataSize) {
+                    break;
+                }
+                closeUnknownSizeMasters(level);
+                callback.onDataElement(id, position, buffer, cursor, headerLength, dataSize);
+                cursor += headerLength + dataSize;
+                position += headerLength + dataSize;
+            }
+            closeFinishedMasters();
+        }
+        return cursor;
+    }
+
+    private int getIdLength(ByteBuffer buffer, int offset) throws MkvElementVisitException {
+        final int idLength = EbmlVint.idLength(buffer.get(offset));
+        if (idLength == 0) {
+            throw new MkvElementVisitException("Invalid EBML ID at offset " + position, new RuntimeException());
+        }
+        return idLength;
+    }
+
+    private int getSizeLength(ByteBuffer buffer, int offset) throws MkvElementVisitException {
+        final int sizeLength = EbmlVint.length(buffer.get(offset));
+        if (sizeLength == 0) {
+            throw new MkvElementVisitException("Invalid EBML size at offset " + position, new RuntimeException());
+        }
+        return sizeLength;
+    }
+
+    private int getDataSize(ByteBuffer buffer, int offset, int sizeLength) throws MkvElementVisitException {
+        final long dataSize = EbmlVint.readSize(buffer, offset, sizeLength);
+        if (dataSize == EbmlVint.UNKNOWN_SIZE || dataSize > maxDataSize) {
+            throw new MkvElementVisitException("Unsupported data element size " + dataSize + " at offset "
+                    + position, new RuntimeException());
+        }
+        return (int) dataSize;
+    }
+
+    private void appendPending(ByteBuffer buffer, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+            pendingBuffer = ByteBuffer.wrap(pending);
+        }
+        copy(buffer, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void pushMaster(int id, int level, long end) {
+        if (depth == openIds.length) {
+            openIds = Arrays.copyOf(openIds, depth * 2);
+            openLevels = Arrays.copyOf(openLevels, depth * 2);
+            openEnds = Arrays.copyOf(openEnds, depth * 2);
+        }
+        openIds[depth] = id;
+        openLevels[depth] = level;
+        openEnds[depth] = end;
+        depth++;
+    }
+
+    private void popMaster() throws MkvElementVisitException {
+        depth--;
+        callback.onMasterEnd(openIds[depth], position);
+    }
+
+    /**
+     * End master elements that all their data have been consumed.
+     */
+    private void closeFinishedMasters() throws MkvElementVisitException {
+        while (depth > 0 && openEnds[depth - 1] != EbmlVint.UNKNOWN_SIZE && position >= openEnds[depth - 1]) {
+            popMaster();
+        }
+    }
+
+    /**
+     * End master elements with unknown size when an element of the same or an upper level shows up.
+     */
+    private void closeUnknownSizeMasters(int level) throws MkvElementVisitException {
+        if (level == LEVEL_GLOBAL) {
+            return;
+        }
+        while (depth > 0 && openEnds[depth - 1] == EbmlVint.UNKNOWN_SIZE && openLevels[depth - 1] >= level) {
+            popMaster();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback of {@link EbmlParser}.  Element bytes are passed as absolute offsets into a buffer that is only valid during
+ * the call, and whose position and limit are unspecified.  Implementations must copy anything they want to keep.
+ */
+public interface EbmlParserCallback {
+
+    /**
+     * Called when the header of a master element is parsed.
+     *
+     * @param id             Element ID, including its marker bit
+     * @param elementOffset  Stream offset of the element
+     * @param dataSize       Size of the element data, or {@link EbmlVint#UNKNOWN_SIZE}
+     * @param buffer         Buffer that holds the element header
+     * @param headerOffset   Absolute index of the element header in the buffer
+     * @param headerLength   Length of the ID and size fields
+     * @throws MkvElementVisitException if the element can not be handled
+     */
+    void onMasterStart(int id, long elementOffset, long dataSize, ByteBuffer buffer, int headerOffset,
+                       int headerLength) throws MkvElementVisitException;
+
+    /**
+     * Called when a master element ends, either by its size, by a following element of the same or an upper level,
+     * or by the end of stream.
+     *
+     * @param id        Element ID, including its marker bit
+     * @param endOffset Stream offset right after the element
+     * @throws MkvElementVisitException if the element can not be handled
+     */
+    void onMasterEnd(int id, long endOffset) throws MkvElementVisitException;
+
+    /**
+     * Called when a whole data element is available.  The data follows the header in the same buffer.
+     *
+     * @param id            Element ID, including its marker bit
+     * @param elementOffset Stream offset of the element
+     * @param buffer        Buffer that holds the whole element
+     * @param headerOffset  Absolute index of the element header in the buffer
+     * @param headerLength  Length of the ID and size fields
+     * @param dataLength    Length of the data field
+     * @throws MkvElementVisitException if the element can not be handled
+     */
+    void onDataElement(int id, long elementOffset, ByteBuffer buffer, int headerOffset, int headerLength,
+                       int dataLength) throws MkvElementVisitException;
+}
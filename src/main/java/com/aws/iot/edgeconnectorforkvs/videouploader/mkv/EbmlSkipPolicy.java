@@ -0,0 +1,34 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+/**
+ * Skip policy of {@link EbmlParser}.  A skipped element is passed over by its declared size without any
+ * {@link EbmlParserCallback} event for it or its children, so its data is never copied or decoded.  Elements with
+ * unknown size can't be skipped and are always reported.
+ */
+@FunctionalInterface
+public interface EbmlSkipPolicy {
+
+    /**
+     * Check if an element should be skipped.  It's called after master elements ended by this element are reported,
+     * so the policy may depend on the state of the callback.
+     *
+     * @param id Element ID, including its marker bit
+     * @return True to skip the element
+     */
+    boolean isSkipped(int id);
+}
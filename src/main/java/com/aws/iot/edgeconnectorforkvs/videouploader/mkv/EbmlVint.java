@@ -0,0 +1,174 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Primitive helpers for EBML variable length integers (VINT).  All methods read with absolute indexes, so they never
+ * touch position or limit of the given buffer and never allocate.
+ */
+public final class EbmlVint {
+
+    /** Returned by {@link #readSize(ByteBuffer, int, int)} when all data bits of the size field are ones. */
+    public static final long UNKNOWN_SIZE = -1L;
+
+    /** Max length of an element ID field in Matroska. */
+    public static final int MAX_ID_LENGTH = 4;
+
+    /** Max length of an element size field in EBML. */
+    public static final int MAX_SIZE_LENGTH = 8;
+
+    private EbmlVint() {
+    }
+
+    /**
+     * Get the length of a VINT from its first byte.  The length is one plus the count of zeros before the first '1' bit.
+     *
+     * @param firstByte The first byte of the VINT
+     * @return The length of the VINT in 1 ~ 8, or 0 if the first byte is zero
+     */
+    public static int length(int firstByte) {
+        final int length = Integer.numberOfLeadingZeros(firstByte & 0xFF) - 23;
+        return length <= MAX_SIZE_LENGTH ? length : 0;
+    }
+
+    /**
+     * Get the length of an element ID field from its first byte.
+     *
+     * @param firstByte The first byte of the ID field
+     * @return The length of the ID field in 1 ~ 4, or 0 if it is not a valid Matroska ID
+     */
+    public static int idLength(int firstByte) {
+        final int length = length(firstByte);
+        return length <= MAX_ID_LENGTH ? length : 0;
+    }
+
+    /**
+     * Read an element ID.  The marker bit is kept, so the result can be compared with ids in MkvTypeInfos.
+     *
+     * @param buffer The buffer
+     * @param offset Absolute index of the ID field
+     * @param length Length of the ID field
+     * @return The element ID
+     */
+    public static int readId(ByteBuffer buffer, int offset, int length) {
+        int id = 0;
+        for (int i = 0; i < length; i++) {
+            id = (id << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * Read the value of a VINT with its marker bit removed.
+     *
+     * @param buffer The buffer
+     * @param offset Absolute index of the VINT
+     * @param length Length of the VINT
+     * @return The value
+     */
+    public static long readValue(ByteBuffer buffer, int offset, int length) {
+        long value = buffer.get(offset) & (0xFF >>> length);
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Read an element size field.
+     *
+     * @param buffer The buffer
+     * @param offset Absolute index of the size field
+     * @param length Length of the size field
+     * @return The data size, or {@link #UNKNOWN_SIZE} if the size is undetermined
+     */
+    public static long readSize(ByteBuffer buffer, int offset, int length) {
+        final long value = readValue(buffer, offset, length);
+        return value == (1L << (7 * length)) - 1 ? UNKNOWN_SIZE : value;
+    }
+
+    /**
+     * Get the length of an element ID field from the ID value, which keeps its marker bit.
+     *
+     * @param id The element ID
+     * @return The length of the ID field in 1 ~ 4, or 0 if the ID is zero
+     */
+    public static int encodedIdLength(int id) {
+        return (Integer.SIZE - Integer.numberOfLeadingZeros(id) + 7) >>> 3;
+    }
+
+    /**
+     * Get the shortest length of a size field that can hold the given data size.  A size field of n bytes has 7n data
+     * bits, and the value with all data bits set is reserved for unknown size.
+     *
+     * @param size The data size
+     * @return The length of the size field in 1 ~ 8, or 0 if the size is negative or too large
+     */
+    public static int sizeLength(long size) {
+        if (size < 0) {
+            return 0;
+        }
+        // Size plus one must fit in the data bits, so that the size is never all ones
+        final int bits = Long.SIZE - Long.numberOfLeadingZeros(size + 1);
+        final int length = Math.max(1, (bits + 6) / 7);
+        return length <= MAX_SIZE_LENGTH ? length : 0;
+    }
+
+    /**
+     * Write an element ID at the position of the buffer.
+     *
+     * @param buffer The buffer
+     * @param id     The element ID
+     * @param length Length of the ID field
+     */
+    public static void putId(ByteBuffer buffer, int id, int length) {
+        for (int shift = (length - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer.put((byte) (id >>> shift));
+        }
+    }
+
+    /**
+     * Write an element size field at the position of the buffer.
+     *
+     * @param buffer The buffer
+     * @param size   The data size
+     * @param length Length of the size field from {@link #sizeLength(long)}
+     */
+    public static void putSize(ByteBuffer buffer, long size, int length) {
+        final long value = size | (1L << (7 * length));
+        for (int shift = (length - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer.put((byte) (value >>> shift));
+        }
+    }
+
+    /**
+     * Read a big-endian unsigned integer of an EBML data element.
+     *
+     * @param buffer The buffer
+     * @param offset Absolute index of the data field
+     * @param length Length of the data field, at most 8
+     * @return The value
+     */
+    public static long readUnsigned(ByteBuffer buffer, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An input stream of a region of a file.  Bytes are read straight from the file into the buffer of the reader, and
+ * {@link #transferTo(WritableByteChannel)} moves them to another channel without copying them to the heap.  The file
+ * is opened on the first read and closed once the region is read to its end, so streams of many regions can be queued
+ * without holding a file handle each.
+ */
+public final class FileRegionInputStream extends InputStream {
+
+    private final File file;
+
+    private final long end;
+
+    private long position;
+
+    private long markPosition;
+
+    private FileChannel fileChannel = null;
+
+    /**
+     * Constructor.
+     *
+     * @param file  The file
+     * @param start Offset of the first byte of the region
+     * @param end   Offset after the last byte of the region
+     * @throws IllegalArgumentException if the region is invalid
+     */
+    public FileRegionInputStream(@NonNull File file, long start, long end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid file region");
+        }
+        this.file = file;
+        this.end = end;
+        this.position = start;
+        this.markPosition = start;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] singleByte = new byte[1];
+        return read(singleByte, 0, 1) == 1 ? singleByte[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position >= end) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+        final int readLength = openFileChannel().read(buffer, position);
+        if (readLength < 0) {
+            throw new IOException("Unexpected end of file at offset " + position);
+        }
+        advance(readLength);
+        return readLength;
+    }
+
+    @Override
+    public long skip(long n) {
+        final long skipLength = Math.max(0, Math.min(n, end - position));
+        position += skipLength;
+        return skipLength;
+    }
+
+    /**
+     * Transfer the rest of the region to a channel.  The stream is at its end afterwards.
+     *
+     * @param target The target channel
+     * @return Count of transferred bytes
+     * @throws IOException if the file ends before the region or the channel fails
+     */
+    public long transferTo(@NonNull WritableByteChannel target) throws IOException {
+        long count = 0;
+        while (position < end) {
+            final long transferLength = openFileChannel().transferTo(position, end - position, target);
+            if (transferLength <= 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            advance(transferLength);
+            count += transferLength;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = markPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        position = end;
+        closeFileChannel();
+    }
+
+    private FileChannel openFileChannel() throws IOException {
+        if (fileChannel == null) {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return fileChannel;
+    }
+
+    private void advance(long length) throws IOException {
+        position += length;
+        if (position >= end) {
+            closeFileChannel();
+        }
+    }
+
+    private void closeFileChannel() throws IOException {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } finally {
+                fileChannel = null;
+            }
+        }
+    }
+}
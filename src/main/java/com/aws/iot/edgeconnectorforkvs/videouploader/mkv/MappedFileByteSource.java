@@ -0,0 +1,268 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.ParserByteSource;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only byte source of a file that is memory mapped window by window.  Mapped bytes can be handed to
+ * {@link EbmlParser} as slices with {@link #nextSlice()}, or read by StreamingMkvReader as a {@link ParserByteSource}.
+ * Each window is unmapped as soon as the next one is mapped or this source is closed, so slices must not be used after
+ * that.
+ */
+@Slf4j
+public class MappedFileByteSource implements ParserByteSource, Closeable {
+
+    /** Default size of a mapped window. */
+    public static final int DEFAULT_MAP_SIZE = 64 * 1024 * 1024;
+
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel fileChannel;
+
+    @Getter
+    private final long fileSize;
+
+    private final int mapSize;
+
+    // True to load each window into physical memory when it is mapped
+    private final boolean isReadAhead;
+
+    // Current mapped window and its offset in the file
+    private MappedByteBuffer mappedBuffer = null;
+    private long mappedOffset = 0;
+
+    private boolean isClosed = false;
+
+    /**
+     * Constructor of a mapped file byte source with {@link #DEFAULT_MAP_SIZE} and read-ahead enabled.
+     *
+     * @param file The file to read
+     * @throws IOException if the file can't be opened
+     */
+    public MappedFileByteSource(@NonNull File file) throws IOException {
+        this(file, DEFAULT_MAP_SIZE, true);
+    }
+
+    /**
+     * Constructor of a mapped file byte source.
+     *
+     * @param file        The file to read
+     * @param mapSize     Size of each mapped window
+     * @param isReadAhead True to ask the OS to load each window as soon as it is mapped, which suits sequential reads
+     * @throws IOException if the file can't be opened
+     */
+    public MappedFileByteSource(@NonNull File file, int mapSize, boolean isReadAhead) throws IOException {
+        if (mapSize <= 0) {
+            throw new IllegalArgumentException("Map size must be positive");
+        }
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.fileChannel = randomAccessFile.getChannel();
+        this.fileSize = fileChannel.size();
+        this.mapSize = mapSize;
+        this.isReadAhead = isReadAhead;
+    }
+
+    /**
+     * Get remaining bytes of current window, and move to the next window.  The returned slice is valid until the next
+     * call of this source.
+     *
+     * @return The read-only slice, or null at the end of file
+     * @throws IOException if the file can't be mapped
+     */
+    public ByteBuffer nextSlice() throws IOException {
+        if (!ensureMapped()) {
+            return null;
+        }
+        final ByteBuffer slice = mappedBuffer.slice().asReadOnlyBuffer();
+        mappedBuffer.position(mappedBuffer.limit());
+        return slice;
+    }
+
+    /**
+     * Move to the given position of the file.  The next slice or read starts from there.
+     *
+     * @param position Position in the file
+     * @throws IOException if this source is closed
+     */
+    public void seek(long position) throws IOException {
+        if (isClosed) {
+            throw new IOException("Mapped file byte source is closed");
+        }
+        if (position < 0 || position > fileSize) {
+            throw new IllegalArgumentException("Invalid position " + position + " of file size " + fileSize);
+        }
+        unmapCurrentWindow();
+        mappedOffset = position;
+    }
+
+    @Override
+    public int readByte() {
+        if (!ensureMappedUnchecked()) {
+            return -1;
+        }
+        return mappedBuffer.get() & 0xFF;
+    }
+
+    @Override
+    public int available() {
+        if (isClosed) {
+            return 0;
+        }
+        final long position = mappedBuffer == null ? mappedOffset : mappedOffset + mappedBuffer.position();
+        return (int) Math.min(Integer.MAX_VALUE, fileSize - position);
+    }
+
+    @Override
+    public int readBytes(ByteBuffer destination, int length) {
+        if (!ensureMappedUnchecked()) {
+            return -1;
+        }
+        final int count = Math.min(Math.min(length, destination.remaining()), mappedBuffer.remaining());
+        final ByteBuffer source = mappedBuffer.duplicate();
+        source.limit(source.position() + count);
+        destination.put(source);
+        mappedBuffer.position(mappedBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public boolean eof() {
+        return available() == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!isClosed) {
+            isClosed = true;
+            unmapCurrentWindow();
+            randomAccessFile.close();
+        }
+    }
+
+    private boolean ensureMappedUnchecked() {
+        try {
+            return ensureMapped();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to map file", exception);
+        }
+    }
+
+    /**
+     * Make sure current window has remaining bytes by mapping the next window if needed.
+     *
+     * @return True if there are remaining bytes, false at the end of file
+     * @throws IOException if the file can't be mapped
+     */
+    private boolean ensureMapped() throws IOException {
+        if (isClosed) {
+            throw new IOException("Mapped file byte source is closed");
+        }
+        if (mappedBuffer != null) {
+            if (mappedBuffer.hasRemaining()) {
+                return true;
+            }
+            mappedOffset += mappedBuffer.limit();
+            unmapCurrentWindow();
+        }
+        if (mappedOffset >= fileSize) {
+            return false;
+        }
+        final long size = Math.min(mapSize, fileSize - mappedOffset);
+        mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedOffset, size);
+        if (isReadAhead) {
+            mappedBuffer.load();
+        }
+        return true;
+    }
+
+    private void unmapCurrentWindow() {
+        if (mappedBuffer != null) {
+            UNMAPPER.unmap(mappedBuffer);
+            mappedBuffer = null;
+        }
+    }
+
+    /**
+     * Java 8 has no public API to unmap a buffer, and the mapping is otherwise released only when the buffer is
+     * garbage collected.  This calls the cleaner by reflection, and falls back to the garbage collector if it's not
+     * accessible.
+     */
+    private static final class Unmapper {
+        private final Object target;
+        private final Method method;
+
+        private Unmapper(Object target, Method method) {
+            this.target = target;
+            this.method = method;
+        }
+
+        static Unmapper create() {
+            try {
+                // Java 9 and later
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return new Unmapper(theUnsafe.get(null), invokeCleaner);
+            } catch (ReflectiveOperationException | RuntimeException exception) {
+                log.debug("Unsafe.invokeCleaner is not available, fall back to DirectBuffer.cleaner");
+            }
+            try {
+                // Java 8
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                return new Unmapper(null, cleaner);
+            } catch (ReflectiveOperationException | RuntimeException exception) {
+                log.debug("Unable to unmap buffers explicitly, leave them to garbage collector");
+            }
+            return new Unmapper(null, null);
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            if (method == null) {
+                return;
+            }
+            try {
+                if (target != null) {
+                    method.invoke(target, buffer);
+                } else {
+                    final Object cleaner = method.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException exception) {
+                log.debug("Failed to unmap buffer: " + exception.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A disk-backed cache of merged MKV output, so retried uploads stream the output of earlier attempts instead of parsing
+ * and merging the same recordings again.  Each entry is a file in the cache folder named by its key, and it's streamed
+ * from disk when it's read.  Entries are evicted in least recently used order once their total size exceeds the max
+ * size.  The order is kept in file modification times, so it survives restarts.
+ */
+@Slf4j
+public class MergedOutputCache {
+
+    /** Extension of cache entry files. */
+    public static final String ENTRY_EXTENSION = ".mkvc";
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+
+    @Getter
+    private final long maxBytes;
+
+    @Getter
+    private long totalBytes = 0;
+
+    // Entry sizes by key, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor.  Existing entries in the cache folder are loaded, and temporary files left by interrupted writes are
+     * deleted.
+     *
+     * @param cacheDir The cache folder, which is created if it doesn't exist
+     * @param maxBytes Max total size of entries
+     * @throws IOException              if the cache folder can't be created
+     * @throws IllegalArgumentException if max size is not positive
+     */
+    public MergedOutputCache(@NonNull File cacheDir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size");
+        }
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(cacheDir.toPath());
+
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                final String filename = file.getName();
+                if (filename.endsWith(ENTRY_EXTENSION)) {
+                    final String key = filename.substring(0, filename.length() - ENTRY_EXTENSION.length());
+                    entries.put(key, file.length());
+                    totalBytes += file.length();
+                } else if (filename.endsWith(TEMP_EXTENSION)) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Create a key from a previous key and an identity string, so a key of a chain of inputs identifies all of them.
+     *
+     * @param previousKey Key of previous inputs, or null for the first input
+     * @param identity    Identity of the input, including parameters that affect the output
+     * @return The key
+     */
+    public static String createKey(String previousKey, @NonNull String identity) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+        if (previousKey != null) {
+            digest.update(previousKey.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) '|');
+        digest.update(identity.getBytes(StandardCharsets.UTF_8));
+
+        final byte[] hash = digest.digest();
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Open the output of a key to stream it from disk, and mark the entry as the most recently used one.
+     *
+     * @param key The key
+     * @return Input stream of the output, or null if it's not cached
+     */
+    public synchronized InputStream open(@NonNull String key) {
+        // Getting from the access ordered map marks it as the most recently used one
+        if (entries.get(key) == null) {
+            return null;
+        }
+        final File entryFile = getEntryFile(key);
+        try {
+            final InputStream inputStream = new BufferedInputStream(new FileInputStream(entryFile));
+            if (!entryFile.setLastModified(System.currentTimeMillis())) {
+                log.debug("Unable to update access time of cache entry " + key);
+            }
+            return inputStream;
+        } catch (IOException exception) {
+            log.warn("Unable to read cache entry " + key + ": " + exception.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Put the output of a key, and evict least recently used entries if the cache is full.  Output larger than the max
+     * size is not cached.
+     *
+     * @param key    The key
+     * @param output The output
+     */
+    public synchronized void put(@NonNull String key, @NonNull byte[] output) {
+        put(key, Collections.singletonList(new ByteArrayInputStream(output)));
+    }
+
+    /**
+     * Put the output of a key that is given in segments, and evict least recently used entries if the cache is full.
+     * Output larger than the max size is not cached.  Segments must support mark, and each of them is reset to where it
+     * was once it's written, so the caller can still stream them.  Segments of {@link FileRegionInputStream} are
+     * transferred from their file without being copied to the heap.
+     *
+     * @param key      The key
+     * @param segments Input streams of the output in order
+     */
+    public synchronized void put(@NonNull String key, @NonNull Collection<? extends InputStream> segments) {
+        long size = 0;
+        for (InputStream segment : segments) {
+            try {
+                size += segment.available();
+            } catch (IOException exception) {
+                log.warn("Unable to read output of cache entry " + key + ": " + exception.getMessage());
+                return;
+            }
+        }
+        if (size > maxBytes) {
+            return;
+        }
+        remove(key);
+
+        final File entryFile = getEntryFile(key);
+        final File tempFile = new File(entryFile.getPath() + TEMP_EXTENSION);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (InputStream segment : segments) {
+                    writeSegment(segment, channel);
+                }
+            }
+            Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            log.warn("Unable to write cache entry " + key + ": " + exception.getMessage());
+            if (!tempFile.delete()) {
+                log.debug("Unable to delete " + tempFile.getName());
+            }
+            return;
+        }
+        entries.put(key, size);
+        totalBytes += size;
+        evict();
+    }
+
+    /**
+     * Check if a key is cached.
+     *
+     * @param key The key
+     * @return True if it's cached
+     */
+    public synchronized boolean contains(@NonNull String key) {
+        return entries.containsKey(key);
+    }
+
+    private static void writeSegment(InputStream segment, WritableByteChannel channel) throws IOException {
+        segment.mark(Integer.MAX_VALUE);
+        try {
+            if (segment instanceof FileRegionInputStream) {
+                ((FileRegionInputStream) segment).transferTo(channel);
+            } else {
+                final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int readLength;
+                while ((readLength = segment.read(buffer)) != -1) {
+                    final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, readLength);
+                    while (byteBuffer.hasRemaining()) {
+                        channel.write(byteBuffer);
+                    }
+                }
+            }
+        } finally {
+            segment.reset();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            totalBytes -= entry.getValue();
+            deleteEntryFile(entry.getKey());
+        }
+    }
+
+    private void remove(String key) {
+        final Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            deleteEntryFile(key);
+        }
+    }
+
+    private void deleteEntryFile(String key) {
+        try {
+            Files.deleteIfExists(getEntryFile(key).toPath());
+        } catch (IOException exception) {
+            log.warn("Unable to delete cache entry " + key + ": " + exception.getMessage());
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(cacheDir, key + ENTRY_EXTENSION);
+    }
+}
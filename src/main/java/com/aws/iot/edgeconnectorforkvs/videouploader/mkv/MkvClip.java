@@ -0,0 +1,208 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A clip of a MKV recording between two times, which is a playable MKV file by itself.  It's the headers of the
+ * recording, rewritten to an unknown-length segment without seek head and cues, followed by a range of whole clusters
+ * that is found by {@link MkvClusterIndex}.  Only the headers are held in memory, and clusters are transferred from
+ * the recording to the target channel, e.g. a socket, without being copied through the heap.
+ */
+public final class MkvClip {
+
+    // Headers before the first cluster are usually a few KB, and a larger one is not expected from the recorder
+    private static final int MAX_HEADER_LENGTH = 1024 * 1024;
+
+    private static final int ID_EBML = MkvTypeInfos.EBML.getId();
+
+    private static final int ID_SEGMENT = MkvTypeInfos.SEGMENT.getId();
+
+    private static final int ID_SEEKHEAD = MkvTypeInfos.SEEKHEAD.getId();
+
+    private static final int ID_CUES = MkvTypeInfos.CUES.getId();
+
+    private static final int ID_VOID = MkvTypeInfos.VOID.getId();
+
+    private final File mkvFile;
+
+    private final ByteBuffer header;
+
+    // File offset and length of the clusters in the clip
+    @Getter
+    private final long clusterOffset;
+
+    @Getter
+    private final long clusterLength;
+
+    private MkvClip(File mkvFile, ByteBuffer header, long clusterOffset, long clusterLength) {
+        this.mkvFile = mkvFile;
+        this.header = header;
+        this.clusterOffset = clusterOffset;
+        this.clusterLength = clusterLength;
+    }
+
+    /**
+     * Create a clip of a recording.  It starts from the key frame cluster at or before the start time, so a decoder
+     * can show the start time, and ends with the cluster that starts at or before the end time.
+     *
+     * @param mkvFile     The recording
+     * @param startTimeMs Start time relative to the start of the recording, i.e. in cluster timecodes
+     * @param endTimeMs   End time relative to the start of the recording
+     * @return The clip, or null if the recording has no cluster in the time range
+     * @throws IOException              if the recording can't be read
+     * @throws MkvElementVisitException if the recording can't be parsed
+     */
+    public static MkvClip create(@NonNull File mkvFile, long startTimeMs, long endTimeMs)
+            throws IOException, MkvElementVisitException {
+        MkvClusterIndex clusterIndex = MkvClusterIndex.loadIfFresh(mkvFile);
+        if (clusterIndex == null) {
+            // The recording may still be written, so its index is not stored
+            clusterIndex = MkvClusterIndex.build(mkvFile);
+        }
+        final List<MkvClusterIndex.ClusterEntry> clusters = clusterIndex.getClusters();
+        final int lastCluster = clusterIndex.findClusterAtOrBefore(endTimeMs);
+        final int firstCluster = Math.max(0, clusterIndex.findKeyFrameClusterAtOrBefore(startTimeMs));
+        if (lastCluster < firstCluster) {
+            return null;
+        }
+
+        final long headerLength = clusters.get(0).getOffset();
+        if (headerLength > MAX_HEADER_LENGTH) {
+            throw new MkvElementVisitException("MKV headers are too large", new RuntimeException());
+        }
+        final ByteBuffer header = ByteBuffer.allocate((int) headerLength);
+        try (FileChannel channel = FileChannel.open(mkvFile.toPath(), StandardOpenOption.READ)) {
+            int readLength;
+            do {
+                readLength = channel.read(header, header.position());
+            } while (readLength > 0 && header.hasRemaining());
+        }
+        if (header.hasRemaining()) {
+            throw new IOException("Unexpected end of file in MKV headers");
+        }
+        header.flip();
+        rewriteHeader(header);
+
+        final MkvClusterIndex.ClusterEntry first = clusters.get(firstCluster);
+        final MkvClusterIndex.ClusterEntry last = clusters.get(lastCluster);
+        return new MkvClip(mkvFile, header.asReadOnlyBuffer(),
+                first.getOffset(), last.getOffset() + last.getLength() - first.getOffset());
+    }
+
+    /**
+     * Get the length of the clip.
+     *
+     * @return Length in bytes
+     */
+    public long getLength() {
+        return header.remaining() + clusterLength;
+    }
+
+    /**
+     * Write the whole clip to a channel.  Clusters are transferred by {@link FileChannel#transferTo}, which lets the
+     * OS copy file pages to a socket directly.
+     *
+     * @param target The channel
+     * @throws IOException if the clip can't be written
+     */
+    public void transferTo(@NonNull WritableByteChannel target) throws IOException {
+        final ByteBuffer headerToWrite = header.duplicate();
+        while (headerToWrite.hasRemaining()) {
+            target.write(headerToWrite);
+        }
+        try (FileChannel channel = FileChannel.open(mkvFile.toPath(), StandardOpenOption.READ)) {
+            long position = clusterOffset;
+            final long end = clusterOffset + clusterLength;
+            while (position < end) {
+                final long count = channel.transferTo(position, end - position, target);
+                if (count <= 0) {
+                    throw new IOException("Unexpected end of file at offset " + position);
+                }
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Rewrite headers in place, so their size doesn't change.  The segment size is set to unknown, because the clip
+     * has fewer clusters than the segment, and seek head and cues are replaced by void elements, because positions in
+     * them are no longer valid.
+     */
+    private static void rewriteHeader(ByteBuffer header) throws MkvElementVisitException {
+        int offset = 0;
+        boolean isSegmentFound = false;
+        while (offset < header.limit()) {
+            final int idLength = EbmlVint.idLength(header.get(offset));
+            final int sizeOffset = offset + idLength;
+            final int sizeLength = idLength > 0 && sizeOffset < header.limit()
+                    ? EbmlVint.length(header.get(sizeOffset)) : 0;
+            if (sizeLength == 0 || sizeOffset + sizeLength > header.limit()) {
+                throw new MkvElementVisitException("Invalid MKV headers", new RuntimeException());
+            }
+            final int id = EbmlVint.readId(header, offset, idLength);
+            final long dataSize = EbmlVint.readSize(header, sizeOffset, sizeLength);
+            final int dataOffset = sizeOffset + sizeLength;
+
+            if (!isSegmentFound && id == ID_EBML && dataSize >= 0) {
+                offset = (int) Math.min(header.limit(), dataOffset + dataSize);
+            } else if (!isSegmentFound && id == ID_SEGMENT) {
+                isSegmentFound = true;
+                header.position(sizeOffset);
+                EbmlVint.putSize(header, (1L << (7 * sizeLength)) - 1, sizeLength);
+                offset = dataOffset;
+            } else if (isSegmentFound && dataSize >= 0) {
+                final long end = dataOffset + dataSize;
+                if (end > header.limit()) {
+                    throw new MkvElementVisitException("Invalid MKV headers", new RuntimeException());
+                }
+                if (id == ID_SEEKHEAD || id == ID_CUES) {
+                    putVoid(header, offset, (int) (end - offset));
+                }
+                offset = (int) end;
+            } else {
+                throw new MkvElementVisitException("Invalid MKV headers", new RuntimeException());
+            }
+        }
+        header.position(0);
+        if (!isSegmentFound) {
+            throw new MkvElementVisitException("MKV segment is not found", new RuntimeException());
+        }
+    }
+
+    /**
+     * Write a void element that covers the given length, which is at least 2 bytes.
+     */
+    private static void putVoid(ByteBuffer header, int offset, int length) {
+        final int sizeLength = EbmlVint.sizeLength(length - 2) == 1 ? 1 : EbmlVint.MAX_SIZE_LENGTH;
+        header.position(offset);
+        EbmlVint.putId(header, ID_VOID, 1);
+        EbmlVint.putSize(header, length - 1 - sizeLength, sizeLength);
+    }
+}
@@ -16,6 +16,7 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.aws.iot.edgeconnectorforkvs.util.TraceRing;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -24,8 +25,9 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class store and manage MKV Cluster element.
@@ -39,11 +41,27 @@ public class MkvCluster {
     // ID and Length field of the cluster
     private final byte[] idAndSizeBytes;
 
-    // True if simple blocks are in time ascending order
-    private boolean isSimpleBlocksSorted;
+    // True if cluster header and timecode have been written, so only simple blocks are written afterwards
+    @Getter
+    private boolean isHeaderWritten = false;
+
+    // Count of simple blocks that have been written and removed from this cluster
+    @Getter
+    private int writtenSimpleBlockCount = 0;
+
+    // Relative timecodes of the earliest and latest written simple blocks, only valid if some have been written
+    private int earliestWrittenTimecode = 0;
+    private int latestWrittenTimecode = 0;
 
-    // A list that holds all simple blocks (which may out of order)
-    private final List<MkvSimpleBlock> simpleBlocks = new ArrayList<>();
+    // A list that holds all simple blocks in time ascending order that haven't been written
+    private ArrayList<MkvSimpleBlock> simpleBlocks = new ArrayList<>();
+
+    // Simple block counts per track.  A cluster only has a few tracks, so a linear search beats a map here.
+    private long[] countedTrackNumbers = new long[INITIAL_TRACK_CAPACITY];
+    private int[] simpleBlockCounts = new int[INITIAL_TRACK_CAPACITY];
+    private int countedTrackSize = 0;
+
+    private static final int INITIAL_TRACK_CAPACITY = 2;
 
     /**
      * Construct a MKV Cluster.
@@ -58,29 +76,65 @@ public class MkvCluster {
         } catch (BufferUnderflowException ex) {
             log.error("Buffer Underflow Exception: " + ex.getMessage());
         }
-
-        isSimpleBlocksSorted = false;
     }
 
     /**
-     * Write cluster to channel, it includes cluster's header, timecode, and simple blocks.
+     * Write cluster to channel, it includes cluster's header, timecode, and simple blocks.  If part of this cluster has
+     * been written by {@link #writeSimpleBlocksToChannel(WritableByteChannel, long)}, only the remaining simple blocks
+     * are written.
      *
      * @param outputChannel The output channel
      * @throws IOException It's thrown when it failed to write to the output channel
      */
     public void writeToChannel(WritableByteChannel outputChannel) throws IOException {
         if (!simpleBlocks.isEmpty()) {
-            sort();
+            writeSimpleBlocksToChannel(outputChannel, simpleBlocks.size());
+        }
+    }
+
+    /**
+     * Write simple blocks that are earlier than the given timecode, and remove them from this cluster.  Cluster's
+     * header and timecode are written before the first written simple block.
+     *
+     * @param outputChannel     The output channel
+     * @param absoluteTimecode  Simple blocks with absolute timecode earlier than this are written
+     * @return The count of written simple blocks
+     * @throws IOException It's thrown when it failed to write to the output channel
+     */
+    public int writeSimpleBlocksToChannel(WritableByteChannel outputChannel, long absoluteTimecode)
+            throws IOException {
+        final int count = lowerBound(absoluteTimecode - this.absoluteTimecode);
+        if (count > 0) {
+            writeSimpleBlocksToChannel(outputChannel, count);
+        }
+        return count;
+    }
+
+    private void writeSimpleBlocksToChannel(WritableByteChannel outputChannel, int count) throws IOException {
+        if (!isHeaderWritten) {
             writeHeaderToChannel(outputChannel);
             writeTimecodeToChannel(outputChannel);
-            for (MkvSimpleBlock simpleBlock : simpleBlocks) {
-                simpleBlock.writeToChannel(outputChannel);
-            }
+            isHeaderWritten = true;
+        }
+        final List<MkvSimpleBlock> writtenSimpleBlocks = simpleBlocks.subList(0, count);
+        for (MkvSimpleBlock simpleBlock : writtenSimpleBlocks) {
+            simpleBlock.writeToChannel(outputChannel);
         }
+        final int earliest = writtenSimpleBlocks.get(0).getRelativeTimecode();
+        final int latest = writtenSimpleBlocks.get(count - 1).getRelativeTimecode();
+        if (writtenSimpleBlockCount == 0) {
+            earliestWrittenTimecode = earliest;
+            latestWrittenTimecode = latest;
+        } else {
+            earliestWrittenTimecode = Math.min(earliestWrittenTimecode, earliest);
+            latestWrittenTimecode = Math.max(latestWrittenTimecode, latest);
+        }
+        writtenSimpleBlockCount += count;
+        writtenSimpleBlocks.clear();
     }
 
     /**
-     * Check if there is any simple blocks in this cluster.
+     * Check if there is any simple blocks in this cluster that haven't been written.
      *
      * @return True if there is no simple block in this cluster, false otherwise
      */
@@ -88,6 +142,15 @@ public class MkvCluster {
         return simpleBlocks.isEmpty();
     }
 
+    /**
+     * Get the count of simple blocks in this cluster that haven't been written.
+     *
+     * @return The count of simple blocks
+     */
+    public int getSimpleBlockCount() {
+        return simpleBlocks.size();
+    }
+
     /**
      * Set new absolute timecode, and adjust timecode of its simple blocks.
      *
@@ -98,24 +161,200 @@ public class MkvCluster {
     }
 
     /**
-     * Add a new simple block to this cluster.
+     * Move this cluster to a new absolute timecode, and shift relative timecodes of its simple blocks so their
+     * absolute timecodes are kept.  It should be called before this cluster is written.
+     *
+     * @param newAbsoluteTimecode The new absolute timecode
+     */
+    public void moveAbsoluteTimecode(long newAbsoluteTimecode) {
+        final short timecodeDiff = (short) (absoluteTimecode - newAbsoluteTimecode);
+        for (MkvSimpleBlock simpleBlock : simpleBlocks) {
+            simpleBlock.updateTimecode(timecodeDiff);
+        }
+        absoluteTimecode = newAbsoluteTimecode;
+    }
+
+    /**
+     * Add a new simple block to this cluster.  Simple blocks are kept in time ascending order, so appending an in-order
+     * block is O(1) and an out-of-order block is inserted after a binary search.
      *
      * @param simpleBlock The simple block to be added
      */
     public void addSimpleBlock(MkvSimpleBlock simpleBlock) {
-        log.debug("add simple block with timecode: " + simpleBlock.getRelativeTimecode());
-        simpleBlocks.add(simpleBlock);
-        isSimpleBlocksSorted = false;
+        TraceRing.getDefault().record(TraceRing.Event.SIMPLE_BLOCK, (int) simpleBlock.getTrackNumber(),
+                simpleBlock.getRelativeTimecode());
+        if (writtenSimpleBlockCount > 0 && simpleBlock.getRelativeTimecode() < latestWrittenTimecode) {
+            log.warn("Simple block with timecode {} is earlier than written simple blocks of cluster {}",
+                    simpleBlock.getRelativeTimecode(), absoluteTimecode);
+        }
+        final int size = simpleBlocks.size();
+        if (size == 0 || simpleBlocks.get(size - 1).compareTo(simpleBlock) <= 0) {
+            simpleBlocks.add(simpleBlock);
+        } else {
+            simpleBlocks.add(upperBound(simpleBlock), simpleBlock);
+        }
+        updateSimpleBlockCount(simpleBlock.getTrackNumber(), 1);
+    }
+
+    /**
+     * Move simple blocks that are not earlier than the next cluster's timecode to the next cluster.  The whole tail
+     * range is moved in one operation and merged into the next cluster in linear time.
+     *
+     * @param nextCluster The next cluster
+     * @return The count of moved simple blocks
+     */
+    public int migrateSimpleBlocksTo(MkvCluster nextCluster) {
+        final int size = simpleBlocks.size();
+        final int from = lowerBound(nextCluster.getAbsoluteTimecode() - absoluteTimecode);
+        if (from == size) {
+            return 0;
+        }
+
+        final short timecodeDiff = (short) (absoluteTimecode - nextCluster.getAbsoluteTimecode());
+        final List<MkvSimpleBlock> tail = simpleBlocks.subList(from, size);
+        for (MkvSimpleBlock simpleBlock : tail) {
+            simpleBlock.updateTimecode(timecodeDiff);
+            updateSimpleBlockCount(simpleBlock.getTrackNumber(), -1);
+        }
+        nextCluster.mergeSimpleBlocks(tail);
+        tail.clear();
+        return size - from;
     }
 
     /**
-     * Sort simple blocks in time ascending order.
+     * Move all simple blocks of the next cluster to this cluster, so both clusters become one fragment.  Relative
+     * timecodes of moved simple blocks are shifted by the difference of cluster timecodes.  Neither cluster should
+     * have been written.
+     *
+     * @param nextCluster The next cluster
+     * @return The count of moved simple blocks
      */
-    public void sort() {
-        if (!isSimpleBlocksSorted) {
-            Collections.sort(simpleBlocks);
-            isSimpleBlocksSorted = true;
+    public int appendSimpleBlocksFrom(MkvCluster nextCluster) {
+        final List<MkvSimpleBlock> moved = nextCluster.simpleBlocks;
+        if (moved.isEmpty()) {
+            return 0;
         }
+
+        final short timecodeDiff = (short) (nextCluster.getAbsoluteTimecode() - absoluteTimecode);
+        for (MkvSimpleBlock simpleBlock : moved) {
+            simpleBlock.updateTimecode(timecodeDiff);
+            nextCluster.updateSimpleBlockCount(simpleBlock.getTrackNumber(), -1);
+        }
+        final int count = moved.size();
+        mergeSimpleBlocks(moved);
+        moved.clear();
+        return count;
+    }
+
+    /**
+     * Find a key frame to split this cluster at, so the first part is not longer than the max duration.  It's the
+     * latest key frame within the max duration, or the earliest key frame after it if there is none.  Simple blocks
+     * at the start of the cluster are never chosen.
+     *
+     * @param videoTrackNumbers Track numbers of video tracks, or empty to check key frames of all tracks
+     * @param maxDuration       Max duration of the first part in cluster timescale
+     * @return The absolute timecode of the key frame, or -1 if there is no key frame to split at
+     */
+    public long findSplitTimecode(Set<Long> videoTrackNumbers, long maxDuration) {
+        if (simpleBlocks.isEmpty()) {
+            return -1;
+        }
+        final int startTimecode = simpleBlocks.get(0).getRelativeTimecode();
+        int splitTimecode = -1;
+        for (MkvSimpleBlock simpleBlock : simpleBlocks) {
+            final int timecode = simpleBlock.getRelativeTimecode();
+            if (timecode <= startTimecode || !simpleBlock.isKeyFrame()
+                    || !(videoTrackNumbers.isEmpty() || videoTrackNumbers.contains(simpleBlock.getTrackNumber()))) {
+                continue;
+            }
+            if (timecode - startTimecode <= maxDuration || splitTimecode < 0) {
+                splitTimecode = timecode;
+            }
+            if (timecode - startTimecode >= maxDuration) {
+                break;
+            }
+        }
+        return splitTimecode < 0 ? -1 : absoluteTimecode + splitTimecode;
+    }
+
+    /**
+     * Merge simple blocks in time ascending order into this cluster.  For equal blocks, the existing ones go first.
+     *
+     * @param sortedSimpleBlocks Simple blocks in time ascending order
+     */
+    private void mergeSimpleBlocks(List<MkvSimpleBlock> sortedSimpleBlocks) {
+        for (MkvSimpleBlock simpleBlock : sortedSimpleBlocks) {
+            updateSimpleBlockCount(simpleBlock.getTrackNumber(), 1);
+        }
+        if (simpleBlocks.isEmpty()
+                || simpleBlocks.get(simpleBlocks.size() - 1).compareTo(sortedSimpleBlocks.get(0)) <= 0) {
+            simpleBlocks.addAll(sortedSimpleBlocks);
+            return;
+        }
+
+        final ArrayList<MkvSimpleBlock> merged = new ArrayList<>(simpleBlocks.size() + sortedSimpleBlocks.size());
+        int i = 0;
+        int j = 0;
+        while (i < simpleBlocks.size() && j < sortedSimpleBlocks.size()) {
+            if (simpleBlocks.get(i).compareTo(sortedSimpleBlocks.get(j)) <= 0) {
+                merged.add(simpleBlocks.get(i++));
+            } else {
+                merged.add(sortedSimpleBlocks.get(j++));
+            }
+        }
+        merged.addAll(simpleBlocks.subList(i, simpleBlocks.size()));
+        merged.addAll(sortedSimpleBlocks.subList(j, sortedSimpleBlocks.size()));
+        simpleBlocks = merged;
+    }
+
+    /**
+     * Find the index of the first simple block that is larger than the given one.
+     */
+    private int upperBound(MkvSimpleBlock simpleBlock) {
+        int low = 0;
+        int high = simpleBlocks.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (simpleBlocks.get(mid).compareTo(simpleBlock) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the index of the first simple block whose relative timecode is not less than the given one.
+     */
+    private int lowerBound(long relativeTimecode) {
+        int low = 0;
+        int high = simpleBlocks.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (simpleBlocks.get(mid).getRelativeTimecode() < relativeTimecode) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void updateSimpleBlockCount(long trackNumber, int delta) {
+        for (int i = 0; i < countedTrackSize; i++) {
+            if (countedTrackNumbers[i] == trackNumber) {
+                simpleBlockCounts[i] += delta;
+                return;
+            }
+        }
+        if (countedTrackSize == countedTrackNumbers.length) {
+            countedTrackNumbers = Arrays.copyOf(countedTrackNumbers, countedTrackSize * 2);
+            simpleBlockCounts = Arrays.copyOf(simpleBlockCounts, countedTrackSize * 2);
+        }
+        countedTrackNumbers[countedTrackSize] = trackNumber;
+        simpleBlockCounts[countedTrackSize] = delta;
+        countedTrackSize++;
     }
 
     /**
@@ -125,28 +364,61 @@ public class MkvCluster {
      * otherwise
      */
     public long getLatestSimpleBlockTimecode() {
-        sort();
         if (simpleBlocks.isEmpty()) {
-            return absoluteTimecode;
+            return writtenSimpleBlockCount == 0 ? absoluteTimecode : absoluteTimecode + latestWrittenTimecode;
         } else {
-            return absoluteTimecode + simpleBlocks.get(simpleBlocks.size() - 1).getRelativeTimecode();
+            final int latest = simpleBlocks.get(simpleBlocks.size() - 1).getRelativeTimecode();
+            return absoluteTimecode + (writtenSimpleBlockCount == 0 ? latest : Math.max(latest, latestWrittenTimecode));
         }
     }
 
     /**
-     * Get the count of simple blocks with specific track number in this cluster.
+     * Get the latest absolute timecode of simple blocks with specific track number that haven't been written.
+     *
+     * @param trackNumber The track number
+     * @return The latest absolute timecode, or Long.MIN_VALUE if there is no such simple block
+     */
+    public long getLatestSimpleBlockTimecodeInTrack(long trackNumber) {
+        for (int i = simpleBlocks.size() - 1; i >= 0; i--) {
+            final MkvSimpleBlock simpleBlock = simpleBlocks.get(i);
+            if (simpleBlock.getTrackNumber() == trackNumber) {
+                return absoluteTimecode + simpleBlock.getRelativeTimecode();
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Check if a simple block with the same track number and absolute timecode hasn't been written.
+     *
+     * @param trackNumber      The track number
+     * @param absoluteTimecode The absolute timecode
+     * @return True if there is such a simple block
+     */
+    public boolean containsSimpleBlock(long trackNumber, long absoluteTimecode) {
+        final long relativeTimecode = absoluteTimecode - this.absoluteTimecode;
+        for (int i = lowerBound(relativeTimecode); i < simpleBlocks.size()
+                && simpleBlocks.get(i).getRelativeTimecode() == relativeTimecode; i++) {
+            if (simpleBlocks.get(i).getTrackNumber() == trackNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the count of simple blocks with specific track number in this cluster, including written ones.
      *
      * @param trackNumber The track number
      * @return The count of simple blocks with specific track number
      */
     public int getSimpleBlockCountInTrack(long trackNumber) {
-        int count = 0;
-        for (MkvSimpleBlock simpleBlock : simpleBlocks) {
-            if (simpleBlock.getTrackNumber() == trackNumber) {
-                count++;
+        for (int i = 0; i < countedTrackSize; i++) {
+            if (countedTrackNumbers[i] == trackNumber) {
+                return simpleBlockCounts[i];
             }
         }
-        return count;
+        return 0;
     }
 
     /**
@@ -156,11 +428,12 @@ public class MkvCluster {
      * otherwise
      */
     public long getEarliestSimpleBlockTimecode() {
-        sort();
         if (simpleBlocks.isEmpty()) {
-            return absoluteTimecode;
+            return writtenSimpleBlockCount == 0 ? absoluteTimecode : absoluteTimecode + earliestWrittenTimecode;
         } else {
-            return absoluteTimecode + simpleBlocks.get(0).getRelativeTimecode();
+            final int earliest = simpleBlocks.get(0).getRelativeTimecode();
+            return absoluteTimecode
+                    + (writtenSimpleBlockCount == 0 ? earliest : Math.min(earliest, earliestWrittenTimecode));
         }
     }
 
@@ -170,13 +443,11 @@ public class MkvCluster {
      * @return The removed simple block.
      */
     public MkvSimpleBlock removeLatestSimpleBlock() {
-        sort();
         if (simpleBlocks.isEmpty()) {
             return null;
         } else {
-            final int lastIndex = simpleBlocks.size() - 1;
-            MkvSimpleBlock simpleBlock = simpleBlocks.get(lastIndex);
-            simpleBlocks.remove(lastIndex);
+            final MkvSimpleBlock simpleBlock = simpleBlocks.remove(simpleBlocks.size() - 1);
+            updateSimpleBlockCount(simpleBlock.getTrackNumber(), -1);
             return simpleBlock;
         }
     }
@@ -211,6 +482,9 @@ public class MkvCluster {
     @Override
     public String toString() {
         StringBuilder clusterInfo = new StringBuilder("cluster timecode: " + absoluteTimecode);
+        if (writtenSimpleBlockCount > 0) {
+            clusterInfo.append(", written simple blocks: ").append(writtenSimpleBlockCount);
+        }
         if (!simpleBlocks.isEmpty()) {
             clusterInfo.append(", simple blocks timecode:");
             for (MkvSimpleBlock simpleBlock : simpleBlocks) {
@@ -0,0 +1,586 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of clusters in a MKV file.  It's stored as a sidecar file next to the recording, so time range operations can
+ * seek straight to a cluster instead of parsing the file from the start.
+ *
+ * <p>Sidecar format, all numbers are big-endian:
+ * <pre>
+ * magic "MKVI" (4), version (1), file size (8), tracks fingerprint (8), cluster count (4),
+ * then per cluster: file offset (8), length (4), absolute timecode in ms (8), flags (1)
+ * </pre>
+ *
+ * <p>A cluster is flagged as passthrough if it's already what the merger would write, so its bytes can be copied as
+ * they are with only its timecode updated.  That is, the recording has a single segment with a timecode scale of 1 ms,
+ * and the cluster starts with its timecode, has nothing but simple blocks of known tracks in time order with a simple
+ * block for every track, and all of them are later than simple blocks of the same track before and end before the
+ * next cluster starts.</p>
+ */
+@Slf4j
+public final class MkvClusterIndex {
+
+    /** Extension appended to the recording filename for its index sidecar. */
+    public static final String SIDECAR_EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x4D4B5649;
+
+    // Version 2 uses MkvTracksFingerprint for tracks fingerprint, and version 3 adds the passthrough flag
+    private static final byte VERSION = 3;
+
+    private static final byte FLAG_KEY_FRAME = 0x01;
+
+    private static final byte FLAG_PASSTHROUGH = 0x02;
+
+    private static final int SIMPLE_BLOCK_TIMECODE_SIZE = 2;
+
+    private static final int SIMPLE_BLOCK_KEY_FRAME_FLAG = 0x80;
+
+    private static final long VIDEO_TRACK_TYPE = 1;
+
+    private static final long DEFAULT_TIMECODE_SCALE_NS = 1_000_000L;
+
+    // Size of the indexed file, so a stale sidecar can be detected
+    @Getter
+    private final long fileSize;
+
+    // MkvTracksFingerprint of the tracks, so files with equivalent tracks have the same fingerprint
+    @Getter
+    private final long tracksFingerprint;
+
+    @Getter
+    private final List<ClusterEntry> clusters;
+
+    /**
+     * An indexed cluster.
+     */
+    @Getter
+    public static final class ClusterEntry {
+        // File offset of the cluster element
+        private final long offset;
+
+        // Length of the whole cluster element, including its header
+        private final int length;
+
+        // Absolute cluster timecode in milliseconds
+        private final long timecodeMs;
+
+        // True if the first video frame of this cluster is a key frame
+        private final boolean isKeyFrame;
+
+        // True if the cluster can be copied as it is with only its timecode updated
+        private final boolean isPassthrough;
+
+        /**
+         * Constructor of an index entry that is not passthrough.
+         *
+         * @param offset     File offset of the cluster element
+         * @param length     Length of the whole cluster element
+         * @param timecodeMs Absolute cluster timecode in milliseconds
+         * @param isKeyFrame True if the cluster starts with a key frame
+         */
+        public ClusterEntry(long offset, int length, long timecodeMs, boolean isKeyFrame) {
+            this(offset, length, timecodeMs, isKeyFrame, false);
+        }
+
+        /**
+         * Constructor of an index entry.
+         *
+         * @param offset        File offset of the cluster element
+         * @param length        Length of the whole cluster element
+         * @param timecodeMs    Absolute cluster timecode in milliseconds
+         * @param isKeyFrame    True if the cluster starts with a key frame
+         * @param isPassthrough True if the cluster can be copied as it is with only its timecode updated
+         */
+        public ClusterEntry(long offset, int length, long timecodeMs, boolean isKeyFrame, boolean isPassthrough) {
+            this.offset = offset;
+            this.length = length;
+            this.timecodeMs = timecodeMs;
+            this.isKeyFrame = isKeyFrame;
+            this.isPassthrough = isPassthrough;
+        }
+    }
+
+    /**
+     * Constructor of a cluster index.
+     *
+     * @param fileSize          Size of the indexed file
+     * @param tracksFingerprint Fingerprint of tracks in the indexed file
+     * @param clusters          Clusters in file order
+     */
+    public MkvClusterIndex(long fileSize, long tracksFingerprint, @NonNull List<ClusterEntry> clusters) {
+        this.fileSize = fileSize;
+        this.tracksFingerprint = tracksFingerprint;
+        this.clusters = Collections.unmodifiableList(new ArrayList<>(clusters));
+    }
+
+    /**
+     * Get the sidecar file of a recording.
+     *
+     * @param mkvFile The recording
+     * @return The sidecar file
+     */
+    public static File getSidecarFile(@NonNull File mkvFile) {
+        return new File(mkvFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Load the index from the sidecar of a recording, or build it by scanning the recording and write the sidecar if
+     * the sidecar is missing or stale.
+     *
+     * @param mkvFile The recording
+     * @return The cluster index
+     * @throws IOException              if the recording can't be read
+     * @throws MkvElementVisitException if the recording can't be parsed
+     */
+    public static MkvClusterIndex loadOrBuild(@NonNull File mkvFile) throws IOException, MkvElementVisitException {
+        final MkvClusterIndex freshIndex = loadIfFresh(mkvFile);
+        if (freshIndex != null) {
+            return freshIndex;
+        }
+
+        final File sidecarFile = getSidecarFile(mkvFile);
+        final MkvClusterIndex index = build(mkvFile);
+        try {
+            index.writeTo(sidecarFile);
+        } catch (IOException exception) {
+            log.warn("Unable to write cluster index " + sidecarFile.getName() + ": " + exception.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Load the index from the sidecar of a recording without building it.
+     *
+     * @param mkvFile The recording
+     * @return The cluster index, or null if the sidecar is missing, stale or invalid
+     */
+    public static MkvClusterIndex loadIfFresh(@NonNull File mkvFile) {
+        final File sidecarFile = getSidecarFile(mkvFile);
+        if (!sidecarFile.isFile()) {
+            return null;
+        }
+        try {
+            final MkvClusterIndex index = readFrom(sidecarFile);
+            if (index.getFileSize() == mkvFile.length()) {
+                return index;
+            }
+            log.debug("Cluster index of {} is stale", mkvFile.getName());
+        } catch (IOException exception) {
+            log.warn("Unable to read cluster index " + sidecarFile.getName() + ": " + exception.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Build the index by scanning a recording.
+     *
+     * @param mkvFile The recording
+     * @return The cluster index
+     * @throws IOException              if the recording can't be read
+     * @throws MkvElementVisitException if the recording can't be parsed
+     */
+    public static MkvClusterIndex build(@NonNull File mkvFile) throws IOException, MkvElementVisitException {
+        final Collector collector = new Collector();
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(mkvFile)) {
+            final EbmlParser ebmlParser = new EbmlParser(collector);
+            ebmlParser.setSkipPolicy(collector);
+            long position = 0;
+            ByteBuffer slice;
+            while ((slice = byteSource.nextSlice()) != null) {
+                position += slice.remaining();
+                ebmlParser.feed(slice);
+
+                final long skipLength = ebmlParser.takeSkipLength();
+                if (skipLength > 0) {
+                    position += skipLength;
+                    byteSource.seek(Math.min(position, byteSource.getFileSize()));
+                }
+            }
+            ebmlParser.endOfStream();
+            return new MkvClusterIndex(byteSource.getFileSize(), collector.tracksFingerprint.getValue(),
+                    collector.getClusters());
+        }
+    }
+
+    /**
+     * Read an index from a sidecar file.
+     *
+     * @param sidecarFile The sidecar file
+     * @return The cluster index
+     * @throws IOException if the file can't be read or is not a valid index
+     */
+    public static MkvClusterIndex readFrom(@NonNull File sidecarFile) throws IOException {
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(sidecarFile)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readByte() != VERSION) {
+                throw new IOException("Invalid cluster index " + sidecarFile.getName());
+            }
+            final long fileSize = inputStream.readLong();
+            final long tracksFingerprint = inputStream.readLong();
+            final int clusterCount = inputStream.readInt();
+            if (clusterCount < 0) {
+                throw new IOException("Invalid cluster count " + clusterCount);
+            }
+            final List<ClusterEntry> clusters = new ArrayList<>(Math.min(clusterCount, 1024));
+            for (int i = 0; i < clusterCount; i++) {
+                final long offset = inputStream.readLong();
+                final int length = inputStream.readInt();
+                final long timecodeMs = inputStream.readLong();
+                final byte flags = inputStream.readByte();
+                clusters.add(new ClusterEntry(offset, length, timecodeMs, (flags & FLAG_KEY_FRAME) != 0,
+                        (flags & FLAG_PASSTHROUGH) != 0));
+            }
+            return new MkvClusterIndex(fileSize, tracksFingerprint, clusters);
+        }
+    }
+
+    /**
+     * Write this index to a sidecar file.  It's written to a temporary file first and then moved, so readers never see
+     * a partial index.
+     *
+     * @param sidecarFile The sidecar file
+     * @throws IOException if the file can't be written
+     */
+    public void writeTo(@NonNull File sidecarFile) throws IOException {
+        final File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeByte(VERSION);
+            outputStream.writeLong(fileSize);
+            outputStream.writeLong(tracksFingerprint);
+            outputStream.writeInt(clusters.size());
+            for (ClusterEntry cluster : clusters) {
+                outputStream.writeLong(cluster.getOffset());
+                outputStream.writeInt(cluster.getLength());
+                outputStream.writeLong(cluster.getTimecodeMs());
+                outputStream.writeByte((cluster.isKeyFrame() ? FLAG_KEY_FRAME : 0)
+                        | (cluster.isPassthrough() ? FLAG_PASSTHROUGH : 0));
+            }
+        }
+        Files.move(tempFile.toPath(), sidecarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Find the last cluster that starts at or before the given time.
+     *
+     * @param timecodeMs Absolute time in milliseconds
+     * @return Index of the cluster, or -1 if all clusters start after the given time
+     */
+    public int findClusterAtOrBefore(long timecodeMs) {
+        int low = 0;
+        int high = clusters.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (clusters.get(mid).getTimecodeMs() <= timecodeMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Find the last key frame cluster that starts at or before the given time, which is where a decoder can start to
+     * show the given time.
+     *
+     * @param timecodeMs Absolute time in milliseconds
+     * @return Index of the cluster, or the first key frame cluster if there is none before the given time, or -1 if
+     * there is no key frame cluster
+     */
+    public int findKeyFrameClusterAtOrBefore(long timecodeMs) {
+        for (int i = findClusterAtOrBefore(timecodeMs); i >= 0; i--) {
+            if (clusters.get(i).isKeyFrame()) {
+                return i;
+            }
+        }
+        for (int i = 0; i < clusters.size(); i++) {
+            if (clusters.get(i).isKeyFrame()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first key frame cluster that starts after the given time, which is where an upload resumes after the
+     * fragment at the given time is persisted.
+     *
+     * @param timecodeMs Absolute time in milliseconds
+     * @return Index of the cluster, or -1 if there is no key frame cluster after the given time
+     */
+    public int findKeyFrameClusterAfter(long timecodeMs) {
+        for (int i = findClusterAtOrBefore(timecodeMs) + 1; i < clusters.size(); i++) {
+            if (clusters.get(i).isKeyFrame()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collect clusters and tracks fingerprint from parser callbacks.  Elements that don't affect the index are
+     * skipped.  While clusters of the recording may be passthrough, every child of a cluster is reported, as it
+     * decides the passthrough flag and the time order of simple blocks.  Otherwise simple blocks are skipped once the
+     * key frame flag of their cluster is decided.
+     */
+    private static final class Collector implements EbmlParserCallback, EbmlSkipPolicy {
+        private static final int ID_TIMECODESCALE = MkvTypeInfos.TIMECODESCALE.getId();
+        private static final int ID_TRACKS = MkvTypeInfos.TRACKS.getId();
+        private static final int ID_TRACKENTRY = MkvTypeInfos.TRACKENTRY.getId();
+        private static final int ID_TRACKNUMBER = MkvTypeInfos.TRACKNUMBER.getId();
+        private static final int ID_TRACKTYPE = MkvTypeInfos.TRACKTYPE.getId();
+        private static final int ID_CLUSTER = MkvTypeInfos.CLUSTER.getId();
+        private static final int ID_TIMECODE = MkvTypeInfos.TIMECODE.getId();
+        private static final int ID_SIMPLEBLOCK = MkvTypeInfos.SIMPLEBLOCK.getId();
+        private static final int ID_SEGMENT = MkvTypeInfos.SEGMENT.getId();
+        private static final Set<Integer> SKIPPED_IDS = new HashSet<>(Arrays.asList(
+                MkvTypeInfos.CUES.getId(),
+                MkvTypeInfos.TAGS.getId(),
+                MkvTypeInfos.ATTACHMENTS.getId(),
+                MkvTypeInfos.CHAPTERS.getId(),
+                MkvTypeInfos.BLOCKGROUP.getId(),
+                MkvTypeInfos.VOID.getId(),
+                MkvTypeInfos.CRC_32.getId()));
+
+        private final List<ClusterEntry> clusters = new ArrayList<>();
+        private final Set<Long> videoTrackNumbers = new HashSet<>();
+        private long timecodeScaleNs = DEFAULT_TIMECODE_SCALE_NS;
+        private int segmentCount = 0;
+
+        // Tracks state
+        private boolean isInTracks = false;
+        private boolean isTracksFingerprinted = false;
+        private final MkvTracksFingerprint tracksFingerprint = new MkvTracksFingerprint();
+        private long trackNumber = 0;
+        private long trackType = 0;
+        private final Set<Long> trackNumbers = new HashSet<>();
+
+        // Latest absolute simple block timecodes per track, and of the previous cluster
+        private final Map<Long, Long> latestTrackTimecodes = new HashMap<>();
+        private long previousClusterLatestTimecode = Long.MIN_VALUE;
+
+        // Cluster state
+        private boolean isInCluster = false;
+        private long clusterOffset = 0;
+        private long clusterTimecode = 0;
+        private boolean isKeyFrameDecided = false;
+        private boolean isKeyFrame = false;
+        private boolean isPassthrough = false;
+        private boolean isOrdered = false;
+        private boolean hasChildren = false;
+        private boolean hasTimecode = false;
+        private int latestRelativeTimecode = Integer.MIN_VALUE;
+        private long clusterLatestTimecode = Long.MIN_VALUE;
+        private final Set<Long> clusterTrackNumbers = new HashSet<>();
+
+        @Override
+        public boolean isSkipped(int id) {
+            if (isInCluster && isPassthroughPossible()) {
+                return false;
+            }
+            return SKIPPED_IDS.contains(id) || (id == ID_SIMPLEBLOCK && isKeyFrameDecided);
+        }
+
+        /**
+         * Check if clusters may still be passthrough.  Segments, timecode scale and tracks precede clusters, so once
+         * it's false, it's false for the rest of the recording.
+         */
+        private boolean isPassthroughPossible() {
+            return segmentCount == 1 && timecodeScaleNs == DEFAULT_TIMECODE_SCALE_NS && !trackNumbers.isEmpty();
+        }
+
+        private List<ClusterEntry> getClusters() {
+            if (segmentCount > 1) {
+                // Clusters of different segments can't be told apart by the merger, so none of them is passthrough
+                for (int i = 0; i < clusters.size(); i++) {
+                    clearPassthrough(i);
+                }
+            }
+            return clusters;
+        }
+
+        private void clearPassthrough(int index) {
+            final ClusterEntry cluster = clusters.get(index);
+            if (cluster.isPassthrough()) {
+                clusters.set(index, new ClusterEntry(cluster.getOffset(), cluster.getLength(),
+                        cluster.getTimecodeMs(), cluster.isKeyFrame()));
+            }
+        }
+
+        @Override
+        public void onMasterStart(int id, long elementOffset, long dataSize, ByteBuffer buffer, int headerOffset,
+                                  int headerLength) {
+            if (id == ID_CLUSTER) {
+                isInCluster = true;
+                clusterOffset = elementOffset;
+                clusterTimecode = 0;
+                isKeyFrameDecided = false;
+                isKeyFrame = false;
+                isPassthrough = true;
+                isOrdered = true;
+                hasChildren = false;
+                hasTimecode = false;
+                latestRelativeTimecode = Integer.MIN_VALUE;
+                clusterLatestTimecode = Long.MIN_VALUE;
+                clusterTrackNumbers.clear();
+            } else if (isInCluster) {
+                // Block groups and other master elements are rewritten by the merger
+                isPassthrough = false;
+            } else if (id == ID_SEGMENT) {
+                segmentCount++;
+            } else if (id == ID_TRACKS) {
+                isInTracks = !isTracksFingerprinted;
+            } else if (isInTracks) {
+                if (id == ID_TRACKENTRY) {
+                    trackNumber = 0;
+                    trackType = 0;
+                }
+                tracksFingerprint.addMasterStart(id);
+            }
+        }
+
+        @Override
+        public void onMasterEnd(int id, long endOffset) {
+            if (id == ID_CLUSTER && isInCluster) {
+                isInCluster = false;
+                final long timecodeMs = clusterTimecode * timecodeScaleNs / 1_000_000L;
+                final int previousIndex = clusters.size() - 1;
+                if (previousIndex >= 0 && (!isOrdered || clusters.get(previousIndex).getTimecodeMs() >= timecodeMs
+                        || previousClusterLatestTimecode > timecodeMs)) {
+                    // Simple blocks would be moved or dropped across this cluster and previous cluster
+                    clearPassthrough(previousIndex);
+                    isPassthrough = false;
+                }
+                isPassthrough = isPassthrough && isPassthroughPossible()
+                        && clusterTrackNumbers.containsAll(trackNumbers);
+                clusters.add(new ClusterEntry(clusterOffset, (int) (endOffset - clusterOffset), timecodeMs,
+                        isKeyFrame, isPassthrough));
+                previousClusterLatestTimecode = clusterLatestTimecode;
+            } else if (id == ID_TRACKS && isInTracks) {
+                isInTracks = false;
+                isTracksFingerprinted = true;
+            } else if (isInTracks) {
+                if (id == ID_TRACKENTRY && trackType == VIDEO_TRACK_TYPE) {
+                    videoTrackNumbers.add(trackNumber);
+                }
+                tracksFingerprint.addMasterEnd(id);
+            }
+        }
+
+        @Override
+        public void onDataElement(int id, long elementOffset, ByteBuffer buffer, int headerOffset, int headerLength,
+                                  int dataLength) throws MkvElementVisitException {
+            final int dataOffset = headerOffset + headerLength;
+            if (isInCluster) {
+                if (id == ID_TIMECODE) {
+                    clusterTimecode = EbmlVint.readUnsigned(buffer, dataOffset, dataLength);
+                    isPassthrough = isPassthrough && !hasChildren;
+                    hasTimecode = true;
+                } else if (id == ID_SIMPLEBLOCK) {
+                    if (!isKeyFrameDecided) {
+                        decideKeyFrame(buffer, dataOffset, dataLength);
+                    }
+                    checkSimpleBlockOrder(buffer, dataOffset, dataLength);
+                } else {
+                    isPassthrough = false;
+                }
+                hasChildren = true;
+            } else if (isInTracks) {
+                if (id == ID_TRACKNUMBER) {
+                    trackNumber = EbmlVint.readUnsigned(buffer, dataOffset, dataLength);
+                    trackNumbers.add(trackNumber);
+                } else if (id == ID_TRACKTYPE) {
+                    trackType = EbmlVint.readUnsigned(buffer, dataOffset, dataLength);
+                }
+                tracksFingerprint.addDataElement(id, buffer, dataOffset, dataLength);
+            } else if (id == ID_TIMECODESCALE) {
+                timecodeScaleNs = EbmlVint.readUnsigned(buffer, dataOffset, dataLength);
+            }
+        }
+
+        /**
+         * Check if a simple block keeps the cluster passthrough.  It has to follow the cluster timecode, be of a known
+         * track, not be earlier than the previous simple block of the cluster, and be later than the previous simple
+         * block of its track.
+         */
+        private void checkSimpleBlockOrder(ByteBuffer buffer, int dataOffset, int dataLength) {
+            final int trackNumberLength = dataLength > 0 ? EbmlVint.length(buffer.get(dataOffset)) : 0;
+            if (!hasTimecode || trackNumberLength == 0 || dataLength < trackNumberLength + SIMPLE_BLOCK_TIMECODE_SIZE) {
+                isPassthrough = false;
+                return;
+            }
+            final long blockTrackNumber = EbmlVint.readValue(buffer, dataOffset, trackNumberLength);
+            final short relativeTimecode = (short) EbmlVint.readUnsigned(buffer, dataOffset + trackNumberLength,
+                    SIMPLE_BLOCK_TIMECODE_SIZE);
+            final long timecode = clusterTimecode + relativeTimecode;
+            final Long latestTrackTimecode = latestTrackTimecodes.get(blockTrackNumber);
+            if (relativeTimecode < 0 || relativeTimecode < latestRelativeTimecode
+                    || (latestTrackTimecode != null && timecode <= latestTrackTimecode)) {
+                isOrdered = false;
+            }
+            isPassthrough = isPassthrough && isOrdered && trackNumbers.contains(blockTrackNumber);
+            latestRelativeTimecode = Math.max(latestRelativeTimecode, relativeTimecode);
+            clusterLatestTimecode = Math.max(clusterLatestTimecode, timecode);
+            latestTrackTimecodes.merge(blockTrackNumber, timecode, Math::max);
+            clusterTrackNumbers.add(blockTrackNumber);
+        }
+
+        private void decideKeyFrame(ByteBuffer buffer, int dataOffset, int dataLength)
+                throws MkvElementVisitException {
+            // Simple block data starts with a VINT track number, a 16 bits timecode, and then a flags byte
+            final int trackNumberLength = dataLength > 0 ? EbmlVint.length(buffer.get(dataOffset)) : 0;
+            if (trackNumberLength == 0 || dataLength <= trackNumberLength + SIMPLE_BLOCK_TIMECODE_SIZE) {
+                throw new MkvElementVisitException("Invalid simple block", new RuntimeException());
+            }
+            final long blockTrackNumber = EbmlVint.readValue(buffer, dataOffset, trackNumberLength);
+            if (videoTrackNumbers.isEmpty() || videoTrackNumbers.contains(blockTrackNumber)) {
+                final int flags = buffer.get(dataOffset + trackNumberLength + SIMPLE_BLOCK_TIMECODE_SIZE);
+                isKeyFrame = (flags & SIMPLE_BLOCK_KEY_FRAME_FLAG) != 0;
+                isKeyFrameDecided = true;
+            }
+        }
+    }
+}
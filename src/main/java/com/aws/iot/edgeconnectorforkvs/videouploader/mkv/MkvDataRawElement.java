@@ -1,24 +1,20 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import lombok.NonNull;
-import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 
-import java.nio.BufferOverflowException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.util.Arrays;
 
 /**
  * It's a subclass of {@link MkvRawElement}.  It's the leaf element of MKV.  It contains data field and has no children
  * elements.
  */
-@Slf4j
 public class MkvDataRawElement extends MkvRawElement {
 
-    private byte[] data;
+    private static final int ID_CODEC_ID = MkvTypeInfos.CODECID.getId();
+
+    private final byte[] data;
 
     /**
      * The constructor.
@@ -29,58 +25,39 @@ public class MkvDataRawElement extends MkvRawElement {
     public MkvDataRawElement(ByteBuffer idAndSizeByteBuffer, @NonNull ByteBuffer dataByteBuffer) {
         super(idAndSizeByteBuffer);
 
-        dataByteBuffer.rewind();
-        data = new byte[dataByteBuffer.remaining()];
-        try {
-            dataByteBuffer.get(data);
-        } catch (BufferUnderflowException ex) {
-            log.error("Buffer Underflow Exception: " + ex.getMessage());
-        }
-
-        // MKV CodecID element's header is 0x86, so we check its length and its value here.
-        if (this.getIdCopy().length == 1 && this.getIdCopy()[0] == (byte) 0x86) {
+        final ByteBuffer source = dataByteBuffer.duplicate();
+        source.rewind();
+        int len = source.remaining();
+        if (this.getId() == ID_CODEC_ID) {
             // It's CodecID element. Remove any end of string character '\0' if any.
-            int len = data.length;
-            while (len > 0 && data[len - 1] == '\0') {
+            while (len > 0 && source.get(len - 1) == '\0') {
                 len--;
             }
-            if (len != data.length) {
-                data = Arrays.copyOf(data, len);
-            }
         }
+        data = new byte[len];
+        source.get(data);
 
         this.setDataLen(data.length);
     }
 
     /**
-     * Return a copy of data.
+     * Return a read-only view of data.
      *
      * @return data
      */
-    public byte[] getData() {
-        return data.clone();
+    public ByteBuffer getData() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
-    /**
-     * Convert this MKV raw element into byte array.
-     *
-     * @return The MKV elements in byte array
-     */
     @Override
-    public byte[] toMkvRawData() {
-        final byte[] size = getMkvSize(this.getDataLen());
-        final byte[] raw = new byte[this.getIdCopy().length + size.length + data.length];
-        final ByteBuffer buffer = ByteBuffer.wrap(raw);
-        try {
-            buffer.put(this.getIdCopy());
-            buffer.put(size);
-            buffer.put(data);
-        } catch (BufferOverflowException ex) {
-            log.error("Buffer Overflow Exception: " + ex.getMessage());
-        } catch (ReadOnlyBufferException ex) {
-            log.error("Readonly Buffer Exception: " + ex.getMessage());
-        }
-        return buffer.array();
+    protected long updateElementLength() {
+        return this.getHeaderLength() + this.getDataLen();
+    }
+
+    @Override
+    protected void writeTo(ByteBuffer buffer) {
+        this.writeHeader(buffer);
+        buffer.put(data);
     }
 
     /**
@@ -98,11 +75,9 @@ public class MkvDataRawElement extends MkvRawElement {
             return false;
         }
         MkvDataRawElement other = (MkvDataRawElement) otherObj;
-        return new EqualsBuilder()
-                .append(this.getIdCopy(), other.getIdCopy())
-                .append(this.getDataLen(), other.getDataLen())
-                .append(this.data, other.getData())
-                .isEquals();
+        return this.getId() == other.getId()
+                && this.getDataLen() == other.getDataLen()
+                && Arrays.equals(this.data, other.data);
     }
 
     /**
@@ -112,10 +87,6 @@ public class MkvDataRawElement extends MkvRawElement {
      */
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()
-                .append(this.getIdCopy())
-                .append(this.getDataLen())
-                .append(data)
-                .toHashCode();
+        return 31 * (31 * this.getId() + Long.hashCode(this.getDataLen())) + Arrays.hashCode(data);
     }
 }
@@ -15,42 +15,102 @@
 
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
-import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.aws.iot.edgeconnectorforkvs.util.TraceRing;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MergeFragmentException;
 import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
+import java.util.List;
 import java.util.ListIterator;
 
 /**
- * A MKV input stream that support time ordering elements and merging 2 different MKV files.
+ * A MKV input stream that support time ordering elements and merging 2 different MKV files.  When a time range is
+ * given, only clusters from the key frame at or before the range start to the cluster containing the range end are
+ * read, and clusters outside the range are skipped by their offsets in {@link MkvClusterIndex}.  Only files at the
+ * edges of the range are trimmed, and files within the range are read as a whole without an index.  When a
+ * {@link MergedOutputCache} is given, the merged output of each file is cached, and a retried upload of the same files
+ * streams it from the cache, even if the retry starts at another time.
+ *
+ * <p>Clusters flagged as passthrough in {@link MkvClusterIndex} are already what the merger would write, so they are
+ * streamed from the file with only their timecodes updated, if the merger allows it.  Their simple blocks are never
+ * parsed or buffered here.  They are read straight into the buffer of the reader, or transferred to the cache by
+ * {@link FileRegionInputStream}.  The last cluster of a file is always merged, so the merger knows where the next file
+ * continues.  Files without an index sidecar are merged as a whole, so an index is never built only for this.</p>
  */
 @Slf4j
 public class MkvFilesInputStream extends InputStream {
 
+    private static final String FLUSH_CACHE_IDENTITY = "flush";
+
+    private static final int ID_CLUSTER = MkvTypeInfos.CLUSTER.getId();
+
+    private static final int ID_TIMECODE = MkvTypeInfos.TIMECODE.getId();
+
+    // Max length of a cluster header and its timecode element
+    private static final int MAX_CLUSTER_PREFIX_LENGTH = 2 * (EbmlVint.MAX_ID_LENGTH + EbmlVint.MAX_SIZE_LENGTH)
+            + Long.BYTES;
+
+    private static final byte[] CLUSTER_ELEMENT_WITH_UNKNOWN_LENGTH =
+            new byte[]{(byte) 0x1F, (byte) 0x43, (byte) 0xB6, (byte) 0x75, (byte) 0xFF};
+
     private final ListIterator<VideoFile> mkvIterator;
 
     private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
 
     private final MergeFragmentVisitor mergeFragmentVisitor = MergeFragmentVisitor.create(byteArrayOutputStream);
 
-    private ByteArrayInputStream byteArrayInputStream = null;
+    // Output that is being read, which is streamed from memory, from a file region or from the cache
+    private InputStream currentInputStream = null;
+
+    // Output of the current file to read after the current input stream, which is merged output in memory and regions
+    // of passthrough clusters in the file
+    private final Deque<InputStream> pendingOutput = new ArrayDeque<>();
 
     private Date mkvStartTime = null;
 
     private boolean isClosed = false;
 
+    // Time range to upload, or null to upload whole files
+    private final Date rangeStartTime;
+    private final Date rangeEndTime;
+
+    private FragmentDurationRange fragmentDurationRange = null;
+
+    private MergedOutputCache mergedOutputCache = null;
+
+    // Identity and cache key of the latest file that has output, which the output of the next file depends on
+    private String previousFileIdentity = null;
+    private String previousFileCacheKey = null;
+
+    // The latest file whose output is streamed from cache, and that has to be parsed before parsing a file that is not
+    // cached.  Earlier files don't have to be parsed, because only the last cluster of a file is held by the merger.
+    private VideoFile unparsedCachedFile = null;
+
+    private boolean isOutputFlushed = false;
+
+    private boolean isPassthroughEnabled = true;
+
+    // Count of clusters copied without being merged
+    @Getter
+    private long passthroughClusterCount = 0;
+
     /**
      * Constructor of MKV files input stream.
      *
@@ -58,6 +118,53 @@ public class MkvFilesInputStream extends InputStream {
      */
     public MkvFilesInputStream(@NonNull ListIterator<VideoFile> mkvIterator) {
         this.mkvIterator = mkvIterator;
+        this.rangeStartTime = null;
+        this.rangeEndTime = null;
+    }
+
+    /**
+     * Constructor of MKV files input stream that only reads clusters within a time range.
+     *
+     * @param mkvIterator    A file iterator that contains all MKV files
+     * @param rangeStartTime Start time of the range
+     * @param rangeEndTime   End time of the range
+     */
+    public MkvFilesInputStream(@NonNull ListIterator<VideoFile> mkvIterator, @NonNull Date rangeStartTime,
+                               @NonNull Date rangeEndTime) {
+        if (rangeEndTime.before(rangeStartTime)) {
+            throw new IllegalArgumentException("Invalid time range");
+        }
+        this.mkvIterator = mkvIterator;
+        this.rangeStartTime = new Date(rangeStartTime.getTime());
+        this.rangeEndTime = new Date(rangeEndTime.getTime());
+    }
+
+    /**
+     * Set target range of fragment durations for merged clusters.
+     *
+     * @param fragmentDurationRange The range, or null to keep clusters as they are
+     */
+    public void setFragmentDurationRange(FragmentDurationRange fragmentDurationRange) {
+        mergeFragmentVisitor.setFragmentDurationRange(fragmentDurationRange);
+        this.fragmentDurationRange = fragmentDurationRange;
+    }
+
+    /**
+     * Set cache of merged output.  It must be set before reading.
+     *
+     * @param mergedOutputCache The cache, or null to merge without caching
+     */
+    public void setMergedOutputCache(MergedOutputCache mergedOutputCache) {
+        this.mergedOutputCache = mergedOutputCache;
+    }
+
+    /**
+     * Set if clusters flagged as passthrough are copied without being merged.  It's enabled by default.
+     *
+     * @param isPassthroughEnabled True to copy passthrough clusters
+     */
+    public void setPassthroughEnabled(boolean isPassthroughEnabled) {
+        this.isPassthroughEnabled = isPassthroughEnabled;
     }
 
     @Override
@@ -66,10 +173,10 @@ public class MkvFilesInputStream extends InputStream {
             return -1;
         } else {
             wantMoreData();
-            if (byteArrayInputStream == null) {
+            if (currentInputStream == null) {
                 return -1;
             } else {
-                return byteArrayInputStream.available();
+                return available(currentInputStream);
             }
         }
     }
@@ -77,6 +184,7 @@ public class MkvFilesInputStream extends InputStream {
     @Override
     public void close() {
         closeMkvInputStream();
+        discardOutput();
         try {
             // FIXME: The data flushed here are not able to read out.
             mergeFragmentVisitor.flush();
@@ -94,7 +202,13 @@ public class MkvFilesInputStream extends InputStream {
     @Override
     public int read() {
         if (available() >= 0) {
-            return byteArrayInputStream.read();
+            try {
+                return currentInputStream.read();
+            } catch (IOException exception) {
+                log.error("Unable to read merged output");
+                close();
+                return -1;
+            }
         } else {
             return -1;
         }
@@ -103,23 +217,29 @@ public class MkvFilesInputStream extends InputStream {
     @Override
     public int read(byte[] b, int off, int len) {
         if (available() >= 0) {
-            return byteArrayInputStream.read(b, off, len);
+            try {
+                return currentInputStream.read(b, off, len);
+            } catch (IOException exception) {
+                log.error("Unable to read merged output");
+                close();
+                return -1;
+            }
         } else {
             return -1;
         }
     }
 
     private void wantMoreData() {
-        if (byteArrayInputStream != null) {
-            if (byteArrayInputStream.available() > 0) {
-                return;
-            } else {
-                closeMkvInputStream();
-            }
+        while (currentInputStream != null && available(currentInputStream) <= 0) {
+            closeMkvInputStream();
+            currentInputStream = pendingOutput.poll();
+        }
+        if (currentInputStream != null) {
+            return;
         }
 
         // We don't have data to read in current input stream.  Try to get data from next file.
-        while (byteArrayInputStream == null) {
+        while (currentInputStream == null) {
             if (!mkvIterator.hasNext()) {
                 break;
             }
@@ -130,61 +250,377 @@ public class MkvFilesInputStream extends InputStream {
                 mkvStartTime = mkvTimestamp;
             }
 
-            try (FileInputStream fileInputStream = new FileInputStream(mkvFile)) {
-                final StreamingMkvReader streamingMkvReader =
-                        StreamingMkvReader.createDefault(
-                                new InputStreamParserByteSource(fileInputStream));
-
-                mergeFragmentVisitor.setNextFragmentTimecodeOffsetMs(mkvTimestamp.getTime() - mkvStartTime.getTime());
-                streamingMkvReader.apply(mergeFragmentVisitor);
+            final String fileCacheKey = mergedOutputCache == null ? null
+                    : MergedOutputCache.createKey(null, getCacheIdentity(mkvFile));
+            final InputStream cachedOutput = fileCacheKey == null ? null : mergedOutputCache.open(fileCacheKey);
+            if (cachedOutput != null) {
+                log.debug("File: {} is streamed from cache", mkvFile.getAbsolutePath());
                 mkvFile.setParsed(true);
+                unparsedCachedFile = mkvFile;
+                setPreviousFile(mkvFile, fileCacheKey);
+                currentInputStream = cachedOutput;
+                continue;
+            }
 
-                if (byteArrayOutputStream.size() > 0) {
-                    byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+            try (MappedFileByteSource byteSource = new MappedFileByteSource(mkvFile)) {
+                replayCachedFile();
+                parseFile(mkvFile, byteSource);
+                mkvFile.setParsed(true);
+                cutMergedOutput();
+                if (!pendingOutput.isEmpty()) {
+                    if (fileCacheKey != null) {
+                        mergedOutputCache.put(fileCacheKey, pendingOutput);
+                    }
+                    setPreviousFile(mkvFile, fileCacheKey);
+                    currentInputStream = pendingOutput.poll();
                 } else {
                     log.info("File: {} doesn't contain any video data, skip merging.", mkvFile.getAbsolutePath());
                     closeMkvInputStream();
                 }
             } catch (FileNotFoundException exception) {
                 log.error("File not found " + mkvFile.getAbsolutePath());
+                stopCaching();
             } catch (IOException exception) {
-                log.error("Failed to close file: " + mkvFile.getAbsolutePath());
+                log.error("Failed to read file: " + mkvFile.getAbsolutePath());
+                stopCaching();
             } catch (MkvElementVisitException exception) {
                 log.error("Unable to parse " + mkvFile.getAbsolutePath());
+                TraceRing.getDefault().dump(log, "parse error");
+                stopCaching();
             } catch (MergeFragmentException exception) {
                 log.error("Failed to merge file: " + mkvFile.getAbsolutePath());
                 mkvIterator.previous();
-                closeMkvInputStream();
+                discardOutput();
                 break;
             }
         }
 
-        if (byteArrayInputStream == null) {
+        if (currentInputStream == null) {
             // We don't have data after iterate all files that can be merged, try to flush and get some data
             try {
-                mergeFragmentVisitor.flush();
-                if (byteArrayOutputStream.size() > 0) {
-                    byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-                } else {
+                currentInputStream = flushOutput();
+                if (currentInputStream == null || available(currentInputStream) <= 0) {
                     // No more available date, close it.
                     log.info("No more mkv data available to read");
                     close();
                 }
             } catch (IOException exception) {
                 log.debug("Failed to flush visitor");
+            } catch (MkvElementVisitException exception) {
+                log.error("Unable to parse cached files");
+            }
+        }
+    }
+
+    private void parseFile(VideoFile mkvFile, MappedFileByteSource byteSource)
+            throws IOException, MkvElementVisitException {
+        final EbmlParser ebmlParser = new EbmlParser(mergeFragmentVisitor);
+        ebmlParser.setSkipPolicy(mergeFragmentVisitor);
+
+        final long timecodeOffsetMs = mkvFile.getVideoDate().getTime() - mkvStartTime.getTime();
+        mergeFragmentVisitor.setNextFragmentTimecodeOffsetMs(timecodeOffsetMs);
+        if (rangeStartTime != null && isTrimmed(mkvFile)) {
+            feedClustersInRange(mkvFile, byteSource, ebmlParser, timecodeOffsetMs);
+        } else if (isPassthroughEnabled && MkvClusterIndex.getSidecarFile(mkvFile).isFile()) {
+            final MkvClusterIndex clusterIndex = MkvClusterIndex.loadOrBuild(mkvFile);
+            if (clusterIndex.getClusters().isEmpty()) {
+                feedRange(byteSource, ebmlParser, 0, byteSource.getFileSize());
+            } else {
+                feedClusters(mkvFile, byteSource, ebmlParser, clusterIndex, 0, clusterIndex.getClusters().size() - 1,
+                        byteSource.getFileSize(), timecodeOffsetMs);
+            }
+        } else {
+            feedRange(byteSource, ebmlParser, 0, byteSource.getFileSize());
+        }
+        ebmlParser.endOfStream();
+    }
+
+    /**
+     * Parse the latest file streamed from cache, so the visitor holds the same cluster as if it was just parsed.  Its
+     * output has been streamed, so it's dropped.
+     */
+    private void replayCachedFile() throws IOException, MkvElementVisitException {
+        if (unparsedCachedFile == null) {
+            return;
+        }
+        log.debug("File: {} is parsed again to merge files that are not cached", unparsedCachedFile.getAbsolutePath());
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(unparsedCachedFile)) {
+            parseFile(unparsedCachedFile, byteSource);
+        } finally {
+            unparsedCachedFile = null;
+            discardOutput();
+        }
+    }
+
+    /**
+     * Flush the cluster held by the merger once all files are read.
+     *
+     * @return Input stream of the flushed output, or null if there is nothing more to read
+     */
+    private InputStream flushOutput() throws IOException, MkvElementVisitException {
+        if (isOutputFlushed) {
+            return null;
+        }
+        isOutputFlushed = true;
+        final String flushCacheKey = (mergedOutputCache == null || previousFileCacheKey == null) ? null
+                : MergedOutputCache.createKey(previousFileCacheKey, FLUSH_CACHE_IDENTITY);
+        if (flushCacheKey != null) {
+            final InputStream cachedOutput = mergedOutputCache.open(flushCacheKey);
+            if (cachedOutput != null) {
+                // Everything of cached files has been streamed, so they don't have to be parsed any more
+                unparsedCachedFile = null;
+                return cachedOutput;
+            }
+        }
+
+        replayCachedFile();
+        mergeFragmentVisitor.flush();
+        final byte[] flushedOutput = byteArrayOutputStream.toByteArray();
+        byteArrayOutputStream.reset();
+        if (flushCacheKey != null) {
+            mergedOutputCache.put(flushCacheKey, flushedOutput);
+        }
+        return flushedOutput.length > 0 ? new ByteArrayInputStream(flushedOutput) : null;
+    }
+
+    /**
+     * Identity of a file and parameters that affect its merged output, so the same file is streamed from cache when
+     * it's uploaded again in another time range.  Timecodes of a file are adjusted by its offset from the first file.
+     * The output also depends on the previous file that has output, whose last cluster is emitted with the first
+     * cluster of this file, or the segment header if there is none.  Range bounds are only included when the file is
+     * trimmed by them.
+     */
+    private String getCacheIdentity(VideoFile mkvFile) {
+        final StringBuilder identity = new StringBuilder(getFileIdentity(mkvFile))
+                .append(",offset=").append(mkvFile.getVideoDate().getTime() - mkvStartTime.getTime())
+                .append(",previous=");
+        if (previousFileIdentity != null) {
+            identity.append(previousFileIdentity);
+        }
+        identity.append(",range=");
+        if (rangeStartTime != null) {
+            if (mkvFile.getVideoDate().before(rangeStartTime)) {
+                identity.append(rangeStartTime.getTime());
+            }
+            identity.append('-');
+            if (mkvFile.lastModified() > rangeEndTime.getTime()) {
+                identity.append(rangeEndTime.getTime());
+            }
+        }
+        identity.append(",duration=");
+        if (fragmentDurationRange != null) {
+            identity.append(fragmentDurationRange.getMinDurationMs()).append('-')
+                    .append(fragmentDurationRange.getMaxDurationMs()).append('-')
+                    .append(fragmentDurationRange.isSplitting());
+        }
+        return identity.toString();
+    }
+
+    private static String getFileIdentity(VideoFile mkvFile) {
+        return mkvFile.getAbsolutePath() + ',' + mkvFile.length() + ',' + mkvFile.lastModified();
+    }
+
+    private void setPreviousFile(VideoFile mkvFile, String fileCacheKey) {
+        previousFileIdentity = getFileIdentity(mkvFile);
+        previousFileCacheKey = fileCacheKey;
+    }
+
+    /**
+     * Stop caching output of this stream, because output of later files depends on a file that failed to be merged.
+     */
+    private void stopCaching() {
+        mergedOutputCache = null;
+    }
+
+    /**
+     * Check if a file has to be trimmed to the time range, i.e. the range starts after the file starts, or the file was
+     * still written after the range ends.
+     */
+    private boolean isTrimmed(VideoFile mkvFile) {
+        return mkvFile.getVideoDate().before(rangeStartTime) || mkvFile.lastModified() > rangeEndTime.getTime();
+    }
+
+    /**
+     * Feed the headers before the first cluster, and then clusters that overlap the time range.  Cluster timecodes
+     * are relative to the date in the filename.
+     */
+    private void feedClustersInRange(VideoFile mkvFile, MappedFileByteSource byteSource, EbmlParser ebmlParser,
+                                     long timecodeOffsetMs) throws IOException, MkvElementVisitException {
+        final MkvClusterIndex clusterIndex = MkvClusterIndex.loadOrBuild(mkvFile);
+        final List<MkvClusterIndex.ClusterEntry> clusters = clusterIndex.getClusters();
+        final long fileStartTime = mkvFile.getVideoDate().getTime();
+
+        final int lastCluster = clusterIndex.findClusterAtOrBefore(rangeEndTime.getTime() - fileStartTime);
+        int firstCluster = clusterIndex.findKeyFrameClusterAtOrBefore(rangeStartTime.getTime() - fileStartTime);
+        if (firstCluster < 0) {
+            // No key frame is known, so start from the first cluster
+            firstCluster = 0;
+        }
+        if (lastCluster < firstCluster) {
+            log.info("File: {} has no cluster in the time range, skip it.", mkvFile.getAbsolutePath());
+            return;
+        }
+
+        final MkvClusterIndex.ClusterEntry last = clusters.get(lastCluster);
+        log.debug("File: {}, read clusters {} to {} of {}", mkvFile.getAbsolutePath(), firstCluster, lastCluster,
+                clusters.size());
+        feedClusters(mkvFile, byteSource, ebmlParser, clusterIndex, firstCluster, lastCluster,
+                last.getOffset() + last.getLength(), timecodeOffsetMs);
+    }
+
+    /**
+     * Feed the headers before the first cluster, and then clusters from the first cluster to the end offset.  Leading
+     * passthrough clusters before the last cluster are copied instead of being fed, if the merger allows it.
+     */
+    private void feedClusters(VideoFile mkvFile, MappedFileByteSource byteSource, EbmlParser ebmlParser,
+                              MkvClusterIndex clusterIndex, int firstCluster, int lastCluster, long end,
+                              long timecodeOffsetMs) throws IOException, MkvElementVisitException {
+        final List<MkvClusterIndex.ClusterEntry> clusters = clusterIndex.getClusters();
+        feedRange(byteSource, ebmlParser, 0, clusters.get(0).getOffset());
+
+        int passthroughEnd = firstCluster;
+        if (isPassthroughEnabled) {
+            while (passthroughEnd < lastCluster && clusters.get(passthroughEnd).isPassthrough()) {
+                passthroughEnd++;
+            }
+            if (passthroughEnd > firstCluster && mergeFragmentVisitor.startPassthrough(
+                    clusters.get(firstCluster).getTimecodeMs() + timecodeOffsetMs)) {
+                copyClusters(mkvFile, clusters.subList(firstCluster, passthroughEnd), timecodeOffsetMs);
+            } else {
+                passthroughEnd = firstCluster;
+            }
+        }
+        feedRange(byteSource, ebmlParser, clusters.get(passthroughEnd).getOffset(), end);
+    }
+
+    /**
+     * Copy clusters to the output.  Each cluster is written with the same header and timecode element as the merger
+     * writes, followed by a region of the file with its simple blocks, which is streamed without being read here.
+     */
+    private void copyClusters(VideoFile mkvFile, List<MkvClusterIndex.ClusterEntry> clusters, long timecodeOffsetMs)
+            throws IOException, MkvElementVisitException {
+        final ByteBuffer prefix = ByteBuffer.allocate(MAX_CLUSTER_PREFIX_LENGTH);
+        final ByteBuffer header = ByteBuffer.allocate(CLUSTER_ELEMENT_WITH_UNKNOWN_LENGTH.length + 2 + Long.BYTES);
+        try (FileChannel fileChannel = FileChannel.open(mkvFile.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = fileChannel.size();
+            for (MkvClusterIndex.ClusterEntry cluster : clusters) {
+                prefix.clear();
+                int readLength;
+                do {
+                    readLength = fileChannel.read(prefix, cluster.getOffset() + prefix.position());
+                } while (readLength > 0 && prefix.hasRemaining());
+                final int prefixLength = getClusterPrefixLength(prefix);
+                final long end = cluster.getOffset() + cluster.getLength();
+                if (end > fileSize) {
+                    throw new IOException("Unexpected end of file at offset " + fileSize);
+                }
+
+                header.clear();
+                header.put(CLUSTER_ELEMENT_WITH_UNKNOWN_LENGTH);
+                header.put((byte) ID_TIMECODE);
+                header.put((byte) 0x88);
+                header.putLong(cluster.getTimecodeMs() + timecodeOffsetMs);
+                byteArrayOutputStream.write(header.array(), 0, header.position());
+                cutMergedOutput();
+
+                final long start = cluster.getOffset() + prefixLength;
+                if (start < end) {
+                    pendingOutput.add(new FileRegionInputStream(mkvFile, start, end));
+                }
+            }
+        }
+        passthroughClusterCount += clusters.size();
+        log.debug("File: {}, copied {} passthrough clusters", mkvFile.getAbsolutePath(), clusters.size());
+    }
+
+    /**
+     * Get the length of a cluster header and its timecode element, which must be the first child of the cluster.
+     */
+    private static int getClusterPrefixLength(ByteBuffer prefix) throws MkvElementVisitException {
+        final int length = prefix.position();
+        final int clusterIdLength = length > 0 ? EbmlVint.idLength(prefix.get(0)) : 0;
+        final int clusterSizeLength = length > clusterIdLength ? EbmlVint.length(prefix.get(clusterIdLength)) : 0;
+        final int timecodeOffset = clusterIdLength + clusterSizeLength;
+        final int timecodeIdLength = length > timecodeOffset ? EbmlVint.idLength(prefix.get(timecodeOffset)) : 0;
+        final int timecodeSizeOffset = timecodeOffset + timecodeIdLength;
+        final int timecodeSizeLength = length > timecodeSizeOffset
+                ? EbmlVint.length(prefix.get(timecodeSizeOffset)) : 0;
+        if (clusterSizeLength == 0 || timecodeSizeLength == 0
+                || length < timecodeSizeOffset + timecodeSizeLength
+                || EbmlVint.readId(prefix, 0, clusterIdLength) != ID_CLUSTER
+                || EbmlVint.readId(prefix, timecodeOffset, timecodeIdLength) != ID_TIMECODE) {
+            throw new MkvElementVisitException("Invalid passthrough cluster", new RuntimeException());
+        }
+        final long timecodeSize = EbmlVint.readSize(prefix, timecodeSizeOffset, timecodeSizeLength);
+        if (timecodeSize < 0 || timecodeSize > Long.BYTES) {
+            throw new MkvElementVisitException("Invalid passthrough cluster timecode", new RuntimeException());
+        }
+        return timecodeSizeOffset + timecodeSizeLength + (int) timecodeSize;
+    }
+
+    private static void feedRange(MappedFileByteSource byteSource, EbmlParser ebmlParser, long start, long end)
+            throws IOException, MkvElementVisitException {
+        byteSource.seek(start);
+        long position = start;
+        ByteBuffer slice;
+        while (position < end && (slice = byteSource.nextSlice()) != null) {
+            if (slice.remaining() > end - position) {
+                slice.limit(slice.position() + (int) (end - position));
+            }
+            position += slice.remaining();
+            ebmlParser.feed(slice);
+
+            // Seek over the rest of a skipped element, so it's never mapped or read
+            final long skipLength = ebmlParser.takeSkipLength();
+            if (skipLength > 0) {
+                position += skipLength;
+                byteSource.seek(Math.min(position, byteSource.getFileSize()));
+            }
+        }
+    }
+
+    private static int available(InputStream inputStream) {
+        try {
+            return inputStream.available();
+        } catch (IOException exception) {
+            log.error("Unable to read merged output");
+            return 0;
+        }
+    }
+
+    /**
+     * Move merged output in memory to the pending output, so output written later follows it.
+     */
+    private void cutMergedOutput() {
+        if (byteArrayOutputStream.size() > 0) {
+            pendingOutput.add(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+            byteArrayOutputStream.reset();
+        }
+    }
+
+    /**
+     * Drop output of the current file that hasn't been read.
+     */
+    private void discardOutput() {
+        byteArrayOutputStream.reset();
+        while (!pendingOutput.isEmpty()) {
+            try {
+                pendingOutput.poll().close();
+            } catch (IOException exception) {
+                log.error("Unable to close pending output");
             }
         }
     }
 
     private void closeMkvInputStream() {
         byteArrayOutputStream.reset();
-        if (byteArrayInputStream != null) {
+        if (currentInputStream != null) {
             try {
-                byteArrayInputStream.close();
+                currentInputStream.close();
             } catch (IOException exception) {
                 log.error("Unable to close mkvInputStream");
             } finally {
-                byteArrayInputStream = null;
+                currentInputStream = null;
             }
         }
     }
@@ -15,9 +15,10 @@
 
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
-import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.util.TraceRing;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
 import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -35,12 +36,17 @@ public class MkvInputStream extends InputStream {
 
     private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
 
-    private final MergeFragmentVisitor mergeFragmentVisitor =
-            MergeFragmentVisitor.createPausable(byteArrayOutputStream);
+    private final MergeFragmentVisitor mergeFragmentVisitor;
 
     private ByteArrayInputStream byteArrayInputStream = null;
 
-    private final StreamingMkvReader streamingMkvReader;
+    private final InputStream inputStream;
+
+    private final EbmlParser ebmlParser;
+
+    private final byte[] readBuffer = new byte[Constants.MKV_READ_BUFFER_SIZE];
+
+    private boolean isEndOfStream = false;
 
     private boolean isClosed = false;
 
@@ -50,7 +56,35 @@ public class MkvInputStream extends InputStream {
      * @param inputStream The MKV input stream which may contains out of order elements.
      */
     public MkvInputStream(@NonNull InputStream inputStream) {
-        streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(inputStream));
+        this.inputStream = inputStream;
+        this.mergeFragmentVisitor = MergeFragmentVisitor.create(byteArrayOutputStream);
+        this.ebmlParser = new EbmlParser(mergeFragmentVisitor);
+        this.ebmlParser.setSkipPolicy(mergeFragmentVisitor);
+    }
+
+    /**
+     * Constructor of MKV input stream that streams simple blocks out once they are older than the reorder window,
+     * instead of holding whole clusters.
+     *
+     * @param inputStream     The MKV input stream which may contains out of order elements.
+     * @param reorderWindowMs Max presentation delay of a simple block in milliseconds
+     */
+    public MkvInputStream(@NonNull InputStream inputStream, long reorderWindowMs) {
+        this.inputStream = inputStream;
+        this.mergeFragmentVisitor = MergeFragmentVisitor.createStreaming(byteArrayOutputStream, reorderWindowMs);
+        this.ebmlParser = new EbmlParser(mergeFragmentVisitor);
+        this.ebmlParser.setSkipPolicy(mergeFragmentVisitor);
+    }
+
+    /**
+     * Set target range of fragment durations for merged clusters.  It's not supported if simple blocks are streamed
+     * out within a reorder window.
+     *
+     * @param fragmentDurationRange The range, or null to keep clusters as they are
+     * @throws IllegalStateException if this stream is created with a reorder window
+     */
+    public void setFragmentDurationRange(FragmentDurationRange fragmentDurationRange) {
+        mergeFragmentVisitor.setFragmentDurationRange(fragmentDurationRange);
     }
 
     @Override
@@ -112,7 +146,16 @@ public class MkvInputStream extends InputStream {
         }
 
         try {
-            streamingMkvReader.apply(mergeFragmentVisitor);
+            // Feed whatever the input stream has, until the visitor emits some merged data
+            while (byteArrayOutputStream.size() == 0 && !isEndOfStream) {
+                final int readLen = inputStream.read(readBuffer);
+                if (readLen < 0) {
+                    isEndOfStream = true;
+                    ebmlParser.endOfStream();
+                } else {
+                    ebmlParser.feed(readBuffer, 0, readLen);
+                }
+            }
 
             if (byteArrayOutputStream.size() > 0) {
                 byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
@@ -121,6 +164,12 @@ public class MkvInputStream extends InputStream {
             }
         } catch (MkvElementVisitException exception) {
             log.error("Unable to parse the input stream");
+            TraceRing.getDefault().dump(log, "parse error");
+            isEndOfStream = true;
+            closeMkvInputStream();
+        } catch (IOException exception) {
+            log.error("Unable to read the input stream");
+            isEndOfStream = true;
             closeMkvInputStream();
         }
     }
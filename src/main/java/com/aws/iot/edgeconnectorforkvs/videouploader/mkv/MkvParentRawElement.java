@@ -1,19 +1,12 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
-import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
 
 /**
  * It's a subclass of {@link MkvRawElement}. It represents a parent MKV element. Its data field is consisted of other
  * {@link MkvParentRawElement} and {@link MkvDataRawElement}.
  */
-@Slf4j
 public class MkvParentRawElement extends MkvRawElement {
 
     private final ArrayList<MkvRawElement> children = new ArrayList<>();
@@ -57,36 +50,26 @@ public class MkvParentRawElement extends MkvRawElement {
     }
 
     /**
-     * Convert this MKV raw element into byte array. It includes all its children elements.
+     * Update data length of this element and all its children elements, so its size field covers its children.
      *
-     * @return The MKV elements in byte array
+     * @return Length of this element including all its children elements
      */
     @Override
-    public byte[] toMkvRawData() {
-        final ArrayList<byte[]> childrenRaws = new ArrayList<>();
-        for (MkvRawElement element : children) {
-            childrenRaws.add(element.toMkvRawData());
-        }
+    protected long updateElementLength() {
         long dataLen = 0;
-        for (byte[] childRaw : childrenRaws) {
-            dataLen += childRaw.length;
+        for (MkvRawElement element : children) {
+            dataLen += element.updateElementLength();
         }
+        this.setDataLen(dataLen);
+        return this.getHeaderLength() + dataLen;
+    }
 
-        final byte[] size = getMkvSize(dataLen);
-        final byte[] raw = new byte[(int) (this.getIdCopy().length + size.length + dataLen)];
-        final ByteBuffer buffer = ByteBuffer.wrap(raw);
-        try {
-            buffer.put(this.getIdCopy());
-            buffer.put(size);
-            for (byte[] childRaw : childrenRaws) {
-                buffer.put(childRaw);
-            }
-        } catch (BufferOverflowException ex) {
-            log.error("Buffer Overflow Exception: " + ex.getMessage());
-        } catch (ReadOnlyBufferException ex) {
-            log.error("Readonly Buffer Exception: " + ex.getMessage());
+    @Override
+    protected void writeTo(ByteBuffer buffer) {
+        this.writeHeader(buffer);
+        for (MkvRawElement element : children) {
+            element.writeTo(buffer);
         }
-        return buffer.array();
     }
 
     /**
@@ -104,9 +87,7 @@ public class MkvParentRawElement extends MkvRawElement {
             return false;
         }
         MkvParentRawElement other = (MkvParentRawElement) otherObj;
-        return new EqualsBuilder()
-                .append(this.getIdCopy(), other.getIdCopy())
-                .isEquals();
+        return this.getId() == other.getId();
     }
 
     /**
@@ -116,9 +97,7 @@ public class MkvParentRawElement extends MkvRawElement {
      */
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()
-                .append(this.getIdCopy())
-                .toHashCode();
+        return this.getId();
     }
 
 }
@@ -44,6 +44,14 @@ public class MkvSimpleBlock implements Comparable<MkvSimpleBlock> {
     // EBML data field
     private final byte[] dataBytes;
 
+    // True if the key frame flag is set
+    @Getter
+    private final boolean isKeyFrame;
+
+    private static final int TIMECODE_SIZE = 2;
+
+    private static final int KEY_FRAME_FLAG = 0x80;
+
     /**
      * Constructor of MKV simple block.
      *
@@ -54,16 +62,39 @@ public class MkvSimpleBlock implements Comparable<MkvSimpleBlock> {
      */
     public MkvSimpleBlock(int relativeTimecode, long trackNumber,
                           ByteBuffer idAndSizeRawBytes, ByteBuffer dataBuffer) {
+        this(relativeTimecode, trackNumber, idAndSizeRawBytes, 0, idAndSizeRawBytes.limit(),
+                dataBuffer, 0, dataBuffer.limit());
+    }
+
+    /**
+     * Constructor of MKV simple block from ranges of buffers.  The buffers are read with absolute indexes, so their
+     * position and limit are not changed.
+     *
+     * @param relativeTimecode The timecode of this simple block and its size is 2 bytes
+     * @param trackNumber      The track number of this simple block
+     * @param headerBuffer     The buffer that holds the element ID and size field
+     * @param headerOffset     Absolute index of the element ID in header buffer
+     * @param headerLength     Length of the element ID and size field
+     * @param dataBuffer       The buffer that holds the data of this element
+     * @param dataOffset       Absolute index of the data in data buffer
+     * @param dataLength       Length of the data
+     */
+    public MkvSimpleBlock(int relativeTimecode, long trackNumber,
+                          ByteBuffer headerBuffer, int headerOffset, int headerLength,
+                          ByteBuffer dataBuffer, int dataOffset, int dataLength) {
         this.relativeTimecode = relativeTimecode;
         this.trackNumber = trackNumber;
 
-        idAndSizeRawBytes.rewind();
-        idAndSizeBytes = new byte[idAndSizeRawBytes.remaining()];
-        idAndSizeRawBytes.get(idAndSizeBytes);
+        idAndSizeBytes = new byte[headerLength];
+        EbmlParser.copy(headerBuffer, headerOffset, idAndSizeBytes, 0, headerLength);
+
+        dataBytes = new byte[dataLength];
+        EbmlParser.copy(dataBuffer, dataOffset, dataBytes, 0, dataLength);
 
-        dataBuffer.rewind();
-        dataBytes = new byte[dataBuffer.remaining()];
-        dataBuffer.get(dataBytes);
+        // Simple block data starts with a VINT track number, a 16 bits timecode, and then a flags byte
+        final int flagsIndex = (dataLength > 0 ? EbmlVint.length(dataBytes[0]) : 0) + TIMECODE_SIZE;
+        isKeyFrame = flagsIndex > TIMECODE_SIZE && flagsIndex < dataLength
+                && (dataBytes[flagsIndex] & KEY_FRAME_FLAG) != 0;
     }
 
     /**
@@ -0,0 +1,228 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Find the recoverable part of a MKV recording that is truncated, e.g. by a power loss while it's recorded.  The file
+ * is scanned backwards from its tail for the sync pattern of a cluster ID, and a candidate cluster is verified by
+ * walking its children by their sizes, so only the tail of the file is read instead of parsing it from the start.
+ * A candidate that is a false match inside block data fails the walk, and the scan goes on backwards.
+ */
+public final class MkvTailScanner {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int ID_CLUSTER = MkvTypeInfos.CLUSTER.getId();
+
+    private static final int ID_TIMECODE = MkvTypeInfos.TIMECODE.getId();
+
+    private static final byte[] CLUSTER_SYNC = {(byte) 0x1F, (byte) 0x43, (byte) 0xB6, (byte) 0x75};
+
+    private static final int MAX_HEADER_LENGTH = EbmlVint.MAX_ID_LENGTH + EbmlVint.MAX_SIZE_LENGTH;
+
+    private static final Set<Integer> BLOCK_IDS = new HashSet<>(Arrays.asList(
+            MkvTypeInfos.SIMPLEBLOCK.getId(),
+            MkvTypeInfos.BLOCKGROUP.getId(),
+            MkvTypeInfos.ENCRYPTEDBLOCK.getId()));
+
+    private static final Set<Integer> CLUSTER_CHILD_IDS = new HashSet<>(Arrays.asList(
+            MkvTypeInfos.TIMECODE.getId(),
+            MkvTypeInfos.SIMPLEBLOCK.getId(),
+            MkvTypeInfos.BLOCKGROUP.getId(),
+            MkvTypeInfos.ENCRYPTEDBLOCK.getId(),
+            MkvTypeInfos.SILENTTRACKS.getId(),
+            MkvTypeInfos.POSITION.getId(),
+            MkvTypeInfos.PREVSIZE.getId(),
+            MkvTypeInfos.VOID.getId(),
+            MkvTypeInfos.CRC_32.getId()));
+
+    // Elements of a segment that may follow a cluster
+    private static final Set<Integer> SEGMENT_CHILD_IDS = new HashSet<>(Arrays.asList(
+            MkvTypeInfos.CLUSTER.getId(),
+            MkvTypeInfos.CUES.getId(),
+            MkvTypeInfos.TAGS.getId(),
+            MkvTypeInfos.SEEKHEAD.getId(),
+            MkvTypeInfos.INFO.getId(),
+            MkvTypeInfos.TRACKS.getId(),
+            MkvTypeInfos.ATTACHMENTS.getId(),
+            MkvTypeInfos.CHAPTERS.getId(),
+            MkvTypeInfos.VOID.getId(),
+            MkvTypeInfos.CRC_32.getId()));
+
+    private MkvTailScanner() {
+    }
+
+    /**
+     * Find the length of the recoverable part of a recording.  It ends after the last complete child of the last
+     * cluster, or after the last complete element of the segment that follows it.
+     *
+     * @param mkvFile The recording
+     * @return Length of the recoverable part, which is the file length if the file is complete, or -1 if there is no
+     * valid cluster
+     * @throws IOException if the file can't be read
+     */
+    public static long findRecoverableLength(@NonNull File mkvFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(mkvFile.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final ElementHeader header = new ElementHeader();
+            final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE + CLUSTER_SYNC.length - 1);
+            long chunkEnd = fileSize;
+            while (chunkEnd > 0) {
+                final long chunkStart = Math.max(0, chunkEnd - CHUNK_SIZE);
+                // Read a few more bytes than the chunk, so a sync pattern across chunks is found as well
+                chunk.clear();
+                chunk.limit((int) (Math.min(fileSize, chunkEnd + CLUSTER_SYNC.length - 1) - chunkStart));
+                readFully(channel, chunk, chunkStart);
+                final int lastIndex = Math.min(chunk.position() - CLUSTER_SYNC.length,
+                        (int) (chunkEnd - chunkStart) - 1);
+                for (int i = lastIndex; i >= 0; i--) {
+                    if (isClusterSync(chunk, i)) {
+                        final long end = walkCluster(channel, header, chunkStart + i, fileSize);
+                        if (end >= 0) {
+                            return walkSegment(channel, header, end, fileSize);
+                        }
+                    }
+                }
+                chunkEnd = chunkStart;
+            }
+            return -1;
+        }
+    }
+
+    private static boolean isClusterSync(ByteBuffer chunk, int index) {
+        for (int i = 0; i < CLUSTER_SYNC.length; i++) {
+            if (chunk.get(index + i) != CLUSTER_SYNC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walk children of a cluster until the end of the cluster or the first child that is truncated.
+     *
+     * @return Offset after the last complete child, or -1 if it's not a valid cluster with a complete timecode
+     */
+    private static long walkCluster(FileChannel channel, ElementHeader header, long offset, long fileSize)
+            throws IOException {
+        if (!header.read(channel, offset, fileSize) || header.id != ID_CLUSTER) {
+            return -1;
+        }
+        final boolean isUnknownSize = header.dataSize == EbmlVint.UNKNOWN_SIZE;
+        final long dataEnd = isUnknownSize ? fileSize : Math.min(fileSize, offset + header.length + header.dataSize);
+        long position = offset + header.length;
+        boolean hasTimecode = false;
+        while (position < dataEnd && header.read(channel, position, fileSize)) {
+            if (!CLUSTER_CHILD_IDS.contains(header.id)) {
+                if (isUnknownSize && hasTimecode && SEGMENT_CHILD_IDS.contains(header.id)) {
+                    // A cluster with unknown size is ended by the next element of the segment
+                    break;
+                }
+                return -1;
+            }
+            if (header.dataSize == EbmlVint.UNKNOWN_SIZE || (!hasTimecode && BLOCK_IDS.contains(header.id))) {
+                return -1;
+            }
+            final long childEnd = position + header.length + header.dataSize;
+            if (childEnd > fileSize) {
+                break;
+            }
+            if (!isUnknownSize && childEnd > dataEnd) {
+                return -1;
+            }
+            hasTimecode = hasTimecode || header.id == ID_TIMECODE;
+            position = childEnd;
+        }
+        return hasTimecode ? position : -1;
+    }
+
+    /**
+     * Walk complete elements of the segment, e.g. cues and tags after the last cluster of a complete file.
+     *
+     * @return Offset after the last complete element
+     */
+    private static long walkSegment(FileChannel channel, ElementHeader header, long offset, long fileSize)
+            throws IOException {
+        long position = offset;
+        while (position < fileSize && header.read(channel, position, fileSize)
+                && SEGMENT_CHILD_IDS.contains(header.id) && header.dataSize != EbmlVint.UNKNOWN_SIZE
+                && position + header.length + header.dataSize <= fileSize) {
+            position += header.length + header.dataSize;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int readLength;
+        do {
+            readLength = channel.read(buffer, position + buffer.position());
+        } while (readLength > 0 && buffer.hasRemaining());
+    }
+
+    /**
+     * Header of an EBML element read from a file.
+     */
+    private static final class ElementHeader {
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+        private int id;
+        private int length;
+        private long dataSize;
+
+        /**
+         * Read the header at an offset.  An invalid header is read with ID 0.
+         *
+         * @return False if the header is truncated by the end of the file
+         */
+        private boolean read(FileChannel channel, long offset, long fileSize) throws IOException {
+            buffer.clear();
+            buffer.limit((int) Math.min(MAX_HEADER_LENGTH, fileSize - offset));
+            readFully(channel, buffer, offset);
+            final int available = buffer.position();
+            final int idLength = available > 0 ? EbmlVint.idLength(buffer.get(0)) : 0;
+            if (available > 0 && idLength == 0) {
+                id = 0;
+                return true;
+            }
+            if (available <= idLength) {
+                return false;
+            }
+            final int sizeLength = EbmlVint.length(buffer.get(idLength));
+            if (sizeLength == 0) {
+                id = 0;
+                return true;
+            }
+            if (available < idLength + sizeLength) {
+                return false;
+            }
+            id = EbmlVint.readId(buffer, 0, idLength);
+            length = idLength + sizeLength;
+            dataSize = EbmlVint.readSize(buffer, idLength, sizeLength);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A canonical fingerprint of the children of a Tracks element.  It's a 64 bits FNV-1a hash over element IDs, the
+ * structure of master elements and data of data elements.  Track UID is ignored because it's not related to media
+ * settings, and so are CRC-32 and Void elements.  Tracks with the same fingerprint can be merged into one segment.
+ * An exact fingerprint that includes track UID identifies the serialized tracks instead.
+ */
+public final class MkvTracksFingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    // Hashed after the ID of an ended master element so that siblings and children are distinguishable
+    private static final int MASTER_END_MARKER = 0xFF;
+
+    private static final int ID_TRACKUID = MkvTypeInfos.TRACKUID.getId();
+
+    private static final int ID_CRC_32 = MkvTypeInfos.CRC_32.getId();
+
+    private static final int ID_VOID = MkvTypeInfos.VOID.getId();
+
+    private final boolean isTrackUidIncluded;
+
+    private long value = FNV_OFFSET_BASIS;
+
+    /**
+     * Constructor of a canonical fingerprint that ignores track UID.
+     */
+    public MkvTracksFingerprint() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param isTrackUidIncluded True for an exact fingerprint that includes track UID
+     */
+    public MkvTracksFingerprint(boolean isTrackUidIncluded) {
+        this.isTrackUidIncluded = isTrackUidIncluded;
+    }
+
+    /**
+     * Add the start of a master element.
+     *
+     * @param id Element ID
+     */
+    public void addMasterStart(int id) {
+        hashInt(id);
+    }
+
+    /**
+     * Add the end of a master element.
+     *
+     * @param id Element ID
+     */
+    public void addMasterEnd(int id) {
+        hashInt(id);
+        hashByte(MASTER_END_MARKER);
+    }
+
+    /**
+     * Add a data element.  CRC-32 and Void elements are ignored, and so is track UID unless it's included.
+     *
+     * @param id         Element ID
+     * @param buffer     The buffer that holds the element data
+     * @param dataOffset Absolute index of the element data
+     * @param dataLength Length of the element data
+     */
+    public void addDataElement(int id, ByteBuffer buffer, int dataOffset, int dataLength) {
+        if ((id == ID_TRACKUID && !isTrackUidIncluded) || id == ID_CRC_32 || id == ID_VOID) {
+            return;
+        }
+        hashInt(id);
+        hashInt(dataLength);
+        for (int i = 0; i < dataLength; i++) {
+            hashByte(buffer.get(dataOffset + i));
+        }
+    }
+
+    /**
+     * Get the fingerprint of elements added so far.
+     *
+     * @return The fingerprint
+     */
+    public long getValue() {
+        return value;
+    }
+
+    private void hashInt(int data) {
+        hashByte(data >>> 24);
+        hashByte(data >>> 16);
+        hashByte(data >>> 8);
+        hashByte(data);
+    }
+
+    private void hashByte(int data) {
+        value = (value ^ (data & 0xFF)) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Target duration range of uploaded fragments.  Clusters shorter than the minimum are coalesced with following
+ * clusters as long as the fragment stays within the maximum, and clusters longer than the maximum are split at key
+ * frames if splitting is enabled.
+ */
+@Getter
+public final class FragmentDurationRange {
+
+    private final long minDurationMs;
+
+    private final long maxDurationMs;
+
+    private final boolean isSplitting;
+
+    /**
+     * Constructor.
+     *
+     * @param minDurationMs Min fragment duration in milliseconds
+     * @param maxDurationMs Max fragment duration in milliseconds
+     * @param isSplitting   True to split clusters longer than the max duration at key frames
+     * @throws IllegalArgumentException if durations are not positive or min is larger than max
+     */
+    @Builder
+    public FragmentDurationRange(long minDurationMs, long maxDurationMs, boolean isSplitting) {
+        if (minDurationMs <= 0 || maxDurationMs < minDurationMs) {
+            throw new IllegalArgumentException("Invalid fragment duration range");
+        }
+        this.minDurationMs = minDurationMs;
+        this.maxDurationMs = maxDurationMs;
+        this.isSplitting = isSplitting;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+
+/**
+ * A daily window of local time when the uplink is idle, e.g. at night, so backlog uploads can use more bandwidth.  A
+ * window that ends before it starts wraps around midnight, and a window that ends when it starts lasts the whole day.
+ */
+@Getter
+public final class OffPeakWindow {
+
+    private final LocalTime startTime;
+
+    private final LocalTime endTime;
+
+    /**
+     * Constructor.
+     *
+     * @param startTime Local time when the window starts, inclusively
+     * @param endTime   Local time when the window ends, exclusively
+     */
+    @Builder
+    public OffPeakWindow(@NonNull LocalTime startTime, @NonNull LocalTime endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Check if a time is within the window.
+     *
+     * @param time Local time
+     * @return True if it's within the window
+     */
+    public boolean contains(@NonNull LocalTime time) {
+        if (startTime.isBefore(endTime)) {
+            return !time.isBefore(startTime) && time.isBefore(endTime);
+        }
+        return startTime.equals(endTime) || !time.isBefore(startTime) || time.isBefore(endTime);
+    }
+
+    /**
+     * Get the next time that the window starts.
+     *
+     * @param now The current time
+     * @return The next start after now, or now if the window starts right now
+     */
+    public ZonedDateTime getNextStart(@NonNull ZonedDateTime now) {
+        final ZonedDateTime start = now.with(startTime);
+        return start.isBefore(now) ? now.plusDays(1).with(startTime) : start;
+    }
+}
@@ -17,18 +17,23 @@ package com.aws.iot.edgeconnectorforkvs.videouploader.visitors;
 
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
-import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
+import com.aws.iot.edgeconnectorforkvs.util.TraceRing;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.EbmlParser;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.EbmlParserCallback;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.EbmlSkipPolicy;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.EbmlVint;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvCluster;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvSimpleBlock;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MergeFragmentException;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MkvTracksException;
+import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -36,21 +41,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
 
 /**
- * A MKV element visitor that support to merge 2 different MKV files.
+ * A MKV element visitor that support to merge 2 different MKV files.  It can be driven either by StreamingMkvReader as
+ * a {@link MkvElementVisitor}, or by {@link EbmlParser} as a {@link EbmlParserCallback}.  The latter one doesn't
+ * allocate element metadata and is not pausable, and the visitor can be its {@link EbmlSkipPolicy} to skip elements
+ * that are dropped anyway.  When tracks of new incoming MKV data are different, a new EBML header and segment with the
+ * new tracks are emitted to the same output stream.  A {@link FragmentDurationRange} can be set to coalesce short
+ * clusters and split long clusters, so fragment durations don't depend on the camera's GOP.
  */
 @Slf4j
-public final class MergeFragmentVisitor extends CompositeMkvElementVisitor implements Flushable {
+public final class MergeFragmentVisitor extends CompositeMkvElementVisitor
+        implements Flushable, EbmlParserCallback, EbmlSkipPolicy {
 
     // Output channel for merge results
     private final WritableByteChannel outputChannel;
@@ -59,6 +69,9 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
 
     private final boolean isPausable;
 
+    // Simple blocks older than this window are emitted without waiting for the end of cluster, or -1 to disable
+    private final long reorderWindowMs;
+
     /**
      * Visitor's parsing state.
      */
@@ -100,6 +113,21 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
     // Recording track numbers, then we can check frames to avoid KVS FRAMES_MISSING_FOR_TRACK error
     private final Set<Long> trackNumbers = new HashSet<>();
 
+    // Track numbers of new incoming MKV data, they replace track numbers when its segment is emitted
+    private final Set<Long> incomingTrackNumbers = new HashSet<>();
+
+    // Track numbers of video tracks, clusters are split at their key frames
+    private final Set<Long> videoTrackNumbers = new HashSet<>();
+
+    private final Set<Long> incomingVideoTrackNumbers = new HashSet<>();
+
+    // Track number and type of the track entry being buffered
+    private long incomingTrackNumber = 0;
+    private long incomingTrackType = 0;
+
+    // Target range of fragment durations, or null to keep clusters as they are
+    private FragmentDurationRange fragmentDurationRange = null;
+
     // It's for recording and comparing MKV tracks.
     private final MkvTracksVisitor tracksVisitor = new MkvTracksVisitor();
 
@@ -119,6 +147,25 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
     // Current cluster
     private MkvCluster currentCluster = null;
 
+    // Highest written absolute timecodes per track.  There are only a few tracks, so a linear search beats a map here.
+    private long[] writtenTrackNumbers = new long[INITIAL_TRACK_CAPACITY];
+    private long[] writtenTimecodes = new long[INITIAL_TRACK_CAPACITY];
+    private int writtenTrackSize = 0;
+
+    // True if a simple block of current cluster is dropped for being covered
+    private boolean isDroppingCluster = false;
+
+    // Timecode of the latest written cluster, so a cluster starting before it can be moved to its first simple block
+    private long latestWrittenClusterTimecode = Long.MIN_VALUE;
+
+    // Count of simple blocks dropped for being covered by written or duplicated simple blocks
+    @Getter
+    private long droppedSimpleBlockCount = 0;
+
+    // Count of clusters whose simple blocks are all dropped
+    @Getter
+    private long droppedClusterCount = 0;
+
     private static final ByteBuffer SEGMENT_ELEMENT_WITH_UNKNOWN_LENGTH =
             ByteBuffer.wrap(new byte[]{(byte) 0x18, (byte) 0x53, (byte) 0x80, (byte) 0x67, (byte) 0xFF});
 
@@ -127,12 +174,53 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
 
     private static final long DEFAULT_TIMESCALE_MS = 1;
 
+    private static final long STREAMING_DISABLED = -1;
+
+    private static final int SIMPLE_BLOCK_TIMECODE_SIZE = 2;
+
+    private static final int INITIAL_TRACK_CAPACITY = 2;
+
+    private static final int ID_EBML = MkvTypeInfos.EBML.getId();
+
+    private static final int ID_SEGMENT = MkvTypeInfos.SEGMENT.getId();
+
+    private static final int ID_TRACKS = MkvTypeInfos.TRACKS.getId();
+
+    private static final int ID_TRACKENTRY = MkvTypeInfos.TRACKENTRY.getId();
+
+    private static final int ID_TRACKNUMBER = MkvTypeInfos.TRACKNUMBER.getId();
+
+    private static final int ID_TRACKTYPE = MkvTypeInfos.TRACKTYPE.getId();
+
+    private static final long VIDEO_TRACK_TYPE = 1;
+
+    private static final int ID_TIMECODESCALE = MkvTypeInfos.TIMECODESCALE.getId();
+
+    private static final int ID_CLUSTER = MkvTypeInfos.CLUSTER.getId();
+
+    private static final int ID_TIMECODE = MkvTypeInfos.TIMECODE.getId();
+
+    private static final int ID_SIMPLEBLOCK = MkvTypeInfos.SIMPLEBLOCK.getId();
+
+    private static final int ID_TAGS = MkvTypeInfos.TAGS.getId();
+
+    // Level 1 and global elements that are dropped once the segment is verified
+    private static final Set<Integer> SKIPPED_SEGMENT_IDS = new HashSet<>(Arrays.asList(
+            MkvTypeInfos.CUES.getId(),
+            MkvTypeInfos.ATTACHMENTS.getId(),
+            MkvTypeInfos.CHAPTERS.getId(),
+            MkvTypeInfos.SEEKHEAD.getId(),
+            MkvTypeInfos.VOID.getId(),
+            MkvTypeInfos.CRC_32.getId()));
+
     private MergeFragmentVisitor(List<MkvElementVisitor> childVisitors,
                                  OutputStream outputStream,
-                                 boolean isPausable) {
+                                 boolean isPausable,
+                                 long reorderWindowMs) {
         super(childVisitors);
         this.outputChannel = Channels.newChannel(outputStream);
         this.isPausable = isPausable;
+        this.reorderWindowMs = reorderWindowMs;
         mergeVisitor = new MergeVisitor();
         this.childVisitors.add(mergeVisitor);
         this.childVisitors.add(tracksVisitor);
@@ -149,7 +237,7 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
     public static MergeFragmentVisitor create(OutputStream outputStream) {
         final List<MkvElementVisitor> childVisitors = new ArrayList<>();
 
-        return new MergeFragmentVisitor(childVisitors, outputStream, false);
+        return new MergeFragmentVisitor(childVisitors, outputStream, false, STREAMING_DISABLED);
     }
 
     /**
@@ -161,7 +249,45 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
     public static MergeFragmentVisitor createPausable(OutputStream outputStream) {
         final List<MkvElementVisitor> childVisitors = new ArrayList<>();
 
-        return new MergeFragmentVisitor(childVisitors, outputStream, true);
+        return new MergeFragmentVisitor(childVisitors, outputStream, true, STREAMING_DISABLED);
+    }
+
+    /**
+     * Create a streaming {@link MergeFragmentVisitor}.  Instead of holding a previous and a current cluster, it emits
+     * simple blocks as soon as they are older than the reorder window compared with the latest simple block, and the
+     * previous cluster is emitted once the timecode of current cluster is known.  Only simple blocks that may still be
+     * reordered or moved to next cluster are held, so memory and latency depend on the reorder window instead of the
+     * cluster duration.
+     *
+     * @param outputStream    Output stream for merged MKV data
+     * @param reorderWindowMs Max presentation delay of a simple block in milliseconds, e.g. the B-frame reorder depth
+     * @return {@link MergeFragmentVisitor}
+     */
+    public static MergeFragmentVisitor createStreaming(OutputStream outputStream, long reorderWindowMs) {
+        if (reorderWindowMs < 0) {
+            throw new IllegalArgumentException("Reorder window must not be negative");
+        }
+        final List<MkvElementVisitor> childVisitors = new ArrayList<>();
+
+        return new MergeFragmentVisitor(childVisitors, outputStream, false, reorderWindowMs);
+    }
+
+    private boolean isStreaming() {
+        return reorderWindowMs != STREAMING_DISABLED;
+    }
+
+    /**
+     * Set target range of fragment durations.  It's not supported by a streaming visitor, because simple blocks are
+     * emitted before their clusters end.
+     *
+     * @param fragmentDurationRange The range, or null to keep clusters as they are
+     * @throws IllegalStateException if this visitor is a streaming one
+     */
+    public void setFragmentDurationRange(FragmentDurationRange fragmentDurationRange) {
+        if (fragmentDurationRange != null && isStreaming()) {
+            throw new IllegalStateException("Fragment duration range is not supported in streaming mode");
+        }
+        this.fragmentDurationRange = fragmentDurationRange;
     }
 
     private class MergeVisitor extends MkvElementVisitor {
@@ -169,125 +295,207 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
         public void visit(MkvStartMasterElement startMasterElement)
                 throws MkvElementVisitException, MergeFragmentException {
             final EBMLTypeInfo ebmlTypeInfo = startMasterElement.getElementMetaData().getTypeInfo();
-            log.debug("+name=" + ebmlTypeInfo.getName() + ", level=" + ebmlTypeInfo.getLevel());
-            switch (state) {
-                case NEW:
-                    if (!MkvTypeInfos.EBML.equals(ebmlTypeInfo)) {
-                        throw new IllegalArgumentException("Un-expected non-EBML element in new MKV stream");
-                    }
-                    log.trace("state: NEW -> BUFFERING_SEGMENT");
-                    state = MergeState.BUFFERING_SEGMENT;
-                    bufferAndCollectSegment(startMasterElement);
-                    break;
-                case BUFFERING_SEGMENT:
-                    if (MkvTypeInfos.CLUSTER.equals(ebmlTypeInfo)) {
-                        if (!isSegmentEmitted) {
-                            if (tracksVisitor.isTracksAvailable()) {
-                                emitBufferedSegmentData();
-                            } else {
-                                throw new MergeFragmentException("No track info available");
-                            }
-                            isSegmentVerified = true;
-                        } else if (!isSegmentVerified) {
-                            if (tracksVisitor.isTracksEquivalent()) {
-                                log.info("Tracks of new incoming MKV data are the same");
-                            } else {
-                                log.info("Tracks of new incoming MKV data are different");
-                                throw new MergeFragmentException("Tracks of new incoming MKV data are different");
-                            }
+            final ByteBuffer idAndSizeRawBytes = startMasterElement.getIdAndSizeRawBytes();
+            handleMasterStart(ebmlTypeInfo.getId(), idAndSizeRawBytes, 0, idAndSizeRawBytes.limit());
+        }
+
+        @Override
+        public void visit(MkvEndMasterElement endMasterElement) throws MkvElementVisitException {
+            final EBMLTypeInfo ebmlTypeInfo = endMasterElement.getElementMetaData().getTypeInfo();
+            handleMasterEnd(ebmlTypeInfo.getId());
+        }
+
+        @Override
+        public void visit(MkvDataElement dataElement) throws MkvElementVisitException {
+            final EBMLTypeInfo ebmlTypeInfo = dataElement.getElementMetaData().getTypeInfo();
+            final ByteBuffer idAndSizeRawBytes = dataElement.getIdAndSizeRawBytes();
+            final ByteBuffer dataBuffer = dataElement.getDataBuffer();
+            handleDataElement(ebmlTypeInfo.getId(), idAndSizeRawBytes, 0, idAndSizeRawBytes.limit(),
+                    dataBuffer, 0, dataBuffer.limit());
+        }
+    }
+
+    @Override
+    public void onMasterStart(int id, long elementOffset, long dataSize, ByteBuffer buffer, int headerOffset,
+                              int headerLength) throws MkvElementVisitException {
+        handleMasterStart(id, buffer, headerOffset, headerLength);
+        tracksVisitor.onMasterStart(id, buffer, headerOffset, headerLength);
+    }
+
+    @Override
+    public void onMasterEnd(int id, long endOffset) throws MkvElementVisitException {
+        handleMasterEnd(id);
+        tracksVisitor.onMasterEnd(id);
+    }
+
+    @Override
+    public void onDataElement(int id, long elementOffset, ByteBuffer buffer, int headerOffset, int headerLength,
+                              int dataLength) throws MkvElementVisitException {
+        final int dataOffset = headerOffset + headerLength;
+        handleDataElement(id, buffer, headerOffset, headerLength, buffer, dataOffset, dataLength);
+        tracksVisitor.onDataElement(id, buffer, headerOffset, headerLength, buffer, dataOffset, dataLength);
+    }
+
+    /**
+     * Skip elements that are dropped anyway.  Tags are always dropped, and so are children of a cluster other than
+     * timecode and simple blocks.  Cues, attachments, chapters, seek head, Void and CRC-32 are dropped once the segment
+     * is verified, because they can't be put in the middle of the cluster stream.  Elements before the first cluster
+     * are kept, as they are copied to the segment header.
+     *
+     * @param id Element ID
+     * @return True to skip the element
+     */
+    @Override
+    public boolean isSkipped(int id) {
+        switch (state) {
+            case BUFFERING_SEGMENT:
+                return id == ID_TAGS || (isSegmentVerified && SKIPPED_SEGMENT_IDS.contains(id));
+            case BUFFERING_CLUSTER:
+                return id != ID_TIMECODE && id != ID_SIMPLEBLOCK && id != ID_CLUSTER;
+            case BUFFERING_TAG:
+                return true;
+            default:
+                return id == ID_TAGS;
+        }
+    }
+
+    private void handleMasterStart(int id, ByteBuffer buffer, int headerOffset, int headerLength)
+            throws MkvElementVisitException, MergeFragmentException {
+        TraceRing.getDefault().record(TraceRing.Event.ELEMENT_START, id, state.ordinal());
+        switch (state) {
+            case NEW:
+                if (id != ID_EBML) {
+                    throw new IllegalArgumentException("Un-expected non-EBML element in new MKV stream");
+                }
+                log.trace("state: NEW -> BUFFERING_SEGMENT");
+                state = MergeState.BUFFERING_SEGMENT;
+                bufferAndCollectSegment(id, buffer, headerOffset, headerLength);
+                break;
+            case BUFFERING_SEGMENT:
+                if (id == ID_CLUSTER) {
+                    if (!isSegmentEmitted) {
+                        if (tracksVisitor.isTracksAvailable()) {
+                            emitBufferedSegmentData();
+                        } else {
+                            throw new MergeFragmentException("No track info available");
                         }
                         isSegmentVerified = true;
-
-                        log.trace("state: BUFFERING_SEGMENT -> BUFFERING_CLUSTER");
-                        state = MergeState.BUFFERING_CLUSTER;
-                        bufferAndCollectCluster(startMasterElement);
-                    } else if (MkvTypeInfos.TAGS.equals(ebmlTypeInfo)) {
-                        log.trace("state: BUFFERING_SEGMENT -> BUFFERING_TAG");
-                        state = MergeState.BUFFERING_TAG;
-                        log.debug("Ignore Tag header: " + ebmlTypeInfo.getName());
-                    } else {
-                        if (MkvTypeInfos.TRACKS.equals(ebmlTypeInfo)) {
-                            isIgnoreTracksElements = true;
+                    } else if (!isSegmentVerified) {
+                        if (tracksVisitor.isTracksEquivalent()) {
+                            log.info("Tracks of new incoming MKV data are the same");
+                        } else {
+                            log.info("Tracks of new incoming MKV data are different, restart segment");
+                            restartSegment();
                         }
-                        bufferAndCollectSegment(startMasterElement);
                     }
-                    break;
-                case BUFFERING_CLUSTER:
-                    bufferAndCollectCluster(startMasterElement);
-                    break;
-                case BUFFERING_TAG:
-                    log.debug("Ignore Tag header: " + ebmlTypeInfo.getName());
-                    break;
-                default:
-                    throw new MkvTracksException("Unknown state " + state);
-            }
+                    isSegmentVerified = true;
+
+                    log.trace("state: BUFFERING_SEGMENT -> BUFFERING_CLUSTER");
+                    state = MergeState.BUFFERING_CLUSTER;
+                    bufferAndCollectCluster(id);
+                } else if (id == ID_TAGS) {
+                    log.trace("state: BUFFERING_SEGMENT -> BUFFERING_TAG");
+                    state = MergeState.BUFFERING_TAG;
+                    log.debug("Ignore Tag header");
+                } else {
+                    if (id == ID_TRACKS) {
+                        isIgnoreTracksElements = true;
+                    }
+                    bufferAndCollectSegment(id, buffer, headerOffset, headerLength);
+                }
+                break;
+            case BUFFERING_CLUSTER:
+                bufferAndCollectCluster(id);
+                break;
+            case BUFFERING_TAG:
+                log.debug("Ignore Tag header");
+                break;
+            default:
+                throw new MkvTracksException("Unknown state " + state);
         }
+    }
 
-        @Override
-        public void visit(MkvEndMasterElement endMasterElement) throws MkvElementVisitException {
-            final EBMLTypeInfo ebmlTypeInfo = endMasterElement.getElementMetaData().getTypeInfo();
-            log.debug("-name=" + ebmlTypeInfo.getName() + ", level=" + ebmlTypeInfo.getLevel());
-            switch (state) {
-                case NEW:
-                    throw new IllegalArgumentException("NEW state should not start with MkvEndMasterElement "
-                            + endMasterElement);
-                case BUFFERING_SEGMENT:
-                    if (MkvTypeInfos.SEGMENT.equals(ebmlTypeInfo)) {
-                        log.trace("state: BUFFERING_SEGMENT -> NEW");
-                        state = MergeState.NEW;
-                        nextFragmentTimecodeOffsetMs = -1;
-                        bufferingSegmentStream.reset();
-                        bufferingSegmentChannel = Channels.newChannel(bufferingSegmentStream);
-                        isSegmentVerified = false;
-                    } else if (MkvTypeInfos.TRACKS.equals(ebmlTypeInfo)) {
-                        isIgnoreTracksElements = false;
+    private void handleMasterEnd(int id) throws MkvElementVisitException {
+        TraceRing.getDefault().record(TraceRing.Event.ELEMENT_END, id, state.ordinal());
+        switch (state) {
+            case NEW:
+                throw new IllegalArgumentException("NEW state should not start with end of master element 0x"
+                        + Integer.toHexString(id));
+            case BUFFERING_SEGMENT:
+                if (id == ID_SEGMENT) {
+                    log.trace("state: BUFFERING_SEGMENT -> NEW");
+                    state = MergeState.NEW;
+                    nextFragmentTimecodeOffsetMs = -1;
+                    bufferingSegmentStream.reset();
+                    bufferingSegmentChannel = Channels.newChannel(bufferingSegmentStream);
+                    incomingTrackNumbers.clear();
+                    incomingVideoTrackNumbers.clear();
+                    isSegmentVerified = false;
+                } else if (id == ID_TRACKS) {
+                    isIgnoreTracksElements = false;
+                } else if (id == ID_TRACKENTRY) {
+                    if (incomingTrackType == VIDEO_TRACK_TYPE) {
+                        incomingVideoTrackNumbers.add(incomingTrackNumber);
                     }
-                    break;
-                case BUFFERING_CLUSTER:
-                    if (MkvTypeInfos.CLUSTER.equals(ebmlTypeInfo)) {
-                        sortClusters();
+                    incomingTrackNumber = 0;
+                    incomingTrackType = 0;
+                }
+                break;
+            case BUFFERING_CLUSTER:
+                if (id == ID_CLUSTER) {
+                    if (isDroppingCluster && currentCluster.isEmpty() && !currentCluster.isHeaderWritten()) {
+                        droppedClusterCount++;
+                    }
+                    sortClusters();
+                    if (isCoalescing()) {
+                        final int count = previousCluster.appendSimpleBlocksFrom(currentCluster);
+                        log.trace("Coalesced {} simple blocks to cluster: {}", count, previousCluster);
+                    } else {
                         emitCluster(previousCluster);
                         previousCluster = currentCluster;
-                        currentCluster = null;
-                        if (isPausable) {
-                            log.trace("state: BUFFERING_CLUSTER -> PAUSE");
-                            state = MergeState.PAUSE;
-                        } else {
-                            log.trace("state: BUFFERING_CLUSTER -> BUFFERING_SEGMENT");
-                            state = MergeState.BUFFERING_SEGMENT;
-                        }
                     }
-                    break;
-                case BUFFERING_TAG:
-                    if (MkvTypeInfos.TAGS.equals(ebmlTypeInfo)) {
-                        log.trace("state: BUFFERING_TAG -> BUFFERING_SEGMENT");
+                    currentCluster = null;
+                    if (isPausable) {
+                        log.trace("state: BUFFERING_CLUSTER -> PAUSE");
+                        state = MergeState.PAUSE;
+                    } else {
+                        log.trace("state: BUFFERING_CLUSTER -> BUFFERING_SEGMENT");
                         state = MergeState.BUFFERING_SEGMENT;
                     }
-                    break;
-                default:
-                    throw new MkvTracksException("Unknown state " + state);
-            }
+                }
+                break;
+            case BUFFERING_TAG:
+                if (id == ID_TAGS) {
+                    log.trace("state: BUFFERING_TAG -> BUFFERING_SEGMENT");
+                    state = MergeState.BUFFERING_SEGMENT;
+                }
+                break;
+            default:
+                throw new MkvTracksException("Unknown state " + state);
         }
+    }
 
-        @Override
-        public void visit(MkvDataElement dataElement) throws MkvElementVisitException {
-            final EBMLTypeInfo ebmlTypeInfo = dataElement.getElementMetaData().getTypeInfo();
-            log.debug("name=" + ebmlTypeInfo.getName() + ", level=" + ebmlTypeInfo.getLevel());
-            switch (state) {
-                case NEW:
-                    throw new IllegalArgumentException("NEW state should not start with MkvDataElement " + dataElement);
-                case BUFFERING_SEGMENT:
-                    bufferAndCollectSegment(dataElement);
-                    break;
-                case BUFFERING_CLUSTER:
-                    bufferAndCollectCluster(dataElement);
-                    break;
-                case BUFFERING_TAG:
-                    log.debug("Ignore Tag data: " + ebmlTypeInfo.getName());
-                    break;
-                default:
-                    throw new MkvTracksException("Unknown state " + state);
-            }
+    private void handleDataElement(int id, ByteBuffer headerBuffer, int headerOffset, int headerLength,
+                                   ByteBuffer dataBuffer, int dataOffset, int dataLength)
+            throws MkvElementVisitException {
+        TraceRing.getDefault().record(TraceRing.Event.DATA_ELEMENT, id, dataLength);
+        switch (state) {
+            case NEW:
+                throw new IllegalArgumentException("NEW state should not start with data element 0x"
+                        + Integer.toHexString(id));
+            case BUFFERING_SEGMENT:
+                bufferAndCollectSegment(id, headerBuffer, headerOffset, headerLength,
+                        dataBuffer, dataOffset, dataLength);
+                break;
+            case BUFFERING_CLUSTER:
+                bufferAndCollectCluster(id, headerBuffer, headerOffset, headerLength,
+                        dataBuffer, dataOffset, dataLength);
+                break;
+            case BUFFERING_TAG:
+                log.debug("Ignore Tag data");
+                break;
+            default:
+                throw new MkvTracksException("Unknown state " + state);
         }
     }
 
@@ -307,6 +515,37 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
         }
     }
 
+    /**
+     * Start to write clusters of new incoming MKV data straight to the output stream, bypassing this visitor.  It's
+     * called after elements before the first cluster are visited, and it's allowed only if clusters are written as
+     * they are by this visitor, i.e. tracks are the same as the emitted segment, timecode scale is 1 ms, fragment
+     * durations are kept, and the first cluster starts after all written and buffered simple blocks.  Buffered
+     * clusters are emitted first, so clusters written by the caller follow them.  Clusters visited afterwards are
+     * merged as usual.
+     *
+     * @param clusterTimecodeMs Absolute timecode of the first cluster to be written, including the timecode offset
+     * @return True if the caller can write clusters to the output stream
+     * @throws MkvElementVisitException It's thrown when it failed to emit buffered clusters
+     */
+    public boolean startPassthrough(long clusterTimecodeMs) throws MkvElementVisitException {
+        if (state != MergeState.BUFFERING_SEGMENT || !isSegmentEmitted || isSegmentVerified
+                || !tracksVisitor.isTracksEquivalent() || timescaleMs != DEFAULT_TIMESCALE_MS
+                || fragmentDurationRange != null || isStreaming() || currentCluster != null) {
+            return false;
+        }
+        long latestTimecode = Math.max(getLatestWrittenTimecode(), latestWrittenClusterTimecode);
+        if (previousCluster != null) {
+            latestTimecode = Math.max(latestTimecode, Math.max(previousCluster.getAbsoluteTimecode(),
+                    previousCluster.getLatestSimpleBlockTimecode()));
+        }
+        if (clusterTimecodeMs <= latestTimecode) {
+            return false;
+        }
+        emitCluster(previousCluster);
+        previousCluster = null;
+        return true;
+    }
+
     /**
      * It re-throws exception for {@link MkvElementVisitException}
      *
@@ -338,14 +577,16 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
     /**
      * Buffer element of segment (without cluster and tag)
      *
-     * @param startMasterElement The beginning of this element. It include EBML ID and Length fields.
+     * @param id           Element ID
+     * @param buffer       The buffer that holds EBML ID and Length fields
+     * @param headerOffset Absolute index of EBML ID
+     * @param headerLength Length of EBML ID and Length fields
      * @throws MkvElementVisitException It's thrown when it failed to write element to buffering channel
      */
-    private void bufferAndCollectSegment(final MkvStartMasterElement startMasterElement)
+    private void bufferAndCollectSegment(int id, ByteBuffer buffer, int headerOffset, int headerLength)
             throws MkvElementVisitException {
-        final EBMLTypeInfo ebmlTypeInfo = startMasterElement.getElementMetaData().getTypeInfo();
         if (!isSegmentVerified) {
-            if (MkvTypeInfos.SEGMENT.equals(ebmlTypeInfo)) {
+            if (id == ID_SEGMENT) {
                 SEGMENT_ELEMENT_WITH_UNKNOWN_LENGTH.rewind();
                 try {
                     bufferingSegmentChannel.write(SEGMENT_ELEMENT_WITH_UNKNOWN_LENGTH);
@@ -354,99 +595,146 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
                 }
             } else {
                 if (!isIgnoreTracksElements) {
-                    startMasterElement.writeToChannel(bufferingSegmentChannel);
+                    writeToBufferingSegment(buffer, headerOffset, headerLength);
                 }
             }
         } else {
             /* After segment is verified, all other level 1 elements should be ignored because we can't put them in
             the middle of cluster stream. */
-            log.debug("Ignore " + ebmlTypeInfo.getName());
+            log.debug("Ignore master element {}", id);
         }
     }
 
     /**
      * Buffer element of segment (without cluster and tag)
      *
-     * @param dataElement The whole element includes ID, Length, and Data.
+     * @param id           Element ID
+     * @param headerBuffer The buffer that holds EBML ID and Length fields
+     * @param headerOffset Absolute index of EBML ID
+     * @param headerLength Length of EBML ID and Length fields
+     * @param dataBuffer   The buffer that holds the data
+     * @param dataOffset   Absolute index of the data
+     * @param dataLength   Length of the data
      * @throws MkvElementVisitException It's thrown when it failed to write element to buffering channel
      */
-    private void bufferAndCollectSegment(final MkvDataElement dataElement)
+    private void bufferAndCollectSegment(int id, ByteBuffer headerBuffer, int headerOffset, int headerLength,
+                                         ByteBuffer dataBuffer, int dataOffset, int dataLength)
             throws MkvElementVisitException {
-        final EBMLTypeInfo ebmlTypeInfo = dataElement.getElementMetaData().getTypeInfo();
         if (!isSegmentVerified) {
-            if (MkvTypeInfos.TIMECODESCALE.equals(ebmlTypeInfo)) {
-                timescaleMs = getTimescaleMs(dataElement);
-            } else if (!isSegmentEmitted && MkvTypeInfos.TRACKNUMBER.equals(ebmlTypeInfo)) {
-                trackNumbers.add(getTrackNumber(dataElement));
+            if (id == ID_TIMECODESCALE) {
+                timescaleMs = EbmlVint.readUnsigned(dataBuffer, dataOffset, dataLength) / 1_000_000L;
+            } else if (id == ID_TRACKNUMBER) {
+                incomingTrackNumber = EbmlVint.readUnsigned(dataBuffer, dataOffset, dataLength);
+                incomingTrackNumbers.add(incomingTrackNumber);
+            } else if (id == ID_TRACKTYPE) {
+                incomingTrackType = EbmlVint.readUnsigned(dataBuffer, dataOffset, dataLength);
             }
             if (!isIgnoreTracksElements) {
-                dataElement.writeToChannel(bufferingSegmentChannel);
+                writeToBufferingSegment(headerBuffer, headerOffset, headerLength);
+                writeToBufferingSegment(dataBuffer, dataOffset, dataLength);
             }
         } else {
             /* After segment is verified, all other level 1 elements should be ignored because we can't put them in
             the middle of cluster stream. */
-            log.debug("Ignore " + ebmlTypeInfo.getName());
+            log.debug("Ignore data element {}", id);
+        }
+    }
+
+    private void writeToBufferingSegment(ByteBuffer buffer, int offset, int length) throws MkvElementVisitException {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        try {
+            while (duplicate.hasRemaining()) {
+                bufferingSegmentChannel.write(duplicate);
+            }
+        } catch (IOException exception) {
+            wrapIOException(exception);
         }
     }
 
     /**
      * Buffer element of cluster
      *
-     * @param startMasterElement The beginning of this element. It include EBML ID and Length fields.
+     * @param id Element ID of a master element
      */
-    private void bufferAndCollectCluster(final MkvStartMasterElement startMasterElement)
-            throws MkvElementVisitException {
-        final EBMLTypeInfo ebmlTypeInfo = startMasterElement.getElementMetaData().getTypeInfo();
-        if (MkvTypeInfos.CLUSTER.equals(ebmlTypeInfo)) {
+    private void bufferAndCollectCluster(int id) throws MkvElementVisitException {
+        if (id == ID_CLUSTER) {
             if (currentCluster != null) {
                 throw new MkvElementVisitException("There are un-expectedly nested cluster elements",
                         new RuntimeException());
             }
             currentCluster = new MkvCluster(CLUSTER_ELEMENT_WITH_UNKNOWN_LENGTH);
+            isDroppingCluster = false;
         }
     }
 
     /**
      * Buffer element of cluster
      *
-     * @param dataElement The whole element includes ID, Length, and Data.
+     * @param id           Element ID
+     * @param headerBuffer The buffer that holds EBML ID and Length fields
+     * @param headerOffset Absolute index of EBML ID
+     * @param headerLength Length of EBML ID and Length fields
+     * @param dataBuffer   The buffer that holds the data
+     * @param dataOffset   Absolute index of the data
+     * @param dataLength   Length of the data
      * @throws MkvElementVisitException It's thrown when it failed to write element to buffering channel
      */
-    private void bufferAndCollectCluster(final MkvDataElement dataElement)
+    private void bufferAndCollectCluster(int id, ByteBuffer headerBuffer, int headerOffset, int headerLength,
+                                         ByteBuffer dataBuffer, int dataOffset, int dataLength)
             throws MkvElementVisitException {
         if (currentCluster == null) {
             throw new MkvElementVisitException("Unable to buffer data element to empty clusters",
                     new RuntimeException());
         }
 
-        final EBMLTypeInfo ebmlTypeInfo = dataElement.getElementMetaData().getTypeInfo();
-        if (MkvTypeInfos.TIMECODE.equals(ebmlTypeInfo)) {
-            Optional<BigInteger> clusterTimecode = Optional.of((BigInteger) dataElement.getValueCopy().getVal());
-            final long clusterTimecodeMs = clusterTimecode.get().longValue();
+        if (id == ID_TIMECODE) {
+            final long clusterTimecodeMs = EbmlVint.readUnsigned(dataBuffer, dataOffset, dataLength);
 
             if (nextFragmentTimecodeOffsetMs == -1) {
                 if (previousCluster != null) {
                     // TODO: we can do better guess if we refer to more than one previous cluster
                     nextFragmentTimecodeOffsetMs = previousCluster.getExpectedNextTimeCode();
                 } else {
-                    // There is no previous cluster to help us guess
-                    nextFragmentTimecodeOffsetMs = 0;
+                    // Start after written simple blocks, or at zero if there is none
+                    nextFragmentTimecodeOffsetMs = getLatestWrittenTimecode() + 1;
                 }
             }
 
             final long clusterTimecodeUpdatedMs = clusterTimecodeMs + nextFragmentTimecodeOffsetMs / timescaleMs;
-            log.trace("Update cluster timecode from " + clusterTimecodeMs + " to " + clusterTimecodeUpdatedMs);
+            log.trace("Update cluster timecode from {} to {}", clusterTimecodeMs, clusterTimecodeUpdatedMs);
             currentCluster.setAbsoluteTimecode(clusterTimecodeUpdatedMs);
-        } else if (MkvTypeInfos.SIMPLEBLOCK.equals(ebmlTypeInfo)) {
-            final MkvValue<Frame> frame = dataElement.getValueCopy();
-
-            currentCluster.addSimpleBlock(new MkvSimpleBlock(
-                    frame.getVal().getTimeCode(),
-                    frame.getVal().getTrackNumber(),
-                    dataElement.getIdAndSizeRawBytes(),
-                    dataElement.getDataBuffer()));
+
+            if (isStreaming() && previousCluster != null) {
+                // No more simple blocks go to previous cluster, so it can be emitted once late blocks are moved
+                sortClusters();
+                emitCluster(previousCluster);
+                previousCluster = null;
+            }
+        } else if (id == ID_SIMPLEBLOCK) {
+            // Simple block data starts with a VINT track number, followed by a 16 bits signed relative timecode
+            final int trackNumberLength = dataLength > 0 ? EbmlVint.length(dataBuffer.get(dataOffset)) : 0;
+            if (trackNumberLength == 0 || dataLength < trackNumberLength + SIMPLE_BLOCK_TIMECODE_SIZE) {
+                throw new MkvElementVisitException("Invalid simple block", new RuntimeException());
+            }
+            final long trackNumber = EbmlVint.readValue(dataBuffer, dataOffset, trackNumberLength);
+            final short timecode = (short) EbmlVint.readUnsigned(dataBuffer, dataOffset + trackNumberLength,
+                    SIMPLE_BLOCK_TIMECODE_SIZE);
+            if (isCovered(trackNumber, currentCluster.getAbsoluteTimecode() + timecode)) {
+                // Drop it before its bytes are copied
+                droppedSimpleBlockCount++;
+                isDroppingCluster = true;
+                return;
+            }
+
+            currentCluster.addSimpleBlock(new MkvSimpleBlock(timecode, trackNumber,
+                    headerBuffer, headerOffset, headerLength, dataBuffer, dataOffset, dataLength));
+            if (isStreaming()) {
+                emitStableSimpleBlocks(currentCluster);
+            }
         } else {
-            log.debug("Ignore ebml element: " + ebmlTypeInfo.getName());
+            log.debug("Ignore ebml element {}", id);
         }
     }
 
@@ -461,80 +749,228 @@ public final class MergeFragmentVisitor extends CompositeMkvElementVisitor imple
             outputChannel.write(ByteBuffer.wrap(tracksVisitor.toMkvRawData()));
             log.info("Wrote segment to output stream");
             isSegmentEmitted = true;
+            trackNumbers.clear();
+            trackNumbers.addAll(incomingTrackNumbers);
+            videoTrackNumbers.clear();
+            videoTrackNumbers.addAll(incomingVideoTrackNumbers);
         } catch (IOException exception) {
             wrapIOException(exception);
         }
     }
 
-    private void emitCluster(MkvCluster cluster) throws MkvElementVisitException {
-        if (cluster != null) {
-            boolean isMissingFrameForTrack = false;
-            for (long trackNumber : trackNumbers) {
-                if (cluster.getSimpleBlockCountInTrack(trackNumber) == 0) {
-                    isMissingFrameForTrack = true;
-                }
+    /**
+     * Start a new segment with the new tracks in the same output stream.  Simple blocks of previous cluster can't be
+     * moved to clusters of the new segment, so it's emitted first.  If the timecode offset is not given, it's guessed
+     * from previous cluster before that, so fragment timecodes keep increasing across segments.
+     */
+    private void restartSegment() throws MkvElementVisitException {
+        if (nextFragmentTimecodeOffsetMs == -1 && previousCluster != null) {
+            nextFragmentTimecodeOffsetMs = previousCluster.getExpectedNextTimeCode();
+        }
+        emitCluster(previousCluster);
+        previousCluster = null;
+        try {
+            tracksVisitor.restartWithNewTracks();
+        } catch (IOException exception) {
+            wrapIOException(exception);
+        }
+        emitBufferedSegmentData();
+    }
+
+    /**
+     * Check if a simple block is covered, so it should be dropped.  It's covered if it's not later than written simple
+     * blocks of the same track, or a buffered simple block has the same track and timecode.  It happens when
+     * recordings overlap, e.g. after recorder restarts, and they would otherwise upload the same time range twice or
+     * make fragment timecodes go backwards.
+     *
+     * @param trackNumber Track number of the simple block
+     * @param timecode    Absolute timecode of the simple block
+     * @return True if it's covered
+     */
+    private boolean isCovered(long trackNumber, long timecode) {
+        for (int i = 0; i < writtenTrackSize; i++) {
+            if (writtenTrackNumbers[i] == trackNumber && timecode <= writtenTimecodes[i]) {
+                return true;
             }
-            if (isMissingFrameForTrack) {
-                log.trace("Skip cluster for missing frame for track: " + cluster);
-            } else {
-                log.trace("Wrote cluster to channel: " + cluster);
-                cluster.sort();
-                try {
-                    cluster.writeToChannel(outputChannel);
-                } catch (IOException exception) {
-                    wrapIOException(exception);
+        }
+        return currentCluster.containsSimpleBlock(trackNumber, timecode)
+                || (previousCluster != null && previousCluster.containsSimpleBlock(trackNumber, timecode));
+    }
+
+    /**
+     * Update highest written timecodes by simple blocks of a cluster to be written.  Simple blocks written ahead by a
+     * streaming visitor are not counted, which only lets fewer simple blocks be dropped.
+     *
+     * @param cluster The cluster to be written
+     */
+    private void updateWrittenTimecodes(MkvCluster cluster) {
+        for (long trackNumber : trackNumbers) {
+            final long timecode = cluster.getLatestSimpleBlockTimecodeInTrack(trackNumber);
+            if (timecode == Long.MIN_VALUE) {
+                continue;
+            }
+            int index = 0;
+            while (index < writtenTrackSize && writtenTrackNumbers[index] != trackNumber) {
+                index++;
+            }
+            if (index == writtenTrackSize) {
+                if (writtenTrackSize == writtenTrackNumbers.length) {
+                    writtenTrackNumbers = Arrays.copyOf(writtenTrackNumbers, writtenTrackSize * 2);
+                    writtenTimecodes = Arrays.copyOf(writtenTimecodes, writtenTrackSize * 2);
                 }
+                writtenTrackNumbers[index] = trackNumber;
+                writtenTimecodes[index] = timecode;
+                writtenTrackSize++;
+            } else {
+                writtenTimecodes[index] = Math.max(writtenTimecodes[index], timecode);
             }
         }
     }
 
+    private long getLatestWrittenTimecode() {
+        long latest = -1;
+        for (int i = 0; i < writtenTrackSize; i++) {
+            latest = Math.max(latest, writtenTimecodes[i]);
+        }
+        return latest;
+    }
+
     /**
-     * Get timescale in milliseconds precision from a timescale element
+     * Move a cluster that starts before the latest written cluster to its first simple block, so fragment timecodes
+     * keep increasing after covered simple blocks are dropped.  It's only done before its header is written.
      *
-     * @param timescaleElement EBML timescale element
-     * @return Timescale in milliseconds precision.
+     * @param cluster The cluster to be written
      */
-    private long getTimescaleMs(final MkvDataElement timescaleElement) {
-        Optional<BigInteger> timescale = Optional.of((BigInteger) timescaleElement.getValueCopy().getVal());
-        return timescale.get().longValue() / 1_000_000L;
+    private void moveBackwardCluster(MkvCluster cluster) {
+        if (!cluster.isHeaderWritten()) {
+            if (cluster.getAbsoluteTimecode() <= latestWrittenClusterTimecode && !cluster.isEmpty()
+                    && cluster.getEarliestSimpleBlockTimecode() > latestWrittenClusterTimecode) {
+                log.debug("Move cluster timecode from {} to {}", cluster.getAbsoluteTimecode(),
+                        cluster.getEarliestSimpleBlockTimecode());
+                cluster.moveAbsoluteTimecode(cluster.getEarliestSimpleBlockTimecode());
+            }
+            latestWrittenClusterTimecode = Math.max(latestWrittenClusterTimecode, cluster.getAbsoluteTimecode());
+        }
+    }
+
+    private boolean isMissingFrameForTrack(MkvCluster cluster) {
+        for (long trackNumber : trackNumbers) {
+            if (cluster.getSimpleBlockCountInTrack(trackNumber) == 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Get track number from track number element
+     * Check if current cluster should be coalesced into previous cluster.  It's coalesced if previous cluster is
+     * shorter than the min fragment duration, and both clusters together are within the max fragment duration.
      *
-     * @param trackNumberElement EBML track number
-     * @return track number
+     * @return True if current cluster should be coalesced
      */
-    private long getTrackNumber(final MkvDataElement trackNumberElement) {
-        Optional<BigInteger> trackNumber = Optional.of((BigInteger) trackNumberElement.getValueCopy().getVal());
-        return trackNumber.get().longValue();
+    private boolean isCoalescing() {
+        if (fragmentDurationRange == null || previousCluster == null || currentCluster == null
+                || previousCluster.isHeaderWritten()) {
+            return false;
+        }
+        final long previousDuration = currentCluster.getAbsoluteTimecode() - previousCluster.getAbsoluteTimecode();
+        final long coalescedDuration = currentCluster.getLatestSimpleBlockTimecode()
+                - previousCluster.getAbsoluteTimecode();
+        return previousDuration * timescaleMs < fragmentDurationRange.getMinDurationMs()
+                && coalescedDuration * timescaleMs <= fragmentDurationRange.getMaxDurationMs()
+                && coalescedDuration <= Short.MAX_VALUE;
     }
 
     /**
-     * Fix out-of-order situations.  There might be 2 kinds of out-of-order.
-     * (1) Simple blocks out of order within one cluster. This can be fixed by sort simple blocks within that cluster.
-     * (2) The absolute timecode of the latest simple block in previous cluster is larger than the earliest simple block
-     * in current cluster.  This can be fixed by moving simple block from previous cluster to current cluster.
+     * Split the cluster at a key frame of video tracks if splitting is enabled and the cluster is longer than the max
+     * fragment duration.
+     *
+     * @param cluster The cluster to split
+     * @return The cluster of simple blocks from the key frame, or null if the cluster is not split
      */
-    private void sortClusters() {
-        if (previousCluster != null) {
-            previousCluster.sort();
+    private MkvCluster splitCluster(MkvCluster cluster) {
+        if (fragmentDurationRange == null || !fragmentDurationRange.isSplitting() || cluster.isHeaderWritten()) {
+            return null;
         }
-        if (currentCluster != null) {
-            currentCluster.sort();
+        final long maxDuration = fragmentDurationRange.getMaxDurationMs() / timescaleMs;
+        if (cluster.getLatestSimpleBlockTimecode() - cluster.getEarliestSimpleBlockTimecode() <= maxDuration) {
+            return null;
         }
-        if (previousCluster != null && currentCluster != null) {
-            final short timecodeDiff = (short) (previousCluster.getAbsoluteTimecode()
-                    - currentCluster.getAbsoluteTimecode());
-            while (!previousCluster.isEmpty() && previousCluster.getLatestSimpleBlockTimecode()
-                    >= currentCluster.getAbsoluteTimecode()) {
-                MkvSimpleBlock simpleBlock = previousCluster.removeLatestSimpleBlock();
+        final long splitTimecode = cluster.findSplitTimecode(videoTrackNumbers, maxDuration);
+        if (splitTimecode < 0) {
+            return null;
+        }
+        final MkvCluster nextCluster = new MkvCluster(CLUSTER_ELEMENT_WITH_UNKNOWN_LENGTH);
+        nextCluster.setAbsoluteTimecode(splitTimecode);
+        final int movedCount = cluster.migrateSimpleBlocksTo(nextCluster);
+        log.trace("Split {} simple blocks to cluster: {}", movedCount, nextCluster);
+        return nextCluster;
+    }
+
+    private void emitCluster(MkvCluster cluster) throws MkvElementVisitException {
+        MkvCluster remainingCluster = cluster;
+        while (remainingCluster != null) {
+            final MkvCluster nextCluster = splitCluster(remainingCluster);
+            writeCluster(remainingCluster);
+            remainingCluster = nextCluster;
+        }
+    }
 
-                simpleBlock.updateTimecode(timecodeDiff);
-                currentCluster.addSimpleBlock(simpleBlock);
+    private void writeCluster(MkvCluster cluster) throws MkvElementVisitException {
+        if (!cluster.isHeaderWritten() && isMissingFrameForTrack(cluster)) {
+            TraceRing.getDefault().record(TraceRing.Event.CLUSTER_SKIP, cluster.getSimpleBlockCount(),
+                    cluster.getAbsoluteTimecode());
+        } else {
+            moveBackwardCluster(cluster);
+            updateWrittenTimecodes(cluster);
+            TraceRing.getDefault().record(TraceRing.Event.CLUSTER_EMIT, cluster.getSimpleBlockCount(),
+                    cluster.getAbsoluteTimecode());
+            try {
+                cluster.writeToChannel(outputChannel);
+            } catch (IOException exception) {
+                wrapIOException(exception);
+            }
+        }
+    }
 
-                previousCluster.sort();
-                currentCluster.sort();
+    /**
+     * Emit simple blocks that are older than the reorder window.  Later simple blocks can't be earlier than them, and
+     * next cluster can't start before them, so they will neither be reordered nor moved.  Nothing is emitted until
+     * every track has a simple block in this cluster, so a cluster missing frames for a track can still be skipped.
+     *
+     * @param cluster The cluster to emit simple blocks from
+     * @throws MkvElementVisitException It's thrown when it failed to write to output channel
+     */
+    private void emitStableSimpleBlocks(MkvCluster cluster) throws MkvElementVisitException {
+        if (!cluster.isHeaderWritten() && isMissingFrameForTrack(cluster)) {
+            return;
+        }
+        final long stableTimecode = cluster.getLatestSimpleBlockTimecode() - reorderWindowMs / timescaleMs;
+        if (cluster.getEarliestSimpleBlockTimecode() < stableTimecode) {
+            moveBackwardCluster(cluster);
+        }
+        try {
+            final int count = cluster.writeSimpleBlocksToChannel(outputChannel, stableTimecode);
+            if (count > 0) {
+                log.trace("Wrote {} simple blocks of cluster to channel: {}", count, cluster);
+            }
+        } catch (IOException exception) {
+            wrapIOException(exception);
+        }
+    }
+
+    /**
+     * Fix out-of-order situations.  There might be 2 kinds of out-of-order.
+     * (1) Simple blocks out of order within one cluster. Clusters keep their simple blocks sorted on insertion, so
+     * this is already handled.
+     * (2) The absolute timecode of the latest simple block in previous cluster is larger than the earliest simple block
+     * in current cluster.  This can be fixed by moving simple blocks from previous cluster to current cluster.
+     */
+    private void sortClusters() {
+        if (previousCluster != null && currentCluster != null) {
+            final int movedCount = previousCluster.migrateSimpleBlocksTo(currentCluster);
+            if (movedCount > 0) {
+                log.trace("Moved {} simple blocks to cluster: {}", movedCount, currentCluster);
             }
         }
     }
@@ -1,6 +1,5 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.visitors;
 
-import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
@@ -8,17 +7,22 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvDataRawElement;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvParentRawElement;
-import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvRawElement;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvTracksFingerprint;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MkvTracksException;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * A MKV visitor to gather tracks metadata in the MKV.
+ * A MKV visitor to gather tracks metadata in the MKV.  Each tracks element is reduced to a
+ * {@link MkvTracksFingerprint}, so checking if tracks are equivalent is a single comparison.  Tracks are serialized
+ * once into a cache shared by all visitors.  The first tracks are the current tracks, and different tracks found later
+ * are kept until {@link #restartWithNewTracks()} makes them current.
  */
 @Slf4j
 public class MkvTracksVisitor extends MkvElementVisitor {
@@ -40,32 +44,93 @@ public class MkvTracksVisitor extends MkvElementVisitor {
     @Getter
     private State state = State.NEW;
 
-    private MkvParentRawElement previousTracks = null;
-
+    // Raw elements of the tracks being buffered, it's null after the tracks end
     private MkvParentRawElement currentTracks = null;
 
     private MkvParentRawElement currentParentElement = null;
 
-    private static final byte[] ID_TRACK_UID = new byte[]{(byte) 0x73, (byte) 0xC5};
+    private MkvTracksFingerprint currentFingerprint = null;
+
+    // Including track UID, so cached raw data is the same as the serialized tracks
+    private MkvTracksFingerprint currentExactFingerprint = null;
+
+    // Fingerprint and serialized raw data of the current tracks
+    @Getter
+    private long tracksFingerprint = 0;
+
+    private byte[] tracksRawData = null;
+
+    // Fingerprint and serialized raw data of the latest tracks if they are different from the current tracks
+    private long newTracksFingerprint = 0;
+
+    private byte[] newTracksRawData = null;
+
+    private static final int MAX_CACHED_TRACKS = 16;
+
+    // Serialized tracks by exact fingerprint.  Recordings of a camera share the same tracks, so it's rarely more than
+    // one.
+    private static final Map<Long, byte[]> TRACKS_RAW_DATA_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<Long, byte[]>(MAX_CACHED_TRACKS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > MAX_CACHED_TRACKS;
+                }
+            });
+
+    private static final int ID_TRACKS = MkvTypeInfos.TRACKS.getId();
+
+    private static final int ID_CRC_32 = MkvTypeInfos.CRC_32.getId();
+
+    private static final int ID_VOID = MkvTypeInfos.VOID.getId();
 
     @Getter
     private boolean isTracksEquivalent = true;
 
     @Override
     public void visit(MkvStartMasterElement startMasterElement) {
-        final EBMLTypeInfo ebmlTypeInfo = startMasterElement.getElementMetaData().getTypeInfo();
+        final ByteBuffer idAndSizeRawBytes = startMasterElement.getIdAndSizeRawBytes();
+        onMasterStart(startMasterElement.getElementMetaData().getTypeInfo().getId(),
+                idAndSizeRawBytes, 0, idAndSizeRawBytes.limit());
+    }
+
+    @Override
+    public void visit(MkvEndMasterElement endMasterElement) {
+        onMasterEnd(endMasterElement.getElementMetaData().getTypeInfo().getId());
+    }
+
+    @Override
+    public void visit(MkvDataElement dataElement) {
+        final ByteBuffer idAndSizeRawBytes = dataElement.getIdAndSizeRawBytes();
+        final ByteBuffer dataBuffer = dataElement.getDataBuffer();
+        onDataElement(dataElement.getElementMetaData().getTypeInfo().getId(),
+                idAndSizeRawBytes, 0, idAndSizeRawBytes.limit(), dataBuffer, 0, dataBuffer.limit());
+    }
+
+    /**
+     * Handle the start of a master element.
+     *
+     * @param id           Element ID
+     * @param buffer       The buffer that holds the element header
+     * @param headerOffset Absolute index of the element header
+     * @param headerLength Length of the element ID and size field
+     */
+    public void onMasterStart(int id, ByteBuffer buffer, int headerOffset, int headerLength) {
         switch (state) {
             case NEW:
-                if (MkvTypeInfos.TRACKS.equals(ebmlTypeInfo)) {
+                if (id == ID_TRACKS) {
                     log.debug("state: NEW -> BUFFERING_TRACKS");
                     state = State.BUFFERING_TRACKS;
 
-                    currentTracks = new MkvParentRawElement(startMasterElement.getIdAndSizeRawBytes());
+                    currentFingerprint = new MkvTracksFingerprint();
+                    currentExactFingerprint = new MkvTracksFingerprint(true);
+                    currentTracks = new MkvParentRawElement(slice(buffer, headerOffset, headerLength));
                     currentParentElement = currentTracks;
                 }
                 break;
             case BUFFERING_TRACKS:
-                MkvParentRawElement parent = new MkvParentRawElement(startMasterElement.getIdAndSizeRawBytes());
+                currentFingerprint.addMasterStart(id);
+                currentExactFingerprint.addMasterStart(id);
+                MkvParentRawElement parent = new MkvParentRawElement(slice(buffer, headerOffset, headerLength));
                 currentParentElement.addRawElement(parent);
                 currentParentElement = parent;
                 break;
@@ -74,24 +139,38 @@ public class MkvTracksVisitor extends MkvElementVisitor {
         }
     }
 
-    @Override
-    public void visit(MkvEndMasterElement endMasterElement) {
-        final EBMLTypeInfo ebmlTypeInfo = endMasterElement.getElementMetaData().getTypeInfo();
+    /**
+     * Handle the end of a master element.
+     *
+     * @param id Element ID
+     */
+    public void onMasterEnd(int id) {
         switch (state) {
             case NEW:
                 break;
             case BUFFERING_TRACKS:
-                if (MkvTypeInfos.TRACKS.equals(ebmlTypeInfo)) {
-                    if (previousTracks == null) {
-                        previousTracks = currentTracks;
-                        currentTracks = null;
+                if (id == ID_TRACKS) {
+                    if (!isTracksAvailable()) {
+                        tracksFingerprint = currentFingerprint.getValue();
+                        tracksRawData = serializeCurrentTracks();
                     } else {
-                        isTracksEquivalent = checkIfTracksEquivalent(previousTracks, currentTracks);
+                        isTracksEquivalent = currentFingerprint.getValue() == tracksFingerprint;
+                        if (isTracksEquivalent) {
+                            newTracksRawData = null;
+                        } else {
+                            newTracksFingerprint = currentFingerprint.getValue();
+                            newTracksRawData = serializeCurrentTracks();
+                        }
                     }
+                    currentTracks = null;
+                    currentParentElement = null;
+                    currentExactFingerprint = null;
 
                     log.debug("state: BUFFERING_TRACKS -> NEW");
                     state = State.NEW;
                 } else {
+                    currentFingerprint.addMasterEnd(id);
+                    currentExactFingerprint.addMasterEnd(id);
                     currentParentElement = currentParentElement.getParent();
                 }
                 break;
@@ -100,18 +179,30 @@ public class MkvTracksVisitor extends MkvElementVisitor {
         }
     }
 
-    @Override
-    public void visit(MkvDataElement dataElement) {
-        final EBMLTypeInfo ebmlTypeInfo = dataElement.getElementMetaData().getTypeInfo();
-        if (MkvTypeInfos.CRC_32.equals(ebmlTypeInfo) || MkvTypeInfos.VOID.equals(ebmlTypeInfo)) {
+    /**
+     * Handle a data element.
+     *
+     * @param id           Element ID
+     * @param headerBuffer The buffer that holds the element header
+     * @param headerOffset Absolute index of the element header
+     * @param headerLength Length of the element ID and size field
+     * @param dataBuffer   The buffer that holds the element data
+     * @param dataOffset   Absolute index of the element data
+     * @param dataLength   Length of the element data
+     */
+    public void onDataElement(int id, ByteBuffer headerBuffer, int headerOffset, int headerLength,
+                              ByteBuffer dataBuffer, int dataOffset, int dataLength) {
+        if (id == ID_CRC_32 || id == ID_VOID) {
             return;
         }
         switch (state) {
             case NEW:
                 break;
             case BUFFERING_TRACKS:
-                MkvDataRawElement dataRawElement = new MkvDataRawElement(dataElement.getIdAndSizeRawBytes(),
-                        dataElement.getDataBuffer());
+                currentFingerprint.addDataElement(id, dataBuffer, dataOffset, dataLength);
+                currentExactFingerprint.addDataElement(id, dataBuffer, dataOffset, dataLength);
+                MkvDataRawElement dataRawElement = new MkvDataRawElement(
+                        slice(headerBuffer, headerOffset, headerLength), slice(dataBuffer, dataOffset, dataLength));
                 currentParentElement.addRawElement(dataRawElement);
                 break;
             default:
@@ -119,43 +210,17 @@ public class MkvTracksVisitor extends MkvElementVisitor {
         }
     }
 
-    /**
-     * Test if 2 tracks are equivalent. We compare fields related media settings, so we ignore track UID because it's
-     * not related.
-     *
-     * @param previousTracks The first tracks to be compared
-     * @param currentTracks  The second tracks to be compared
-     * @return True if they are equivalent, false otherwise.
-     */
-    private boolean checkIfTracksEquivalent(MkvParentRawElement previousTracks, MkvParentRawElement currentTracks) {
-        boolean isEquivalent = true;
-        final ArrayList<MkvRawElement> previousElements = previousTracks.getFlattenedElements();
-        final ArrayList<MkvRawElement> currentElements = currentTracks.getFlattenedElements();
-
-        if (previousElements.size() != currentElements.size()) {
-            isEquivalent = false;
-        } else {
-            for (int i = 0; i < previousElements.size(); i++) {
-                final MkvRawElement previousElement = previousElements.get(i);
-                final MkvRawElement currentElement = currentElements.get(i);
-
-                if (previousElement.getClass() != currentElement.getClass()) {
-                    isEquivalent = false;
-                    break;
-                }
+    private byte[] serializeCurrentTracks() {
+        final MkvParentRawElement tracks = currentTracks;
+        return TRACKS_RAW_DATA_CACHE.computeIfAbsent(currentExactFingerprint.getValue(),
+                fingerprint -> tracks.toMkvRawData());
+    }
 
-                if (Arrays.equals(previousElement.getIdCopy(), ID_TRACK_UID)
-                        && Arrays.equals(currentElement.getIdCopy(), ID_TRACK_UID)) {
-                    log.debug("ignore track uid");
-                } else {
-                    if (!previousElement.equals(currentElement)) {
-                        isEquivalent = false;
-                        break;
-                    }
-                }
-            }
-        }
-        return isEquivalent;
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        return duplicate.slice();
     }
 
     /**
@@ -166,13 +231,29 @@ public class MkvTracksVisitor extends MkvElementVisitor {
      */
     public byte[] toMkvRawData() throws IOException {
         if (isTracksAvailable()) {
-            return previousTracks.toMkvRawData();
+            return tracksRawData.clone();
         } else {
             throw new IOException("No available tracks");
         }
     }
 
     public boolean isTracksAvailable() {
-        return previousTracks != null;
+        return tracksRawData != null;
+    }
+
+    /**
+     * Make the latest tracks the current tracks when they are different from the current tracks.  It's called when a
+     * new segment is started for them, and later tracks are compared with them.
+     *
+     * @throws IOException if the latest tracks are not different from the current tracks
+     */
+    public void restartWithNewTracks() throws IOException {
+        if (newTracksRawData == null) {
+            throw new IOException("No different tracks available");
+        }
+        tracksFingerprint = newTracksFingerprint;
+        tracksRawData = newTracksRawData;
+        newTracksRawData = null;
+        isTracksEquivalent = true;
     }
 }
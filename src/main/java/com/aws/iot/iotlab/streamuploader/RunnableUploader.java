@@ -16,6 +16,7 @@
 package com.aws.iot.iotlab.streamuploader;
 
 import com.aws.iot.edgeconnectorforkvs.videouploader.VideoUploader;
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UpdateFragmentStatus;
 import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack;
 import lombok.extern.slf4j.Slf4j;
 
@@ -30,15 +31,21 @@ import java.util.Date;
 public class RunnableUploader implements Runnable {
     private VideoUploader videoUploader;
     private InputStream inputStream;
+    private UpdateFragmentStatus updateHandler;
 
     public RunnableUploader(VideoUploader uploader, InputStream stream) {
+        this(uploader, stream, null);
+    }
+
+    public RunnableUploader(VideoUploader uploader, InputStream stream, UpdateFragmentStatus handler) {
         videoUploader = uploader;
         inputStream = stream;
+        updateHandler = handler;
     }
 
     @Override
     public void run() {
-        final UploadCallBack uploadCallBack = new UploadCallBack(new Date(), null) {
+        final UploadCallBack uploadCallBack = new UploadCallBack(new Date(), updateHandler) {
             @Override
             public void run() {
                 log.info("uploadCallback set status to true");
@@ -33,6 +33,9 @@ public class StreamConfig {
     public ContainerType CONTAINER_TYPE;
     public String RTSP_SRC_URL;
     public int STREAM_BUFFER_SIZE = 100000;
+    public boolean RECORD_TO_FILE = false;
+    public String STAGING_PATH = null;
+    public long MAX_STAGING_BYTES = 100_000_000L;
 
     // uploader config
     public Region REGION;
@@ -50,6 +53,18 @@ public class StreamConfig {
 
         // uploader config
         STREAM_PATH = "/";
+        if (StringUtils.isNotEmpty(singleConfig.getRecordPath())) {
+            // Recordings are kept in the record path for historical uploads
+            STREAM_PATH = singleConfig.getRecordPath();
+            RECORD_TO_FILE = true;
+            if (StringUtils.isNotEmpty(singleConfig.getStagingPath())) {
+                // Recordings are written to the staging path first, and only kept if they are not uploaded live
+                STAGING_PATH = singleConfig.getStagingPath();
+            }
+            if (singleConfig.getMaxStagingBytes() != 0) {
+                MAX_STAGING_BYTES = singleConfig.getMaxStagingBytes();
+            }
+        }
         KVS_STREAM_NAME = singleConfig.getKvsStreamName();
         REGION = RegionUtils.getRegion(System.getenv("AWS_REGION"));
         if (StringUtils.isNotEmpty(System.getenv("KVS_STREAM_REGION"))) {
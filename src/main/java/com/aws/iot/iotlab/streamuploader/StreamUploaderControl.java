@@ -16,16 +16,26 @@
 package com.aws.iot.iotlab.streamuploader;
 
 import com.amazonaws.auth.EC2ContainerCredentialsProviderWrapper;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingCatalog;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.model.RecorderStatus;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.VideoRecorder;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.VideoRecorderBuilder;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.callback.StatusCallback;
+import com.aws.iot.edgeconnectorforkvs.videorecorder.util.Config;
+import com.aws.iot.edgeconnectorforkvs.videouploader.RecordingRepairer;
+import com.aws.iot.edgeconnectorforkvs.videouploader.RecordingStager;
 import com.aws.iot.edgeconnectorforkvs.videouploader.VideoUploader;
 import com.aws.iot.edgeconnectorforkvs.videouploader.VideoUploaderClient;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runnable controller to stream data between recorder and uploader
@@ -35,6 +45,9 @@ public class StreamUploaderControl implements Runnable {
     protected PipedOutputStream pipedOutputStream;
     protected PipedInputStream pipedInputStream;
     protected StreamConfig streamConfig;
+    protected RecordingCatalog recordingCatalog;
+    protected RecordingStager recordingStager;
+    protected ScheduledExecutorService stagingExecutor;
 
     /**
      * StreamUploaderControl Constructor
@@ -49,12 +62,26 @@ public class StreamUploaderControl implements Runnable {
      */
     public void run() {
         initPipedStream();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        repairRecordings();
 
         VideoRecorder videoRecorder = initRecorder();
         VideoUploader videoUploader = initUploader();
+        RecordingStager stager = initStager();
 
         new Thread(new RunnableRecorder(videoRecorder)).start();
-        new Thread(new RunnableUploader(videoUploader, pipedInputStream)).start();
+        new Thread(new RunnableUploader(videoUploader, pipedInputStream,
+                stager == null ? null : stager.createUploadListener())).start();
+    }
+
+    /**
+     * Release background jobs of recordings when the process shuts down
+     */
+    protected void shutdown() {
+        closeRecordingCatalog();
+        if (stagingExecutor != null) {
+            stagingExecutor.shutdownNow();
+        }
     }
 
     /**
@@ -69,6 +96,19 @@ public class StreamUploaderControl implements Runnable {
         }
     }
 
+    /**
+     * Repair recordings truncated by a power loss before the recorder starts writing new ones
+     */
+    protected void repairRecordings() {
+        if (streamConfig.RECORD_TO_FILE) {
+            RecordingRepairer.builder()
+                    .recordFilePath(streamConfig.STREAM_PATH)
+                    .minFileAgeMs(0L)
+                    .build()
+                    .run();
+        }
+    }
+
     /**
      * Initiate video recorder for stream data collection
      * @return VideoRecorder
@@ -83,8 +123,17 @@ public class StreamUploaderControl implements Runnable {
         VideoRecorderBuilder builder = new VideoRecorderBuilder(callback);
         builder.registerCamera(streamConfig.REC_TYPE, streamConfig.RTSP_SRC_URL);
         builder.registerAppDataOutputStream(streamConfig.CONTAINER_TYPE, pipedOutputStream);
+        if (streamConfig.RECORD_TO_FILE) {
+            String recorderPath = streamConfig.STAGING_PATH == null ? streamConfig.STREAM_PATH
+                    : streamConfig.STAGING_PATH;
+            builder.registerFileSink(streamConfig.CONTAINER_TYPE, Paths.get(recorderPath, "video").toString());
+        }
         VideoRecorder recorder = builder.construct();
         recorder.toggleAppDataOutputStream(true);
+        // Staged files reach the catalog by its watch service when they are promoted
+        if (streamConfig.STAGING_PATH == null && initRecordingCatalog()) {
+            recorder.setFileRotationListener(recordingCatalog::onFileRotated);
+        }
 
         return recorder;
     }
@@ -94,13 +143,81 @@ public class StreamUploaderControl implements Runnable {
      * @return VideoUploader
      */
     protected VideoUploader initUploader() {
-        VideoUploader uploader = VideoUploaderClient.builder()
+        VideoUploaderClient uploader = VideoUploaderClient.builder()
                 .awsCredentialsProvider(new EC2ContainerCredentialsProviderWrapper())
                 .region(streamConfig.REGION)
                 .recordFilePath(streamConfig.STREAM_PATH)
                 .kvsStreamName(streamConfig.KVS_STREAM_NAME)
                 .build();
+        if (initRecordingCatalog()) {
+            uploader.setRecordingCatalog(recordingCatalog);
+        }
 
         return uploader;
     }
+
+    /**
+     * Initiate and schedule the stager of recordings, if the stream is recorded into a staging path.  Recordings that
+     * are confirmed uploaded by the live upload are dropped from the staging path, and the others are promoted to the
+     * record path.
+     * @return RecordingStager, or null if recordings are not staged
+     */
+    protected synchronized RecordingStager initStager() {
+        if (streamConfig.STAGING_PATH == null) {
+            return null;
+        }
+        if (recordingStager == null) {
+            recordingStager = RecordingStager.builder()
+                    .stagingFilePath(streamConfig.STAGING_PATH)
+                    .recordFilePath(streamConfig.STREAM_PATH)
+                    .maxStagingBytes(streamConfig.MAX_STAGING_BYTES)
+                    .build();
+            long periodMs = TimeUnit.NANOSECONDS.toMillis(Config.DEFAULT_FILE_ROTATION_IN_NS);
+            stagingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "recording-stager");
+                thread.setDaemon(true);
+                return thread;
+            });
+            stagingExecutor.scheduleWithFixedDelay(recordingStager, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+        return recordingStager;
+    }
+
+    /**
+     * Initiate and start the catalog of recordings in the record path, if the stream is recorded into files
+     * @return True if the catalog is started
+     */
+    protected synchronized boolean initRecordingCatalog() {
+        if (!streamConfig.RECORD_TO_FILE) {
+            return false;
+        }
+        if (recordingCatalog == null) {
+            RecordingCatalog catalog = RecordingCatalog.builder()
+                    .recordFilePath(streamConfig.STREAM_PATH)
+                    .build();
+            try {
+                Files.createDirectories(Paths.get(streamConfig.STREAM_PATH));
+                catalog.start();
+            } catch (IOException e) {
+                log.error("Recording catalog initialization failed", e);
+                return false;
+            }
+            recordingCatalog = catalog;
+        }
+        return true;
+    }
+
+    /**
+     * Stop watching the record path when the process shuts down
+     */
+    protected synchronized void closeRecordingCatalog() {
+        if (recordingCatalog != null) {
+            try {
+                recordingCatalog.close();
+            } catch (IOException e) {
+                log.error("Fail to close recording catalog", e);
+            }
+            recordingCatalog = null;
+        }
+    }
 }
@@ -27,4 +27,7 @@ public class SingleConfig {
     private String RtspUrl;
     private String KvsStreamName;
     private int streamBufferSize;
+    private String RecordPath;
+    private String StagingPath;
+    private long maxStagingBytes;
 }
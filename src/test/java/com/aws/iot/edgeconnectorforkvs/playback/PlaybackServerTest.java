@@ -0,0 +1,189 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.playback;
+
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class PlaybackServerTest {
+
+    private static final long VIDEO_TIME = 1600000000000L;
+
+    private static final String VIDEO_NAME = "video_" + VIDEO_TIME + ".mkv";
+
+    @TempDir
+    Path tempDir;
+
+    private PlaybackServer server;
+
+    private byte[] video;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        video = TestUtil.createClusteredVideo(3, 2);
+        TestUtil.createRecording(tempDir, VIDEO_NAME, video);
+
+        server = PlaybackServer.builder().recordFilePath(tempDir.toString()).port(0).build();
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private HttpURLConnection connect(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+    }
+
+    private static byte[] readBody(HttpURLConnection connection) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = connection.getInputStream()) {
+            final byte[] buffer = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, length);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void create_invalidArguments_throwException() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> PlaybackServer.builder().recordFilePath(tempDir.toString()).maxViewers(0).build());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> PlaybackServer.builder().recordFilePath(tempDir.toString()).port(-1).build());
+        Assertions.assertThrows(IllegalStateException.class, () -> server.start());
+    }
+
+    @Test
+    public void listRecordings_timeRange_recordingsInRange() throws IOException {
+        final String body = new String(readBody(connect("/recordings")), StandardCharsets.UTF_8);
+        Assertions.assertEquals("[{\"name\":\"" + VIDEO_NAME + "\",\"startTime\":" + VIDEO_TIME + ",\"size\":"
+                + video.length + "}]", body);
+
+        final String emptyBody = new String(readBody(connect("/recordings?start=" + (VIDEO_TIME + 1))),
+                StandardCharsets.UTF_8);
+        Assertions.assertEquals("[]", emptyBody);
+    }
+
+    @Test
+    public void serveRecording_wholeFile_sameBytes() throws IOException {
+        final HttpURLConnection connection = connect("/recordings/" + VIDEO_NAME);
+
+        Assertions.assertEquals(200, connection.getResponseCode());
+        Assertions.assertEquals(video.length, connection.getContentLengthLong());
+        Assertions.assertArrayEquals(video, readBody(connection));
+    }
+
+    @Test
+    public void serveRecording_byteRange_partialContent() throws IOException {
+        final HttpURLConnection connection = connect("/recordings/" + VIDEO_NAME);
+        connection.setRequestProperty("Range", "bytes=4-9");
+
+        Assertions.assertEquals(206, connection.getResponseCode());
+        Assertions.assertEquals("bytes 4-9/" + video.length, connection.getHeaderField("Content-Range"));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(video, 4, 10), readBody(connection));
+
+        final HttpURLConnection unsatisfiable = connect("/recordings/" + VIDEO_NAME);
+        unsatisfiable.setRequestProperty("Range", "bytes=" + video.length + "-");
+        Assertions.assertEquals(416, unsatisfiable.getResponseCode());
+    }
+
+    @Test
+    public void serveRecording_timeRange_clip() throws IOException {
+        final HttpURLConnection connection = connect("/recordings/" + VIDEO_NAME + "?start=" + (VIDEO_TIME + 1500)
+                + "&end=" + (VIDEO_TIME + 1500));
+
+        Assertions.assertEquals(200, connection.getResponseCode());
+        final byte[] body = readBody(connection);
+        final int clusterLength = (video.length - TestUtil.createTracksHeader(false).length) / 3;
+        Assertions.assertEquals(video.length - 2 * clusterLength, body.length);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(video, video.length - 2 * clusterLength,
+                video.length - clusterLength), Arrays.copyOfRange(body, body.length - clusterLength, body.length));
+    }
+
+    @Test
+    public void serveRecording_unknownRecording_notFound() throws IOException {
+        Assertions.assertEquals(404, connect("/recordings/video_1.mkv").getResponseCode());
+        Assertions.assertEquals(404, connect("/recordings/..%2F" + VIDEO_NAME).getResponseCode());
+        Assertions.assertEquals(404, connect("/unknown").getResponseCode());
+        Assertions.assertEquals(400, connect("/stream").getResponseCode());
+    }
+
+    @Test
+    public void serveStream_timeRange_mergedStream() throws IOException {
+        final HttpURLConnection connection = connect("/stream?start=" + VIDEO_TIME + "&end=" + (VIDEO_TIME + 5000));
+
+        Assertions.assertEquals(200, connection.getResponseCode());
+        final byte[] body = readBody(connection);
+        Assertions.assertTrue(body.length > 0);
+        Assertions.assertArrayEquals(Arrays.copyOf(video, 4), Arrays.copyOf(body, 4));
+    }
+
+    @Test
+    public void serveRecording_partitionedLayout_found() throws IOException {
+        final Path partitionFolder = RecordingLayout.HOURLY.getPartitionFolder(tempDir, VIDEO_TIME);
+        Files.createDirectories(partitionFolder);
+        Files.move(tempDir.resolve(VIDEO_NAME), partitionFolder.resolve(VIDEO_NAME));
+
+        try (PlaybackServer partitionedServer = PlaybackServer.builder().recordFilePath(tempDir.toString())
+                .recordingLayout(RecordingLayout.HOURLY).port(0).build()) {
+            partitionedServer.start();
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:"
+                    + partitionedServer.getPort() + "/recordings/" + VIDEO_NAME).openConnection();
+            Assertions.assertEquals(200, connection.getResponseCode());
+            Assertions.assertArrayEquals(video, readBody(connection));
+        }
+    }
+
+    @Test
+    public void serveRecording_uploadedRecording_listedAndFound() throws IOException {
+        final String uploadedName = "video_" + VIDEO_TIME + "_uploaded.mkv";
+        Files.move(tempDir.resolve(VIDEO_NAME), tempDir.resolve(uploadedName));
+
+        final String body = new String(readBody(connect("/recordings")), StandardCharsets.UTF_8);
+        Assertions.assertEquals("[{\"name\":\"" + uploadedName + "\",\"startTime\":" + VIDEO_TIME + ",\"size\":"
+                + video.length + "}]", body);
+
+        // A recording listed before it's renamed is still found by its old filename
+        for (String name : Arrays.asList(uploadedName, VIDEO_NAME)) {
+            final HttpURLConnection connection = connect("/recordings/" + name);
+            Assertions.assertEquals(200, connection.getResponseCode());
+            Assertions.assertArrayEquals(video, readBody(connection));
+        }
+        final HttpURLConnection clip = connect("/recordings/" + uploadedName + "?start=" + (VIDEO_TIME + 1500));
+        Assertions.assertEquals(200, clip.getResponseCode());
+        Assertions.assertTrue(readBody(clip).length < video.length);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+public class RecordingCatalogTest {
+
+    private static final long TEST_TIME = 1600000000000L;
+
+    private static final long WATCH_TIMEOUT_MS = 10000L;
+
+    @TempDir
+    Path tempDir;
+
+    private RecordingCatalog catalog;
+
+    @BeforeEach
+    public void setupForEach() {
+        catalog = RecordingCatalog.builder().recordFilePath(tempDir.toString()).build();
+    }
+
+    @AfterEach
+    public void tearDownForEach() throws IOException {
+        catalog.close();
+    }
+
+    @Test
+    public void start_existingRecordings_onlyRecordingsCataloged() throws IOException {
+        createRecording(tempDir, TEST_TIME - 300);
+        createRecording(tempDir.resolve("sub"), TEST_TIME - 200);
+        Files.createFile(tempDir.resolve("video_" + (TEST_TIME - 100) + "_uploaded.mkv"));
+        Files.createFile(tempDir.resolve("other.txt"));
+
+        catalog.start();
+
+        Assertions.assertEquals(2, catalog.size());
+        Assertions.assertThrows(IllegalStateException.class, () -> catalog.start());
+    }
+
+    @Test
+    public void listFilesToUpload_timeRange_recordingsInRangeSorted() throws IOException {
+        createRecording(tempDir, TEST_TIME - 100);
+        createRecording(tempDir, TEST_TIME - 400);
+        createRecording(tempDir, TEST_TIME - 200);
+        createRecording(tempDir, TEST_TIME - 500);
+        catalog.start();
+
+        final List<VideoFile> videoFiles = catalog.listFilesToUpload(new Date(TEST_TIME - 500),
+                new Date(TEST_TIME - 100));
+
+        Assertions.assertEquals(2, videoFiles.size());
+        Assertions.assertEquals(TEST_TIME - 400, videoFiles.get(0).getVideoDate().getTime());
+        Assertions.assertEquals(TEST_TIME - 200, videoFiles.get(1).getVideoDate().getTime());
+        Assertions.assertTrue(catalog.listFilesToUpload(new Date(TEST_TIME), new Date(TEST_TIME - 500)).isEmpty());
+    }
+
+    @Test
+    public void listFilesToUpload_deletedRecording_recordingDropped() throws IOException {
+        final File recording = createRecording(tempDir, TEST_TIME - 200);
+        catalog.onFileRotated(recording);
+        Assertions.assertEquals(1, catalog.size());
+
+        Files.delete(recording.toPath());
+
+        Assertions.assertTrue(catalog.listFilesToUpload(new Date(0), new Date(TEST_TIME)).isEmpty());
+        Assertions.assertEquals(0, catalog.size());
+    }
+
+    @Test
+    public void getPrecedingVideoFile_recordingAtStartTime_recordingReturned() throws IOException {
+        final File recording1 = createRecording(tempDir, TEST_TIME - 500);
+        final File recording2 = createRecording(tempDir, TEST_TIME - 300);
+        Assertions.assertTrue(recording1.setLastModified(TEST_TIME - 250));
+        Assertions.assertTrue(recording2.setLastModified(TEST_TIME + 100));
+        catalog.onFileRotated(recording1);
+        catalog.onFileRotated(recording2);
+
+        Assertions.assertEquals(TEST_TIME - 300,
+                catalog.getPrecedingVideoFile(new Date(TEST_TIME)).getVideoDate().getTime());
+        Assertions.assertEquals(TEST_TIME - 500,
+                catalog.getPrecedingVideoFile(new Date(TEST_TIME - 400)).getVideoDate().getTime());
+        Assertions.assertNull(catalog.getPrecedingVideoFile(new Date(TEST_TIME - 600)));
+
+        Files.delete(recording2.toPath());
+        Assertions.assertNull(catalog.getPrecedingVideoFile(new Date(TEST_TIME)));
+    }
+
+    @Test
+    public void start_recordingsChanged_catalogUpdated() throws IOException, InterruptedException {
+        final File recording1 = createRecording(tempDir, TEST_TIME - 300);
+        catalog.start();
+        Assertions.assertEquals(1, catalog.size());
+
+        createRecording(tempDir, TEST_TIME - 200);
+        createRecording(tempDir.resolve("sub"), TEST_TIME - 100);
+        Assertions.assertTrue(waitFor(() -> catalog.size() == 3));
+
+        Files.delete(recording1.toPath());
+        Assertions.assertTrue(waitFor(() -> catalog.size() == 2));
+    }
+
+    private static File createRecording(Path folder, long startTime) throws IOException {
+        return TestUtil.createRecording(folder, "video_" + startTime + ".mkv", new byte[0]);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WATCH_TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class RecordingLayoutTest {
+
+    // 2020-09-13T12:26:40Z
+    private static final long TEST_TIME = 1600000000000L;
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void getPartitionFolder_layouts_folderByStartTime() {
+        Assertions.assertEquals(tempDir, RecordingLayout.FLAT.getPartitionFolder(tempDir, TEST_TIME));
+        Assertions.assertEquals(tempDir.resolve("2020-09-13-12"),
+                RecordingLayout.HOURLY.getPartitionFolder(tempDir, TEST_TIME));
+        Assertions.assertEquals(tempDir.resolve("2020-09-13"),
+                RecordingLayout.DAILY.getPartitionFolder(tempDir, TEST_TIME));
+    }
+
+    @Test
+    public void getPartitionStartTime_folderNames_startTimeParsed() {
+        Assertions.assertEquals(TEST_TIME - TEST_TIME % HOUR_MS,
+                RecordingLayout.HOURLY.getPartitionStartTime("2020-09-13-12"));
+        Assertions.assertEquals(TEST_TIME - TEST_TIME % TimeUnit.DAYS.toMillis(1),
+                RecordingLayout.DAILY.getPartitionStartTime("2020-09-13"));
+        Assertions.assertEquals(-1, RecordingLayout.HOURLY.getPartitionStartTime("2020-09-13"));
+        Assertions.assertEquals(-1, RecordingLayout.DAILY.getPartitionStartTime("2020-09-13-12"));
+        Assertions.assertEquals(-1, RecordingLayout.HOURLY.getPartitionStartTime("2020-9-13-12"));
+        Assertions.assertEquals(-1, RecordingLayout.FLAT.getPartitionStartTime("2020-09-13"));
+    }
+
+    @Test
+    public void listPartitionFolders_timeRange_onlyRelevantFolders() throws IOException {
+        for (int hour = 9; hour <= 15; hour++) {
+            Files.createDirectories(tempDir.resolve(String.format("2020-09-13-%02d", hour)));
+        }
+        Files.createDirectories(tempDir.resolve("other"));
+        Files.createFile(tempDir.resolve("2020-09-13-16"));
+
+        Assertions.assertEquals(Arrays.asList(tempDir.resolve("2020-09-13-11"), tempDir.resolve("2020-09-13-12"),
+                tempDir.resolve("2020-09-13-13")),
+                RecordingLayout.HOURLY.listPartitionFolders(tempDir, TEST_TIME, TEST_TIME + HOUR_MS));
+        Assertions.assertEquals(Collections.singletonList(tempDir),
+                RecordingLayout.FLAT.listPartitionFolders(tempDir, TEST_TIME, TEST_TIME + HOUR_MS));
+        Assertions.assertTrue(RecordingLayout.HOURLY.listPartitionFolders(tempDir.resolve("none"), TEST_TIME,
+                TEST_TIME + HOUR_MS).isEmpty());
+    }
+}
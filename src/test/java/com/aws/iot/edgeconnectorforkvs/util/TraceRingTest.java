@@ -0,0 +1,88 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TraceRingTest {
+
+    @Test
+    public void constructor_capacity_roundedUpToPowerOfTwo() {
+        Assertions.assertEquals(1, new TraceRing(1).getCapacity());
+        Assertions.assertEquals(8, new TraceRing(5).getCapacity());
+        Assertions.assertEquals(8, new TraceRing(8).getCapacity());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TraceRing(0));
+    }
+
+    @Test
+    public void record_moreThanCapacity_latestRecordsKept() {
+        final TraceRing traceRing = new TraceRing(4);
+        for (int i = 0; i < 6; i++) {
+            traceRing.record(TraceRing.Event.CLUSTER_EMIT, 0x1F43B675, i);
+        }
+
+        final List<String> records = traceRing.dump();
+        Assertions.assertEquals(4, traceRing.size());
+        Assertions.assertEquals(4, records.size());
+        Assertions.assertTrue(records.get(0).endsWith("CLUSTER_EMIT id=0x1f43b675 value=2"));
+        Assertions.assertTrue(records.get(3).endsWith("CLUSTER_EMIT id=0x1f43b675 value=5"));
+        Assertions.assertTrue(records.get(3).startsWith("0us "));
+    }
+
+    @Test
+    public void record_sampleInterval_onlyFrequentEventsSampled() {
+        final TraceRing traceRing = new TraceRing(16);
+        traceRing.setSampleInterval(3);
+        for (int i = 0; i < 6; i++) {
+            traceRing.record(TraceRing.Event.SIMPLE_BLOCK, 1, i);
+        }
+        traceRing.record(TraceRing.Event.ACK, 0, 100);
+        Assertions.assertEquals(3, traceRing.size());
+
+        traceRing.setSampleInterval(0);
+        traceRing.record(TraceRing.Event.DATA_ELEMENT, 0xA3, 10);
+        Assertions.assertEquals(3, traceRing.size());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> traceRing.setSampleInterval(-1));
+    }
+
+    @Test
+    public void dump_logger_allRecordsLogged() {
+        final TraceRing traceRing = new TraceRing(4);
+        traceRing.record(TraceRing.Event.ELEMENT_START, 0x18538067, 1);
+        traceRing.record(TraceRing.Event.ELEMENT_END, 0x18538067, 2);
+        final Logger logger = mock(Logger.class);
+
+        traceRing.dump(logger, "test");
+
+        verify(logger).info(anyString(), eq(2), eq("test"));
+        verify(logger, times(2)).info(anyString());
+    }
+
+    @Test
+    public void dump_emptyRing_noRecords() {
+        Assertions.assertTrue(new TraceRing(4).dump().isEmpty());
+    }
+}
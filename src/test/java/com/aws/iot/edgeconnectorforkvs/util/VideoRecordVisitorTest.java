@@ -18,14 +18,17 @@ package com.aws.iot.edgeconnectorforkvs.util;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -177,6 +180,35 @@ public class VideoRecordVisitorTest {
         Assertions.assertEquals(tempVideo3.getFileName().toString(), videoFiles.get(1).getName());
     }
 
+    @Test
+    public void getPrecedingVideoFile_validInputs_fileRecordedAtStartTime() {
+        Assumptions.assumeTrue(tempVideoFilesPresent());
+
+        Instant instantNow = Instant.ofEpochMilli(TEST_TIME);
+        Date videoUploadingStartTime = Date.from(instantNow.minusSeconds(600));
+        Date videoUploadingEndTime = Date.from(instantNow.minusSeconds(200));
+        File preceding = tempVideo1.toFile();
+        long lastModified = preceding.lastModified();
+
+        // Video 1 starts at now-700s and is still written after now-600s
+        videoRecordVisitor.listFilesToUpload(videoUploadingStartTime, videoUploadingEndTime);
+        Assertions.assertEquals(tempVideo1.getFileName().toString(),
+                videoRecordVisitor.getPrecedingVideoFile().getName());
+
+        // Video 1 ends before now-600s
+        Assumptions.assumeTrue(preceding.setLastModified(instantNow.minusSeconds(650).toEpochMilli()));
+        try {
+            videoRecordVisitor.listFilesToUpload(videoUploadingStartTime, videoUploadingEndTime);
+            Assertions.assertNull(videoRecordVisitor.getPrecedingVideoFile());
+        } finally {
+            preceding.setLastModified(lastModified);
+        }
+
+        // No video starts before now-800s
+        videoRecordVisitor.listFilesToUpload(Date.from(instantNow.minusSeconds(800)), videoUploadingEndTime);
+        Assertions.assertNull(videoRecordVisitor.getPrecedingVideoFile());
+    }
+
     @Test
     public void getDateFromFilename_nullInputs_throwException() {
         Assertions.assertThrows(NullPointerException.class,
@@ -234,4 +266,55 @@ public class VideoRecordVisitorTest {
                 videoRecordVisitor.visitFile(mockFile, null));
 
     }
+
+    @Test
+    public void listFilesToUpload_partitionedLayout_onlyPartitionsInRangeWalked(@TempDir Path recordDir)
+            throws IOException {
+        final long hourMs = 3600000L;
+        final long partitionStartTime = TEST_TIME - TEST_TIME % hourMs;
+        final Path partition = RecordingLayout.HOURLY.getPartitionFolder(recordDir, TEST_TIME);
+        final Path previousPartition = RecordingLayout.HOURLY.getPartitionFolder(recordDir, TEST_TIME - hourMs);
+        final Path oldPartition = RecordingLayout.HOURLY.getPartitionFolder(recordDir, TEST_TIME - 3 * hourMs);
+        Files.createDirectories(partition);
+        Files.createDirectories(previousPartition);
+        Files.createDirectories(oldPartition);
+        Files.createFile(oldPartition.resolve("video_" + (TEST_TIME - 3 * hourMs) + ".mkv"));
+        final File preceding = Files.createFile(previousPartition.resolve("video_" + (partitionStartTime - 1000)
+                + ".mkv")).toFile();
+        Files.createFile(partition.resolve("video_" + (TEST_TIME + 1000) + ".mkv"));
+        Files.createFile(recordDir.resolve("video_" + (TEST_TIME + 2000) + ".mkv"));
+        Assertions.assertTrue(preceding.setLastModified(TEST_TIME + 500));
+        final VideoRecordVisitor visitor = VideoRecordVisitor.builder()
+                .recordFilePath(recordDir.toString())
+                .build();
+        visitor.setRecordingLayout(RecordingLayout.HOURLY);
+
+        final List<VideoFile> videoFiles = visitor.listFilesToUpload(new Date(TEST_TIME), new Date(TEST_TIME + 5000));
+
+        Assertions.assertEquals(2, videoFiles.size());
+        Assertions.assertEquals(TEST_TIME + 1000, videoFiles.get(0).getVideoDate().getTime());
+        Assertions.assertEquals(TEST_TIME + 2000, videoFiles.get(1).getVideoDate().getTime());
+        Assertions.assertEquals(preceding.getName(), visitor.getPrecedingVideoFile().getName());
+    }
+
+    @Test
+    public void walkRecordings_nestedFolders_recordingsFound(@TempDir Path recordDir) throws IOException {
+        final Path partition = Files.createDirectories(recordDir.resolve("2020").resolve("09"));
+        Files.createFile(recordDir.resolve("video_" + TEST_TIME + ".mkv"));
+        Files.createFile(partition.resolve("video_" + (TEST_TIME + 1000) + "_uploaded.mkv"));
+        Files.createFile(partition.resolve("video_" + (TEST_TIME + 1000) + "_uploaded.mkv.idx"));
+        Files.createFile(partition.resolve("video_abc.mkv"));
+        final List<Long> startTimes = new ArrayList<>();
+        final List<Boolean> uploadedFlags = new ArrayList<>();
+
+        VideoRecordVisitor.walkRecordings(recordDir, (file, startTime, isUploaded, attrs) -> {
+            startTimes.add(startTime);
+            uploadedFlags.add(isUploaded);
+        });
+
+        Assertions.assertEquals(2, startTimes.size());
+        Assertions.assertEquals(Boolean.FALSE, uploadedFlags.get(startTimes.indexOf(TEST_TIME)));
+        Assertions.assertEquals(Boolean.TRUE, uploadedFlags.get(startTimes.indexOf(TEST_TIME + 1000)));
+        Assertions.assertEquals(2, VideoRecordVisitor.listRecordingFiles(recordDir).size());
+    }
 }
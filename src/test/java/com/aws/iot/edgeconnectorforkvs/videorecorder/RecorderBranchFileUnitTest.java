@@ -17,6 +17,7 @@
 package com.aws.iot.edgeconnectorforkvs.videorecorder;
 
 import static org.mockito.BDDMockito.*;
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.RecorderBranchFile.LocCallback;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.model.ContainerType;
 import com.aws.iot.edgeconnectorforkvs.videorecorder.util.GstDao;
@@ -24,9 +25,20 @@ import org.freedesktop.gstreamer.Pipeline;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 @ExtendWith(MockitoExtension.class)
 public class RecorderBranchFileUnitTest {
     private static final String PATH_URI = "/test";
@@ -72,4 +84,85 @@ public class RecorderBranchFileUnitTest {
         branch.setProperty("max-size-time", 10000000L);
         Assertions.assertDoesNotThrow(() -> locCallback.callback(null, 0, null));
     }
+
+    @Test
+    void locationFormatSignal_rotationListener_previousFileNotified() throws InterruptedException {
+        willAnswer(invocation -> {
+            locCallback = invocation.getArgument(2);
+            return null;
+        }).given(this.mockGst).connectElement(any(), eq("format-location"), any(LocCallback.class));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<File> rotatedFile = new AtomicReference<>();
+
+        RecorderBranchFile branch = new RecorderBranchFile(ContainerType.MATROSKA, this.mockGst,
+                this.mockPipeline, PATH_URI);
+        branch.setRotationListener(file -> {
+            rotatedFile.set(file);
+            latch.countDown();
+        });
+
+        locCallback.callback(null, 0, null);
+        locCallback.callback(null, 1, null);
+
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(rotatedFile.get().getPath().startsWith(PATH_URI + "_"));
+    }
+
+    @Test
+    void flushLocation_pipelineStopped_lastFileNotified() throws InterruptedException {
+        willAnswer(invocation -> {
+            locCallback = invocation.getArgument(2);
+            return null;
+        }).given(this.mockGst).connectElement(any(), eq("format-location"), any(LocCallback.class));
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<File> rotatedFiles = Collections.synchronizedList(new ArrayList<>());
+
+        RecorderBranchFile branch = new RecorderBranchFile(ContainerType.MATROSKA, this.mockGst,
+                this.mockPipeline, PATH_URI);
+        branch.setRotationListener(file -> {
+            rotatedFiles.add(file);
+            latch.countDown();
+        });
+
+        locCallback.callback(null, 0, null);
+        locCallback.callback(null, 1, null);
+        branch.onPipelineStopped();
+
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, rotatedFiles.size());
+
+        // Nothing is left to flush, and a new file is indexed by a new executor
+        branch.onPipelineStopped();
+        locCallback.callback(null, 2, null);
+        Assertions.assertDoesNotThrow(branch::flushLocation);
+    }
+
+    @Test
+    void locationFormatSignal_partitionedLayout_fileInPartitionFolder(@TempDir Path recordDir) {
+        willAnswer(invocation -> {
+            locCallback = invocation.getArgument(2);
+            return null;
+        }).given(this.mockGst).connectElement(any(), eq("format-location"), any(LocCallback.class));
+        final ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+
+        new RecorderBranchFile(ContainerType.MATROSKA, this.mockGst, this.mockPipeline,
+                recordDir.resolve("video").toString(), RecordingLayout.HOURLY);
+        locCallback.callback(null, 0, null);
+
+        verify(this.mockGst).invokeGLibStrdup(location.capture());
+        final File file = new File(location.getValue());
+        Assertions.assertTrue(file.getParentFile().isDirectory());
+        Assertions.assertEquals(recordDir.toFile(), file.getParentFile().getParentFile());
+        Assertions.assertTrue(RecordingLayout.HOURLY.getPartitionStartTime(file.getParentFile().getName()) > 0);
+        Assertions.assertTrue(file.getName().startsWith("video_"));
+    }
+
+    @Test
+    void createBranchFile_uploadReady_streamableMuxer() {
+        new RecorderBranchFile(ContainerType.MATROSKA, this.mockGst, this.mockPipeline, PATH_URI,
+                RecordingLayout.FLAT, true);
+
+        verify(this.mockGst).setElement(any(), eq("streamable"), eq(true));
+        verify(this.mockGst).setElement(any(), eq("timecodescale"), eq(1000000L));
+    }
 }
@@ -92,6 +92,10 @@ public class RecorderBranchBaseUnitTest {
             return this.getMuxerFromType(type, isFilePath);
         }
 
+        public Element getMuxer(ContainerType type, boolean isFilePath, boolean isUploadReady) {
+            return this.getMuxerFromType(type, isFilePath, isUploadReady);
+        }
+
         public String getExtension(ContainerType type) {
             return this.getFileExtensionFromType(type);
         }
@@ -133,6 +137,19 @@ public class RecorderBranchBaseUnitTest {
         Assertions.assertNotNull(testBranch.getMuxer(type, false));
     }
 
+    @Test
+    public void getMuxerTest_getUploadReadyMuxer_streamableProperties() {
+        willReturn(this.mockMuxer).given(this.mockGst).newElement(anyString());
+
+        RecorderBranchTest testBranch = new RecorderBranchTest(RecorderCapability.VIDEO_AUDIO);
+
+        Assertions.assertNotNull(testBranch.getMuxer(ContainerType.MATROSKA, true, true));
+        verify(this.mockGst).setElement(this.mockMuxer, "streamable", true);
+        verify(this.mockGst).setElement(this.mockMuxer, "min-cluster-duration", 0L);
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> testBranch.getMuxer(ContainerType.MP4, true, true));
+    }
+
     @Test
     public void getMuxerTest_getMuxerByInvalidType_throwException() {
         RecorderCapability cap = RecorderCapability.VIDEO_AUDIO;
@@ -0,0 +1,255 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.OffPeakWindow;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class BacklogPlannerTest {
+
+    private static final int FILE_SIZE = 1000;
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    @TempDir
+    Path tempDir;
+
+    private Path cameraA;
+
+    private Path cameraB;
+
+    private VideoUploader uploaderA;
+
+    private VideoUploader uploaderB;
+
+    private long now;
+
+    @BeforeEach
+    public void setupForEach() throws IOException {
+        cameraA = Files.createDirectories(tempDir.resolve("cameraA"));
+        cameraB = Files.createDirectories(tempDir.resolve("cameraB"));
+        uploaderA = Mockito.mock(VideoUploader.class);
+        uploaderB = Mockito.mock(VideoUploader.class);
+        now = System.currentTimeMillis();
+    }
+
+    private File createRecording(Path folder, long startTime) throws IOException {
+        return TestUtil.createRecording(folder, "video_" + startTime + ".mkv", new byte[FILE_SIZE],
+                startTime + 9 * MINUTE_MS);
+    }
+
+    /**
+     * Camera A records 1 byte per second into a quota of 3 recordings, so its oldest recording is due now.  Camera B
+     * has older recordings but a large quota.
+     */
+    private void createBacklog() throws IOException {
+        createRecording(cameraA, now - 50 * MINUTE_MS);
+        createRecording(cameraA, now - 40 * MINUTE_MS);
+        createRecording(cameraA, now - 30 * MINUTE_MS);
+        createRecording(cameraB, now - 55 * MINUTE_MS);
+        createRecording(cameraB, now - 45 * MINUTE_MS);
+    }
+
+    private BacklogPlanner.BacklogPlannerBuilder createBuilder() {
+        final Map<String, VideoUploader> uploaders = new HashMap<>();
+        uploaders.put(cameraA.toString(), uploaderA);
+        uploaders.put(cameraB.toString(), uploaderB);
+        final Map<String, Long> quotas = new HashMap<>();
+        quotas.put(cameraA.toString(), 3L * FILE_SIZE);
+        quotas.put(cameraB.toString(), 1000000000L);
+        return BacklogPlanner.builder()
+                .cameraUploaders(uploaders)
+                .cameraQuotaBytes(quotas)
+                .minFileAgeMs(0L);
+    }
+
+    private static List<Long> getStartTimes(List<VideoFile> videoFiles) {
+        return videoFiles.stream().map(videoFile -> videoFile.getVideoDate().getTime()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void create_invalidParameters_throwException() {
+        Assertions.assertThrows(NullPointerException.class, () -> BacklogPlanner.builder().build());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> BacklogPlanner.builder().cameraUploaders(Collections.emptyMap()).build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> createBuilder().globalQuotaBytes(0L).build());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> createBuilder().cameraQuotaBytes(Collections.singletonMap(cameraA.toString(), 0L)).build());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> createBuilder().cameraPriorities(Collections.singletonMap(cameraA.toString(), -1)).build());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> createBuilder().offPeakBytesPerSecond(0L).build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> createBuilder().maxUploadsPerRun(0).build());
+    }
+
+    @Test
+    public void plan_pendingRecordings_orderedByDeadline() throws IOException {
+        createBacklog();
+        createRecording(cameraB, now - 35 * MINUTE_MS).renameTo(
+                cameraB.resolve("video_" + (now - 35 * MINUTE_MS) + "_uploaded.mkv").toFile());
+
+        final BacklogPlanner planner = createBuilder().build();
+
+        Assertions.assertEquals(5, planner.plan());
+        Assertions.assertEquals(
+                Arrays.asList(now - 50 * MINUTE_MS, now - 40 * MINUTE_MS, now - 30 * MINUTE_MS,
+                        now - 55 * MINUTE_MS, now - 45 * MINUTE_MS),
+                getStartTimes(planner.getQueue()));
+    }
+
+    @Test
+    public void plan_globalQuota_appliesToAllCameras() throws IOException {
+        createBacklog();
+
+        final BacklogPlanner planner = createBuilder().cameraQuotaBytes(null).globalQuotaBytes(5L * FILE_SIZE).build();
+
+        planner.plan();
+        Assertions.assertEquals(now - 55 * MINUTE_MS, getStartTimes(planner.getQueue()).get(0));
+    }
+
+    @Test
+    public void plan_cameraPriority_plannedEarlier() throws IOException {
+        createBacklog();
+
+        final BacklogPlanner planner = createBuilder()
+                .cameraPriorities(Collections.singletonMap(cameraB.toString(), 1))
+                .priorityLeadMs(TimeUnit.DAYS.toMillis(365000))
+                .build();
+
+        planner.plan();
+        Assertions.assertEquals(
+                Arrays.asList(now - 55 * MINUTE_MS, now - 45 * MINUTE_MS),
+                getStartTimes(planner.getQueue()).subList(0, 2));
+    }
+
+    @Test
+    public void upload_backlog_uploadedInPlannedOrderAndQueuePersisted() throws Exception {
+        createBacklog();
+        final String queueFilePath = tempDir.resolve("backlog.queue").toString();
+        final BacklogPlanner planner = createBuilder().maxUploadsPerRun(2).queueFilePath(queueFilePath).build();
+
+        Assertions.assertEquals(2, planner.upload());
+
+        final InOrder inOrder = Mockito.inOrder(uploaderA);
+        inOrder.verify(uploaderA).uploadHistoricalVideo(ArgumentMatchers.eq(new Date(now - 50 * MINUTE_MS)),
+                ArgumentMatchers.eq(new Date(now - 40 * MINUTE_MS)), ArgumentMatchers.isNull(),
+                ArgumentMatchers.any(UploadCallBack.class));
+        inOrder.verify(uploaderA).uploadHistoricalVideo(ArgumentMatchers.eq(new Date(now - 40 * MINUTE_MS)),
+                ArgumentMatchers.eq(new Date(now - 30 * MINUTE_MS)), ArgumentMatchers.isNull(),
+                ArgumentMatchers.any(UploadCallBack.class));
+        Mockito.verifyNoInteractions(uploaderB);
+        Assertions.assertEquals(2L * FILE_SIZE, planner.getUploadedBytes());
+        Assertions.assertTrue(planner.getUploadBytesPerSecond() > 0);
+
+        final BacklogPlanner reloaded = createBuilder().queueFilePath(queueFilePath).build();
+        Assertions.assertEquals(
+                Arrays.asList(now - 30 * MINUTE_MS, now - 55 * MINUTE_MS, now - 45 * MINUTE_MS),
+                getStartTimes(reloaded.getQueue()));
+    }
+
+    @Test
+    public void upload_peakTime_onlyUrgentRecordingsUploaded() throws Exception {
+        createBacklog();
+        final LocalTime offPeakStart = Instant.ofEpochMilli(now + TimeUnit.HOURS.toMillis(2))
+                .atZone(ZoneOffset.UTC).toLocalTime();
+        final BacklogPlanner planner = createBuilder()
+                .offPeakWindows(Collections.singletonList(OffPeakWindow.builder()
+                        .startTime(offPeakStart)
+                        .endTime(offPeakStart.plusHours(1))
+                        .build()))
+                .zoneId(ZoneOffset.UTC)
+                .build();
+
+        Assertions.assertEquals(3, planner.upload());
+
+        Mockito.verify(uploaderA, Mockito.times(3)).uploadHistoricalVideo(ArgumentMatchers.any(),
+                ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+        Mockito.verifyNoInteractions(uploaderB);
+        Assertions.assertEquals(2, planner.getQueue().size());
+    }
+
+    @Test
+    public void upload_peakBudgetZero_nothingUploaded() throws Exception {
+        createBacklog();
+        final LocalTime offPeakStart = Instant.ofEpochMilli(now + TimeUnit.HOURS.toMillis(2))
+                .atZone(ZoneOffset.UTC).toLocalTime();
+        final BacklogPlanner planner = createBuilder()
+                .offPeakWindows(Collections.singletonList(OffPeakWindow.builder()
+                        .startTime(offPeakStart)
+                        .endTime(offPeakStart.plusHours(1))
+                        .build()))
+                .zoneId(ZoneOffset.UTC)
+                .peakBytesPerSecond(0L)
+                .build();
+
+        Assertions.assertEquals(0, planner.upload());
+        Mockito.verifyNoInteractions(uploaderA, uploaderB);
+    }
+
+    @Test
+    public void upload_uploadFails_keptAtHead() throws Exception {
+        createBacklog();
+        Mockito.doThrow(new IllegalArgumentException("uplink is down")).when(uploaderA).uploadHistoricalVideo(
+                ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+        final BacklogPlanner planner = createBuilder().build();
+
+        Assertions.assertEquals(0, planner.upload());
+
+        Assertions.assertEquals(5, planner.getQueue().size());
+        Assertions.assertEquals(now - 50 * MINUTE_MS, getStartTimes(planner.getQueue()).get(0));
+        Mockito.verifyNoInteractions(uploaderB);
+    }
+
+    @Test
+    public void upload_uploadedSinceQueued_skipped() throws Exception {
+        createBacklog();
+        final BacklogPlanner planner = createBuilder().build();
+        planner.plan();
+        final File oldest = cameraA.resolve("video_" + (now - 50 * MINUTE_MS) + ".mkv").toFile();
+        Assertions.assertTrue(oldest.delete());
+
+        Assertions.assertEquals(4, planner.upload());
+        Mockito.verify(uploaderA, Mockito.never()).uploadHistoricalVideo(
+                ArgumentMatchers.eq(new Date(now - 50 * MINUTE_MS)), ArgumentMatchers.any(),
+                ArgumentMatchers.any(), ArgumentMatchers.any());
+        Assertions.assertTrue(planner.getQueue().isEmpty());
+    }
+}
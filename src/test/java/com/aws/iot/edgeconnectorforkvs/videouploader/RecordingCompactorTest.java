@@ -0,0 +1,205 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvFilesInputStream;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class RecordingCompactorTest {
+
+    private static final long TEST_TIME = 1600000000000L;
+
+    @TempDir
+    Path tempDir;
+
+    private Path createVideo(long timeOffsetMs, boolean hasAudio) throws IOException {
+        final Path videoPath = tempDir.resolve("video_" + (TEST_TIME + timeOffsetMs) + ".mkv");
+        Files.write(videoPath, TestUtil.createSampleVideo(hasAudio));
+        Assertions.assertTrue(videoPath.toFile().setLastModified(System.currentTimeMillis() - 60_000L));
+        return videoPath;
+    }
+
+    private RecordingCompactor createCompactor() {
+        return RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(0L)
+                .maxBytesPerSecond(Long.MAX_VALUE)
+                .maxCpuRatio(1.0)
+                .build();
+    }
+
+    private static byte[] mergeVideos(Path... videoPaths) {
+        final List<VideoFile> videoFiles = new ArrayList<>();
+        for (Path videoPath : videoPaths) {
+            videoFiles.add(new VideoFile(videoPath.toFile()));
+        }
+        final MkvFilesInputStream mkvFilesInputStream = new MkvFilesInputStream(videoFiles.listIterator());
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int data;
+        while ((data = mkvFilesInputStream.read()) >= 0) {
+            outputStream.write(data);
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void compact_compatibleRecordings_mergedIntoFirstRecording() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+        final Path videoAudio = createVideo(20, true);
+        final byte[] expected = mergeVideos(video1, video2);
+        final byte[] sampleVideoAudio = Files.readAllBytes(videoAudio);
+
+        final RecordingCompactor compactor = createCompactor();
+        Assertions.assertEquals(1, compactor.compact());
+
+        Assertions.assertArrayEquals(expected, Files.readAllBytes(video1));
+        Assertions.assertTrue(MkvClusterIndex.getSidecarFile(video1.toFile()).isFile());
+        Assertions.assertFalse(Files.exists(video2));
+        Assertions.assertFalse(MkvClusterIndex.getSidecarFile(video2.toFile()).exists());
+        Assertions.assertArrayEquals(sampleVideoAudio, Files.readAllBytes(videoAudio));
+
+        // Nothing is left to compact
+        Assertions.assertEquals(0, compactor.compact());
+    }
+
+    @Test
+    public void compact_journaledRecordings_notCompacted() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+        final Path video3 = createVideo(20, false);
+        final Path video4 = createVideo(30, false);
+        final byte[] sampleVideo = Files.readAllBytes(video1);
+        final byte[] expected = mergeVideos(video3, video4);
+
+        try (UploadJournal journal = UploadJournal.builder()
+                .journalFilePath(tempDir.resolve("journal").resolve("upload.journal").toString()).build()) {
+            journal.markFileUploaded(new VideoFile(video1.toFile()));
+            journal.markFragmentPersisted(new VideoFile(video2.toFile()), TEST_TIME + 15);
+            Assertions.assertEquals(1, RecordingCompactor.builder()
+                    .recordFilePath(tempDir.toString())
+                    .minFileAgeMs(0L)
+                    .maxBytesPerSecond(Long.MAX_VALUE)
+                    .maxCpuRatio(1.0)
+                    .uploadJournal(journal)
+                    .build()
+                    .compact());
+        }
+
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video1));
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video2));
+        Assertions.assertArrayEquals(expected, Files.readAllBytes(video3));
+        Assertions.assertFalse(Files.exists(video4));
+    }
+
+    @Test
+    public void compact_recentOrOversizedRecordings_notCompacted() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+        final byte[] sampleVideo = Files.readAllBytes(video1);
+
+        Assertions.assertEquals(0, RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(3_600_000L)
+                .build()
+                .compact());
+        Assertions.assertEquals(0, RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(0L)
+                .maxSegmentBytes((long) sampleVideo.length)
+                .build()
+                .compact());
+
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video1));
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video2));
+    }
+
+    @Test
+    public void run_notIdle_notCompacted() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+
+        RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(0L)
+                .idleCondition(() -> false)
+                .build()
+                .run();
+
+        Assertions.assertTrue(Files.exists(video1));
+        Assertions.assertTrue(Files.exists(video2));
+    }
+
+    @Test
+    public void recover_committedManifest_rolledForward() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+        final byte[] compacted = mergeVideos(video1, video2);
+        Files.write(tempDir.resolve(video1.getFileName() + RecordingCompactor.TEMP_EXTENSION), compacted);
+        Files.write(tempDir.resolve(video1.getFileName() + RecordingCompactor.MANIFEST_EXTENSION),
+                Arrays.asList(video1.getFileName().toString(), video2.getFileName().toString()),
+                StandardCharsets.UTF_8);
+
+        createCompactor().recover();
+
+        Assertions.assertArrayEquals(compacted, Files.readAllBytes(video1));
+        Assertions.assertFalse(Files.exists(video2));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            Assertions.assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void recover_tempFileWithoutManifest_dropped() throws IOException {
+        final Path video1 = createVideo(0, false);
+        final Path video2 = createVideo(10, false);
+        final byte[] sampleVideo = Files.readAllBytes(video1);
+        final Path tempFile = tempDir.resolve(video1.getFileName() + RecordingCompactor.TEMP_EXTENSION);
+        Files.write(tempFile, new byte[] {0x1A, 0x45});
+
+        createCompactor().recover();
+
+        Assertions.assertFalse(Files.exists(tempFile));
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video1));
+        Assertions.assertArrayEquals(sampleVideo, Files.readAllBytes(video2));
+    }
+
+    @Test
+    public void create_invalidBudget_throwException() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .maxCpuRatio(0.0)
+                .build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RecordingCompactor.builder()
+                .recordFilePath(tempDir.toString())
+                .maxSegmentBytes(0L)
+                .build());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class RecordingRepairerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final long OLD_TIME = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+    private static final int SIMPLE_BLOCK_LENGTH = TestUtil.createSimpleBlock((short) 0, 1).length;
+
+    private static byte[] truncate(byte[] video, int length) {
+        return Arrays.copyOf(video, video.length - length);
+    }
+
+    @Test
+    public void repair_truncatedRecording_cutAndIndexed() throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(3, 1);
+        final File truncated = TestUtil.createRecording(tempDir, "video_1000.mkv", truncate(video, 3), OLD_TIME);
+        final File complete = TestUtil.createRecording(tempDir, "video_2000.mkv", video, OLD_TIME);
+        final RecordingRepairer repairer = RecordingRepairer.builder()
+                .recordFilePath(tempDir.toString())
+                .build();
+
+        Assertions.assertEquals(1, repairer.repair());
+
+        // The truncated simple block is cut, and the last cluster keeps its timecode
+        Assertions.assertEquals(video.length - SIMPLE_BLOCK_LENGTH, truncated.length());
+        Assertions.assertEquals(SIMPLE_BLOCK_LENGTH - 3, repairer.getTruncatedBytes());
+        Assertions.assertEquals(3, MkvClusterIndex.loadIfFresh(truncated).getClusters().size());
+        Assertions.assertEquals(video.length, complete.length());
+        Assertions.assertNull(MkvClusterIndex.loadIfFresh(complete));
+
+        // Repaired recordings have a fresh index, so they are not scanned again
+        Assertions.assertEquals(0, repairer.repair());
+        Assertions.assertEquals(1, repairer.getRepairedFileCount());
+    }
+
+    @Test
+    public void repair_indexedOrRecentRecordings_skipped() throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(2, 1);
+        final File indexed = TestUtil.createRecording(tempDir, "video_1000.mkv", truncate(video, 2), OLD_TIME);
+        new MkvClusterIndex(indexed.length(), 0, Collections.emptyList())
+                .writeTo(MkvClusterIndex.getSidecarFile(indexed));
+        final File recent = TestUtil.createRecording(tempDir, "video_2000.mkv", truncate(video, 2),
+                System.currentTimeMillis());
+
+        Assertions.assertEquals(0, RecordingRepairer.builder()
+                .recordFilePath(tempDir.toString())
+                .build()
+                .repair());
+        Assertions.assertEquals(video.length - 2, indexed.length());
+        Assertions.assertEquals(video.length - 2, recent.length());
+
+        // The recorder is not started, so the latest recording can be repaired as well
+        Assertions.assertEquals(1, RecordingRepairer.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(0L)
+                .build()
+                .repair());
+        Assertions.assertEquals(video.length - SIMPLE_BLOCK_LENGTH, recent.length());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RecordingRepairer.builder()
+                .recordFilePath(tempDir.toString())
+                .minFileAgeMs(-1L)
+                .build());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UpdateFragmentStatus;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class RecordingStagerTest {
+
+    private static final int FILE_SIZE = 100;
+
+    @TempDir
+    Path tempDir;
+
+    private Path stagingDir;
+
+    private Path recordDir;
+
+    private long now;
+
+    @BeforeEach
+    public void setupForEach() throws IOException {
+        stagingDir = Files.createDirectories(tempDir.resolve("staging"));
+        recordDir = tempDir.resolve("record");
+        now = System.currentTimeMillis();
+    }
+
+    private File createRecording(String filename, long startTime, long ageMs) throws IOException {
+        return TestUtil.createRecording(stagingDir.resolve("camera"), String.format(filename, startTime),
+                new byte[FILE_SIZE], now - ageMs);
+    }
+
+    private RecordingStager.RecordingStagerBuilder createBuilder() {
+        return RecordingStager.builder()
+                .stagingFilePath(stagingDir.toString())
+                .recordFilePath(recordDir.toString())
+                .maxStagingBytes(10L * FILE_SIZE)
+                .minFileAgeMs(1000L)
+                .promotionWindowMs(60000L);
+    }
+
+    @Test
+    public void create_invalidParameters_throwException() {
+        Assertions.assertThrows(NullPointerException.class, () -> RecordingStager.builder().build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> createBuilder().maxStagingBytes(0).build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> createBuilder().minFileAgeMs(-1L).build());
+    }
+
+    @Test
+    public void stage_uploadedRecordings_droppedWithoutPromotion() throws IOException {
+        final File renamed = createRecording("video_%d_uploaded.mkv", now - 30000, 20000);
+        final File journaled = createRecording("video_%d.mkv", now - 20000, 10000);
+        final File live = createRecording("video_%d.mkv", now - 10000, 5000);
+        final File recent = createRecording("video_%d.mkv", now - 5000, 0);
+        Files.write(MkvClusterIndex.getSidecarFile(live).toPath(), new byte[FILE_SIZE]);
+        try (UploadJournal journal = UploadJournal.builder()
+                .journalFilePath(tempDir.resolve("upload.journal").toString()).build()) {
+            journal.markFileUploaded(new VideoFile(journaled));
+            final RecordingStager stager = createBuilder().uploadJournal(journal).build();
+            final UpdateFragmentStatus listener = stager.createUploadListener();
+            listener.update(now - 10000, null);
+            listener.update(now - 2000, null);
+
+            Assertions.assertEquals(FILE_SIZE, stager.stage());
+            Assertions.assertEquals(4L * FILE_SIZE, stager.getDroppedBytes());
+            Assertions.assertFalse(journal.isFileUploaded(new VideoFile(journaled)));
+        }
+
+        Assertions.assertFalse(renamed.exists());
+        Assertions.assertFalse(journaled.exists());
+        Assertions.assertFalse(live.exists());
+        Assertions.assertFalse(MkvClusterIndex.getSidecarFile(live).exists());
+        Assertions.assertTrue(recent.exists());
+        Assertions.assertFalse(recordDir.toFile().exists());
+    }
+
+    @Test
+    public void stage_recordingPastWindow_promoted() throws IOException {
+        final File old = createRecording("video_%d.mkv", now - 200000, 100000);
+        final File beforeLiveUpload = createRecording("video_%d.mkv", now - 100000, 5000);
+        Files.write(MkvClusterIndex.getSidecarFile(old).toPath(), new byte[FILE_SIZE]);
+        final RecordingStager stager = createBuilder().build();
+        final UpdateFragmentStatus listener = stager.createUploadListener();
+        listener.update(now - 50000, null);
+        listener.update(now, null);
+
+        Assertions.assertEquals(FILE_SIZE, stager.stage());
+
+        final Path promoted = recordDir.resolve("camera").resolve(old.getName());
+        Assertions.assertFalse(old.exists());
+        Assertions.assertEquals(FILE_SIZE, Files.size(promoted));
+        Assertions.assertTrue(MkvClusterIndex.getSidecarFile(promoted.toFile()).isFile());
+        Assertions.assertFalse(Files.exists(Paths.get(promoted + RecordingStager.TEMP_EXTENSION)));
+        Assertions.assertEquals(2L * FILE_SIZE, stager.getPromotedBytes());
+        Assertions.assertTrue(beforeLiveUpload.exists());
+    }
+
+    @Test
+    public void stage_gapBetweenLiveUploads_recordingInGapKept() throws IOException {
+        final File beforeGap = createRecording("video_%d.mkv", now - 40000, 30000);
+        final File acrossGap = createRecording("video_%d.mkv", now - 30000, 20000);
+        final File afterGap = createRecording("video_%d.mkv", now - 20000, 10000);
+        final RecordingStager stager = createBuilder().build();
+        final UpdateFragmentStatus firstListener = stager.createUploadListener();
+        firstListener.update(now - 45000, null);
+        firstListener.update(now - 28000, null);
+        final UpdateFragmentStatus secondListener = stager.createUploadListener();
+        secondListener.update(now - 22000, null);
+        secondListener.update(now - 5000, null);
+
+        Assertions.assertEquals(FILE_SIZE, stager.stage());
+
+        Assertions.assertFalse(beforeGap.exists());
+        Assertions.assertTrue(acrossGap.exists());
+        Assertions.assertFalse(afterGap.exists());
+    }
+
+    @Test
+    public void stage_errorFragment_confirmedRangesCleared() throws IOException {
+        final File beforeError = createRecording("video_%d.mkv", now - 20000, 10000);
+        final RecordingStager stager = createBuilder().build();
+        final UpdateFragmentStatus listener = stager.createUploadListener();
+        listener.update(now - 25000, null);
+        listener.update(now - 8000, null);
+        listener.error(-1);
+        listener.update(now - 3000, null);
+
+        Assertions.assertEquals(FILE_SIZE, stager.stage());
+        Assertions.assertTrue(beforeError.exists());
+
+        // Adjacent ranges cover the recording together
+        stager.confirmUploaded(now - 15000, now - 8000);
+        stager.confirmUploaded(now - 25000, now - 15000);
+
+        Assertions.assertEquals(0, stager.stage());
+        Assertions.assertFalse(beforeError.exists());
+    }
+
+    @Test
+    public void stage_stagingFull_oldestPromoted() throws IOException {
+        final File oldest = createRecording("video_%d.mkv", now - 30000, 20000);
+        final File older = createRecording("video_%d.mkv", now - 20000, 10000);
+        final File recent = createRecording("video_%d.mkv", now - 10000, 0);
+        final RecordingStager stager = createBuilder().maxStagingBytes(2L * FILE_SIZE).build();
+
+        Assertions.assertEquals(2L * FILE_SIZE, stager.stage());
+
+        Assertions.assertFalse(oldest.exists());
+        Assertions.assertTrue(recordDir.resolve("camera").resolve(oldest.getName()).toFile().isFile());
+        Assertions.assertTrue(older.exists());
+        Assertions.assertTrue(recent.exists());
+    }
+}
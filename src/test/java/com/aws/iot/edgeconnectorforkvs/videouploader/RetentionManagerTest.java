@@ -0,0 +1,201 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.util.RecordingLayout;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RetentionManagerTest {
+
+    private static final long TEST_TIME = 1600000000000L;
+
+    private static final int FILE_SIZE = 100;
+
+    @TempDir
+    Path tempDir;
+
+    private File createRecording(Path folder, String filename, long ageMs) throws IOException {
+        return TestUtil.createRecording(folder, filename, new byte[FILE_SIZE], System.currentTimeMillis() - ageMs);
+    }
+
+    @Test
+    public void create_invalidParameters_throwException() {
+        Assertions.assertThrows(NullPointerException.class, () -> RetentionManager.builder().build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RetentionManager.builder()
+                .cameraQuotaBytes(Collections.emptyMap()).build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 0L)).build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 1L)).maxEvictionsPerSecond(0.0)
+                .build());
+    }
+
+    @Test
+    public void evict_cameraQuotaExceeded_uploadedThenOldestEvicted() throws IOException, InterruptedException {
+        final File oldest = createRecording(tempDir, "video_" + TEST_TIME + ".mkv", 60000);
+        final File uploaded = createRecording(tempDir, "video_" + (TEST_TIME + 100) + "_uploaded.mkv", 60000);
+        final File newer = createRecording(tempDir, "video_" + (TEST_TIME + 200) + ".mkv", 60000);
+        final File latest = createRecording(tempDir, "video_" + (TEST_TIME + 300) + ".mkv", 0);
+        Files.write(MkvClusterIndex.getSidecarFile(uploaded).toPath(), new byte[FILE_SIZE]);
+        final List<Long> metrics = new ArrayList<>();
+        final RetentionManager manager = RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 2L * FILE_SIZE))
+                .minFileAgeMs(1000L)
+                .maxEvictionsPerSecond(1000.0)
+                .metricsCallBack((recordFilePath, usedBytes, headroomBytes, evictedBytes) -> {
+                    metrics.add(usedBytes);
+                    metrics.add(headroomBytes);
+                    metrics.add(evictedBytes);
+                })
+                .build();
+
+        Assertions.assertEquals(3L * FILE_SIZE, manager.evict());
+
+        Assertions.assertFalse(uploaded.exists());
+        Assertions.assertFalse(MkvClusterIndex.getSidecarFile(uploaded).exists());
+        Assertions.assertFalse(oldest.exists());
+        Assertions.assertTrue(newer.exists());
+        Assertions.assertTrue(latest.exists());
+        Assertions.assertEquals(2, manager.getEvictedFileCount());
+        Assertions.assertEquals(3L * FILE_SIZE, manager.getEvictedBytes());
+        Assertions.assertEquals(3, metrics.size());
+        Assertions.assertEquals(2L * FILE_SIZE, metrics.get(0));
+        Assertions.assertEquals(0L, metrics.get(1));
+        Assertions.assertEquals(3L * FILE_SIZE, metrics.get(2));
+    }
+
+    @Test
+    public void evict_recentRecordings_notEvicted() throws IOException, InterruptedException {
+        final File recent = createRecording(tempDir, "video_" + TEST_TIME + ".mkv", 0);
+        final RetentionManager manager = RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 1L))
+                .minFileAgeMs(60000L)
+                .build();
+
+        Assertions.assertEquals(0, manager.evict());
+        Assertions.assertTrue(recent.exists());
+    }
+
+    @Test
+    public void evict_globalQuotaExceeded_evictedAcrossCameras() throws IOException, InterruptedException {
+        final Path camera1 = tempDir.resolve("camera1");
+        final Path camera2 = tempDir.resolve("camera2");
+        final File recording1 = createRecording(camera1, "video_" + TEST_TIME + ".mkv", 60000);
+        final File recording2 = createRecording(camera2, "video_" + (TEST_TIME + 100) + ".mkv", 60000);
+        final File recording3 = createRecording(camera1, "video_" + (TEST_TIME + 200) + ".mkv", 60000);
+        final File recording4 = createRecording(camera2, "video_" + (TEST_TIME + 300) + ".mkv", 60000);
+        final Map<String, Long> quotas = new HashMap<>();
+        quotas.put(camera1.toString(), 10L * FILE_SIZE);
+        quotas.put(camera2.toString(), 10L * FILE_SIZE);
+        final RetentionManager manager = RetentionManager.builder()
+                .cameraQuotaBytes(quotas)
+                .globalQuotaBytes(2L * FILE_SIZE)
+                .minFileAgeMs(0L)
+                .maxEvictionsPerSecond(1000.0)
+                .build();
+
+        Assertions.assertEquals(2L * FILE_SIZE, manager.evict());
+
+        Assertions.assertFalse(recording1.exists());
+        Assertions.assertFalse(recording2.exists());
+        Assertions.assertTrue(recording3.exists());
+        Assertions.assertTrue(recording4.exists());
+    }
+
+    @Test
+    public void evict_maxEvictionsPerRun_evictedIncrementally() throws IOException, InterruptedException {
+        final File recording1 = createRecording(tempDir, "video_" + TEST_TIME + ".mkv", 60000);
+        final File recording2 = createRecording(tempDir, "video_" + (TEST_TIME + 100) + ".mkv", 60000);
+        createRecording(tempDir, "other.mkv", 60000);
+        final RetentionManager manager = RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 1L))
+                .minFileAgeMs(0L)
+                .maxEvictionsPerRun(1)
+                .build();
+
+        manager.evict();
+        Assertions.assertFalse(recording1.exists());
+        Assertions.assertTrue(recording2.exists());
+
+        manager.evict();
+        Assertions.assertFalse(recording2.exists());
+        Assertions.assertTrue(tempDir.resolve("other.mkv").toFile().exists());
+    }
+
+    @Test
+    public void evict_uploadJournal_journaledUploadsEvictedFirst() throws IOException, InterruptedException {
+        final Path recordPath = tempDir.resolve("record");
+        final File recording1 = createRecording(recordPath, "video_" + TEST_TIME + ".mkv", 60000);
+        final File recording2 = createRecording(recordPath, "video_" + (TEST_TIME + 100) + ".mkv", 60000);
+        try (UploadJournal journal = UploadJournal.builder()
+                .journalFilePath(tempDir.resolve("upload.journal").toString()).build()) {
+            journal.markFileUploaded(new VideoFile(recording2));
+            final RetentionManager manager = RetentionManager.builder()
+                    .cameraQuotaBytes(Collections.singletonMap(recordPath.toString(), (long) FILE_SIZE))
+                    .minFileAgeMs(0L)
+                    .uploadJournal(journal)
+                    .build();
+
+            manager.run();
+
+            // Evicted recordings are forgotten by the journal
+            Assertions.assertFalse(journal.isFileUploaded(new VideoFile(recording2)));
+        }
+
+        Assertions.assertTrue(recording1.exists());
+        Assertions.assertFalse(recording2.exists());
+    }
+
+    @Test
+    public void evict_partitionedLayout_oldPartitionEvictedAtOnce() throws IOException, InterruptedException {
+        final long hourMs = 3600000L;
+        final Path oldPartition = RecordingLayout.HOURLY.getPartitionFolder(tempDir, TEST_TIME);
+        final Path currentPartition = RecordingLayout.HOURLY.getPartitionFolder(tempDir, TEST_TIME + hourMs);
+        createRecording(oldPartition, "video_" + TEST_TIME + ".mkv", 60000);
+        createRecording(oldPartition, "video_" + (TEST_TIME + 100) + ".mkv", 60000);
+        final File old = createRecording(currentPartition, "video_" + (TEST_TIME + hourMs) + ".mkv", 60000);
+        final File recent = createRecording(currentPartition, "video_" + (TEST_TIME + hourMs + 100) + ".mkv", 0);
+        final RetentionManager manager = RetentionManager.builder()
+                .cameraQuotaBytes(Collections.singletonMap(tempDir.toString(), 1L))
+                .minFileAgeMs(1000L)
+                .maxEvictionsPerRun(1)
+                .recordingLayout(RecordingLayout.HOURLY)
+                .build();
+
+        Assertions.assertEquals(2L * FILE_SIZE, manager.evict());
+        Assertions.assertFalse(oldPartition.toFile().exists());
+        Assertions.assertTrue(old.exists());
+
+        manager.evict();
+        Assertions.assertFalse(old.exists());
+        Assertions.assertTrue(recent.exists());
+        Assertions.assertEquals(2, manager.getEvictedFileCount());
+    }
+}
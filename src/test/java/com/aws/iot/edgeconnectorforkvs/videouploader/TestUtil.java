@@ -16,8 +16,11 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class TestUtil {
     private static final byte[] EBML_HEADER = new byte[]{
@@ -150,6 +153,81 @@ public class TestUtil {
         return simpleBlock.array();
     }
 
+    /**
+     * Create a video with one video track and a cluster per second at timecode 0, 1000, 2000 ms ...  Each cluster has
+     * {@code framesPerCluster} key frames at 0, 33, 66 ms ... of the cluster.
+     *
+     * @param clusterCount     Count of clusters
+     * @param framesPerCluster Count of simple blocks in each cluster
+     * @return Video stored in byte array
+     * @throws IOException if the video can't be written
+     */
+    public static byte[] createClusteredVideo(int clusterCount, int framesPerCluster) throws IOException {
+        return createClusteredVideo(createTracksHeader(false), clusterCount, framesPerCluster, -1);
+    }
+
+    /**
+     * Create a video like {@link #createClusteredVideo(int, int)} after the given header.  The first frame of the
+     * cluster at {@code deltaCluster} is not a key frame.
+     *
+     * @param header           Header written before the first cluster
+     * @param clusterCount     Count of clusters
+     * @param framesPerCluster Count of simple blocks in each cluster
+     * @param deltaCluster     Index of the cluster that starts with a non key frame, or -1 for none
+     * @return Video stored in byte array
+     * @throws IOException if the video can't be written
+     */
+    public static byte[] createClusteredVideo(byte[] header, int clusterCount, int framesPerCluster, int deltaCluster)
+            throws IOException {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byteArrayOutputStream.write(header);
+        for (int i = 0; i < clusterCount; i++) {
+            byteArrayOutputStream.write(createClusterHeader(i * 1000L));
+            for (int j = 0; j < framesPerCluster; j++) {
+                final byte[] simpleBlock = createSimpleBlock((short) (j * 33), 1);
+                if (i == deltaCluster && j == 0) {
+                    simpleBlock[5] = 0x00;
+                }
+                byteArrayOutputStream.write(simpleBlock);
+            }
+        }
+        byteArrayOutputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Create a recording file, and the folder if it doesn't exist.
+     *
+     * @param folder   Folder of the recording
+     * @param filename Name of the recording
+     * @param content  Content of the recording
+     * @return The recording file
+     * @throws IOException if the recording can't be written
+     */
+    public static File createRecording(Path folder, String filename, byte[] content) throws IOException {
+        Files.createDirectories(folder);
+        return Files.write(folder.resolve(filename), content).toFile();
+    }
+
+    /**
+     * Create a recording file like {@link #createRecording(Path, String, byte[])} and set its last modified time.
+     *
+     * @param folder       Folder of the recording
+     * @param filename     Name of the recording
+     * @param content      Content of the recording
+     * @param lastModified Last modified time of the recording in milliseconds
+     * @return The recording file
+     * @throws IOException if the recording can't be written or its time can't be set
+     */
+    public static File createRecording(Path folder, String filename, byte[] content, long lastModified)
+            throws IOException {
+        final File file = createRecording(folder, filename, content);
+        if (!file.setLastModified(lastModified)) {
+            throw new IOException("Unable to set last modified time of " + file);
+        }
+        return file;
+    }
+
     public static byte[] createNoTracksHeader() throws IOException {
         final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         byteArrayOutputStream.write(EBML_HEADER);
@@ -0,0 +1,171 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class UploadJournalTest {
+
+    private static final long TEST_TIME = 1600000000000L;
+
+    @TempDir
+    Path tempDir;
+
+    private UploadJournal createJournal(Integer minCompactionRecords) throws IOException {
+        return UploadJournal.builder()
+                .journalFilePath(tempDir.resolve("upload.journal").toString())
+                .minCompactionRecords(minCompactionRecords)
+                .build();
+    }
+
+    private VideoFile createVideoFile(long startTime) {
+        return new VideoFile(tempDir.resolve("video_" + startTime + ".mkv").toFile());
+    }
+
+    @Test
+    public void create_invalidParameters_throwException() {
+        Assertions.assertThrows(NullPointerException.class, () -> UploadJournal.builder().build());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> createJournal(0));
+    }
+
+    @Test
+    public void markFileUploaded_reopenJournal_stateReplayed() throws IOException {
+        final VideoFile videoFile1 = createVideoFile(TEST_TIME);
+        final VideoFile videoFile2 = createVideoFile(TEST_TIME + 100);
+        final VideoFile videoFile3 = createVideoFile(TEST_TIME + 200);
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertFalse(journal.isRenamingUploadedFiles());
+            journal.markFragmentPersisted(videoFile1, TEST_TIME + 10);
+            journal.markFileUploaded(videoFile1);
+            journal.markFragmentPersisted(videoFile2, TEST_TIME + 120);
+            journal.markFragmentPersisted(videoFile2, TEST_TIME + 110);
+            Assertions.assertEquals(3, journal.getRecordCount());
+        }
+
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertTrue(journal.isFileUploaded(videoFile1));
+            Assertions.assertFalse(journal.isFileUploaded(videoFile2));
+            Assertions.assertEquals(-1, journal.getPersistedFragmentTimecode(videoFile1));
+            Assertions.assertEquals(TEST_TIME + 120, journal.getPersistedFragmentTimecode(videoFile2));
+            Assertions.assertEquals(-1, journal.getPersistedFragmentTimecode(videoFile3));
+
+            final List<VideoFile> notUploaded = journal.filterNotUploaded(Arrays.asList(videoFile1, videoFile2,
+                    videoFile3));
+            Assertions.assertEquals(Arrays.asList(videoFile2, videoFile3), notUploaded);
+        }
+    }
+
+    @Test
+    public void create_tornRecord_recordTruncated() throws IOException {
+        final Path journalPath = tempDir.resolve("upload.journal");
+        try (UploadJournal journal = createJournal(null)) {
+            journal.markFileUploaded(createVideoFile(TEST_TIME));
+            journal.markFileUploaded(createVideoFile(TEST_TIME + 100));
+        }
+        final long size = Files.size(journalPath);
+        try (RandomAccessFile file = new RandomAccessFile(journalPath.toFile(), "rw")) {
+            // Corrupt the last record, and append a partial one
+            file.seek(size - 1);
+            final int lastByte = file.read();
+            file.seek(size - 1);
+            file.write(lastByte ^ 0xFF);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertEquals(1, journal.getRecordCount());
+            Assertions.assertTrue(journal.isFileUploaded(createVideoFile(TEST_TIME)));
+            Assertions.assertFalse(journal.isFileUploaded(createVideoFile(TEST_TIME + 100)));
+            journal.markFileUploaded(createVideoFile(TEST_TIME + 200));
+        }
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertEquals(2, journal.getRecordCount());
+            Assertions.assertTrue(journal.isFileUploaded(createVideoFile(TEST_TIME + 200)));
+        }
+    }
+
+    @Test
+    public void create_unknownFormat_journalDiscarded() throws IOException {
+        Files.write(tempDir.resolve("upload.journal"), new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertEquals(0, journal.getRecordCount());
+            journal.markFileUploaded(createVideoFile(TEST_TIME));
+        }
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertTrue(journal.isFileUploaded(createVideoFile(TEST_TIME)));
+        }
+    }
+
+    @Test
+    public void markFragmentPersisted_supersededRecords_journalCompacted() throws IOException {
+        final Path journalPath = tempDir.resolve("upload.journal");
+        try (UploadJournal journal = createJournal(8)) {
+            for (int i = 0; i < 4; i++) {
+                final VideoFile videoFile = createVideoFile(TEST_TIME + i * 100);
+                journal.markFragmentPersisted(videoFile, TEST_TIME + i * 100 + 10);
+                journal.markFragmentPersisted(videoFile, TEST_TIME + i * 100 + 20);
+                journal.markFileUploaded(videoFile);
+            }
+            Assertions.assertTrue(journal.getRecordCount() < 12);
+            Assertions.assertFalse(Files.exists(tempDir.resolve("upload.journal" + UploadJournal.TEMP_EXTENSION)));
+
+            journal.forgetFilesBefore(tempDir.toFile(), new Date(TEST_TIME + 300));
+            journal.compact();
+            Assertions.assertEquals(1, journal.getRecordCount());
+        }
+        Assertions.assertEquals(4 + 29, Files.size(journalPath));
+
+        try (UploadJournal journal = createJournal(8)) {
+            Assertions.assertFalse(journal.isFileUploaded(createVideoFile(TEST_TIME)));
+            Assertions.assertTrue(journal.isFileUploaded(createVideoFile(TEST_TIME + 300)));
+        }
+    }
+
+    @Test
+    public void markFileUploaded_sameStartTimeInOtherFolder_notUploaded() throws IOException {
+        final VideoFile videoFile1 = new VideoFile(tempDir.resolve("camera1").resolve("video_" + TEST_TIME + ".mkv")
+                .toFile());
+        final VideoFile videoFile2 = new VideoFile(tempDir.resolve("camera2").resolve("video_" + TEST_TIME + ".mkv")
+                .toFile());
+        try (UploadJournal journal = createJournal(null)) {
+            journal.markFileUploaded(videoFile1);
+            journal.markFragmentPersisted(videoFile2, TEST_TIME + 10);
+        }
+
+        try (UploadJournal journal = createJournal(null)) {
+            Assertions.assertTrue(journal.isFileUploaded(videoFile1));
+            Assertions.assertFalse(journal.isFileUploaded(videoFile2));
+            Assertions.assertEquals(TEST_TIME + 10, journal.getPersistedFragmentTimecode(videoFile2));
+
+            journal.forgetFile(videoFile2);
+            journal.forgetFilesBefore(tempDir.resolve("camera2").toFile(), new Date(TEST_TIME + 1));
+            Assertions.assertTrue(journal.isFileUploaded(videoFile1));
+            Assertions.assertEquals(-1, journal.getPersistedFragmentTimecode(videoFile2));
+        }
+    }
+}
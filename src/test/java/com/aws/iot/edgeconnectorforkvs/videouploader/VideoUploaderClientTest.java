@@ -27,8 +27,12 @@ import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetDataEndpointResult;
 import com.amazonaws.services.kinesisvideo.model.PutMediaRequest;
 import com.aws.iot.edgeconnectorforkvs.util.Constants;
+import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UpdateFragmentStatus;
 import com.aws.iot.edgeconnectorforkvs.videouploader.callback.UploadCallBack;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvFilesInputStream;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvInputStream;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.VideoUploaderException;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.*;
@@ -42,13 +46,18 @@ import static org.mockito.Mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 @Slf4j
 @ExtendWith(MockitoExtension.class)
@@ -387,6 +396,108 @@ public class VideoUploaderClientTest {
         Assertions.assertTrue(isUploaded[0]);
     }
 
+    @Test
+    public void setReorderWindowMs_withFragmentDurationRange_throwException() {
+        final FragmentDurationRange range = FragmentDurationRange.builder().minDurationMs(1000L).maxDurationMs(2000L)
+                .build();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> videoUploaderClient.setReorderWindowMs(-1L));
+        videoUploaderClient.setReorderWindowMs(100L);
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> videoUploaderClient.setFragmentDurationRange(range));
+        videoUploaderClient.setReorderWindowMs(null);
+        videoUploaderClient.setFragmentDurationRange(range);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> videoUploaderClient.setReorderWindowMs(100L));
+    }
+
+    @Test
+    public void uploadStream_reorderWindow_streamedByWindow() throws IOException {
+        Assumptions.assumeTrue(mockPrivateMember(videoUploaderClient, "kvsFrontendClient", mockKvsFrontendClient));
+        Assumptions.assumeTrue(mockPrivateMember(videoUploaderClient, "kvsDataClient", mockKvsDataClient));
+        final byte[] sampleVideo = TestUtil.createSampleVideo(false);
+        final byte[] expected = readAll(new MkvInputStream(new ByteArrayInputStream(sampleVideo), 100L));
+
+        final ByteArrayOutputStream uploadedOutputStream = new ByteArrayOutputStream();
+        when(mockKvsFrontendClient.getDataEndpoint(any(GetDataEndpointRequest.class))).thenReturn(new GetDataEndpointResult().withDataEndpoint(DATA_ENDPOINT));
+        doAnswer(invocation -> {
+            final PutMediaRequest request = invocation.getArgument(0);
+            Assertions.assertTrue(request.getPayload() instanceof MkvInputStream);
+            uploadedOutputStream.write(readAll(request.getPayload()));
+            final PutMediaAckResponseHandler handler = invocation.getArgument(1);
+            handler.onComplete();
+            return null;
+        }).when(mockKvsDataClient).putMedia(any(PutMediaRequest.class), any(PutMediaAckResponseHandler.class));
+
+        videoUploaderClient.setReorderWindowMs(100L);
+        videoUploaderClient.uploadStream(new ByteArrayInputStream(sampleVideo), Date.from(Instant.now()), null, null);
+
+        Assertions.assertArrayEquals(expected, uploadedOutputStream.toByteArray());
+    }
+
+    @Test
+    public void uploadStream_mockAckResponseError_reportFragmentStatus() throws InterruptedException {
+        Assumptions.assumeTrue(mockPrivateMember(videoUploaderClient, "kvsFrontendClient", mockKvsFrontendClient));
+        Assumptions.assumeTrue(mockPrivateMember(videoUploaderClient, "kvsDataClient", mockKvsDataClient));
+
+        final Date dateBegin = Date.from(Instant.now());
+        final List<Long> persistedFragments = new ArrayList<>();
+        final List<Long> errorFragments = new ArrayList<>();
+        final UpdateFragmentStatus updateHandler = new UpdateFragmentStatus() {
+            @Override
+            public void update(long lastUpdatedFragment, VideoFile lastUpdatedVideoFile) {
+                persistedFragments.add(lastUpdatedFragment);
+            }
+
+            @Override
+            public void error(long errorFragment) {
+                errorFragments.add(errorFragment);
+            }
+        };
+        final UploadCallBack uploadCallBack = new UploadCallBack(dateBegin, updateHandler) {
+            @Override
+            public void run() {
+            }
+        };
+
+        ArgumentCaptor<PutMediaAckResponseHandler> putMediaAckResponseArgumentCaptor =
+                ArgumentCaptor.forClass(PutMediaAckResponseHandler.class);
+
+        when(mockKvsFrontendClient.getDataEndpoint(any(GetDataEndpointRequest.class))).thenReturn(new GetDataEndpointResult().withDataEndpoint(DATA_ENDPOINT));
+        doNothing().when(mockKvsDataClient).putMedia(any(PutMediaRequest.class), any(PutMediaAckResponseHandler.class));
+
+        new Thread(() -> {
+            try {
+                videoUploaderClient.uploadStream(inputStream, dateBegin, null, uploadCallBack);
+            } catch (Exception exception) {
+                // nop
+            }
+        }).start();
+
+        // wait until task start
+        while (!videoUploaderClient.isOpen()) {
+            System.out.println("task is not running");
+            Thread.sleep(STATUS_CHANGED_TIME);
+        }
+
+        verify(mockKvsDataClient).putMedia(any(PutMediaRequest.class), putMediaAckResponseArgumentCaptor.capture());
+
+        putMediaAckResponseArgumentCaptor.getValue().onAckEvent(new AckEvent()
+                .withAckEventType(AckEventType.of(AckEventType.Values.PERSISTED)).withFragmentTimecode(1000L));
+        putMediaAckResponseArgumentCaptor.getValue().onAckEvent(new AckEvent()
+                .withAckEventType(AckEventType.of(AckEventType.Values.ERROR)).withFragmentTimecode(2000L));
+        putMediaAckResponseArgumentCaptor.getValue().onAckEvent(new AckEvent()
+                .withAckEventType(AckEventType.of(AckEventType.Values.ERROR)));
+        putMediaAckResponseArgumentCaptor.getValue().onComplete();
+
+        // wait until task end
+        while (videoUploaderClient.isOpen()) {
+            System.out.println("task is running");
+            Thread.sleep(STATUS_CHANGED_TIME);
+        }
+
+        Assertions.assertEquals(Collections.singletonList(dateBegin.getTime() + 1000L), persistedFragments);
+        Assertions.assertEquals(Arrays.asList(dateBegin.getTime() + 2000L, -1L), errorFragments);
+    }
+
     @Test
     public void uploadStream_mockAckResponseCompleteWithNullCallback_taskClosed() throws InterruptedException {
         Assumptions.assumeTrue(mockPrivateMember(videoUploaderClient, "kvsFrontendClient", mockKvsFrontendClient));
@@ -658,6 +769,165 @@ public class VideoUploaderClientTest {
         Assertions.assertFalse(videoUploaderClient.isOpen());
     }
 
+    @Test
+    public void uploadHistoricalVideo_persistedFragments_notUploadedAgain() throws IOException {
+        // A video with key frame clusters at 0, 1000, 2000 and 3000 ms
+        final Path recordPath = Files.createTempDirectory("resume");
+        final VideoFile videoFile = new VideoFile(recordPath.resolve("video_" + TEST_TIME + ".mkv").toFile());
+        Files.write(videoFile.toPath(), TestUtil.createClusteredVideo(4, 2));
+        final Date endTime = new Date(TEST_TIME + 10_000);
+        final byte[] expected = readAll(new MkvFilesInputStream(new ArrayList<>(Collections.singletonList(videoFile))
+                .listIterator(), new Date(TEST_TIME + 2000), endTime));
+        final byte[] persistedAgain = readAll(new MkvFilesInputStream(new ArrayList<>(
+                Collections.singletonList(videoFile)).listIterator(), new Date(TEST_TIME + 1000), endTime));
+
+        final ByteArrayOutputStream uploadedOutputStream = new ByteArrayOutputStream();
+        when(mockKvsFrontendClient.getDataEndpoint(any(GetDataEndpointRequest.class))).thenReturn(new GetDataEndpointResult().withDataEndpoint(DATA_ENDPOINT));
+        doAnswer(invocation -> {
+            final PutMediaRequest request = invocation.getArgument(0);
+            final byte[] buffer = new byte[1024];
+            int readLen;
+            while ((readLen = request.getPayload().read(buffer, 0, buffer.length)) != -1) {
+                uploadedOutputStream.write(buffer, 0, readLen);
+            }
+            final PutMediaAckResponseHandler handler = invocation.getArgument(1);
+            handler.onComplete();
+            return null;
+        }).when(mockKvsDataClient).putMedia(any(PutMediaRequest.class), any(PutMediaAckResponseHandler.class));
+
+        final VideoUploaderClient client = VideoUploaderClient.builder()
+                .awsCredentialsProvider(mockAwsCredentialsProvider)
+                .region(region)
+                .recordFilePath(recordPath.toString())
+                .kvsStreamName(KVS_STREAM_NAME)
+                .build();
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsFrontendClient", mockKvsFrontendClient));
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsDataClient", mockKvsDataClient));
+        try (UploadJournal journal = UploadJournal.builder()
+                .journalFilePath(recordPath.resolve("journal").resolve("upload.journal").toString()).build()) {
+            journal.markFragmentPersisted(videoFile, TEST_TIME + 1000);
+            client.setUploadJournal(journal);
+            client.uploadHistoricalVideo(new Date(TEST_TIME), endTime, null, null);
+        }
+
+        // The upload resumes at the key frame cluster after the persisted one
+        Assertions.assertArrayEquals(expected, uploadedOutputStream.toByteArray());
+        Assertions.assertFalse(Arrays.equals(persistedAgain, expected));
+    }
+
+    @Test
+    public void uploadHistoricalVideo_videoStartsAtStartTime_uploadedAsWhole() throws IOException {
+        // The previous video was still written after the start time
+        final Path recordPath = Files.createTempDirectory("whole");
+        final VideoFile previousVideoFile = new VideoFile(recordPath.resolve("video_" + (TEST_TIME - 4000) + ".mkv")
+                .toFile());
+        final VideoFile videoFile = new VideoFile(recordPath.resolve("video_" + TEST_TIME + ".mkv").toFile());
+        for (VideoFile file : Arrays.asList(previousVideoFile, videoFile)) {
+            Files.write(file.toPath(), TestUtil.createClusteredVideo(4, 1));
+        }
+        Assertions.assertTrue(previousVideoFile.setLastModified(TEST_TIME + 1));
+        Assertions.assertTrue(videoFile.setLastModified(TEST_TIME + 4000));
+        final Date endTime = new Date(TEST_TIME + 10_000);
+        final byte[] expected = readAll(new MkvFilesInputStream(new ArrayList<>(Collections.singletonList(videoFile))
+                .listIterator(), new Date(TEST_TIME), endTime));
+
+        final ByteArrayOutputStream uploadedOutputStream = new ByteArrayOutputStream();
+        when(mockKvsFrontendClient.getDataEndpoint(any(GetDataEndpointRequest.class))).thenReturn(new GetDataEndpointResult().withDataEndpoint(DATA_ENDPOINT));
+        doAnswer(invocation -> {
+            final PutMediaRequest request = invocation.getArgument(0);
+            final byte[] buffer = new byte[1024];
+            int readLen;
+            while ((readLen = request.getPayload().read(buffer, 0, buffer.length)) != -1) {
+                uploadedOutputStream.write(buffer, 0, readLen);
+            }
+            final PutMediaAckResponseHandler handler = invocation.getArgument(1);
+            handler.onComplete();
+            return null;
+        }).when(mockKvsDataClient).putMedia(any(PutMediaRequest.class), any(PutMediaAckResponseHandler.class));
+
+        final VideoUploaderClient client = VideoUploaderClient.builder()
+                .awsCredentialsProvider(mockAwsCredentialsProvider)
+                .region(region)
+                .recordFilePath(recordPath.toString())
+                .kvsStreamName(KVS_STREAM_NAME)
+                .build();
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsFrontendClient", mockKvsFrontendClient));
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsDataClient", mockKvsDataClient));
+        try (UploadJournal journal = UploadJournal.builder()
+                .journalFilePath(recordPath.resolve("journal").resolve("upload.journal").toString()).build()) {
+            client.setUploadJournal(journal);
+            client.uploadHistoricalVideo(new Date(TEST_TIME), endTime, null, new UploadCallBack(new Date(TEST_TIME),
+                    null) {
+                @Override
+                public void run() {
+                }
+            });
+
+            // Nothing of the previous video is uploaded, and the video is marked uploaded
+            Assertions.assertArrayEquals(expected, uploadedOutputStream.toByteArray());
+            Assertions.assertTrue(journal.isFileUploaded(videoFile));
+            Assertions.assertFalse(journal.isFileUploaded(previousVideoFile));
+        }
+    }
+
+    @Test
+    public void uploadHistoricalVideo_precedingVideo_acksMappedFromItsStartTime() throws IOException {
+        // The preceding video is still written at the start time, so the stream starts at its start time
+        final Path recordPath = Files.createTempDirectory("preceding");
+        final VideoFile precedingVideoFile = new VideoFile(recordPath.resolve("video_" + (TEST_TIME - 4000) + ".mkv")
+                .toFile());
+        final VideoFile videoFile = new VideoFile(recordPath.resolve("video_" + (TEST_TIME + 2000) + ".mkv").toFile());
+        for (VideoFile file : Arrays.asList(precedingVideoFile, videoFile)) {
+            Files.write(file.toPath(), TestUtil.createClusteredVideo(6, 1));
+        }
+        Assertions.assertTrue(precedingVideoFile.setLastModified(TEST_TIME + 2000));
+        Assertions.assertTrue(videoFile.setLastModified(TEST_TIME + 8000));
+
+        final List<Date> producerStartTimes = new ArrayList<>();
+        when(mockKvsFrontendClient.getDataEndpoint(any(GetDataEndpointRequest.class))).thenReturn(new GetDataEndpointResult().withDataEndpoint(DATA_ENDPOINT));
+        doAnswer(invocation -> {
+            final PutMediaRequest request = invocation.getArgument(0);
+            producerStartTimes.add(request.getProducerStartTimestamp());
+            readAll(request.getPayload());
+            // A fragment of the video, 6500 ms after the start of the preceding video
+            final PutMediaAckResponseHandler handler = invocation.getArgument(1);
+            handler.onAckEvent(new AckEvent().withAckEventType(AckEventType.of(AckEventType.Values.PERSISTED))
+                    .withFragmentTimecode(6500L));
+            handler.onComplete();
+            return null;
+        }).when(mockKvsDataClient).putMedia(any(PutMediaRequest.class), any(PutMediaAckResponseHandler.class));
+
+        final VideoUploaderClient client = VideoUploaderClient.builder()
+                .awsCredentialsProvider(mockAwsCredentialsProvider)
+                .region(region)
+                .recordFilePath(recordPath.toString())
+                .kvsStreamName(KVS_STREAM_NAME)
+                .build();
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsFrontendClient", mockKvsFrontendClient));
+        Assumptions.assumeTrue(mockPrivateMember(client, "kvsDataClient", mockKvsDataClient));
+        final UploadCallBack uploadCallBack = new UploadCallBack(new Date(TEST_TIME), null) {
+            @Override
+            public void run() {
+            }
+        };
+        client.uploadHistoricalVideo(new Date(TEST_TIME), new Date(TEST_TIME + 10_000), null, uploadCallBack);
+
+        Assertions.assertEquals(Collections.singletonList(new Date(TEST_TIME - 4000)), producerStartTimes);
+        Assertions.assertEquals(Collections.singletonList(TEST_TIME + 2500), uploadCallBack.getPersistedFragmentTimecodes());
+        Assertions.assertEquals(videoFile, uploadCallBack.getUploadingFile());
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int readLen;
+        while ((readLen = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            outputStream.write(buffer, 0, readLen);
+        }
+        inputStream.close();
+        return outputStream.toByteArray();
+    }
+
     @Test
     public void close_noTaskOngoing_noException() {
         Assertions.assertDoesNotThrow(() -> videoUploaderClient.close());
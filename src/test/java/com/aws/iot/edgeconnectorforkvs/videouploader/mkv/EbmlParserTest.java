@@ -0,0 +1,368 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EbmlParserTest {
+
+    private static final int[] CHUNK_SIZES = {1, 3, 7, 100, 4096, Integer.MAX_VALUE};
+
+    private static byte[] sampleMkvFile = null;
+
+    @BeforeAll
+    public static void setupForAll() {
+        try {
+            sampleMkvFile = Files.readAllBytes(
+                    Paths.get(ClassLoader.getSystemResource("sample-mkv-file.mkv").toURI()));
+        } catch (Exception exception) {
+            System.out.println("Unable to read sample MKV file");
+        }
+    }
+
+    /**
+     * Record events of both parsers in the same text format.
+     */
+    private static class EventRecorder extends MkvElementVisitor implements EbmlParserCallback {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void visit(MkvStartMasterElement startMasterElement) {
+            events.add("+" + Integer.toHexString(startMasterElement.getElementMetaData().getTypeInfo().getId())
+                    + " " + TestUtil.bytesToHex(toArray(startMasterElement.getIdAndSizeRawBytes())));
+        }
+
+        @Override
+        public void visit(MkvEndMasterElement endMasterElement) {
+            events.add("-" + Integer.toHexString(endMasterElement.getElementMetaData().getTypeInfo().getId()));
+        }
+
+        @Override
+        public void visit(MkvDataElement dataElement) {
+            events.add("=" + Integer.toHexString(dataElement.getElementMetaData().getTypeInfo().getId())
+                    + " " + TestUtil.bytesToHex(toArray(dataElement.getIdAndSizeRawBytes()))
+                    + TestUtil.bytesToHex(toArray(dataElement.getDataBuffer())));
+        }
+
+        @Override
+        public void onMasterStart(int id, long elementOffset, long dataSize, ByteBuffer buffer, int headerOffset,
+                                  int headerLength) {
+            events.add("+" + Integer.toHexString(id) + " "
+                    + TestUtil.bytesToHex(toArray(buffer, headerOffset, headerLength)));
+        }
+
+        @Override
+        public void onMasterEnd(int id, long endOffset) {
+            events.add("-" + Integer.toHexString(id));
+        }
+
+        @Override
+        public void onDataElement(int id, long elementOffset, ByteBuffer buffer, int headerOffset, int headerLength,
+                                  int dataLength) {
+            events.add("=" + Integer.toHexString(id) + " "
+                    + TestUtil.bytesToHex(toArray(buffer, headerOffset, headerLength))
+                    + TestUtil.bytesToHex(toArray(buffer, headerOffset + headerLength, dataLength)));
+        }
+
+        private static byte[] toArray(ByteBuffer buffer) {
+            return toArray(buffer, 0, buffer.limit());
+        }
+
+        private static byte[] toArray(ByteBuffer buffer, int offset, int length) {
+            final byte[] bytes = new byte[length];
+            EbmlParser.copy(buffer, offset, bytes, 0, length);
+            return bytes;
+        }
+    }
+
+    private static List<String> parseByStreamingMkvReader(byte[] mkv) throws MkvElementVisitException {
+        final EventRecorder recorder = new EventRecorder();
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(mkv)))
+                .apply(recorder);
+        return recorder.events;
+    }
+
+    private static List<String> parseByEbmlParser(byte[] mkv, int chunkSize) throws MkvElementVisitException {
+        final EventRecorder recorder = new EventRecorder();
+        final EbmlParser parser = new EbmlParser(recorder);
+        feedInChunks(parser, mkv, chunkSize);
+        parser.endOfStream();
+        Assertions.assertEquals(mkv.length, parser.getPosition());
+        return recorder.events;
+    }
+
+    private static void feedInChunks(EbmlParser parser, byte[] mkv, int chunkSize) throws MkvElementVisitException {
+        // Copy each chunk to a reused buffer, so the parser must not keep references to the fed bytes
+        final byte[] chunk = new byte[Math.min(chunkSize, mkv.length)];
+        for (int offset = 0; offset < mkv.length; offset += chunk.length) {
+            final int length = Math.min(chunk.length, mkv.length - offset);
+            System.arraycopy(mkv, offset, chunk, 0, length);
+            parser.feed(chunk, 0, length);
+        }
+    }
+
+    private static byte[] createSyntheticStream() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(true));
+        outputStream.write(TestUtil.createTagHeader());
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSilentTracks());
+        outputStream.write(TestUtil.createSimpleBlock((short) 5, 2));
+        outputStream.write(TestUtil.createClusterHeader(30));
+        outputStream.write(TestUtil.createSimpleBlock((short) -10, 1));
+        // A new EBML header ends the segment with unknown size
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void feed_sampleMkvFile_sameEventsAsStreamingMkvReader() throws MkvElementVisitException {
+        Assumptions.assumeTrue(sampleMkvFile != null);
+
+        final List<String> expected = parseByStreamingMkvReader(sampleMkvFile);
+        for (int chunkSize : CHUNK_SIZES) {
+            Assertions.assertEquals(expected, parseByEbmlParser(sampleMkvFile, chunkSize),
+                    "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void feed_syntheticStream_sameEventsAsStreamingMkvReader() throws MkvElementVisitException, IOException {
+        final byte[] mkv = createSyntheticStream();
+
+        final List<String> expected = parseByStreamingMkvReader(mkv);
+        for (int chunkSize : CHUNK_SIZES) {
+            Assertions.assertEquals(expected, parseByEbmlParser(mkv, chunkSize), "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void feed_byteBuffer_positionMovedToLimit() throws MkvElementVisitException, IOException {
+        final byte[] mkv = createSyntheticStream();
+        final EventRecorder recorder = new EventRecorder();
+        final EbmlParser parser = new EbmlParser(recorder);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(mkv.length);
+        buffer.put(mkv);
+        buffer.flip();
+        parser.feed(buffer);
+        parser.endOfStream();
+
+        Assertions.assertFalse(buffer.hasRemaining());
+        Assertions.assertEquals(parseByStreamingMkvReader(mkv), recorder.events);
+    }
+
+    @Test
+    public void feed_mergeSampleMkvFileTwice_sameOutputAsStreamingMkvReader()
+            throws MkvElementVisitException, IOException {
+        Assumptions.assumeTrue(sampleMkvFile != null);
+
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor expectedVisitor = MergeFragmentVisitor.create(expectedOutputStream);
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.create(resultOutputStream);
+        for (int i = 0; i < 2; i++) {
+            expectedVisitor.setNextFragmentTimecodeOffsetMs(i * 10_000L);
+            StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(sampleMkvFile)))
+                    .apply(expectedVisitor);
+
+            resultVisitor.setNextFragmentTimecodeOffsetMs(i * 10_000L);
+            final EbmlParser parser = new EbmlParser(resultVisitor);
+            feedInChunks(parser, sampleMkvFile, 1000);
+            parser.endOfStream();
+        }
+        expectedVisitor.flush();
+        resultVisitor.flush();
+
+        Assertions.assertTrue(expectedOutputStream.size() > 0);
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+    }
+
+    @Test
+    public void feed_skipPolicy_skippedElementsNotReported() throws MkvElementVisitException, IOException {
+        final byte[] mkv = createSyntheticStream();
+        final List<String> expected = new ArrayList<>();
+        for (String event : parseByStreamingMkvReader(mkv)) {
+            if (!event.startsWith("=a3") && !event.startsWith("+5854") && !event.startsWith("=58d7")
+                    && !event.startsWith("-5854")) {
+                expected.add(event);
+            }
+        }
+
+        for (int chunkSize : CHUNK_SIZES) {
+            final EventRecorder recorder = new EventRecorder();
+            final EbmlParser parser = new EbmlParser(recorder);
+            parser.setSkipPolicy(id -> id == 0xA3 || id == 0x5854);
+            feedInChunks(parser, mkv, chunkSize);
+            parser.endOfStream();
+
+            Assertions.assertEquals(mkv.length, parser.getPosition(), "chunk size " + chunkSize);
+            Assertions.assertEquals(expected, recorder.events, "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void takeSkipLength_skippedElementBeyondChunk_nextChunkAfterElement()
+            throws MkvElementVisitException, IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        final int skippedOffset = outputStream.size();
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        final int nextOffset = outputStream.size();
+        outputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        final byte[] mkv = outputStream.toByteArray();
+
+        final EventRecorder recorder = new EventRecorder();
+        final EbmlParser parser = new EbmlParser(recorder);
+        parser.setSkipPolicy(id -> id == 0xA3);
+        parser.feed(mkv, 0, skippedOffset + 3);
+
+        Assertions.assertEquals(nextOffset - skippedOffset - 3, parser.takeSkipLength());
+        Assertions.assertEquals(0, parser.takeSkipLength());
+        Assertions.assertEquals(nextOffset, parser.getPosition());
+
+        parser.setSkipPolicy(null);
+        parser.feed(mkv, nextOffset, mkv.length - nextOffset);
+        parser.endOfStream();
+
+        Assertions.assertEquals(mkv.length, parser.getPosition());
+        Assertions.assertEquals(1, recorder.events.stream().filter(event -> event.startsWith("=a3")).count());
+    }
+
+    @Test
+    public void endOfStream_truncatedSkippedElement_positionAtAvailableBytes() throws MkvElementVisitException {
+        final byte[] simpleBlock = TestUtil.createSimpleBlock((short) 0, 1);
+        final EbmlParser parser = new EbmlParser(new EventRecorder());
+        parser.setSkipPolicy(id -> true);
+
+        parser.feed(simpleBlock, 0, 3);
+        parser.endOfStream();
+
+        Assertions.assertEquals(3, parser.getPosition());
+    }
+
+    @Test
+    public void feed_mergeWithSkipPolicy_sameOutputAsStreamingMkvReader() throws MkvElementVisitException, IOException {
+        final ByteArrayOutputStream inputStream = new ByteArrayOutputStream();
+        inputStream.write(TestUtil.createTracksHeader(false));
+        inputStream.write(TestUtil.createClusterHeader(0));
+        inputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        // Void in the cluster, then Cues and Tags of known size after it
+        inputStream.write(new byte[]{(byte) 0xEC, (byte) 0x83, 0x00, 0x00, 0x00});
+        inputStream.write(new byte[]{(byte) 0x1C, (byte) 0x53, (byte) 0xBB, (byte) 0x6B, (byte) 0x82, (byte) 0xEC,
+                (byte) 0x80});
+        inputStream.write(new byte[]{(byte) 0x12, (byte) 0x54, (byte) 0xC3, (byte) 0x67, (byte) 0x80});
+        inputStream.write(TestUtil.createClusterHeader(30));
+        inputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        final byte[] mkv = inputStream.toByteArray();
+
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor expectedVisitor = MergeFragmentVisitor.create(expectedOutputStream);
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(mkv)))
+                .apply(expectedVisitor);
+        expectedVisitor.flush();
+
+        for (int chunkSize : CHUNK_SIZES) {
+            final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.create(resultOutputStream);
+            final EbmlParser parser = new EbmlParser(resultVisitor);
+            parser.setSkipPolicy(resultVisitor);
+            feedInChunks(parser, mkv, chunkSize);
+            parser.endOfStream();
+            resultVisitor.flush();
+
+            Assertions.assertTrue(expectedOutputStream.size() > 0);
+            Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray(),
+                    "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void endOfStream_truncatedElement_openMastersEnded() throws MkvElementVisitException, IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        final byte[] simpleBlock = TestUtil.createSimpleBlock((short) 0, 1);
+        outputStream.write(simpleBlock, 0, simpleBlock.length - 1);
+        final byte[] mkv = outputStream.toByteArray();
+
+        final EventRecorder recorder = new EventRecorder();
+        final EbmlParser parser = new EbmlParser(recorder);
+        parser.feed(mkv, 0, mkv.length);
+        parser.endOfStream();
+
+        final List<String> events = recorder.events;
+        Assertions.assertEquals(mkv.length, parser.getPosition());
+        Assertions.assertEquals("-1f43b675", events.get(events.size() - 2));
+        Assertions.assertEquals("-18538067", events.get(events.size() - 1));
+        Assertions.assertFalse(events.stream().anyMatch(event -> event.startsWith("=a3")));
+    }
+
+    @Test
+    public void feed_invalidId_throwException() {
+        final EbmlParser parser = new EbmlParser(new EventRecorder());
+
+        Assertions.assertThrows(MkvElementVisitException.class,
+                () -> parser.feed(new byte[]{(byte) 0x00, (byte) 0x81, (byte) 0x00}, 0, 3));
+    }
+
+    @Test
+    public void feed_oversizedDataElement_throwException() {
+        final EbmlParser parser = new EbmlParser(new EventRecorder(), 4);
+
+        Assertions.assertThrows(MkvElementVisitException.class,
+                () -> parser.feed(TestUtil.createSimpleBlock((short) 0, 1), 0, 2));
+    }
+
+    @Test
+    public void feed_unknownSizeDataElement_throwException() {
+        final EbmlParser parser = new EbmlParser(new EventRecorder());
+
+        Assertions.assertThrows(MkvElementVisitException.class,
+                () -> parser.feed(new byte[]{(byte) 0xA3, (byte) 0xFF}, 0, 2));
+    }
+
+    @Test
+    public void constructor_nullCallback_throwException() {
+        Assertions.assertThrows(NullPointerException.class, () -> new EbmlParser(null));
+    }
+}
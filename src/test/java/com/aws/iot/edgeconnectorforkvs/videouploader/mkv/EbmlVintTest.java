@@ -0,0 +1,103 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class EbmlVintTest {
+
+    @Test
+    public void length_validFirstBytes_returnLength() {
+        Assertions.assertEquals(1, EbmlVint.length(0x85));
+        Assertions.assertEquals(2, EbmlVint.length(0x40));
+        Assertions.assertEquals(4, EbmlVint.length(0x1A));
+        Assertions.assertEquals(8, EbmlVint.length(0x01));
+        Assertions.assertEquals(0, EbmlVint.length(0x00));
+    }
+
+    @Test
+    public void idLength_tooLongId_returnZero() {
+        Assertions.assertEquals(4, EbmlVint.idLength(0x1F));
+        Assertions.assertEquals(0, EbmlVint.idLength(0x08));
+    }
+
+    @Test
+    public void readId_clusterId_markerBitKept() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
+                (byte) 0x00, (byte) 0x1F, (byte) 0x43, (byte) 0xB6, (byte) 0x75});
+
+        Assertions.assertEquals(0x1F43B675, EbmlVint.readId(buffer, 1, 4));
+    }
+
+    @Test
+    public void readSize_knownAndUnknownSizes_returnSize() {
+        Assertions.assertEquals(5, EbmlVint.readSize(ByteBuffer.wrap(new byte[]{(byte) 0x85}), 0, 1));
+        Assertions.assertEquals(5, EbmlVint.readSize(ByteBuffer.wrap(new byte[]{(byte) 0x40, (byte) 0x05}), 0, 2));
+        Assertions.assertEquals(EbmlVint.UNKNOWN_SIZE, EbmlVint.readSize(ByteBuffer.wrap(new byte[]{(byte) 0xFF}), 0, 1));
+        Assertions.assertEquals(EbmlVint.UNKNOWN_SIZE, EbmlVint.readSize(ByteBuffer.wrap(new byte[]{
+                (byte) 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF
+        }), 0, 8));
+    }
+
+    @Test
+    public void encodedIdLength_validIds_returnLength() {
+        Assertions.assertEquals(1, EbmlVint.encodedIdLength(0xA3));
+        Assertions.assertEquals(2, EbmlVint.encodedIdLength(0x4286));
+        Assertions.assertEquals(3, EbmlVint.encodedIdLength(0x2AD7B1));
+        Assertions.assertEquals(4, EbmlVint.encodedIdLength(0x1F43B675));
+        Assertions.assertEquals(0, EbmlVint.encodedIdLength(0));
+    }
+
+    @Test
+    public void sizeLength_boundarySizes_returnLength() {
+        Assertions.assertEquals(1, EbmlVint.sizeLength(0));
+        Assertions.assertEquals(1, EbmlVint.sizeLength(0x7E));
+        Assertions.assertEquals(2, EbmlVint.sizeLength(0x7F));
+        Assertions.assertEquals(2, EbmlVint.sizeLength(0x3FFE));
+        Assertions.assertEquals(3, EbmlVint.sizeLength(0x3FFF));
+        Assertions.assertEquals(8, EbmlVint.sizeLength(0x00FFFFFF_FFFFFFFEL));
+        Assertions.assertEquals(0, EbmlVint.sizeLength(0x00FFFFFF_FFFFFFFFL));
+        Assertions.assertEquals(0, EbmlVint.sizeLength(-1));
+    }
+
+    @Test
+    public void putIdAndSize_validValues_readBack() {
+        final ByteBuffer buffer = ByteBuffer.allocate(12);
+        for (long size : new long[]{0, 0x7F, 0x12345678L}) {
+            buffer.clear();
+            final int sizeLength = EbmlVint.sizeLength(size);
+            EbmlVint.putId(buffer, 0x1F43B675, 4);
+            EbmlVint.putSize(buffer, size, sizeLength);
+
+            Assertions.assertEquals(4 + sizeLength, buffer.position());
+            Assertions.assertEquals(0x1F43B675, EbmlVint.readId(buffer, 0, EbmlVint.idLength(buffer.get(0))));
+            Assertions.assertEquals(sizeLength, EbmlVint.length(buffer.get(4)));
+            Assertions.assertEquals(size, EbmlVint.readSize(buffer, 4, sizeLength));
+        }
+    }
+
+    @Test
+    public void readUnsigned_eightBytes_returnValue() {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, 1_600_000_000_000L);
+
+        Assertions.assertEquals(1_600_000_000_000L, EbmlVint.readUnsigned(buffer, 0, 8));
+        Assertions.assertEquals(0, buffer.position());
+    }
+}
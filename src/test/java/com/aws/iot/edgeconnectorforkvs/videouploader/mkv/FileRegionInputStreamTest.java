@@ -0,0 +1,77 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class FileRegionInputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File createFile() throws IOException {
+        final File file = tempDir.resolve("region.bin").toFile();
+        Files.write(file.toPath(), new byte[] {0, 1, 2, 3, 4, 5, 6, 7});
+        return file;
+    }
+
+    @Test
+    public void read_region_onlyRegionRead() throws IOException {
+        try (FileRegionInputStream inputStream = new FileRegionInputStream(createFile(), 2, 6)) {
+            final byte[] buffer = new byte[8];
+
+            Assertions.assertEquals(4, inputStream.available());
+            Assertions.assertEquals(2, inputStream.read());
+            Assertions.assertEquals(3, inputStream.read(buffer, 0, buffer.length));
+            Assertions.assertArrayEquals(new byte[] {3, 4, 5}, Arrays.copyOf(buffer, 3));
+            Assertions.assertEquals(0, inputStream.available());
+            Assertions.assertEquals(-1, inputStream.read(buffer, 0, buffer.length));
+        }
+    }
+
+    @Test
+    public void transferTo_markedRegion_transferredAndReset() throws IOException {
+        try (FileRegionInputStream inputStream = new FileRegionInputStream(createFile(), 1, 4)) {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+            inputStream.mark(Integer.MAX_VALUE);
+            Assertions.assertEquals(3, inputStream.transferTo(Channels.newChannel(outputStream)));
+            Assertions.assertEquals(-1, inputStream.read());
+            inputStream.reset();
+
+            Assertions.assertArrayEquals(new byte[] {1, 2, 3}, outputStream.toByteArray());
+            Assertions.assertEquals(1, inputStream.read());
+        }
+    }
+
+    @Test
+    public void read_regionAfterEndOfFile_exceptionThrown() throws IOException {
+        try (FileRegionInputStream inputStream = new FileRegionInputStream(createFile(), 8, 10)) {
+            Assertions.assertThrows(IOException.class, inputStream::read);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new FileRegionInputStream(createFile(), 4, 2));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class MappedFileByteSourceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File createFile(byte[] content) throws IOException {
+        final File file = tempDir.resolve("video.mkv").toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] createRandomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void nextSlice_smallWindows_allBytesInOrder() throws IOException {
+        final byte[] content = createRandomBytes(2500);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int sliceCount = 0;
+
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(createFile(content), 1000, true)) {
+            Assertions.assertEquals(content.length, byteSource.getFileSize());
+            ByteBuffer slice;
+            while ((slice = byteSource.nextSlice()) != null) {
+                Assertions.assertTrue(slice.isReadOnly());
+                final byte[] bytes = new byte[slice.remaining()];
+                slice.get(bytes);
+                outputStream.write(bytes);
+                sliceCount++;
+            }
+            Assertions.assertTrue(byteSource.eof());
+        }
+
+        Assertions.assertEquals(3, sliceCount);
+        Assertions.assertArrayEquals(content, outputStream.toByteArray());
+    }
+
+    @Test
+    public void readBytes_acrossWindows_allBytesInOrder() throws IOException {
+        final byte[] content = createRandomBytes(2500);
+        final ByteBuffer destination = ByteBuffer.allocate(content.length);
+
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(createFile(content), 1000, false)) {
+            Assertions.assertEquals(content[0] & 0xFF, byteSource.readByte());
+            destination.put(content[0]);
+            Assertions.assertEquals(content.length - 1, byteSource.available());
+            while (!byteSource.eof()) {
+                Assertions.assertTrue(byteSource.readBytes(destination, 700) > 0);
+            }
+            Assertions.assertEquals(-1, byteSource.readByte());
+            Assertions.assertEquals(-1, byteSource.readBytes(destination, 1));
+        }
+
+        Assertions.assertArrayEquals(content, destination.array());
+    }
+
+    @Test
+    public void seek_validPositions_sliceFromPosition() throws IOException {
+        final byte[] content = createRandomBytes(2500);
+
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(createFile(content), 1000, false)) {
+            Assertions.assertNotNull(byteSource.nextSlice());
+            byteSource.seek(1800);
+            Assertions.assertEquals(700, byteSource.available());
+            final ByteBuffer slice = byteSource.nextSlice();
+            Assertions.assertEquals(700, slice.remaining());
+            Assertions.assertEquals(content[1800], slice.get(0));
+
+            byteSource.seek(0);
+            Assertions.assertEquals(content[0] & 0xFF, byteSource.readByte());
+            byteSource.seek(content.length);
+            Assertions.assertNull(byteSource.nextSlice());
+            Assertions.assertThrows(IllegalArgumentException.class, () -> byteSource.seek(content.length + 1));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> byteSource.seek(-1));
+        }
+    }
+
+    @Test
+    public void streamingMkvReader_sampleVideo_sameElementCounts() throws IOException, MkvElementVisitException {
+        final byte[] content = TestUtil.createSampleVideo(true);
+        final CountVisitor expected = CountVisitor.create(MkvTypeInfos.CLUSTER, MkvTypeInfos.SIMPLEBLOCK);
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(content)))
+                .apply(expected);
+
+        final CountVisitor result = CountVisitor.create(MkvTypeInfos.CLUSTER, MkvTypeInfos.SIMPLEBLOCK);
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(createFile(content), 100, false)) {
+            StreamingMkvReader.createDefault(byteSource).apply(result);
+        }
+
+        Assertions.assertEquals(expected.getCount(MkvTypeInfos.SIMPLEBLOCK), result.getCount(MkvTypeInfos.SIMPLEBLOCK));
+        Assertions.assertEquals(expected.getCount(MkvTypeInfos.CLUSTER), result.getCount(MkvTypeInfos.CLUSTER));
+    }
+
+    @Test
+    public void nextSlice_emptyFile_returnNull() throws IOException {
+        try (MappedFileByteSource byteSource = new MappedFileByteSource(createFile(new byte[0]))) {
+            Assertions.assertNull(byteSource.nextSlice());
+            Assertions.assertTrue(byteSource.eof());
+        }
+    }
+
+    @Test
+    public void nextSlice_closedSource_throwException() throws IOException {
+        final MappedFileByteSource byteSource = new MappedFileByteSource(createFile(createRandomBytes(10)));
+        Assertions.assertNotNull(byteSource.nextSlice());
+        byteSource.close();
+        byteSource.close();
+
+        Assertions.assertThrows(IOException.class, byteSource::nextSlice);
+        Assertions.assertEquals(0, byteSource.available());
+    }
+
+    @Test
+    public void constructor_invalidArguments_throwException() {
+        Assertions.assertThrows(FileNotFoundException.class,
+                () -> new MappedFileByteSource(tempDir.resolve("not-exist.mkv").toFile()));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new MappedFileByteSource(createFile(new byte[1]), 0, false));
+        Assertions.assertThrows(NullPointerException.class, () -> new MappedFileByteSource(null));
+    }
+}
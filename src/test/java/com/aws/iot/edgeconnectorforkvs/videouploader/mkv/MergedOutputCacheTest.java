@@ -0,0 +1,121 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class MergedOutputCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void createKey_chainedInputs_differentKeys() {
+        final String key = MergedOutputCache.createKey(null, "a");
+
+        Assertions.assertEquals(64, key.length());
+        Assertions.assertEquals(key, MergedOutputCache.createKey(null, "a"));
+        Assertions.assertNotEquals(key, MergedOutputCache.createKey(null, "b"));
+        Assertions.assertNotEquals(MergedOutputCache.createKey(key, "b"), MergedOutputCache.createKey(null, "b"));
+    }
+
+    @Test
+    public void get_putOutput_outputReturned() throws IOException {
+        final MergedOutputCache cache = new MergedOutputCache(tempDir.toFile(), 10);
+
+        Assertions.assertNull(cache.open("a"));
+        cache.put("a", new byte[] {1, 2, 3});
+        cache.put("b", new byte[0]);
+
+        Assertions.assertArrayEquals(new byte[] {1, 2, 3}, readAll(cache.open("a")));
+        Assertions.assertArrayEquals(new byte[0], readAll(cache.open("b")));
+        Assertions.assertEquals(3, cache.getTotalBytes());
+    }
+
+    @Test
+    public void put_outputSegments_segmentsWrittenAndReset() throws IOException {
+        final MergedOutputCache cache = new MergedOutputCache(tempDir.toFile(), 10);
+        final File file = tempDir.resolve("region.bin").toFile();
+        Files.write(file.toPath(), new byte[] {0, 1, 2, 3, 4, 5});
+        final List<InputStream> segments = Arrays.asList(new ByteArrayInputStream(new byte[] {9, 8}),
+                new FileRegionInputStream(file, 2, 5));
+
+        cache.put("a", segments);
+
+        Assertions.assertArrayEquals(new byte[] {9, 8, 2, 3, 4}, readAll(cache.open("a")));
+        Assertions.assertEquals(5, cache.getTotalBytes());
+        Assertions.assertArrayEquals(new byte[] {9, 8}, readAll(segments.get(0)));
+        Assertions.assertArrayEquals(new byte[] {2, 3, 4}, readAll(segments.get(1)));
+    }
+
+    @Test
+    public void put_cacheFull_leastRecentlyUsedEvicted() throws IOException {
+        final MergedOutputCache cache = new MergedOutputCache(tempDir.toFile(), 10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        readAll(cache.open("a"));
+
+        cache.put("c", new byte[4]);
+        cache.put("d", new byte[11]);
+
+        Assertions.assertTrue(cache.contains("a"));
+        Assertions.assertFalse(cache.contains("b"));
+        Assertions.assertTrue(cache.contains("c"));
+        Assertions.assertFalse(cache.contains("d"));
+        Assertions.assertEquals(8, cache.getTotalBytes());
+        Assertions.assertFalse(new File(tempDir.toFile(), "b" + MergedOutputCache.ENTRY_EXTENSION).exists());
+    }
+
+    @Test
+    public void constructor_existingEntries_entriesLoaded() throws IOException {
+        final MergedOutputCache cache = new MergedOutputCache(tempDir.toFile(), 10);
+        cache.put("a", new byte[] {1, 2, 3});
+        final Path tempFile = tempDir.resolve("b" + MergedOutputCache.ENTRY_EXTENSION + ".tmp");
+        Files.write(tempFile, new byte[4]);
+
+        final MergedOutputCache reloadedCache = new MergedOutputCache(tempDir.toFile(), 10);
+
+        Assertions.assertArrayEquals(new byte[] {1, 2, 3}, readAll(reloadedCache.open("a")));
+        Assertions.assertEquals(3, reloadedCache.getTotalBytes());
+        Assertions.assertFalse(Files.exists(tempFile));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MergedOutputCache(tempDir.toFile(), 0));
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        Assertions.assertNotNull(inputStream);
+        try (InputStream entryInputStream = inputStream) {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[16];
+            int readLen;
+            while ((readLen = entryInputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readLen);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class MkvClipTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final byte[] SEGMENT_ID = new byte[]{(byte) 0x18, (byte) 0x53, (byte) 0x80, (byte) 0x67};
+
+    // Segment with a size field of 8 bytes, followed by a seek head that has a void element of 5 bytes
+    private static final byte[] KNOWN_SIZE_SEGMENT_WITH_SEEK_HEAD = new byte[]{
+            (byte) 0x18, (byte) 0x53, (byte) 0x80, (byte) 0x67, (byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x11, (byte) 0x4D, (byte) 0x9B, (byte) 0x74,
+            (byte) 0x85, (byte) 0xEC, (byte) 0x83, (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+
+    private static final int SEGMENT_SIZE_LENGTH = 8;
+
+    private static final int SEEK_HEAD_LENGTH = 10;
+
+    private static final int CLUSTER_LENGTH = TestUtil.createClusterHeader(0).length
+            + 2 * TestUtil.createSimpleBlock((short) 0, 1).length;
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Create a recording with a known-size segment and a seek head, and a cluster per second.
+     */
+    private File createVideo(int clusterCount) throws IOException {
+        final byte[] tracksHeader = TestUtil.createTracksHeader(false);
+        final int segmentOffset = indexOf(tracksHeader, SEGMENT_ID);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(tracksHeader, 0, segmentOffset);
+        outputStream.write(KNOWN_SIZE_SEGMENT_WITH_SEEK_HEAD);
+        outputStream.write(tracksHeader, segmentOffset + SEGMENT_ID.length + 1,
+                tracksHeader.length - segmentOffset - SEGMENT_ID.length - 1);
+        return TestUtil.createRecording(tempDir, "video_1000.mkv",
+                TestUtil.createClusteredVideo(outputStream.toByteArray(), clusterCount, 2, -1));
+    }
+
+    private static byte[] readClip(MkvClip clip) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        clip.transferTo(Channels.newChannel(outputStream));
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void create_timeRange_clustersInRange() throws IOException, MkvElementVisitException {
+        final File file = createVideo(4);
+        final long headerLength = file.length() - 4 * CLUSTER_LENGTH;
+
+        final MkvClip clip = MkvClip.create(file, 1500, 2500);
+
+        Assertions.assertNotNull(clip);
+        Assertions.assertEquals(headerLength + CLUSTER_LENGTH, clip.getClusterOffset());
+        Assertions.assertEquals(2 * CLUSTER_LENGTH, clip.getClusterLength());
+        Assertions.assertEquals(headerLength + 2 * CLUSTER_LENGTH, clip.getLength());
+
+        final byte[] bytes = readClip(clip);
+        Assertions.assertEquals(clip.getLength(), bytes.length);
+        final File clipFile = tempDir.resolve("video_2000.mkv").toFile();
+        Files.write(clipFile.toPath(), bytes);
+        final MkvClusterIndex clusterIndex = MkvClusterIndex.build(clipFile);
+        Assertions.assertEquals(2, clusterIndex.getClusters().size());
+        Assertions.assertEquals(1000, clusterIndex.getClusters().get(0).getTimecodeMs());
+    }
+
+    @Test
+    public void create_knownSizeSegment_headersRewritten() throws IOException, MkvElementVisitException {
+        final File file = createVideo(2);
+
+        final byte[] bytes = readClip(MkvClip.create(file, 0, 0));
+
+        final int segmentSizeOffset = indexOf(bytes, SEGMENT_ID) + SEGMENT_ID.length;
+        Assertions.assertEquals(0x01, bytes[segmentSizeOffset]);
+        for (int i = 1; i < SEGMENT_SIZE_LENGTH; i++) {
+            Assertions.assertEquals((byte) 0xFF, bytes[segmentSizeOffset + i]);
+        }
+        // The seek head is replaced by a void element of the same length
+        final int seekHeadOffset = segmentSizeOffset + SEGMENT_SIZE_LENGTH;
+        Assertions.assertEquals((byte) 0xEC, bytes[seekHeadOffset]);
+        Assertions.assertEquals((byte) (0x80 | (SEEK_HEAD_LENGTH - 2)), bytes[seekHeadOffset + 1]);
+    }
+
+    @Test
+    public void create_noClusterInRange_null() throws IOException, MkvElementVisitException {
+        final File file = createVideo(2);
+
+        Assertions.assertNull(MkvClip.create(file, -2000, -1000));
+    }
+
+    @Test
+    public void create_invalidHeaders_throwException() throws IOException {
+        final File file = TestUtil.createRecording(tempDir, "video_1000.mkv",
+                TestUtil.createClusteredVideo(new byte[]{(byte) 0xEC, (byte) 0x81, 0x00}, 1, 1, -1));
+
+        Assertions.assertThrows(MkvElementVisitException.class, () -> MkvClip.create(file, 0, 1000));
+    }
+}
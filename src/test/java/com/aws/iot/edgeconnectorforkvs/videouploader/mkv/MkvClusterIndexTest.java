@@ -0,0 +1,246 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+public class MkvClusterIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] createNonKeyFrame(short timecode, int track) {
+        final byte[] simpleBlock = TestUtil.createSimpleBlock(timecode, track);
+        simpleBlock[5] = 0x00;
+        return simpleBlock;
+    }
+
+    /**
+     * Create a video with 3 clusters at 0, 1000 and 2000 ms.  The second cluster starts with an audio frame and then a
+     * non key video frame.
+     */
+    private File createVideoFile(boolean hasAudio) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(hasAudio));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(createNonKeyFrame((short) 0, 2));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createClusterHeader(1000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 2));
+        outputStream.write(createNonKeyFrame((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        outputStream.write(TestUtil.createClusterHeader(2000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.close();
+
+        final File file = tempDir.resolve("video_1000.mkv").toFile();
+        Files.write(file.toPath(), outputStream.toByteArray());
+        return file;
+    }
+
+    @Test
+    public void build_threeClusters_clustersIndexed() throws IOException, MkvElementVisitException {
+        final File file = createVideoFile(true);
+        final int headerLength = TestUtil.createTracksHeader(true).length;
+        final int clusterHeaderLength = TestUtil.createClusterHeader(0).length;
+        final int simpleBlockLength = TestUtil.createSimpleBlock((short) 0, 1).length;
+
+        final MkvClusterIndex index = MkvClusterIndex.build(file);
+        final List<MkvClusterIndex.ClusterEntry> clusters = index.getClusters();
+
+        Assertions.assertEquals(file.length(), index.getFileSize());
+        Assertions.assertEquals(3, clusters.size());
+        Assertions.assertEquals(headerLength, clusters.get(0).getOffset());
+        Assertions.assertEquals(clusterHeaderLength + 2 * simpleBlockLength, clusters.get(0).getLength());
+        Assertions.assertEquals(clusters.get(0).getOffset() + clusters.get(0).getLength(), clusters.get(1).getOffset());
+        Assertions.assertEquals(clusterHeaderLength + 3 * simpleBlockLength, clusters.get(1).getLength());
+        Assertions.assertEquals(file.length(), clusters.get(2).getOffset() + clusters.get(2).getLength());
+        Assertions.assertEquals(0, clusters.get(0).getTimecodeMs());
+        Assertions.assertEquals(1000, clusters.get(1).getTimecodeMs());
+        Assertions.assertEquals(2000, clusters.get(2).getTimecodeMs());
+        // Key frame flags are decided by the first video frame, not by audio frames
+        Assertions.assertTrue(clusters.get(0).isKeyFrame());
+        Assertions.assertFalse(clusters.get(1).isKeyFrame());
+        Assertions.assertTrue(clusters.get(2).isKeyFrame());
+    }
+
+    @Test
+    public void build_sameOrDifferentTracks_fingerprintCompared() throws IOException, MkvElementVisitException {
+        final long videoAudioFingerprint = MkvClusterIndex.build(createVideoFile(true)).getTracksFingerprint();
+        final long videoOnlyFingerprint = MkvClusterIndex.build(createVideoFile(false)).getTracksFingerprint();
+
+        Assertions.assertEquals(videoAudioFingerprint, MkvClusterIndex.build(createVideoFile(true))
+                .getTracksFingerprint());
+        Assertions.assertNotEquals(videoAudioFingerprint, videoOnlyFingerprint);
+    }
+
+    @Test
+    public void build_clustersAsMerged_passthroughFlagged() throws IOException, MkvElementVisitException {
+        // The last cluster has no audio frame
+        final List<MkvClusterIndex.ClusterEntry> clusters = MkvClusterIndex.build(createVideoFile(true)).getClusters();
+        Assertions.assertTrue(clusters.get(0).isPassthrough());
+        Assertions.assertTrue(clusters.get(1).isPassthrough());
+        Assertions.assertFalse(clusters.get(2).isPassthrough());
+
+        // Audio frames are of an unknown track
+        final List<MkvClusterIndex.ClusterEntry> videoOnlyClusters = MkvClusterIndex.build(createVideoFile(false))
+                .getClusters();
+        Assertions.assertFalse(videoOnlyClusters.get(0).isPassthrough());
+        Assertions.assertFalse(videoOnlyClusters.get(1).isPassthrough());
+        Assertions.assertTrue(videoOnlyClusters.get(2).isPassthrough());
+    }
+
+    @Test
+    public void build_noTracks_simpleBlocksSkippedAndClustersIndexed() throws IOException, MkvElementVisitException {
+        // Without tracks no cluster can be passthrough, so simple blocks after the first one of a cluster are skipped
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createNoTracksHeader());
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(createNonKeyFrame((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        outputStream.write(TestUtil.createClusterHeader(1000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(createNonKeyFrame((short) 33, 1));
+        outputStream.close();
+        final File file = tempDir.resolve("video_1000.mkv").toFile();
+        Files.write(file.toPath(), outputStream.toByteArray());
+
+        final List<MkvClusterIndex.ClusterEntry> clusters = MkvClusterIndex.build(file).getClusters();
+
+        Assertions.assertEquals(2, clusters.size());
+        Assertions.assertEquals(file.length(), clusters.get(1).getOffset() + clusters.get(1).getLength());
+        Assertions.assertFalse(clusters.get(0).isKeyFrame());
+        Assertions.assertTrue(clusters.get(1).isKeyFrame());
+        Assertions.assertFalse(clusters.get(0).isPassthrough());
+        Assertions.assertFalse(clusters.get(1).isPassthrough());
+    }
+
+    @Test
+    public void build_unsortedSimpleBlocks_notPassthrough() throws IOException, MkvElementVisitException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 1200, 1));
+        outputStream.write(TestUtil.createClusterHeader(1000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 500, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createClusterHeader(2000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createClusterHeader(3000));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        final File file = tempDir.resolve("video_1000.mkv").toFile();
+        Files.write(file.toPath(), outputStream.toByteArray());
+
+        final List<MkvClusterIndex.ClusterEntry> clusters = MkvClusterIndex.build(file).getClusters();
+
+        // The first cluster overlaps the second one, which has unsorted simple blocks
+        Assertions.assertFalse(clusters.get(0).isPassthrough());
+        Assertions.assertFalse(clusters.get(1).isPassthrough());
+        Assertions.assertTrue(clusters.get(2).isPassthrough());
+        Assertions.assertTrue(clusters.get(3).isPassthrough());
+    }
+
+    @Test
+    public void writeTo_readFrom_sameIndex() throws IOException, MkvElementVisitException {
+        final MkvClusterIndex index = MkvClusterIndex.build(createVideoFile(true));
+        final File sidecarFile = tempDir.resolve("index.idx").toFile();
+
+        index.writeTo(sidecarFile);
+        final MkvClusterIndex result = MkvClusterIndex.readFrom(sidecarFile);
+
+        Assertions.assertEquals(4 + 1 + 8 + 8 + 4 + 3 * (8 + 4 + 8 + 1), sidecarFile.length());
+        Assertions.assertEquals(index.getFileSize(), result.getFileSize());
+        Assertions.assertEquals(index.getTracksFingerprint(), result.getTracksFingerprint());
+        Assertions.assertEquals(index.getClusters().size(), result.getClusters().size());
+        for (int i = 0; i < index.getClusters().size(); i++) {
+            Assertions.assertEquals(index.getClusters().get(i).getOffset(), result.getClusters().get(i).getOffset());
+            Assertions.assertEquals(index.getClusters().get(i).getLength(), result.getClusters().get(i).getLength());
+            Assertions.assertEquals(index.getClusters().get(i).getTimecodeMs(),
+                    result.getClusters().get(i).getTimecodeMs());
+            Assertions.assertEquals(index.getClusters().get(i).isKeyFrame(), result.getClusters().get(i).isKeyFrame());
+            Assertions.assertEquals(index.getClusters().get(i).isPassthrough(),
+                    result.getClusters().get(i).isPassthrough());
+        }
+    }
+
+    @Test
+    public void readFrom_invalidSidecar_throwException() throws IOException {
+        final File sidecarFile = tempDir.resolve("index.idx").toFile();
+        Files.write(sidecarFile.toPath(), new byte[]{0x01, 0x02, 0x03, 0x04, 0x05});
+
+        Assertions.assertThrows(IOException.class, () -> MkvClusterIndex.readFrom(sidecarFile));
+    }
+
+    @Test
+    public void loadOrBuild_missingOrStaleSidecar_sidecarRebuilt() throws IOException, MkvElementVisitException {
+        final File file = createVideoFile(true);
+        final File sidecarFile = MkvClusterIndex.getSidecarFile(file);
+        Assertions.assertEquals(file.getPath() + ".idx", sidecarFile.getPath());
+
+        // Missing sidecar
+        Assertions.assertEquals(3, MkvClusterIndex.loadOrBuild(file).getClusters().size());
+        Assertions.assertTrue(sidecarFile.isFile());
+
+        // Stale sidecar after the recording grows
+        Files.write(file.toPath(), TestUtil.createSimpleBlock((short) 33, 1), StandardOpenOption.APPEND);
+        final MkvClusterIndex index = MkvClusterIndex.loadOrBuild(file);
+        Assertions.assertEquals(file.length(), index.getFileSize());
+        Assertions.assertEquals(file.length(), MkvClusterIndex.readFrom(sidecarFile).getFileSize());
+
+        // Invalid sidecar
+        Files.write(sidecarFile.toPath(), new byte[0]);
+        Assertions.assertEquals(3, MkvClusterIndex.loadOrBuild(file).getClusters().size());
+        Assertions.assertEquals(file.length(), MkvClusterIndex.readFrom(sidecarFile).getFileSize());
+    }
+
+    @Test
+    public void findCluster_timecodes_clusterFound() {
+        final MkvClusterIndex index = new MkvClusterIndex(0, 0, Arrays.asList(
+                new MkvClusterIndex.ClusterEntry(100, 10, 1000, false),
+                new MkvClusterIndex.ClusterEntry(110, 10, 2000, true),
+                new MkvClusterIndex.ClusterEntry(120, 10, 3000, false),
+                new MkvClusterIndex.ClusterEntry(130, 10, 4000, true)));
+
+        Assertions.assertEquals(-1, index.findClusterAtOrBefore(999));
+        Assertions.assertEquals(0, index.findClusterAtOrBefore(1000));
+        Assertions.assertEquals(2, index.findClusterAtOrBefore(3999));
+        Assertions.assertEquals(3, index.findClusterAtOrBefore(Long.MAX_VALUE));
+
+        Assertions.assertEquals(1, index.findKeyFrameClusterAtOrBefore(0));
+        Assertions.assertEquals(1, index.findKeyFrameClusterAtOrBefore(3500));
+        Assertions.assertEquals(3, index.findKeyFrameClusterAtOrBefore(4000));
+        Assertions.assertEquals(-1, new MkvClusterIndex(0, 0, Arrays.asList(
+                new MkvClusterIndex.ClusterEntry(100, 10, 1000, false))).findKeyFrameClusterAtOrBefore(1000));
+
+        Assertions.assertEquals(1, index.findKeyFrameClusterAfter(0));
+        Assertions.assertEquals(3, index.findKeyFrameClusterAfter(2000));
+        Assertions.assertEquals(-1, index.findKeyFrameClusterAfter(4000));
+    }
+}
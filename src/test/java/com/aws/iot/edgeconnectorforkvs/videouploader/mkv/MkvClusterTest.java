@@ -20,9 +20,12 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Set;
 
 public class MkvClusterTest {
 
@@ -116,4 +119,226 @@ public class MkvClusterTest {
 
         Assertions.assertEquals(11, mkvCluster.getExpectedNextTimeCode());
     }
+
+    private static MkvSimpleBlock createSimpleBlock(int timecode, long trackNumber) {
+        ByteBuffer idAndSizeRawBytes = ByteBuffer.wrap(new byte[] {
+                (byte) 0xA3, (byte) 0x85
+        });
+        ByteBuffer dataBuffer = ByteBuffer.wrap(new byte[] {
+                (byte) (0x80 | trackNumber), (byte) 0x00, (byte) 0x00, (byte) 0x80, (byte) 0x00
+        });
+        return new MkvSimpleBlock(timecode, trackNumber, idAndSizeRawBytes, dataBuffer);
+    }
+
+    private static MkvSimpleBlock createNonKeyFrameSimpleBlock(int timecode, long trackNumber) {
+        ByteBuffer idAndSizeRawBytes = ByteBuffer.wrap(new byte[] {
+                (byte) 0xA3, (byte) 0x85
+        });
+        ByteBuffer dataBuffer = ByteBuffer.wrap(new byte[] {
+                (byte) (0x80 | trackNumber), (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00
+        });
+        return new MkvSimpleBlock(timecode, trackNumber, idAndSizeRawBytes, dataBuffer);
+    }
+
+    @Test
+    public void addSimpleBlock_outOfOrderSimpleBlocks_keptInOrder() {
+        // Do test
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(10)));
+        mkvCluster.setAbsoluteTimecode(10);
+        mkvCluster.addSimpleBlock(createSimpleBlock(30, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(10, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 1));
+
+        Assertions.assertEquals(30, mkvCluster.removeLatestSimpleBlock().getRelativeTimecode());
+        MkvSimpleBlock simpleBlock = mkvCluster.removeLatestSimpleBlock();
+        Assertions.assertEquals(20, simpleBlock.getRelativeTimecode());
+        Assertions.assertEquals(2, simpleBlock.getTrackNumber());
+        Assertions.assertEquals(20, mkvCluster.getEarliestSimpleBlockTimecode());
+        Assertions.assertEquals(30, mkvCluster.getLatestSimpleBlockTimecode());
+    }
+
+    @Test
+    public void getSimpleBlockCountInTrack_addAndRemove_countUpdated() {
+        // Do test
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(10)));
+        mkvCluster.setAbsoluteTimecode(10);
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(5, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(10, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(15, 3));
+
+        Assertions.assertEquals(2, mkvCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(1, mkvCluster.getSimpleBlockCountInTrack(2));
+        Assertions.assertEquals(1, mkvCluster.getSimpleBlockCountInTrack(3));
+        Assertions.assertEquals(0, mkvCluster.getSimpleBlockCountInTrack(4));
+
+        mkvCluster.removeLatestSimpleBlock();
+        Assertions.assertEquals(0, mkvCluster.getSimpleBlockCountInTrack(3));
+    }
+
+    @Test
+    public void migrateSimpleBlocksTo_lateSimpleBlocks_movedInOrder() {
+        // Setup test
+        final MkvCluster nextCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        nextCluster.setAbsoluteTimecode(100);
+        nextCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        nextCluster.addSimpleBlock(createSimpleBlock(10, 1));
+
+        // Do test
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(0)));
+        mkvCluster.setAbsoluteTimecode(0);
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(120, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(50, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(100, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(105, 1));
+
+        Assertions.assertEquals(3, mkvCluster.migrateSimpleBlocksTo(nextCluster));
+        Assertions.assertEquals(0, mkvCluster.migrateSimpleBlocksTo(nextCluster));
+
+        Assertions.assertEquals(50, mkvCluster.getLatestSimpleBlockTimecode());
+        Assertions.assertEquals(1, mkvCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(1, mkvCluster.getSimpleBlockCountInTrack(2));
+        Assertions.assertEquals(4, nextCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(1, nextCluster.getSimpleBlockCountInTrack(2));
+
+        final int[] expectedTimecodes = {20, 10, 5, 0, 0};
+        final long[] expectedTrackNumbers = {1, 1, 1, 2, 1};
+        for (int i = 0; i < expectedTimecodes.length; i++) {
+            final MkvSimpleBlock simpleBlock = nextCluster.removeLatestSimpleBlock();
+            Assertions.assertEquals(expectedTimecodes[i], simpleBlock.getRelativeTimecode());
+            Assertions.assertEquals(expectedTrackNumbers[i], simpleBlock.getTrackNumber());
+        }
+        Assertions.assertTrue(nextCluster.isEmpty());
+    }
+
+    @Test
+    public void appendSimpleBlocksFrom_nextCluster_timecodesShifted() {
+        // Setup test
+        final MkvCluster nextCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        nextCluster.setAbsoluteTimecode(100);
+        nextCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        nextCluster.addSimpleBlock(createSimpleBlock(0, 2));
+        nextCluster.addSimpleBlock(createSimpleBlock(33, 1));
+
+        // Do test
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(0)));
+        mkvCluster.setAbsoluteTimecode(0);
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(120, 2));
+
+        Assertions.assertEquals(3, mkvCluster.appendSimpleBlocksFrom(nextCluster));
+        Assertions.assertEquals(0, mkvCluster.appendSimpleBlocksFrom(nextCluster));
+
+        Assertions.assertTrue(nextCluster.isEmpty());
+        Assertions.assertEquals(0, nextCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(3, mkvCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(2, mkvCluster.getSimpleBlockCountInTrack(2));
+
+        final int[] expectedTimecodes = {133, 120, 100, 100, 0};
+        final long[] expectedTrackNumbers = {1, 2, 2, 1, 1};
+        for (int i = 0; i < expectedTimecodes.length; i++) {
+            final MkvSimpleBlock simpleBlock = mkvCluster.removeLatestSimpleBlock();
+            Assertions.assertEquals(expectedTimecodes[i], simpleBlock.getRelativeTimecode());
+            Assertions.assertEquals(expectedTrackNumbers[i], simpleBlock.getTrackNumber());
+        }
+    }
+
+    @Test
+    public void findSplitTimecode_keyFrames_latestKeyFrameWithinMaxDuration() {
+        final Set<Long> videoTrackNumbers = Collections.singleton(1L);
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(1000)));
+        mkvCluster.setAbsoluteTimecode(1000);
+        Assertions.assertEquals(-1, mkvCluster.findSplitTimecode(videoTrackNumbers, 100));
+
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(50, 2));
+        mkvCluster.addSimpleBlock(createNonKeyFrameSimpleBlock(60, 1));
+        Assertions.assertEquals(-1, mkvCluster.findSplitTimecode(videoTrackNumbers, 100));
+        // Audio frames are key frames
+        Assertions.assertEquals(1050, mkvCluster.findSplitTimecode(Collections.emptySet(), 100));
+
+        mkvCluster.addSimpleBlock(createSimpleBlock(80, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(100, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(150, 1));
+        Assertions.assertEquals(1100, mkvCluster.findSplitTimecode(videoTrackNumbers, 100));
+        // No key frame within the max duration, so it's the earliest one after it
+        Assertions.assertEquals(1080, mkvCluster.findSplitTimecode(videoTrackNumbers, 70));
+    }
+
+    @Test
+    public void writeSimpleBlocksToChannel_partialWrites_headerWrittenOnce() throws IOException {
+        // Setup test
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+        final int simpleBlockLength = 7;
+        // Cluster header given to constructor, followed by a timecode element of 10 bytes
+        final int headerLength = TestUtil.createClusterHeader(100).length + 10;
+
+        // Do test
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        mkvCluster.setAbsoluteTimecode(100);
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(40, 1));
+
+        Assertions.assertEquals(0, mkvCluster.writeSimpleBlocksToChannel(outputChannel, 100));
+        Assertions.assertFalse(mkvCluster.isHeaderWritten());
+        Assertions.assertEquals(0, outputStream.size());
+
+        Assertions.assertEquals(2, mkvCluster.writeSimpleBlocksToChannel(outputChannel, 140));
+        Assertions.assertTrue(mkvCluster.isHeaderWritten());
+        Assertions.assertEquals(headerLength + 2 * simpleBlockLength, outputStream.size());
+
+        mkvCluster.writeToChannel(outputChannel);
+        Assertions.assertEquals(headerLength + 3 * simpleBlockLength, outputStream.size());
+        Assertions.assertTrue(mkvCluster.isEmpty());
+        Assertions.assertEquals(3, mkvCluster.getWrittenSimpleBlockCount());
+        Assertions.assertEquals(3, mkvCluster.getSimpleBlockCountInTrack(1));
+        Assertions.assertEquals(100, mkvCluster.getEarliestSimpleBlockTimecode());
+        Assertions.assertEquals(140, mkvCluster.getLatestSimpleBlockTimecode());
+        Assertions.assertEquals(141, mkvCluster.getExpectedNextTimeCode());
+    }
+
+    @Test
+    public void containsSimpleBlock_sameTimecodeAndTrack_found() {
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        mkvCluster.setAbsoluteTimecode(100);
+        mkvCluster.addSimpleBlock(createSimpleBlock(0, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 1));
+
+        Assertions.assertTrue(mkvCluster.containsSimpleBlock(1, 120));
+        Assertions.assertTrue(mkvCluster.containsSimpleBlock(2, 120));
+        Assertions.assertFalse(mkvCluster.containsSimpleBlock(2, 100));
+        Assertions.assertFalse(mkvCluster.containsSimpleBlock(1, 110));
+    }
+
+    @Test
+    public void getLatestSimpleBlockTimecodeInTrack_simpleBlocks_latestOfTrack() {
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        mkvCluster.setAbsoluteTimecode(100);
+        mkvCluster.addSimpleBlock(createSimpleBlock(10, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(30, 2));
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 1));
+
+        Assertions.assertEquals(120, mkvCluster.getLatestSimpleBlockTimecodeInTrack(1));
+        Assertions.assertEquals(130, mkvCluster.getLatestSimpleBlockTimecodeInTrack(2));
+        Assertions.assertEquals(Long.MIN_VALUE, mkvCluster.getLatestSimpleBlockTimecodeInTrack(3));
+    }
+
+    @Test
+    public void moveAbsoluteTimecode_simpleBlocks_absoluteTimecodesKept() {
+        mkvCluster = new MkvCluster(ByteBuffer.wrap(TestUtil.createClusterHeader(100)));
+        mkvCluster.setAbsoluteTimecode(100);
+        mkvCluster.addSimpleBlock(createSimpleBlock(20, 1));
+        mkvCluster.addSimpleBlock(createSimpleBlock(30, 1));
+
+        mkvCluster.moveAbsoluteTimecode(120);
+
+        Assertions.assertEquals(120, mkvCluster.getAbsoluteTimecode());
+        Assertions.assertEquals(120, mkvCluster.getEarliestSimpleBlockTimecode());
+        Assertions.assertEquals(130, mkvCluster.getLatestSimpleBlockTimecode());
+    }
 }
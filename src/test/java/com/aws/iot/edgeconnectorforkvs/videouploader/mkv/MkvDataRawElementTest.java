@@ -27,7 +27,7 @@ public class MkvDataRawElementTest {
                 ByteBuffer.wrap(data)
         );
 
-        Assertions.assertTrue(Arrays.equals(data, dataElement.getData()));
+        Assertions.assertEquals(ByteBuffer.wrap(data), dataElement.getData());
     }
 
     @Test
@@ -35,60 +35,62 @@ public class MkvDataRawElementTest {
         final byte[] data = new byte[]{(byte) 0x00};
 
         final byte[] idOneByte = new byte[] {(byte)0xEC, (byte)0x81};
-        final byte[] idOneByteParsed = new byte[] {(byte)0xEC};
         final MkvDataRawElement dataElementIdOneByte = new MkvDataRawElement(
                 ByteBuffer.wrap(idOneByte),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(idOneByteParsed, dataElementIdOneByte.getIdCopy()));
+        Assertions.assertEquals(0xEC, dataElementIdOneByte.getId());
+        Assertions.assertEquals(1, dataElementIdOneByte.getIdLength());
 
         final byte[] idTwoBytes = new byte[] {(byte)0x73, (byte)0xA4, (byte)0x81};
-        final byte[] idTwoBytesParsed = new byte[] {(byte)0x73, (byte)0xA4};
         final MkvDataRawElement dataElementIdTwoBytes = new MkvDataRawElement(
                 ByteBuffer.wrap(idTwoBytes),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(idTwoBytesParsed, dataElementIdTwoBytes.getIdCopy()));
+        Assertions.assertEquals(0x73A4, dataElementIdTwoBytes.getId());
+        Assertions.assertEquals(2, dataElementIdTwoBytes.getIdLength());
 
         final byte[] idThreeBytes = new byte[] {(byte)0x2A, (byte)0xD7, (byte)0x81, (byte)0x81};
-        final byte[] idThreeBytesParsed = new byte[] {(byte)0x2A, (byte)0xD7, (byte)0x81};
         final MkvDataRawElement dataElementIdThreeBytes = new MkvDataRawElement(
                 ByteBuffer.wrap(idThreeBytes),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(idThreeBytesParsed, dataElementIdThreeBytes.getIdCopy()));
+        Assertions.assertEquals(0x2AD781, dataElementIdThreeBytes.getId());
+        Assertions.assertEquals(3, dataElementIdThreeBytes.getIdLength());
 
         final byte[] idFourBytes = new byte[] {(byte)0x15, (byte)0x49, (byte)0xA9, (byte)0x66, (byte)0x81};
-        final byte[] idFourBytesParsed = new byte[] {(byte)0x15, (byte)0x49, (byte)0xA9, (byte)0x66};
         final MkvDataRawElement dataElementIdFourBytes = new MkvDataRawElement(
                 ByteBuffer.wrap(idFourBytes),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(idFourBytesParsed, dataElementIdFourBytes.getIdCopy()));
+        Assertions.assertEquals(0x1549A966, dataElementIdFourBytes.getId());
+        Assertions.assertEquals(4, dataElementIdFourBytes.getIdLength());
     }
 
     @Test
     public void constructor_invalidId_zeroSizedId() {
         final byte[] data = new byte[]{(byte) 0x00};
-        final byte[] invalidIdParsed = new byte[] {};
 
         final MkvDataRawElement dataElementEmptyId = new MkvDataRawElement(
                 ByteBuffer.wrap(new byte[0]),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(invalidIdParsed, dataElementEmptyId.getIdCopy()));
+        Assertions.assertEquals(0, dataElementEmptyId.getId());
+        Assertions.assertEquals(0, dataElementEmptyId.getIdLength());
 
         final MkvDataRawElement dataElementInvalidId = new MkvDataRawElement(
                 ByteBuffer.wrap(new byte[] {(byte)0x01, (byte)0x81}),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(invalidIdParsed, dataElementInvalidId.getIdCopy()));
+        Assertions.assertEquals(0, dataElementInvalidId.getId());
+        Assertions.assertEquals(0, dataElementInvalidId.getIdLength());
 
         final MkvDataRawElement dataElementNotEnoughLengthId = new MkvDataRawElement(
                 ByteBuffer.wrap(new byte[] {(byte)0x15, (byte)0x81}),
                 ByteBuffer.wrap(data)
         );
-        Assertions.assertTrue(Arrays.equals(invalidIdParsed, dataElementNotEnoughLengthId.getIdCopy()));
+        Assertions.assertEquals(0, dataElementNotEnoughLengthId.getId());
+        Assertions.assertEquals(0, dataElementNotEnoughLengthId.getIdLength());
     }
 
     @Test
@@ -111,6 +113,19 @@ public class MkvDataRawElementTest {
         Assertions.assertTrue(Arrays.equals(answer, result));
     }
 
+    @Test
+    public void getData_validInputs_readOnlyView() {
+        final byte[] data = new byte[]{(byte) 0x01, (byte) 0x02};
+        MkvDataRawElement dataElement = new MkvDataRawElement(
+                ByteBuffer.wrap(new byte[]{(byte) 0xEC, (byte) 0x82}),
+                ByteBuffer.wrap(data)
+        );
+        data[0] = (byte) 0x03;
+
+        Assertions.assertTrue(dataElement.getData().isReadOnly());
+        Assertions.assertEquals((byte) 0x01, dataElement.getData().get(0));
+    }
+
     @Test
     public void constructor_codecIdWithTrailingZero_codecIdTrimmed() {
         final byte[] codecIdAac = new byte[]{(byte)0x41, (byte)0x5F, (byte)0x41, (byte)0x41, (byte)0x43, (byte)0x00};
@@ -120,7 +135,7 @@ public class MkvDataRawElementTest {
                 ByteBuffer.wrap(codecIdAac)
         );
 
-        Assertions.assertTrue(Arrays.equals(codecIdAacTrimmed, dataElement.getData()));
+        Assertions.assertEquals(ByteBuffer.wrap(codecIdAacTrimmed), dataElement.getData());
     }
 
     @Test
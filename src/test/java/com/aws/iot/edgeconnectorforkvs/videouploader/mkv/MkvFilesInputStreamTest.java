@@ -16,8 +16,6 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.VideoFile;
 import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
@@ -26,13 +24,16 @@ import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -45,6 +46,8 @@ import java.util.Date;
 import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doThrow;
 
 @ExtendWith(MockitoExtension.class)
@@ -60,11 +63,11 @@ public class MkvFilesInputStreamTest {
 
     private MkvFilesInputStream mkvInputStream;
 
-    @Mock
-    private MergeFragmentVisitor mockMergeFragmentVisitor;
+    @TempDir
+    Path rangeTempDir;
 
     @Mock
-    private StreamingMkvReader mockStreamingMkvReader;
+    private MergeFragmentVisitor mockMergeFragmentVisitor;
 
     @Mock
     private ByteArrayInputStream mockByteArrayInputStream;
@@ -175,7 +178,8 @@ public class MkvFilesInputStreamTest {
         field.setAccessible(true);
         field.set(mkvInputStream, mockMergeFragmentVisitor);
 
-        doThrow(MkvElementVisitException.class).when(mockMergeFragmentVisitor).visit(any(MkvStartMasterElement.class));
+        doThrow(MkvElementVisitException.class).when(mockMergeFragmentVisitor)
+                .onMasterStart(anyInt(), anyLong(), anyLong(), any(ByteBuffer.class), anyInt(), anyInt());
 
         // Do test
         Assertions.assertDoesNotThrow(()->mkvInputStream.available());
@@ -239,7 +243,7 @@ public class MkvFilesInputStreamTest {
         mkvInputStream = new MkvFilesInputStream(filesToMerge.listIterator());
 
         // Mock it
-        Field field = MkvFilesInputStream.class.getDeclaredField("byteArrayInputStream");
+        Field field = MkvFilesInputStream.class.getDeclaredField("currentInputStream");
         field.setAccessible(true);
         field.set(mkvInputStream, mockByteArrayInputStream);
 
@@ -278,7 +282,7 @@ public class MkvFilesInputStreamTest {
     }
 
     @Test
-    public void read_twoDifferentSamples_mergedFirstVideoOnly() {
+    public void read_twoDifferentSamples_segmentRestarted() throws IOException {
         Assumptions.assumeTrue(isVideoFilesAvailable);
 
         byte[] buffer = new byte[1024];
@@ -289,8 +293,14 @@ public class MkvFilesInputStreamTest {
         filesToMerge.add(new VideoFile(tempVideoPath1.toFile()));
         filesToMerge.add(new VideoFile(tempVideoAudioPath.toFile()));
 
-        // Create answer
-        byte[] answer = TestUtil.createSampleVideo(false);
+        // Create answer, the second video starts a new segment and its cluster is 20 ms later
+        final ByteArrayOutputStream answerOutputStream = new ByteArrayOutputStream();
+        answerOutputStream.write(TestUtil.createSampleVideo(false));
+        answerOutputStream.write(TestUtil.createTracksHeader(true));
+        answerOutputStream.write(TestUtil.createClusterHeader(20));
+        answerOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        answerOutputStream.write(TestUtil.createSimpleBlock((short) 0, 2));
+        byte[] answer = answerOutputStream.toByteArray();
 
         // Do test
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -331,6 +341,198 @@ public class MkvFilesInputStreamTest {
         Assertions.assertArrayEquals(answer, outputStream.toByteArray());
     }
 
+    @Test
+    public void read_timeRange_clustersInRangeOnly() throws IOException {
+        final File fullVideo = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File trimmedVideo = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 2);
+        final List<VideoFile> fullFiles = new ArrayList<>();
+        fullFiles.add(new VideoFile(fullVideo));
+        final List<VideoFile> trimmedFiles = new ArrayList<>();
+        trimmedFiles.add(new VideoFile(trimmedVideo));
+
+        // Cluster 1 is not a key frame cluster, so the range starting at 1500ms starts from cluster 0
+        final byte[] result = readAll(new MkvFilesInputStream(fullFiles.listIterator(),
+                new Date(TEST_TIME + 1500), new Date(TEST_TIME + 1600)));
+
+        Assertions.assertTrue(result.length > 0);
+        Assertions.assertArrayEquals(readAll(new MkvFilesInputStream(trimmedFiles.listIterator())), result);
+        Assertions.assertTrue(MkvClusterIndex.getSidecarFile(fullVideo).isFile());
+    }
+
+    @Test
+    public void read_fileWithinTimeRange_notIndexed() throws IOException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 3);
+        final File video3 = createClusteredVideo("video_" + (TEST_TIME + 20_000) + ".mkv", 3);
+        Assertions.assertTrue(video2.setLastModified(TEST_TIME + 13_000));
+        final List<VideoFile> files = new ArrayList<>();
+        files.add(new VideoFile(video1));
+        files.add(new VideoFile(video2));
+        files.add(new VideoFile(video3));
+
+        final byte[] result = readAll(new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 2500), new Date(TEST_TIME + 21_500)));
+
+        // Only the first and the last files are trimmed, and the file within the range is streamed as a whole
+        Assertions.assertTrue(result.length > 0);
+        Assertions.assertTrue(MkvClusterIndex.getSidecarFile(video1).isFile());
+        Assertions.assertFalse(MkvClusterIndex.getSidecarFile(video2).exists());
+        Assertions.assertTrue(MkvClusterIndex.getSidecarFile(video3).isFile());
+    }
+
+    @Test
+    public void read_timeRangeAfterAllClusters_noData() throws IOException {
+        final List<VideoFile> files = new ArrayList<>();
+        files.add(new VideoFile(createClusteredVideo("video_" + TEST_TIME + ".mkv", 3)));
+
+        final byte[] result = readAll(new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME - 2000), new Date(TEST_TIME - 1000)));
+
+        Assertions.assertEquals(0, result.length);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME), new Date(TEST_TIME - 1)));
+    }
+
+    @Test
+    public void read_cachedOutput_streamedFromCache() throws IOException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 2);
+        final MergedOutputCache cache = new MergedOutputCache(rangeTempDir.resolve("cache").toFile(), 1024 * 1024);
+        final byte[] expected = readAll(createFilesInputStream(null, video1, video2));
+
+        Assertions.assertArrayEquals(expected, readAll(createFilesInputStream(cache, video1, video2)));
+        Assertions.assertTrue(cache.getTotalBytes() >= expected.length);
+
+        // Recordings are identified by path, size and modified time, so changed content is not parsed again
+        for (File video : new File[] {video1, video2}) {
+            final long lastModified = video.lastModified();
+            Files.write(video.toPath(), new byte[(int) video.length()]);
+            Assertions.assertTrue(video.setLastModified(lastModified));
+        }
+        Assertions.assertArrayEquals(expected, readAll(createFilesInputStream(cache, video1, video2)));
+    }
+
+    @Test
+    public void read_partiallyCachedFiles_sameOutputAsUncached() throws IOException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 2);
+        final MergedOutputCache cache = new MergedOutputCache(rangeTempDir.resolve("cache").toFile(), 1024 * 1024);
+        final byte[] expected = readAll(createFilesInputStream(null, video1, video2));
+
+        readAll(createFilesInputStream(cache, video1));
+
+        Assertions.assertArrayEquals(expected, readAll(createFilesInputStream(cache, video1, video2)));
+    }
+
+    @Test
+    public void read_resumedTimeRange_laterFilesStreamedFromCache() throws IOException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 2);
+        final MergedOutputCache cache = new MergedOutputCache(rangeTempDir.resolve("cache").toFile(), 1024 * 1024);
+        final List<VideoFile> files = new ArrayList<>();
+        files.add(new VideoFile(video1));
+        files.add(new VideoFile(video2));
+        final Date rangeEndTime = new Date(System.currentTimeMillis() + 60_000);
+        final byte[] expected = readAll(new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 2500), rangeEndTime));
+
+        final MkvFilesInputStream inputStream = new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 500), rangeEndTime);
+        inputStream.setMergedOutputCache(cache);
+        readAll(inputStream);
+
+        // Only the first file is trimmed by the new range start, so the second file is streamed from cache
+        final long lastModified = video2.lastModified();
+        Files.write(video2.toPath(), new byte[(int) video2.length()]);
+        Assertions.assertTrue(video2.setLastModified(lastModified));
+        final MkvFilesInputStream resumedInputStream = new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 2500), rangeEndTime);
+        resumedInputStream.setMergedOutputCache(cache);
+        Assertions.assertArrayEquals(expected, readAll(resumedInputStream));
+    }
+
+    @Test
+    public void read_passthroughClusters_sameOutputAsMerged() throws IOException, MkvElementVisitException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 3);
+        final File video3 = createClusteredVideo("video_" + (TEST_TIME + 20_000) + ".mkv", 2);
+        final MkvFilesInputStream mergedInputStream = createFilesInputStream(null, video1, video2, video3);
+        mergedInputStream.setPassthroughEnabled(false);
+        final byte[] expected = readAll(mergedInputStream);
+        for (File video : new File[] {video1, video2, video3}) {
+            MkvClusterIndex.loadOrBuild(video);
+        }
+
+        final MkvFilesInputStream inputStream = createFilesInputStream(null, video1, video2, video3);
+        Assertions.assertArrayEquals(expected, readAll(inputStream));
+
+        // Clusters of the first file are merged to emit the segment, and the last cluster of each file is merged
+        Assertions.assertEquals(3, inputStream.getPassthroughClusterCount());
+    }
+
+    @Test
+    public void read_passthroughClustersInRange_sameOutputAsMerged() throws IOException, MkvElementVisitException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 10_000) + ".mkv", 3);
+        final List<VideoFile> files = new ArrayList<>();
+        files.add(new VideoFile(video1));
+        files.add(new VideoFile(video2));
+        final MkvFilesInputStream mergedInputStream = new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 2500), new Date(TEST_TIME + 11_500));
+        mergedInputStream.setPassthroughEnabled(false);
+        final byte[] expected = readAll(mergedInputStream);
+
+        final MkvFilesInputStream inputStream = new MkvFilesInputStream(files.listIterator(),
+                new Date(TEST_TIME + 2500), new Date(TEST_TIME + 11_500));
+        Assertions.assertArrayEquals(expected, readAll(inputStream));
+        Assertions.assertEquals(1, inputStream.getPassthroughClusterCount());
+    }
+
+    @Test
+    public void read_overlappedFiles_merged() throws IOException, MkvElementVisitException {
+        final File video1 = createClusteredVideo("video_" + TEST_TIME + ".mkv", 3);
+        final File video2 = createClusteredVideo("video_" + (TEST_TIME + 1000) + ".mkv", 3);
+        final MkvFilesInputStream mergedInputStream = createFilesInputStream(null, video1, video2);
+        mergedInputStream.setPassthroughEnabled(false);
+        final byte[] expected = readAll(mergedInputStream);
+        MkvClusterIndex.loadOrBuild(video1);
+        MkvClusterIndex.loadOrBuild(video2);
+
+        // The second file starts before the end of the first file, so it's not passed through
+        final MkvFilesInputStream inputStream = createFilesInputStream(null, video1, video2);
+        Assertions.assertArrayEquals(expected, readAll(inputStream));
+        Assertions.assertEquals(0, inputStream.getPassthroughClusterCount());
+    }
+
+    private static MkvFilesInputStream createFilesInputStream(MergedOutputCache cache, File... videos) {
+        final List<VideoFile> files = new ArrayList<>();
+        for (File video : videos) {
+            files.add(new VideoFile(video));
+        }
+        final MkvFilesInputStream inputStream = new MkvFilesInputStream(files.listIterator());
+        inputStream.setMergedOutputCache(cache);
+        return inputStream;
+    }
+
+    /**
+     * Create a video with clusters at 0, 1000, 2000 ms ...  Only the second cluster starts with a non key frame.
+     */
+    private File createClusteredVideo(String filename, int clusterCount) throws IOException {
+        return TestUtil.createRecording(rangeTempDir, filename,
+                TestUtil.createClusteredVideo(TestUtil.createTracksHeader(false), clusterCount, 2, 1));
+    }
+
+    private static byte[] readAll(MkvFilesInputStream inputStream) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int readLen;
+        while ((readLen = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            outputStream.write(buffer, 0, readLen);
+        }
+        inputStream.close();
+        return outputStream.toByteArray();
+    }
+
     @Test
     public void markSupported_validSampleVideo_returnFalse() {
         Assumptions.assumeTrue(isVideoFilesAvailable);
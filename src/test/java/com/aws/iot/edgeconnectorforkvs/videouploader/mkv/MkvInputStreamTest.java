@@ -16,8 +16,6 @@
 package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
 
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
 import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
 import org.junit.jupiter.api.Assertions;
@@ -33,6 +31,7 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doThrow;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,7 +43,7 @@ public class MkvInputStreamTest {
     private MergeFragmentVisitor mockMergeFragmentVisitor;
 
     @Mock
-    private StreamingMkvReader mockStreamingMkvReader;
+    private EbmlParser mockEbmlParser;
 
     @Mock
     private ByteArrayInputStream mockByteArrayInputStream;
@@ -64,11 +63,11 @@ public class MkvInputStreamTest {
         mkvInputStream = new MkvInputStream(new ByteArrayInputStream(sampleVideo));
 
         // Mock it
-        Field field = MkvInputStream.class.getDeclaredField("streamingMkvReader");
+        Field field = MkvInputStream.class.getDeclaredField("ebmlParser");
         field.setAccessible(true);
-        field.set(mkvInputStream, mockStreamingMkvReader);
+        field.set(mkvInputStream, mockEbmlParser);
 
-        doThrow(MkvElementVisitException.class).when(mockStreamingMkvReader).apply(any(MkvElementVisitor.class));
+        doThrow(MkvElementVisitException.class).when(mockEbmlParser).feed(any(byte[].class), anyInt(), anyInt());
 
         // Do test
         Assertions.assertDoesNotThrow(() -> mkvInputStream.available());
@@ -168,6 +167,43 @@ public class MkvInputStreamTest {
         Assertions.assertArrayEquals(expectedResult, result);
     }
 
+    @Test
+    public void readBuffer_streamingVideoSamples_lastClusterPartiallyMerged() throws IOException {
+        final byte[] buffer = new byte[1024];
+        int readLen;
+
+        // Setup test
+        final ByteArrayOutputStream sampleOutputStream = new ByteArrayOutputStream();
+        sampleOutputStream.write(TestUtil.createTracksHeader(false));
+        sampleOutputStream.write(TestUtil.createClusterHeader(0));
+        sampleOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        sampleOutputStream.write(TestUtil.createClusterHeader(10));
+        sampleOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        sampleOutputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        sampleOutputStream.close();
+
+        // Expected result: only the latest simple block is held for reordering
+        final ByteArrayOutputStream answerOutputStream = new ByteArrayOutputStream();
+        answerOutputStream.write(TestUtil.createTracksHeader(false));
+        answerOutputStream.write(TestUtil.createClusterHeader(0));
+        answerOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        answerOutputStream.write(TestUtil.createClusterHeader(10));
+        answerOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        answerOutputStream.close();
+
+        // Do test
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mkvInputStream = new MkvInputStream(new ByteArrayInputStream(sampleOutputStream.toByteArray()), 0);
+
+        while ((readLen = mkvInputStream.read(buffer, 0, buffer.length)) != -1) {
+            outputStream.write(buffer, 0, readLen);
+        }
+        mkvInputStream.close();
+
+        // Verify answer
+        Assertions.assertArrayEquals(answerOutputStream.toByteArray(), outputStream.toByteArray());
+    }
+
     @Test
     public void readOneByte_videoSamples_sameOutputVideoMerged() {
         int b;
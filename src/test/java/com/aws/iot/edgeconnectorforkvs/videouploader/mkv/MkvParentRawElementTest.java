@@ -44,4 +44,28 @@ public class MkvParentRawElementTest {
 
         Assertions.assertNotEquals(parentElement.hashCode(), differentIdParentElement.hashCode());
     }
+
+    @Test
+    public void toMkvRawData_nestedChildren_dataLenUpdated() {
+        MkvParentRawElement parentElement = new MkvParentRawElement(
+                ByteBuffer.wrap(new byte[]{(byte) 0x16, (byte) 0x54, (byte) 0xAE, (byte) 0x6B})
+        );
+        MkvParentRawElement childElement = new MkvParentRawElement(
+                ByteBuffer.wrap(new byte[]{(byte) 0xAE})
+        );
+        childElement.addRawElement(new MkvDataRawElement(
+                ByteBuffer.wrap(new byte[]{(byte) 0xD7}),
+                ByteBuffer.wrap(new byte[]{(byte) 0x01})
+        ));
+        parentElement.addRawElement(childElement);
+
+        final byte[] expected = new byte[]{
+                (byte) 0x16, (byte) 0x54, (byte) 0xAE, (byte) 0x6B, (byte) 0x85,
+                (byte) 0xAE, (byte) 0x83,
+                (byte) 0xD7, (byte) 0x81, (byte) 0x01};
+
+        Assertions.assertArrayEquals(expected, parentElement.toMkvRawData());
+        Assertions.assertEquals(5, parentElement.getDataLen());
+        Assertions.assertEquals(3, childElement.getDataLen());
+    }
 }
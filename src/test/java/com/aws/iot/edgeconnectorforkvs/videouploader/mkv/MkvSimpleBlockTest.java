@@ -94,4 +94,30 @@ public class MkvSimpleBlockTest {
 
         Assertions.assertEquals(simpleBlock.hashCode(), sameSimpleBlock.hashCode());
     }
+
+    @Test
+    public void isKeyFrame_flagsByte_keyFrameFlagParsed() {
+        MkvSimpleBlock keyFrame = new MkvSimpleBlock(
+                (short) 0,
+                1,
+                ByteBuffer.wrap(new byte[]{(byte) 0xA3, (byte) 0x85}),
+                ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) 0x00, (byte) 0x00, (byte) 0x80, (byte) 0x00})
+        );
+        MkvSimpleBlock nonKeyFrame = new MkvSimpleBlock(
+                (short) 0,
+                1,
+                ByteBuffer.wrap(new byte[]{(byte) 0xA3, (byte) 0x85}),
+                ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00})
+        );
+        MkvSimpleBlock truncated = new MkvSimpleBlock(
+                (short) 0,
+                1,
+                ByteBuffer.wrap(new byte[]{(byte) 0xA3, (byte) 0x83}),
+                ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) 0x00, (byte) 0x00})
+        );
+
+        Assertions.assertTrue(keyFrame.isKeyFrame());
+        Assertions.assertFalse(nonKeyFrame.isKeyFrame());
+        Assertions.assertFalse(truncated.isKeyFrame());
+    }
 }
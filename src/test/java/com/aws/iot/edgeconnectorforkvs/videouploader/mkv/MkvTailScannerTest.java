@@ -0,0 +1,96 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class MkvTailScannerTest {
+
+    @TempDir
+    Path tempDir;
+
+    // A simple block whose data contains a cluster sync pattern and a timecode, followed by an invalid element
+    private static final byte[] SIMPLE_BLOCK_WITH_SYNC_PATTERN = new byte[]{
+            (byte) 0xA3, (byte) 0x8E, (byte) 0x81, (byte) 0x00, (byte) 0x00, (byte) 0x80, (byte) 0x1F, (byte) 0x43,
+            (byte) 0xB6, (byte) 0x75, (byte) 0xFF, (byte) 0xE7, (byte) 0x81, (byte) 0x00, (byte) 0x00, (byte) 0x00
+    };
+
+    private File writeFile(byte[]... parts) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            outputStream.write(part);
+        }
+        final File file = tempDir.resolve("video_1000.mkv").toFile();
+        Files.write(file.toPath(), outputStream.toByteArray());
+        return file;
+    }
+
+    @Test
+    public void findRecoverableLength_completeFile_fileLength() throws IOException {
+        // Elements of known size after the last cluster are kept
+        final File file = writeFile(TestUtil.createClusteredVideo(3, 2),
+                new byte[]{(byte) 0xEC, (byte) 0x82, 0x00, 0x00});
+
+        Assertions.assertEquals(file.length(), MkvTailScanner.findRecoverableLength(file));
+    }
+
+    @Test
+    public void findRecoverableLength_truncatedSimpleBlock_cutBeforeIt() throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(3, 2);
+        final byte[] simpleBlock = TestUtil.createSimpleBlock((short) 66, 1);
+        final File file = writeFile(video, Arrays.copyOf(simpleBlock, simpleBlock.length - 2));
+
+        Assertions.assertEquals(video.length, MkvTailScanner.findRecoverableLength(file));
+    }
+
+    @Test
+    public void findRecoverableLength_truncatedClusterTimecode_cutBeforeCluster() throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(2, 2);
+        final byte[] clusterHeader = TestUtil.createClusterHeader(2000);
+        final File file = writeFile(video, Arrays.copyOf(clusterHeader, clusterHeader.length - 3));
+
+        Assertions.assertEquals(video.length, MkvTailScanner.findRecoverableLength(file));
+    }
+
+    @Test
+    public void findRecoverableLength_syncPatternInBlock_skipped() throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(2, 2);
+        final byte[] simpleBlock = TestUtil.createSimpleBlock((short) 66, 1);
+        final File file = writeFile(video, SIMPLE_BLOCK_WITH_SYNC_PATTERN, simpleBlock,
+                Arrays.copyOf(simpleBlock, 3));
+
+        Assertions.assertEquals(video.length + SIMPLE_BLOCK_WITH_SYNC_PATTERN.length + simpleBlock.length,
+                MkvTailScanner.findRecoverableLength(file));
+    }
+
+    @Test
+    public void findRecoverableLength_noCluster_negative() throws IOException {
+        final File file = writeFile(TestUtil.createTracksHeader(false));
+
+        Assertions.assertEquals(-1, MkvTailScanner.findRecoverableLength(file));
+        Assertions.assertEquals(-1, MkvTailScanner.findRecoverableLength(writeFile(new byte[0])));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.aws.iot.edgeconnectorforkvs.videouploader.mkv;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class MkvTracksFingerprintTest {
+
+    private static final int ID_TRACKENTRY = MkvTypeInfos.TRACKENTRY.getId();
+
+    private static final int ID_TRACKNUMBER = MkvTypeInfos.TRACKNUMBER.getId();
+
+    private static final int ID_TRACKUID = MkvTypeInfos.TRACKUID.getId();
+
+    private static final int ID_CODECID = MkvTypeInfos.CODECID.getId();
+
+    private static final int ID_VOID = MkvTypeInfos.VOID.getId();
+
+    private static long fingerprint(MkvTracksFingerprint tracksFingerprint, long trackUid, boolean hasVoid) {
+        // Data with a leading byte to make sure data offset is respected
+        final ByteBuffer trackNumber = ByteBuffer.wrap(new byte[]{0x55, 0x01});
+        final ByteBuffer uid = ByteBuffer.allocate(8).putLong(0, trackUid);
+        final ByteBuffer codecId = ByteBuffer.wrap("V_MPEG4/ISO/AVC".getBytes());
+
+        tracksFingerprint.addMasterStart(ID_TRACKENTRY);
+        tracksFingerprint.addDataElement(ID_TRACKNUMBER, trackNumber, 1, 1);
+        tracksFingerprint.addDataElement(ID_TRACKUID, uid, 0, 8);
+        if (hasVoid) {
+            tracksFingerprint.addDataElement(ID_VOID, ByteBuffer.wrap(new byte[4]), 0, 4);
+        }
+        tracksFingerprint.addDataElement(ID_CODECID, codecId, 0, codecId.limit());
+        tracksFingerprint.addMasterEnd(ID_TRACKENTRY);
+        return tracksFingerprint.getValue();
+    }
+
+    @Test
+    public void getValue_differentTrackUidAndVoid_sameFingerprint() {
+        Assertions.assertEquals(fingerprint(new MkvTracksFingerprint(), 1, false),
+                fingerprint(new MkvTracksFingerprint(), 2, true));
+    }
+
+    @Test
+    public void getValue_exactFingerprint_trackUidIncluded() {
+        Assertions.assertNotEquals(fingerprint(new MkvTracksFingerprint(true), 1, false),
+                fingerprint(new MkvTracksFingerprint(true), 2, false));
+        Assertions.assertEquals(fingerprint(new MkvTracksFingerprint(true), 1, false),
+                fingerprint(new MkvTracksFingerprint(true), 1, true));
+    }
+
+    @Test
+    public void getValue_differentStructure_differentFingerprint() {
+        final ByteBuffer trackNumber = ByteBuffer.wrap(new byte[]{0x01});
+
+        // A track number inside or after a track entry
+        final MkvTracksFingerprint inside = new MkvTracksFingerprint();
+        inside.addMasterStart(ID_TRACKENTRY);
+        inside.addDataElement(ID_TRACKNUMBER, trackNumber, 0, 1);
+        inside.addMasterEnd(ID_TRACKENTRY);
+
+        final MkvTracksFingerprint after = new MkvTracksFingerprint();
+        after.addMasterStart(ID_TRACKENTRY);
+        after.addMasterEnd(ID_TRACKENTRY);
+        after.addDataElement(ID_TRACKNUMBER, trackNumber, 0, 1);
+
+        Assertions.assertNotEquals(inside.getValue(), after.getValue());
+        Assertions.assertNotEquals(new MkvTracksFingerprint().getValue(), inside.getValue());
+    }
+}
@@ -24,8 +24,10 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.EbmlParser;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvCluster;
 import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvSimpleBlock;
+import com.aws.iot.edgeconnectorforkvs.videouploader.model.FragmentDurationRange;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MergeFragmentException;
 import com.aws.iot.edgeconnectorforkvs.videouploader.model.exceptions.MkvTracksException;
 import com.aws.iot.edgeconnectorforkvs.videouploader.visitors.MergeFragmentVisitor;
@@ -46,6 +48,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -560,7 +564,7 @@ public class MergeFragmentVisitorTest {
     }
 
     @Test
-    public void applyVisitor_twoDifferentTrackMedia_throwException() throws MkvElementVisitException,
+    public void applyVisitor_twoDifferentTrackMedia_segmentRestarted() throws MkvElementVisitException,
             IOException {
         // Create a Video/Audio as following
         //      cluster: absolute timecode 0
@@ -587,7 +591,15 @@ public class MergeFragmentVisitorTest {
         final ByteArrayInputStream secondVideoInputStream =
                 new ByteArrayInputStream(secondVideoOutputStream.toByteArray());
 
-        // Expected result: throw Exception
+        // Expected result: the first video, and then a new segment with the second video
+        //      cluster: absolute timecode 10
+        //          simple block: relative timecode 0, track 1
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        expectedOutputStream.write(firstVideoOutputStream.toByteArray());
+        expectedOutputStream.write(TestUtil.createTracksHeader(false));
+        expectedOutputStream.write(TestUtil.createClusterHeader(secondVideoFragmentTimecode));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.close();
 
         // Setup output stream
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
@@ -604,9 +616,7 @@ public class MergeFragmentVisitorTest {
         mergeFragmentVisitor.setNextFragmentTimecodeOffsetMs(secondVideoFragmentTimecode);
         final StreamingMkvReader streamingMkvReaderForSecondVideo =
                 StreamingMkvReader.createDefault(new InputStreamParserByteSource(secondVideoInputStream));
-
-        Assertions.assertThrows(MergeFragmentException.class,
-                () -> streamingMkvReaderForSecondVideo.apply(mergeFragmentVisitor));
+        streamingMkvReaderForSecondVideo.apply(mergeFragmentVisitor);
 
         mergeFragmentVisitor.flush();
 
@@ -614,7 +624,7 @@ public class MergeFragmentVisitorTest {
         byteArrayOutputStream.close();
         final byte[] result = byteArrayOutputStream.toByteArray();
 
-        Assertions.assertArrayEquals(firstVideoOutputStream.toByteArray(), result);
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), result);
     }
 
     @Test
@@ -901,4 +911,262 @@ public class MergeFragmentVisitorTest {
         Assertions.assertEquals(10, previousCluster.getEarliestSimpleBlockTimecode());
         Assertions.assertEquals(20, previousCluster.getLatestSimpleBlockTimecode());
     }
+
+    private static byte[] createReorderedVideo() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 66, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 133, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 100, 1));
+        outputStream.write(TestUtil.createClusterHeader(120));
+        outputStream.write(TestUtil.createSimpleBlock((short) 46, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 80, 1));
+        outputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void setFragmentDurationRange_shortClusters_clustersCoalesced()
+            throws IOException, MkvElementVisitException {
+        final ByteArrayOutputStream inputStream = new ByteArrayOutputStream();
+        inputStream.write(TestUtil.createTracksHeader(false));
+        for (int i = 0; i < 3; i++) {
+            inputStream.write(TestUtil.createClusterHeader(i * 1000L));
+            inputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+            inputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        }
+        final byte[] mkv = inputStream.toByteArray();
+
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        expectedOutputStream.write(TestUtil.createTracksHeader(false));
+        expectedOutputStream.write(TestUtil.createClusterHeader(0));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 1000, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 1033, 1));
+        expectedOutputStream.write(TestUtil.createClusterHeader(2000));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 33, 1));
+
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor visitor = MergeFragmentVisitor.create(resultOutputStream);
+        visitor.setFragmentDurationRange(FragmentDurationRange.builder()
+                .minDurationMs(1500)
+                .maxDurationMs(3000)
+                .build());
+        final EbmlParser parser = new EbmlParser(visitor);
+        parser.feed(mkv, 0, mkv.length);
+        parser.endOfStream();
+        visitor.flush();
+
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+    }
+
+    @Test
+    public void setFragmentDurationRange_longCluster_clusterSplitAtKeyFrames()
+            throws IOException, MkvElementVisitException {
+        final byte[] nonKeyFrame = TestUtil.createSimpleBlock((short) 3000, 1);
+        nonKeyFrame[5] = 0x00;
+        final ByteArrayOutputStream inputStream = new ByteArrayOutputStream();
+        inputStream.write(TestUtil.createTracksHeader(false));
+        inputStream.write(TestUtil.createClusterHeader(0));
+        inputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        inputStream.write(TestUtil.createSimpleBlock((short) 1000, 1));
+        inputStream.write(TestUtil.createSimpleBlock((short) 2000, 1));
+        inputStream.write(nonKeyFrame);
+        final byte[] mkv = inputStream.toByteArray();
+
+        final byte[] expectedNonKeyFrame = TestUtil.createSimpleBlock((short) 1000, 1);
+        expectedNonKeyFrame[5] = 0x00;
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        expectedOutputStream.write(TestUtil.createTracksHeader(false));
+        expectedOutputStream.write(TestUtil.createClusterHeader(0));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createClusterHeader(1000));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createClusterHeader(2000));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(expectedNonKeyFrame);
+
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor visitor = MergeFragmentVisitor.create(resultOutputStream);
+        visitor.setFragmentDurationRange(FragmentDurationRange.builder()
+                .minDurationMs(500)
+                .maxDurationMs(1500)
+                .isSplitting(true)
+                .build());
+        final EbmlParser parser = new EbmlParser(visitor);
+        parser.feed(mkv, 0, mkv.length);
+        parser.endOfStream();
+        visitor.flush();
+
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+    }
+
+    @Test
+    public void setFragmentDurationRange_invalidRangeOrStreaming_throwException() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> FragmentDurationRange.builder().minDurationMs(2000).maxDurationMs(1000).build());
+
+        final FragmentDurationRange range = FragmentDurationRange.builder()
+                .minDurationMs(1000)
+                .maxDurationMs(2000)
+                .build();
+        final MergeFragmentVisitor visitor = MergeFragmentVisitor.createStreaming(new ByteArrayOutputStream(), 40);
+        Assertions.assertThrows(IllegalStateException.class, () -> visitor.setFragmentDurationRange(range));
+    }
+
+    @Test
+    public void createStreaming_negativeReorderWindow_throwException() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> MergeFragmentVisitor.createStreaming(new ByteArrayOutputStream(), -1));
+    }
+
+    @Test
+    public void createStreaming_reorderedVideo_sameOutputAsDefault() throws IOException, MkvElementVisitException {
+        final byte[] mkv = createReorderedVideo();
+
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor expectedVisitor = MergeFragmentVisitor.create(expectedOutputStream);
+        final EbmlParser expectedParser = new EbmlParser(expectedVisitor);
+        expectedParser.feed(mkv, 0, mkv.length);
+        expectedParser.endOfStream();
+        expectedVisitor.flush();
+
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.createStreaming(resultOutputStream, 40);
+        final EbmlParser resultParser = new EbmlParser(resultVisitor);
+        resultParser.feed(mkv, 0, mkv.length);
+        resultParser.endOfStream();
+        resultVisitor.flush();
+
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+    }
+
+    @Test
+    public void createStreaming_simpleBlocksOlderThanWindow_emittedBeforeClusterEnds()
+            throws IOException, MkvElementVisitException {
+        final byte[] mkv = createReorderedVideo();
+        final int simpleBlockLength = TestUtil.createSimpleBlock((short) 0, 1).length;
+
+        final ByteArrayOutputStream defaultOutputStream = new ByteArrayOutputStream();
+        new EbmlParser(MergeFragmentVisitor.create(defaultOutputStream)).feed(mkv, 0, mkv.length);
+        final ByteArrayOutputStream streamingOutputStream = new ByteArrayOutputStream();
+        new EbmlParser(MergeFragmentVisitor.createStreaming(streamingOutputStream, 40)).feed(mkv, 0, mkv.length);
+
+        // Default visitor holds both clusters.  Streaming visitor emits the first cluster except the block at 133 that
+        // is moved to the second cluster, and blocks at 120 and 133 of the second cluster as they are older than 160.
+        final int clusterHeaderLength = TestUtil.createClusterHeader(0).length;
+        Assertions.assertEquals(defaultOutputStream.size() + 2 * clusterHeaderLength + 6 * simpleBlockLength,
+                streamingOutputStream.size());
+    }
+
+    @Test
+    public void createStreaming_sampleMkvFileTwice_sameOutputAsDefault() throws IOException, MkvElementVisitException {
+        byte[] sampleMkvFile;
+        try {
+            sampleMkvFile = Files.readAllBytes(Paths.get(
+                    ClassLoader.getSystemResource("sample-mkv-file.mkv").toURI()));
+        } catch (Exception exception) {
+            sampleMkvFile = null;
+        }
+        Assumptions.assumeTrue(sampleMkvFile != null);
+
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor expectedVisitor = MergeFragmentVisitor.create(expectedOutputStream);
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.createStreaming(resultOutputStream, 1000);
+        for (int i = 0; i < 2; i++) {
+            expectedVisitor.setNextFragmentTimecodeOffsetMs(i * 10_000L);
+            StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(sampleMkvFile)))
+                    .apply(expectedVisitor);
+            resultVisitor.setNextFragmentTimecodeOffsetMs(i * 10_000L);
+            StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(sampleMkvFile)))
+                    .apply(resultVisitor);
+        }
+        expectedVisitor.flush();
+        resultVisitor.flush();
+
+        Assertions.assertTrue(expectedOutputStream.size() > 0);
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+    }
+
+    private static byte[] createTwoClusterVideo() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(TestUtil.createTracksHeader(false));
+        outputStream.write(TestUtil.createClusterHeader(0));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        outputStream.write(TestUtil.createClusterHeader(30));
+        outputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        outputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        outputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void applyVisitor_sameVideoTwice_duplicatesDropped() throws IOException, MkvElementVisitException {
+        final byte[] video = createTwoClusterVideo();
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor expectedVisitor = MergeFragmentVisitor.create(expectedOutputStream);
+        new EbmlParser(expectedVisitor).feed(video, 0, video.length);
+        expectedVisitor.flush();
+
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.create(resultOutputStream);
+        for (int i = 0; i < 2; i++) {
+            resultVisitor.setNextFragmentTimecodeOffsetMs(0);
+            final EbmlParser parser = new EbmlParser(resultVisitor);
+            parser.feed(video, 0, video.length);
+            parser.endOfStream();
+        }
+        resultVisitor.flush();
+
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+        Assertions.assertEquals(4, resultVisitor.getDroppedSimpleBlockCount());
+        Assertions.assertEquals(2, resultVisitor.getDroppedClusterCount());
+    }
+
+    @Test
+    public void applyVisitor_partiallyOverlappedVideo_clusterMovedAfterWrittenCluster()
+            throws IOException, MkvElementVisitException {
+        final byte[] firstVideo = createTwoClusterVideo();
+        final ByteArrayOutputStream secondVideoOutputStream = new ByteArrayOutputStream();
+        secondVideoOutputStream.write(TestUtil.createTracksHeader(false));
+        secondVideoOutputStream.write(TestUtil.createClusterHeader(0));
+        secondVideoOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        secondVideoOutputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        secondVideoOutputStream.write(TestUtil.createSimpleBlock((short) 20, 1));
+        final byte[] secondVideo = secondVideoOutputStream.toByteArray();
+
+        // Blocks at 0 and 10 of the second video are covered by the written cluster, and the cluster starting at 0
+        // is moved to its first remaining block at 20, which takes blocks at 30 and 40 of the first video
+        final ByteArrayOutputStream expectedOutputStream = new ByteArrayOutputStream();
+        expectedOutputStream.write(TestUtil.createTracksHeader(false));
+        expectedOutputStream.write(TestUtil.createClusterHeader(0));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        expectedOutputStream.write(TestUtil.createClusterHeader(20));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 0, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 10, 1));
+        expectedOutputStream.write(TestUtil.createSimpleBlock((short) 20, 1));
+
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final MergeFragmentVisitor resultVisitor = MergeFragmentVisitor.create(resultOutputStream);
+        for (byte[] video : new byte[][]{firstVideo, secondVideo}) {
+            resultVisitor.setNextFragmentTimecodeOffsetMs(0);
+            final EbmlParser parser = new EbmlParser(resultVisitor);
+            parser.feed(video, 0, video.length);
+            parser.endOfStream();
+        }
+        resultVisitor.flush();
+
+        Assertions.assertArrayEquals(expectedOutputStream.toByteArray(), resultOutputStream.toByteArray());
+        Assertions.assertEquals(2, resultVisitor.getDroppedSimpleBlockCount());
+        Assertions.assertEquals(0, resultVisitor.getDroppedClusterCount());
+    }
 }
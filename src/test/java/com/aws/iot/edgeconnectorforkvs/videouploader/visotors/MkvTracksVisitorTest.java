@@ -369,6 +369,85 @@ public class MkvTracksVisitorTest {
         Assertions.assertFalse(visitor.isTracksEquivalent());
     }
 
+    private void visitTrackEntry(MkvTracksVisitor tracksVisitor, byte[] trackUid) {
+        tracksVisitor.visit(tracksStartMasterElement);
+        tracksVisitor.visit(trackEntryStartMasterElement);
+        tracksVisitor.visit(trackNumberDataElement);
+        tracksVisitor.visit(MkvDataElement.builder()
+                .elementMetaData(trackUidMetaData)
+                .elementPath(trackUidDataElement.getElementPath())
+                .dataSize(8L)
+                .idAndSizeRawBytes(ByteBuffer.wrap(TRACK_UID_HEADER))
+                .dataBuffer(ByteBuffer.wrap(trackUid))
+                .build());
+        tracksVisitor.visit(crc32DataElement);
+        tracksVisitor.visit(codecIdDataElement);
+        tracksVisitor.visit(trackEntryEndMasterElement);
+        tracksVisitor.visit(tracksEndMasterElement);
+    }
+
+    @Test
+    public void isTracksEquivalent_differentTrackUid_returnTrue() {
+        final byte[] otherTrackUid = new byte[]{
+                (byte) 0x10, (byte) 0x11, (byte) 0x12, (byte) 0x13, (byte) 0x14, (byte) 0x15, (byte) 0x16, (byte) 0x17
+        };
+
+        visitTrackEntry(visitor, TRACK_UID_DATA);
+        final long fingerprint = visitor.getTracksFingerprint();
+        visitTrackEntry(visitor, otherTrackUid);
+
+        Assertions.assertTrue(visitor.isTracksEquivalent());
+        Assertions.assertEquals(fingerprint, visitor.getTracksFingerprint());
+    }
+
+    @Test
+    public void toMkvRawData_sameTracksInAnotherVisitor_sameRawData() throws IOException {
+        // CRC-32 is removed
+        final byte[] expected = ByteBuffer.allocate(38)
+                .put(TRACKS_HEADER)
+                .put(TRACK_ENTRY_HEADER)
+                .put(TRACK_NUMBER_HEADER).put(TRACK_NUMBER_DATA)
+                .put(TRACK_UID_HEADER).put(TRACK_UID_DATA)
+                .put(CODEC_ID_HEADER).put(CODEC_ID_DATA)
+                .array();
+
+        visitTrackEntry(visitor, TRACK_UID_DATA);
+        final MkvTracksVisitor otherVisitor = new MkvTracksVisitor();
+        visitTrackEntry(otherVisitor, TRACK_UID_DATA);
+
+        Assertions.assertArrayEquals(expected, visitor.toMkvRawData());
+        Assertions.assertArrayEquals(expected, otherVisitor.toMkvRawData());
+        Assertions.assertEquals(visitor.getTracksFingerprint(), otherVisitor.getTracksFingerprint());
+    }
+
+    @Test
+    public void restartWithNewTracks_differentTracks_newTracksCurrent() throws IOException {
+        visitTrackEntry(visitor, TRACK_UID_DATA);
+        final long fingerprint = visitor.getTracksFingerprint();
+        final byte[] rawData = visitor.toMkvRawData();
+        Assertions.assertThrows(IOException.class, () -> visitor.restartWithNewTracks());
+
+        // Tracks without track number
+        visitor.visit(tracksStartMasterElement);
+        visitor.visit(trackEntryStartMasterElement);
+        visitor.visit(codecIdDataElement);
+        visitor.visit(trackEntryEndMasterElement);
+        visitor.visit(tracksEndMasterElement);
+        Assertions.assertFalse(visitor.isTracksEquivalent());
+        Assertions.assertArrayEquals(rawData, visitor.toMkvRawData());
+
+        visitor.restartWithNewTracks();
+        Assertions.assertTrue(visitor.isTracksEquivalent());
+        Assertions.assertNotEquals(fingerprint, visitor.getTracksFingerprint());
+        Assertions.assertEquals(rawData.length - TRACK_NUMBER_HEADER.length - TRACK_NUMBER_DATA.length
+                - TRACK_UID_HEADER.length - TRACK_UID_DATA.length, visitor.toMkvRawData().length);
+        Assertions.assertThrows(IOException.class, () -> visitor.restartWithNewTracks());
+
+        // The first tracks are different from the current tracks now
+        visitTrackEntry(visitor, TRACK_UID_DATA);
+        Assertions.assertFalse(visitor.isTracksEquivalent());
+    }
+
     @Test
     public void toMkvRawData_nullPreviousTracks_throwExcpetion() {
         Assertions.assertThrows(IOException.class, () -> visitor.toMkvRawData());
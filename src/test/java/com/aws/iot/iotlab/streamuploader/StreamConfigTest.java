@@ -51,6 +51,7 @@ public class StreamConfigTest {
         Assertions.assertEquals("rtsp://abc.com/test.mkv", streamConfig.RTSP_SRC_URL);
         Assertions.assertEquals(10000, streamConfig.STREAM_BUFFER_SIZE);
         Assertions.assertEquals("/", streamConfig.STREAM_PATH);
+        Assertions.assertFalse(streamConfig.RECORD_TO_FILE);
         Assertions.assertEquals(RegionUtils.getRegion("us-east-1"), streamConfig.REGION);
         Assertions.assertEquals("test-kvs-stream", streamConfig.KVS_STREAM_NAME);
     }
@@ -71,4 +72,29 @@ public class StreamConfigTest {
         StreamConfig streamConfig = new StreamConfig(singleConfig);
         Assertions.assertEquals(RegionUtils.getRegion("us-west-2"), streamConfig.REGION);
     }
+
+    @Test
+    public void recordPathTest() {
+        SingleConfig singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://abc.com/test.mkv").RecordPath("/var/recordings").build();
+        StreamConfig streamConfig = new StreamConfig(singleConfig);
+        Assertions.assertEquals("/var/recordings", streamConfig.STREAM_PATH);
+        Assertions.assertTrue(streamConfig.RECORD_TO_FILE);
+        Assertions.assertNull(streamConfig.STAGING_PATH);
+    }
+
+    @Test
+    public void stagingPathTest() {
+        SingleConfig singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://abc.com/test.mkv").RecordPath("/var/recordings").StagingPath("/dev/shm/staging")
+                .maxStagingBytes(1000L).build();
+        StreamConfig streamConfig = new StreamConfig(singleConfig);
+        Assertions.assertEquals("/dev/shm/staging", streamConfig.STAGING_PATH);
+        Assertions.assertEquals(1000L, streamConfig.MAX_STAGING_BYTES);
+
+        singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://abc.com/test.mkv").StagingPath("/dev/shm/staging").build();
+        streamConfig = new StreamConfig(singleConfig);
+        Assertions.assertNull(streamConfig.STAGING_PATH);
+    }
 }
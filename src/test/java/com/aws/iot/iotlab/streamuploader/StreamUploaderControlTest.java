@@ -16,16 +16,24 @@
 package com.aws.iot.iotlab.streamuploader;
 
 import com.aws.iot.edgeconnectorforkvs.videorecorder.VideoRecorder;
+import com.aws.iot.edgeconnectorforkvs.videouploader.TestUtil;
 import com.aws.iot.edgeconnectorforkvs.videouploader.VideoUploader;
+import com.aws.iot.edgeconnectorforkvs.videouploader.mkv.MkvClusterIndex;
 import com.aws.iot.iotlab.streamuploader.model.SingleConfig;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
 import uk.org.webcompere.systemstubs.jupiter.SystemStub;
 import uk.org.webcompere.systemstubs.jupiter.SystemStubsExtension;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 @ExtendWith(SystemStubsExtension.class)
 public class StreamUploaderControlTest {
     private static StreamUploaderControl streamUploaderControl;
@@ -81,4 +89,53 @@ public class StreamUploaderControlTest {
         VideoUploader videoUploader = streamUploaderControl.initUploader();
         Assertions.assertNotNull(videoUploader);
     }
+
+    @Test
+    public void initUploaderWithRecordPathTest(@TempDir Path tempDir) {
+        SingleConfig singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://test.com").RecordPath(tempDir.resolve("record").toString()).build();
+        StreamUploaderControl control = new StreamUploaderControl(new StreamConfig(singleConfig));
+
+        Assertions.assertNotNull(control.initUploader());
+        Assertions.assertNotNull(control.recordingCatalog);
+        Assertions.assertTrue(control.initRecordingCatalog());
+        control.closeRecordingCatalog();
+        Assertions.assertNull(control.recordingCatalog);
+    }
+
+    @Test
+    public void initRecordingCatalogWithoutRecordPathTest() {
+        Assertions.assertFalse(streamUploaderControl.initRecordingCatalog());
+        Assertions.assertNull(streamUploaderControl.recordingCatalog);
+    }
+
+    @Test
+    public void initStagerTest(@TempDir Path tempDir) {
+        Assertions.assertNull(streamUploaderControl.initStager());
+
+        SingleConfig singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://test.com").RecordPath(tempDir.resolve("record").toString())
+                .StagingPath(tempDir.resolve("staging").toString()).build();
+        StreamUploaderControl control = new StreamUploaderControl(new StreamConfig(singleConfig));
+
+        Assertions.assertNotNull(control.initStager());
+        Assertions.assertSame(control.recordingStager, control.initStager());
+        control.shutdown();
+        Assertions.assertTrue(control.stagingExecutor.isShutdown());
+    }
+
+    @Test
+    public void repairRecordingsTest(@TempDir Path tempDir) throws IOException {
+        final byte[] video = TestUtil.createClusteredVideo(1, 2);
+        final File recording = TestUtil.createRecording(tempDir, "video_1000.mkv",
+                Arrays.copyOf(video, video.length - 3));
+        SingleConfig singleConfig = SingleConfig.builder().KvsStreamName("test-kvs-stream")
+                .RtspUrl("rtsp://test.com").RecordPath(tempDir.toString()).build();
+        StreamUploaderControl control = new StreamUploaderControl(new StreamConfig(singleConfig));
+
+        control.repairRecordings();
+
+        Assertions.assertEquals(video.length - TestUtil.createSimpleBlock((short) 0, 1).length, recording.length());
+        Assertions.assertNotNull(MkvClusterIndex.loadIfFresh(recording));
+    }
 }